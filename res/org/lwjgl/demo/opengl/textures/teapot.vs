@@ -6,11 +6,25 @@
 
 uniform mat4 viewProj;
 uniform vec3 cameraPosition;
+uniform vec3 positionScale;
+uniform vec3 positionOffset;
+
+attribute vec3 position;
+attribute vec2 octNormal;
+
 varying vec3 dir;
 varying vec3 normal;
 
+vec3 decodeOctahedral(vec2 e) {
+  vec3 n = vec3(e, 1.0 - abs(e.x) - abs(e.y));
+  if (n.z < 0.0)
+    n.xy = (1.0 - abs(n.yx)) * vec2(n.x >= 0.0 ? 1.0 : -1.0, n.y >= 0.0 ? 1.0 : -1.0);
+  return normalize(n);
+}
+
 void main(void) {
-  normal = gl_Normal;
-  dir = gl_Vertex.xyz - cameraPosition;
-  gl_Position = viewProj * gl_Vertex;
+  vec3 p = positionOffset + positionScale * position;
+  normal = decodeOctahedral(octNormal);
+  dir = p - cameraPosition;
+  gl_Position = viewProj * vec4(p, 1.0);
 }
@@ -39,11 +39,16 @@ import java.text.NumberFormat;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
 import java.util.stream.Collectors;
 
 import org.joml.*;
 import org.lwjgl.PointerBuffer;
 import org.lwjgl.demo.game.VoxelGameGL.GreedyMeshing.FaceConsumer;
+import org.lwjgl.demo.util.ChunkConnectivity;
+import org.lwjgl.demo.util.ChunkIterator;
+import org.lwjgl.demo.util.ChunkIteratorVisitor;
+import org.lwjgl.demo.util.FaceConnectivity;
 import org.lwjgl.demo.util.FirstFitFreeListAllocator;
 import org.lwjgl.glfw.*;
 import org.lwjgl.opengl.*;
@@ -61,6 +66,9 @@ public class VoxelGameGL {
     private static final boolean DEBUG = has("debug", false);
     private static final boolean GRAB_CURSOR = has("grabCursor", true);
     private static final boolean GLDEBUG = has("gldebug", false);
+    private static final boolean STATS = has("stats", false);
+    private static final boolean CAVE_CULLING = has("caveCulling", false);
+    private static final String STATS_FILE = System.getProperty("statsFile", "voxelgame-stats.csv");
     private static final NumberFormat INT_FORMATTER = NumberFormat.getIntegerInstance();
     private static final NumberFormat PERCENT_FORMATTER = NumberFormat.getPercentInstance();
     static {
@@ -438,6 +446,136 @@ public class VoxelGameGL {
         }
     }
 
+    /**
+     * Low-overhead timing statistics for the individual stages of the chunk and frame pipeline.
+     * <p>
+     * Every thread records into its own {@link AtomicLongArray} holding a fixed number of power-of-two
+     * microsecond buckets per stage. Since each array only has a single writer, recording is a plain
+     * increment published via {@link AtomicLongArray#lazySet(int, long)} without any CAS or lock. Only
+     * the per-stage maximum, which the exporter resets every interval, needs a CAS whenever a sample
+     * exceeds it. A daemon thread periodically sums up all per-thread arrays and appends the
+     * per-interval deltas to a CSV file (or a JSON lines file, if the file name ends with
+     * <code>.json</code>).
+     */
+    private static class PipelineStats {
+        /**
+         * The stages we record latencies for.
+         */
+        private enum Stage {
+            FRAME, NOISE, MESHING, VERTEX_PACKING, QUEUE_WAIT, UPLOAD, CULLING, DRAW_COMMANDS
+        }
+
+        /**
+         * Bucket 0 holds latencies below 1 µs and bucket <code>i</code> holds latencies in
+         * <code>[2^(i-1), 2^i)</code> µs. The last bucket also takes everything above.
+         */
+        private static final int BUCKETS = 24;
+        /**
+         * Index of the maximum nanoseconds since the last export, relative to the start of a stage.
+         */
+        private static final int MAX = BUCKETS + 1;
+        /**
+         * Number of longs per stage: the buckets followed by the total and the maximum nanoseconds.
+         */
+        private static final int STRIDE = BUCKETS + 2;
+        private static final long EXPORT_INTERVAL_MS = 1000L;
+
+        private final List<AtomicLongArray> recorders = new CopyOnWriteArrayList<>();
+        private final ThreadLocal<AtomicLongArray> recorder = ThreadLocal.withInitial(() -> {
+            AtomicLongArray r = new AtomicLongArray(Stage.values().length * STRIDE);
+            recorders.add(r);
+            return r;
+        });
+        private final long[] last = new long[Stage.values().length * STRIDE];
+        private final long startTime = System.nanoTime();
+        private final boolean json;
+        private final PrintWriter out;
+        private final ScheduledExecutorService exporter = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r);
+            t.setPriority(Thread.MIN_PRIORITY);
+            t.setName("Stats exporter");
+            t.setDaemon(true);
+            return t;
+        });
+
+        private PipelineStats(String file) throws IOException {
+            this.json = file.endsWith(".json");
+            this.out = new PrintWriter(new BufferedWriter(new FileWriter(file)));
+            if (!json) {
+                out.println("time_ms,stage,count,total_us,mean_us,p50_us,p90_us,p99_us,max_us");
+            }
+            exporter.scheduleAtFixedRate(this::export, EXPORT_INTERVAL_MS, EXPORT_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * Record a single latency sample of the given stage for the calling thread.
+         */
+        private void record(Stage stage, long nanos) {
+            AtomicLongArray r = recorder.get();
+            int base = stage.ordinal() * STRIDE;
+            int bucket = min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(nanos / 1000L));
+            r.lazySet(base + bucket, r.get(base + bucket) + 1);
+            r.lazySet(base + BUCKETS, r.get(base + BUCKETS) + nanos);
+            if (nanos > r.get(base + MAX))
+                r.accumulateAndGet(base + MAX, nanos, (a, b) -> max(a, b));
+        }
+
+        /**
+         * Sum up all per-thread recorders and write the delta since the last export.
+         */
+        private synchronized void export() {
+            long[] sum = new long[last.length];
+            for (AtomicLongArray r : recorders)
+                for (int i = 0; i < sum.length; i++)
+                    sum[i] = i % STRIDE == MAX ? max(sum[i], r.getAndSet(i, 0L)) : sum[i] + r.get(i);
+            long timeMs = (System.nanoTime() - startTime) / 1000000L;
+            for (Stage stage : Stage.values()) {
+                int base = stage.ordinal() * STRIDE;
+                long count = 0L;
+                for (int i = 0; i < BUCKETS; i++)
+                    count += sum[base + i] - last[base + i];
+                if (count == 0L)
+                    continue;
+                long totalUs = (sum[base + BUCKETS] - last[base + BUCKETS]) / 1000L;
+                long p50 = percentile(sum, base, count, 0.5), p90 = percentile(sum, base, count, 0.9);
+                long p99 = percentile(sum, base, count, 0.99), max = sum[base + MAX] / 1000L;
+                if (json) {
+                    out.println("{\"time_ms\":" + timeMs + ",\"stage\":\"" + stage + "\",\"count\":" + count + ",\"total_us\":" + totalUs
+                            + ",\"mean_us\":" + totalUs / count + ",\"p50_us\":" + p50 + ",\"p90_us\":" + p90 + ",\"p99_us\":" + p99
+                            + ",\"max_us\":" + max + "}");
+                } else {
+                    out.println(timeMs + "," + stage + "," + count + "," + totalUs + "," + totalUs / count + "," + p50 + "," + p90 + "," + p99 + ","
+                            + max);
+                }
+            }
+            out.flush();
+            System.arraycopy(sum, 0, last, 0, sum.length);
+        }
+
+        /**
+         * Return the (exclusive) upper bound in µs of the bucket containing the given quantile of this
+         * interval's samples.
+         */
+        private long percentile(long[] sum, int base, long count, double q) {
+            long target = max(1L, (long) ceil(count * q)), seen = 0L;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += sum[base + i] - last[base + i];
+                if (seen >= target)
+                    return 1L << i;
+            }
+            return 1L << (BUCKETS - 1);
+        }
+
+        /**
+         * Stop the periodic export and write the final interval.
+         */
+        private synchronized void close() {
+            exporter.shutdown();
+            export();
+            out.close();
+        }
+    }
+
     /**
      * Represents the voxel field of a single chunk.
      */
@@ -534,6 +672,11 @@ public class VoxelGameGL {
          * Bitmask of the occupation of this chunk's neighbors.
          */
         private int neighbors;
+        /**
+         * The face-to-face connectivity of each of the {@link #SECTIONS_PER_CHUNK} sections of this chunk,
+         * used for cave culling.
+         */
+        private int[] connectivity;
 
         private Chunk(int cx, int cz) {
             this.cx = cx;
@@ -621,6 +764,12 @@ public class VoxelGameGL {
      */
     private static final int PRIMITIVE_RESTART_INDEX = 0xFFFF;
 
+    /**
+     * The number of cubic sections (of size {@link #CHUNK_SIZE}) a chunk is divided into for cave
+     * culling.
+     */
+    private static final int SECTIONS_PER_CHUNK = CHUNK_HEIGHT >> CHUNK_SIZE_SHIFT;
+
     /**
      * The initial capacity of per-face data buffers. The unit is in number of faces, not bytes.
      */
@@ -673,6 +822,12 @@ public class VoxelGameGL {
      */
     private static final int MAX_RENDER_DISTANCE_METERS = MAX_RENDER_DISTANCE_CHUNKS << CHUNK_SIZE_SHIFT;
 
+    /**
+     * The width and depth (in number of chunks) of the grid around the player that cave culling
+     * traverses. This includes frontier chunks just outside of the render distance.
+     */
+    private static final int CAVE_CULLING_GRID_SIZE = (MAX_RENDER_DISTANCE_CHUNKS + 1) * 2 + 1;
+
     /**
      * The vertical field of view of the camera in degrees.
      */
@@ -752,6 +907,11 @@ public class VoxelGameGL {
      */
     private final Queue<DelayedRunnable> updateAndRenderRunnables = new ConcurrentLinkedQueue<>();
 
+    /**
+     * Per-stage timing statistics, only created when running with <code>-Dstats</code>.
+     */
+    private PipelineStats pipelineStats;
+
     private long window;
     private int width;
     private int height;
@@ -898,6 +1058,33 @@ public class VoxelGameGL {
     private boolean wireframe;
     private boolean debugBoundingBoxes;
 
+    /* State for cave culling */
+    private boolean caveCulling = CAVE_CULLING;
+    private final ChunkIterator caveCullingIterator = new ChunkIterator(CAVE_CULLING_GRID_SIZE, SECTIONS_PER_CHUNK, CAVE_CULLING_GRID_SIZE);
+    private final Chunk[] caveCullingGrid = new Chunk[CAVE_CULLING_GRID_SIZE * CAVE_CULLING_GRID_SIZE];
+    private int caveCullingGridX, caveCullingGridZ;
+    private final BitSet caveVisibleChunks = new BitSet(MAX_ACTIVE_CHUNKS);
+    private final Matrix4f caveCullingProj = new Matrix4f();
+    private final Quaternionf caveCullingView = new Quaternionf();
+    private final Vector3f caveCullingPosition = new Vector3f();
+    private final ChunkConnectivity sectionConnectivity = (x, y, z) -> {
+        Chunk c = caveCullingGrid[x + z * CAVE_CULLING_GRID_SIZE];
+        /* Treat chunks that are not (yet) built as empty so we look through them */
+        return c == null || c.connectivity == null ? FaceConnectivity.ALL_CONNECTED : c.connectivity[y];
+    };
+    private final ChunkIteratorVisitor caveVisibleSection = (x, y, z, d) -> {
+        Chunk c = caveCullingGrid[x + z * CAVE_CULLING_GRID_SIZE];
+        if (c != null)
+            caveVisibleChunks.set(c.index);
+        return ChunkIteratorVisitor.CONTINUE;
+    };
+
+    /**
+     * Used by chunk builder threads to compute the connectivity of single chunk sections.
+     */
+    private static final ThreadLocal<FaceConnectivity> faceConnectivity = ThreadLocal
+            .withInitial(() -> new FaceConnectivity(CHUNK_SIZE, CHUNK_SIZE, CHUNK_SIZE));
+
     private static boolean has(String prop, boolean def) {
         String value = System.getProperty(prop);
         return value != null ? value.isEmpty() || Boolean.parseBoolean(value) : def;
@@ -958,6 +1145,8 @@ public class VoxelGameGL {
             wireframe = !wireframe;
         } else if (key == GLFW_KEY_1 && action == GLFW_PRESS) {
             debugBoundingBoxes = !debugBoundingBoxes;
+        } else if (key == GLFW_KEY_3 && action == GLFW_PRESS) {
+            caveCulling = !caveCulling;
         }
     }
 
@@ -992,7 +1181,7 @@ public class VoxelGameGL {
         f.store(lx, y, lz, v);
         chunk.minY = f.ny;
         chunk.maxY = f.py;
-        updateChunk(chunk, f);
+        updateChunk(chunk, f, y);
         updateEdgesOfNeighborChunks(cx, cz, lx, y, lz, v);
     }
 
@@ -1006,24 +1195,24 @@ public class VoxelGameGL {
      */
     private void updateEdgesOfNeighborChunks(int cx, int cz, int lx, int y, int lz, byte v) {
         if (lx == CHUNK_SIZE - 1) {
-            updateChunk(chunkByCoordinate.get(new Vector2i(cx + 1, cz)), voxelFieldFor(cx + 1, cz, false).store(-1, y, lz, v));
+            updateChunk(chunkByCoordinate.get(new Vector2i(cx + 1, cz)), voxelFieldFor(cx + 1, cz, false).store(-1, y, lz, v), -1);
             if (lz == CHUNK_SIZE - 1) {
-                updateChunk(chunkByCoordinate.get(new Vector2i(cx + 1, cz + 1)), voxelFieldFor(cx + 1, cz + 1, false).store(-1, y, -1, v));
+                updateChunk(chunkByCoordinate.get(new Vector2i(cx + 1, cz + 1)), voxelFieldFor(cx + 1, cz + 1, false).store(-1, y, -1, v), -1);
             } else if (lz == 0) {
-                updateChunk(chunkByCoordinate.get(new Vector2i(cx + 1, cz - 1)), voxelFieldFor(cx + 1, cz - 1, false).store(-1, y, CHUNK_SIZE, v));
+                updateChunk(chunkByCoordinate.get(new Vector2i(cx + 1, cz - 1)), voxelFieldFor(cx + 1, cz - 1, false).store(-1, y, CHUNK_SIZE, v), -1);
             }
         } else if (lx == 0) {
-            updateChunk(chunkByCoordinate.get(new Vector2i(cx - 1, cz)), voxelFieldFor(cx - 1, cz, false).store(CHUNK_SIZE, y, lz, v));
+            updateChunk(chunkByCoordinate.get(new Vector2i(cx - 1, cz)), voxelFieldFor(cx - 1, cz, false).store(CHUNK_SIZE, y, lz, v), -1);
             if (lz == CHUNK_SIZE - 1) {
-                updateChunk(chunkByCoordinate.get(new Vector2i(cx - 1, cz + 1)), voxelFieldFor(cx - 1, cz + 1, false).store(CHUNK_SIZE, y, -1, v));
+                updateChunk(chunkByCoordinate.get(new Vector2i(cx - 1, cz + 1)), voxelFieldFor(cx - 1, cz + 1, false).store(CHUNK_SIZE, y, -1, v), -1);
             } else if (lz == 0) {
-                updateChunk(chunkByCoordinate.get(new Vector2i(cx - 1, cz - 1)), voxelFieldFor(cx - 1, cz - 1, false).store(CHUNK_SIZE, y, CHUNK_SIZE, v));
+                updateChunk(chunkByCoordinate.get(new Vector2i(cx - 1, cz - 1)), voxelFieldFor(cx - 1, cz - 1, false).store(CHUNK_SIZE, y, CHUNK_SIZE, v), -1);
             }
         }
         if (lz == CHUNK_SIZE - 1) {
-            updateChunk(chunkByCoordinate.get(new Vector2i(cx, cz + 1)), voxelFieldFor(cx, cz + 1, false).store(lx, y, -1, v));
+            updateChunk(chunkByCoordinate.get(new Vector2i(cx, cz + 1)), voxelFieldFor(cx, cz + 1, false).store(lx, y, -1, v), -1);
         } else if (lz == 0) {
-            updateChunk(chunkByCoordinate.get(new Vector2i(cx, cz - 1)), voxelFieldFor(cx, cz - 1, false).store(lx, y, CHUNK_SIZE, v));
+            updateChunk(chunkByCoordinate.get(new Vector2i(cx, cz - 1)), voxelFieldFor(cx, cz - 1, false).store(lx, y, CHUNK_SIZE, v), -1);
         }
     }
 
@@ -1439,7 +1628,10 @@ public class VoxelGameGL {
         /* Create voxel field for that chunk without storing in cache. */
         VoxelField field = voxelFieldFor(cx, cz, true);
         long time2 = System.nanoTime();
-        long time3 = meshChunkFacesAndWriteToBuffers(chunk, field);
+        long time3 = meshChunkFacesAndWriteToBuffers(chunk, field, computeSectionConnectivity(field));
+        if (STATS) {
+            pipelineStats.record(PipelineStats.Stage.NOISE, time2 - time1);
+        }
         if (DEBUG) {
             System.out.println("Async. created chunk " + chunk + " in " + INT_FORMATTER.format((time3 - time1) / (long) 1E3) + " µs ["
                     + INT_FORMATTER.format((time2 - time1) / (long) 1E3) + " | " + INT_FORMATTER.format((time3 - time2) / (long) 1E3) + "]");
@@ -2041,11 +2233,13 @@ public class VoxelGameGL {
 
     /**
      * Update the chunk's buffer objects with the given voxel field.
+     * 
+     * @param y the modified local y coordinate, or <code>-1</code> if only the margin was modified
      */
-    private void updateChunk(Chunk c, VoxelField f) {
+    private void updateChunk(Chunk c, VoxelField f, int y) {
         activeFaceCount -= c.r.len;
         deallocatePerFaceBufferRegion(c);
-        meshChunkFacesAndWriteToBuffers(c, f);
+        meshChunkFacesAndWriteToBuffers(c, f, updateSectionConnectivity(c.connectivity, f, y));
     }
 
     /**
@@ -2154,26 +2348,45 @@ public class VoxelGameGL {
      * @return the point in monotonic time when the meshing and appending to vertex/index data byte
      *         buffers completed
      */
-    private long meshChunkFacesAndWriteToBuffers(Chunk chunk, VoxelField vf) {
+    private long meshChunkFacesAndWriteToBuffers(Chunk chunk, VoxelField vf, int[] connectivity) {
         DynamicByteBuffer vertexData = new DynamicByteBuffer(vf.num / 4);
         DynamicByteBuffer indices = new DynamicByteBuffer(vf.num / 4);
+        /* Time spent in appending vertex/index data, which is interleaved with the actual meshing */
+        long[] packingTime = new long[1];
+        long meshingStart = STATS ? System.nanoTime() : 0L;
         int faceCount = new GreedyMeshing(vf.ny, vf.py, CHUNK_SIZE, CHUNK_SIZE).mesh(vf.field, new FaceConsumer() {
             private int i;
 
             public void consume(int u0, int v0, int u1, int v1, int p, int s, int v) {
-                appendFaceVertexAndIndexData(chunk, i++, u0, v0, u1, v1, p, s, v, vertexData, indices);
+                if (STATS) {
+                    long t = System.nanoTime();
+                    appendFaceVertexAndIndexData(chunk, i++, u0, v0, u1, v1, p, s, v, vertexData, indices);
+                    packingTime[0] += System.nanoTime() - t;
+                } else {
+                    appendFaceVertexAndIndexData(chunk, i++, u0, v0, u1, v1, p, s, v, vertexData, indices);
+                }
             }
         });
+        if (STATS) {
+            pipelineStats.record(PipelineStats.Stage.MESHING, System.nanoTime() - meshingStart - packingTime[0]);
+            pipelineStats.record(PipelineStats.Stage.VERTEX_PACKING, packingTime[0]);
+        }
         FirstFitFreeListAllocator.Region r = allocatePerFaceBufferRegion(faceCount);
         long time = System.nanoTime();
 
         /* Issue render thread task to update the buffer objects */
         updateAndRenderRunnables.add(new DelayedRunnable(() -> {
+            long uploadStart = STATS ? System.nanoTime() : 0L;
             chunk.minY = vf.ny;
             chunk.maxY = vf.py;
             chunk.r = r;
+            chunk.connectivity = connectivity;
             activeFaceCount += chunk.r.len;
             updateChunkVertexAndIndexDataInBufferObjects(chunk, vertexData, indices);
+            if (STATS) {
+                pipelineStats.record(PipelineStats.Stage.QUEUE_WAIT, uploadStart - time);
+                pipelineStats.record(PipelineStats.Stage.UPLOAD, System.nanoTime() - uploadStart);
+            }
             vertexData.free();
             indices.free();
             return null;
@@ -2181,6 +2394,40 @@ public class VoxelGameGL {
         return time;
     }
 
+    /**
+     * Compute the face-to-face connectivity of all sections of the given voxel field.
+     * <p>
+     * Sections completely above or below the non-empty voxels are fully connected without needing a
+     * flood fill.
+     */
+    private static int[] computeSectionConnectivity(VoxelField vf) {
+        int[] connectivity = new int[SECTIONS_PER_CHUNK];
+        Arrays.fill(connectivity, FaceConnectivity.ALL_CONNECTED);
+        faceConnectivity.get().updateSections(vf.field, idx(0, 0, 0), (CHUNK_SIZE + 2) * (CHUNK_SIZE + 2), CHUNK_SIZE + 2, 1, SECTIONS_PER_CHUNK, 1, 0,
+                vf.ny, 0, CHUNK_SIZE - 1, vf.py, CHUNK_SIZE - 1, connectivity);
+        return connectivity;
+    }
+
+    /**
+     * Recompute the face-to-face connectivity of only the section containing the modified local
+     * y coordinate.
+     * 
+     * @param connectivity the current connectivity of the chunk (may be <code>null</code>)
+     * @param vf           the modified voxel field
+     * @param y            the modified local y coordinate, or <code>-1</code> if only the margin of
+     *                     the voxel field was modified, which does not affect connectivity
+     */
+    private static int[] updateSectionConnectivity(int[] connectivity, VoxelField vf, int y) {
+        if (connectivity == null)
+            return computeSectionConnectivity(vf);
+        if (y < 0)
+            return connectivity;
+        int[] updated = connectivity.clone();
+        faceConnectivity.get().updateSections(vf.field, idx(0, 0, 0), (CHUNK_SIZE + 2) * (CHUNK_SIZE + 2), CHUNK_SIZE + 2, 1, SECTIONS_PER_CHUNK, 1, 0,
+                y, 0, CHUNK_SIZE - 1, y, CHUNK_SIZE - 1, updated);
+        return updated;
+    }
+
     /**
      * Update the chunk's per-face buffer region with the given vertex and index data.
      */
@@ -2286,6 +2533,37 @@ public class VoxelGameGL {
         pMat.mulPerspectiveAffine(vMat, mvpMat);
         mvpMat.invert(imvpMat);
         updateFrustumPlanes();
+        if (caveCulling) {
+            long cullingStart = STATS ? System.nanoTime() : 0L;
+            updateCaveVisibleChunks();
+            if (STATS) {
+                pipelineStats.record(PipelineStats.Stage.CULLING, System.nanoTime() - cullingStart);
+            }
+        }
+    }
+
+    /**
+     * Determine all chunks with at least one section reachable from the player's section through
+     * empty space (and within the view frustum), using the per-section connectivity computed when
+     * building the chunks.
+     */
+    private void updateCaveVisibleChunks() {
+        caveCullingGridX = ((int) floor(playerPosition.x) >> CHUNK_SIZE_SHIFT) - MAX_RENDER_DISTANCE_CHUNKS - 1;
+        caveCullingGridZ = ((int) floor(playerPosition.z) >> CHUNK_SIZE_SHIFT) - MAX_RENDER_DISTANCE_CHUNKS - 1;
+        Arrays.fill(caveCullingGrid, null);
+        for (int i = 0; i < allChunks.size(); i++) {
+            Chunk c = allChunks.get(i);
+            int x = c.cx - caveCullingGridX, z = c.cz - caveCullingGridZ;
+            if (x >= 0 && x < CAVE_CULLING_GRID_SIZE && z >= 0 && z < CAVE_CULLING_GRID_SIZE)
+                caveCullingGrid[x + z * CAVE_CULLING_GRID_SIZE] = c;
+        }
+        caveVisibleChunks.clear();
+        /* The iterator works in units of whole sections, so scale the projection accordingly */
+        caveCullingProj.setPerspective((float) toRadians(FOV_DEGREES), (float) width / height, NEAR, FAR).scale(CHUNK_SIZE);
+        caveCullingPosition.set((float) (playerPosition.x / CHUNK_SIZE - caveCullingGridX), (float) (playerPosition.y / CHUNK_SIZE),
+                (float) (playerPosition.z / CHUNK_SIZE - caveCullingGridZ));
+        caveCullingIterator.iterateFrontToBack(caveCullingPosition, caveCullingView.rotationX(angx).rotateY(angy), caveCullingProj, sectionConnectivity,
+                caveVisibleSection);
     }
 
     /**
@@ -2321,6 +2599,14 @@ public class VoxelGameGL {
         return culledXY(xf, ymin, zf, xf + CHUNK_SIZE, ymax + 1, zf + CHUNK_SIZE);
     }
 
+    /**
+     * Determine whether the given chunk is outside of the view frustum or (when cave culling is
+     * enabled) not reachable through empty space from the player.
+     */
+    private boolean chunkCulled(Chunk chunk) {
+        return chunkNotInFrustum(chunk) || caveCulling && !caveVisibleChunks.get(chunk.index);
+    }
+
     /**
      * Test whether the box <code>(minX, minY, minZ)</code> - <code>(maxX, maxY, maxZ)</code> is culled
      * by either of the four X, Y planes of the current view frustum.
@@ -2581,7 +2867,11 @@ public class VoxelGameGL {
         /*
          * Fill buffer objects to draw in-frustum chunks' bounding boxes.
          */
+        long cullingStart = STATS ? System.nanoTime() : 0L;
         updateBoundingBoxesInputBuffersForInFrustumChunks();
+        if (STATS) {
+            pipelineStats.record(PipelineStats.Stage.CULLING, System.nanoTime() - cullingStart);
+        }
         /*
          * Update the uniform buffer object for drawing the bounding boxes.
          */
@@ -2688,6 +2978,7 @@ public class VoxelGameGL {
      * MDI draw commands from an input SSBO to an output SSBO for visible chunks.
      */
     private void collectDrawCommands() {
+        long drawCommandsStart = STATS ? System.nanoTime() : 0L;
         preCollectDrawCommandsState();
         glMemoryBarrier(GL_SHADER_STORAGE_BARRIER_BIT);
         /*
@@ -2699,6 +2990,9 @@ public class VoxelGameGL {
         glVertexAttribIPointer(0, 4, GL_UNSIGNED_INT, 0, vertexByteOffset);
         glDrawArrays(GL_POINTS, 0, numChunksInFrustum);
         postCollectDrawCommandsState();
+        if (STATS) {
+            pipelineStats.record(PipelineStats.Stage.DRAW_COMMANDS, System.nanoTime() - drawCommandsStart);
+        }
     }
 
     /**
@@ -2751,7 +3045,7 @@ public class VoxelGameGL {
         for (int i = 0; i < allChunks.size(); i++) {
             Chunk c = allChunks.get(i);
             boolean chunkMustBeDrawn = playerInsideChunk(c);
-            if (!c.ready || chunkNotInFrustum(c) && !chunkMustBeDrawn)
+            if (!c.ready || chunkCulled(c) && !chunkMustBeDrawn)
                 continue;
             faceOffsetsAndCountsPos += putChunkFaceOffsetAndCount(c, faceOffsetsAndCounts + faceOffsetsAndCountsPos);
             memPutInt(bb + bbPos, c.cx << CHUNK_SIZE_SHIFT);
@@ -2808,7 +3102,7 @@ public class VoxelGameGL {
         }
         for (int i = 0; i < allChunks.size(); i++) {
             Chunk c = allChunks.get(i);
-            if (!c.ready || chunkNotInFrustum(c))
+            if (!c.ready || chunkCulled(c))
                 continue;
             memPutInt(indirect + indirectPos, c.r.len * indicesPerFace);
             memPutInt(indirect + indirectPos + Integer.BYTES, 1);
@@ -2915,11 +3209,12 @@ public class VoxelGameGL {
             return;
         preDrawChunksState();
         try (MemoryStack stack = stackPush()) {
+            long drawCommandsStart = STATS ? System.nanoTime() : 0L;
             PointerBuffer indices = stack.mallocPointer(allChunks.size());
             IntBuffer count = stack.mallocInt(allChunks.size());
             IntBuffer basevertex = stack.mallocInt(allChunks.size());
             for (Chunk c : allChunks) {
-                if (!c.ready || chunkNotInFrustum(c))
+                if (!c.ready || chunkCulled(c))
                     continue;
                 indices.put((long) Short.BYTES * c.r.off * indicesPerFace);
                 count.put(c.r.len * indicesPerFace);
@@ -2928,6 +3223,9 @@ public class VoxelGameGL {
             indices.flip();
             count.flip();
             basevertex.flip();
+            if (STATS) {
+                pipelineStats.record(PipelineStats.Stage.DRAW_COMMANDS, System.nanoTime() - drawCommandsStart);
+            }
             updateChunksProgramUbo();
             glMultiDrawElementsBaseVertex(GL_TRIANGLE_STRIP, count, GL_UNSIGNED_SHORT, indices, basevertex);
         }
@@ -3159,6 +3457,9 @@ public class VoxelGameGL {
              */
             long thisTime = System.nanoTime();
             float dt = (thisTime - lastTime) * 1E-9f;
+            if (STATS) {
+                pipelineStats.record(PipelineStats.Stage.FRAME, thisTime - lastTime);
+            }
             lastTime = thisTime;
             if (!FULLSCREEN) {
                 /*
@@ -3269,7 +3570,11 @@ public class VoxelGameGL {
                  * Check if we support MDI.
                  */
                 if (useMultiDrawIndirect) {
+                    long drawCommandsStart = STATS ? System.nanoTime() : 0L;
                     int numChunks = updateIndirectBufferWithInFrustumChunks();
+                    if (STATS) {
+                        pipelineStats.record(PipelineStats.Stage.DRAW_COMMANDS, System.nanoTime() - drawCommandsStart);
+                    }
                     drawChunksWithMultiDrawElementsIndirectCpuGenerated(numChunks);
                 } else {
                     /*
@@ -3304,6 +3609,9 @@ public class VoxelGameGL {
             throw new AssertionError();
         }
         drainRunnables();
+        if (STATS) {
+            pipelineStats.close();
+        }
         GL.setCapabilities(null);
     }
 
@@ -3465,6 +3773,10 @@ public class VoxelGameGL {
 
         initGLResources();
 
+        if (STATS) {
+            pipelineStats = new PipelineStats(STATS_FILE);
+        }
+
         /* Run logic updates and rendering in a separate thread */
         Thread updateAndRenderThread = createAndStartUpdateAndRenderThread();
         /* Process OS/window event messages in this main thread */
@@ -46,8 +46,10 @@ public class EdgeShaderDemo20 {
     int tex;
 
     int cubeVbo;
+    int cubeIbo;
     long normalsOffset;
-    int numVertices;
+    int numIndices;
+    int indexType;
     int quadVbo;
 
     int normalProgram;
@@ -222,8 +224,9 @@ public class EdgeShaderDemo20 {
 
     void createCube() throws IOException {
         WavefrontMeshLoader loader = new WavefrontMeshLoader();
+        loader.setIndexed(true);
         Mesh mesh = loader.loadMesh("org/lwjgl/demo/opengl/models/cube.obj.zip");
-        this.numVertices = mesh.numVertices;
+        this.numIndices = mesh.numIndices;
         long bufferSize = 4 * (3 + 3) * mesh.numVertices;
         this.normalsOffset = 4L * 3 * mesh.numVertices;
         this.cubeVbo = glGenBuffers();
@@ -232,6 +235,16 @@ public class EdgeShaderDemo20 {
         glBufferSubData(GL_ARRAY_BUFFER, 0L, mesh.positions);
         glBufferSubData(GL_ARRAY_BUFFER, normalsOffset, mesh.normals);
         glBindBuffer(GL_ARRAY_BUFFER, 0);
+        this.cubeIbo = glGenBuffers();
+        glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, this.cubeIbo);
+        if (mesh.shortIndices != null) {
+            glBufferData(GL_ELEMENT_ARRAY_BUFFER, mesh.shortIndices, GL_STATIC_DRAW);
+            this.indexType = GL_UNSIGNED_SHORT;
+        } else {
+            glBufferData(GL_ELEMENT_ARRAY_BUFFER, mesh.indices, GL_STATIC_DRAW);
+            this.indexType = GL_UNSIGNED_INT;
+        }
+        glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, 0);
     }
 
     void createNormalProgram() throws IOException {
@@ -353,13 +366,15 @@ public class EdgeShaderDemo20 {
         glClear(GL_COLOR_BUFFER_BIT | GL_DEPTH_BUFFER_BIT);
 
         glBindBuffer(GL_ARRAY_BUFFER, this.cubeVbo);
+        glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, this.cubeIbo);
         glEnableVertexAttribArray(0);
         glVertexAttribPointer(0, 3, GL_FLOAT, false, 0, 0L);
         glEnableVertexAttribArray(1);
         glVertexAttribPointer(1, 3, GL_FLOAT, false, 0, normalsOffset);
-        glDrawArrays(GL_TRIANGLES, 0, numVertices);
+        glDrawElements(GL_TRIANGLES, numIndices, indexType, 0L);
         glDisableVertexAttribArray(0);
         glDisableVertexAttribArray(1);
+        glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, 0);
         glBindBuffer(GL_ARRAY_BUFFER, 0);
 
         glBindFramebufferEXT(GL_FRAMEBUFFER_EXT, 0);
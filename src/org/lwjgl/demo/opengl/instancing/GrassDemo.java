@@ -5,18 +5,19 @@
 package org.lwjgl.demo.opengl.instancing;
 
 import static org.lwjgl.demo.opengl.util.DemoUtils.*;
-import static org.lwjgl.demo.util.IOUtils.*;
 import static org.lwjgl.glfw.GLFW.*;
 import static org.lwjgl.opengl.GL.*;
 import static org.lwjgl.opengl.GL20.*;
-import static org.lwjgl.stb.STBImage.*;
 import static org.lwjgl.system.MemoryUtil.*;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.FloatBuffer;
 import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.CompletableFuture;
 
 import org.joml.Matrix3x2f;
 import org.joml.Matrix4f;
@@ -25,6 +26,9 @@ import org.joml.Vector2f;
 import org.joml.sampling.BestCandidateSampling;
 import org.joml.sampling.Callback2d;
 import org.lwjgl.BufferUtils;
+import org.lwjgl.demo.util.ImageLoader;
+import org.lwjgl.demo.util.ImageLoader.Image;
+import org.lwjgl.demo.util.ImageLoader.MipFilter;
 import org.lwjgl.glfw.GLFWErrorCallback;
 import org.lwjgl.glfw.GLFWFramebufferSizeCallback;
 import org.lwjgl.glfw.GLFWKeyCallback;
@@ -89,8 +93,10 @@ public class GrassDemo {
     private Vector2f[] grassPatchPositions = new Vector2f[NUM_GRASS_PATCHES];
     private final FloatBuffer grassDisplacement = BufferUtils.createFloatBuffer(NUM_GRASS_PATCHES * 2);
     private long lastTime = System.nanoTime();
+    private final List<CompletableFuture<Image>> grassImages = new ArrayList<>();
 
     void run() throws IOException {
+        loadGrassImages();
         glfwSetErrorCallback(errCallback = GLFWErrorCallback.createPrint(System.err));
         if (!glfwInit())
             throw new IllegalStateException("Unable to initialize GLFW");
@@ -256,29 +262,36 @@ public class GrassDemo {
         glUseProgram(0);
     }
 
-    private static int loadTexture(String name) throws IOException {
-        IntBuffer width = BufferUtils.createIntBuffer(1);
-        IntBuffer height = BufferUtils.createIntBuffer(1);
-        IntBuffer components = BufferUtils.createIntBuffer(1);
-        ByteBuffer data = stbi_load_from_memory(ioResourceToByteBuffer("org/lwjgl/demo/opengl/instancing/" + name, 1024), width, height, components, 4);
+    private static int createTexture(Image image) {
         int id = glGenTextures();
         glBindTexture(GL_TEXTURE_2D, id);
         glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_LINEAR);
         glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_LINEAR_MIPMAP_LINEAR);
         glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_S, GL_CLAMP_TO_EDGE);
         glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_T, GL_CLAMP_TO_EDGE);
-        glTexParameteri(GL_TEXTURE_2D, GL_GENERATE_MIPMAP, GL_TRUE);
-        glTexImage2D(GL_TEXTURE_2D, 0, GL_RGBA8, width.get(0), height.get(0), 0, GL_RGBA, GL_UNSIGNED_BYTE, data);
+        texImage2D(GL_TEXTURE_2D, image, GL_RGBA8);
         glBindTexture(GL_TEXTURE_2D, 0);
-        stbi_image_free(data);
         return id;
     }
 
+    /**
+     * Decode the grass textures and build their mip levels on worker threads while the window is created.
+     */
+    private void loadGrassImages() {
+        ImageLoader imageLoader = new ImageLoader();
+        imageLoader.setComponents(4);
+        imageLoader.setSrgb(true);
+        imageLoader.setMipFilter(MipFilter.KAISER);
+        String[] names = { "grass.png", "grass2.png", "grass_flower.png", "grass_flower_blue.png" };
+        for (int i = 0; i < names.length; i++)
+            grassImages.add(imageLoader.load("org/lwjgl/demo/opengl/instancing/" + names[i]));
+    }
+
     private void createGrassTextures() throws IOException {
-        grassTex0 = loadTexture("grass.png");
-        grassTex1 = loadTexture("grass2.png");
-        grassTex2 = loadTexture("grass_flower.png");
-        grassTex3 = loadTexture("grass_flower_blue.png");
+        grassTex0 = createTexture(ImageLoader.join(grassImages.get(0)));
+        grassTex1 = createTexture(ImageLoader.join(grassImages.get(1)));
+        grassTex2 = createTexture(ImageLoader.join(grassImages.get(2)));
+        grassTex3 = createTexture(ImageLoader.join(grassImages.get(3)));
     }
 
     private void generateGroundVao() {
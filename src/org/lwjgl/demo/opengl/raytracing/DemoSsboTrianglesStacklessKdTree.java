@@ -6,8 +6,7 @@ package org.lwjgl.demo.opengl.raytracing;
 
 import org.lwjgl.BufferUtils;
 import org.lwjgl.demo.util.*;
-import org.lwjgl.demo.util.KDTree.*;
-import org.lwjgl.demo.util.Std430Writer.*;
+import org.lwjgl.demo.util.KDTree.Box;
 import org.lwjgl.demo.util.WavefrontMeshLoader.Mesh;
 import org.lwjgl.glfw.*;
 import org.lwjgl.opengl.GL;
@@ -20,13 +19,8 @@ import org.joml.Matrix4x3f;
 import org.joml.Vector3f;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.IntBuffer;
-import java.util.ArrayList;
-import java.util.LinkedHashMap;
-import java.util.LinkedList;
-import java.util.List;
-import java.util.Map;
-import java.util.Queue;
 
 import static java.lang.Math.*;
 import static org.lwjgl.demo.opengl.util.DemoUtils.*;
@@ -44,7 +38,7 @@ import static org.lwjgl.system.MemoryUtil.*;
  * "Stackless kd-tree traversal" works by connecting adjacent nodes of the tree. The connections/links are called
  * "ropes" in that paper.
  * <p>
- * The kd-tree as well as the rope-building is implemented in {@link KDTree}.
+ * The kd-tree as well as the rope-building is implemented in {@link CompactKDTree}.
  * 
  * @author Kai Burjack
  */
@@ -78,8 +72,12 @@ public class DemoSsboTrianglesStacklessKdTree {
     int workGroupSizeY;
 
     Mesh mesh;
+    CompactKDTree kdtree = new CompactKDTree();
+    KDTreeRayCaster rayCaster;
+    KDTreeRayCaster.Hit hit = new KDTreeRayCaster.Hit();
     float mouseDownX;
     float mouseX;
+    float mouseY;
     boolean mouseDown;
     boolean debug;
 
@@ -139,7 +137,8 @@ public class DemoSsboTrianglesStacklessKdTree {
             throw new AssertionError("Failed to create the GLFW window");
         }
 
-        System.out.println("Hold down any mouse button and drag to rotate.");
+        System.out.println("Hold down the left mouse button and drag to rotate.");
+        System.out.println("Click the right mouse button to look at the point under the cursor.");
         System.out.println("Press 'D' to toggle debug view.");
         glfwSetKeyCallback(window, keyCallback = new GLFWKeyCallback() {
             @Override
@@ -172,13 +171,17 @@ public class DemoSsboTrianglesStacklessKdTree {
             @Override
             public void invoke(long window, double x, double y) {
                 DemoSsboTrianglesStacklessKdTree.this.mouseX = (float) x;
+                DemoSsboTrianglesStacklessKdTree.this.mouseY = (float) y;
             }
         });
 
         glfwSetMouseButtonCallback(window, mbCallback = new GLFWMouseButtonCallback() {
             @Override
             public void invoke(long window, int button, int action, int mods) {
-                if (action == GLFW_PRESS) {
+                if (button == GLFW_MOUSE_BUTTON_RIGHT) {
+                    if (action == GLFW_PRESS)
+                        pick();
+                } else if (action == GLFW_PRESS) {
                     DemoSsboTrianglesStacklessKdTree.this.mouseDownX = DemoSsboTrianglesStacklessKdTree.this.mouseX;
                     DemoSsboTrianglesStacklessKdTree.this.mouseDown = true;
                 } else if (action == GLFW_RELEASE) {
@@ -221,128 +224,74 @@ public class DemoSsboTrianglesStacklessKdTree {
         glfwShowWindow(window);
     }
 
-    /**
-     * Java-pendant of the GLSL struct 'node' in the compute shader 'ssboTriangleStacklessKdTree.glsl'.
-     */
-    public static class GPUNode {
-        public Vector3f min;
-        public Vector3f max;
-        public int dim;
-        public float plane;
-        public @Member(length = 6) int[] ropes;
-        public int left;
-        public int right;
-        public int firstTri;
-        public int numTris;
-    }
-
-    static void kdTreeToBuffers(KDTree tree, DynamicByteBuffer nodesBuffer, DynamicByteBuffer trianglesBuffer) {
-        Map<Node, Integer> indexes = new LinkedHashMap<Node, Integer>();
-        // Allocate indexes for each of the nodes
-        allocate(tree.mRootNode, indexes);
-        int triangleIndex = 0;
-        List<GPUNode> gpuNodes = new ArrayList<GPUNode>();
-        // Iterate over each node in insertion order and write to the buffers
-        for (Map.Entry<Node, Integer> e : indexes.entrySet()) {
-            Node n = e.getKey();
-            GPUNode gn = new GPUNode();
-            gn.min = n.boundingBox.min;
-            gn.max = n.boundingBox.max;
-            gn.dim = n.splitAxis.dim;
-            gn.plane = n.splitPlane;
-            gn.ropes = new int[6];
-            /* Write ropes */
-            for (int i = 0; i < 6; i++) {
-                Node r = n.ropes[i];
-                if (r != null) {
-                    gn.ropes[i] = indexes.get(r).intValue();
-                } else {
-                    gn.ropes[i] = -1; // no neighbor
-                }
-            }
-            if (n.isLeafNode()) {
-                gn.left = -1; // no left child
-                gn.right = -1; // no right child
-                gn.firstTri = triangleIndex;
-                gn.numTris = n.triangles.size();
-                triangleIndex += n.triangles.size();
-                /* Write triangles to buffer */
-                for (int i = 0; i < n.triangles.size(); i++) {
-                    Triangle t = n.triangles.get(i);
-                    trianglesBuffer.putFloat(t.v0.x).putFloat(t.v0.y).putFloat(t.v0.z).putFloat(1.0f);
-                    trianglesBuffer.putFloat(t.v1.x).putFloat(t.v1.y).putFloat(t.v1.z).putFloat(1.0f);
-                    trianglesBuffer.putFloat(t.v2.x).putFloat(t.v2.y).putFloat(t.v2.z).putFloat(1.0f);
-                }
-            } else {
-                gn.left = indexes.get(n.left).intValue();
-                gn.right = indexes.get(n.right).intValue();
-                gn.firstTri = 0; // no triangles
-                gn.numTris = 0; // no triangles
-            }
-            gpuNodes.add(gn);
-        }
-        // Write GPUNode list to ByteBuffer in std430 layout
-        Std430Writer.write(gpuNodes, GPUNode.class, nodesBuffer);
-    }
-
-    static void allocate(Node node, Map<Node, Integer> indexes) {
-        Queue<Node> nodes = new LinkedList<Node>();
-        nodes.add(node);
-        while (!nodes.isEmpty()) {
-            Node n = nodes.poll();
-            if (n == null)
-                continue;
-            int index = indexes.size();
-            indexes.put(n, Integer.valueOf(index));
-            nodes.add(n.left);
-            nodes.add(n.right);
-        }
-    }
-
     /**
      * Build the kd-tree of the scene and create two SSBOs:
      * <ul>
      * <li>one for the nodes of the kd-tree
      * <li>and another one to hold all the triangles stored in the leaf nodes of the kd-tree
      * </ul>
+     * The tree is built by {@link CompactKDTree} directly from the triangle soup of the mesh, which writes the nodes
+     * in the layout of the GLSL struct 'node' in the compute shader 'ssboTriangleStacklessKdTree.glsl'.
      */
     void createSceneSSBO() {
-        /* Build Kd-tree */
-        KDTree kdtree = new KDTree();
-        List<Triangle> triangles = new ArrayList<Triangle>();
-        int trianglesCount = mesh.positions.remaining() / 3 / 3;
+        /* Reuse the buffers of the last start if the mesh and the build parameters did not change */
+        long key = new BufferCache.Key().put("DemoSsboTrianglesStacklessKdTree").put(kdtree.maxDepth)
+                .put(kdtree.minPrimitives).put(kdtree.bins).put(kdtree.traversalCost).put(kdtree.intersectionCost)
+                .put(mesh.positions).get();
+        ByteBuffer[] buffers = BufferCache.load("DemoSsboTrianglesStacklessKdTree", key);
+        if (buffers == null) {
+            kdtree.build(mesh.positions);
+            DynamicByteBuffer nodesBuffer = new DynamicByteBuffer();
+            DynamicByteBuffer trianglesBuffer = new DynamicByteBuffer();
+            kdtree.writeStacklessNodes(nodesBuffer);
+            kdtree.writeTriangles(trianglesBuffer);
+            buffers = new ByteBuffer[] { nodesBuffer.buffer(), trianglesBuffer.buffer() };
+            BufferCache.store("DemoSsboTrianglesStacklessKdTree", key, buffers);
+        }
+        /* The bounds of the root node are the bounds of all triangles */
         sceneBounds = new Box();
-        Vector3f min = new Vector3f(Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE);
-        Vector3f max = new Vector3f(-Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE);
-        sceneBounds.min = min;
-        sceneBounds.max = max;
-        for (int i = 0; i < trianglesCount; i++) {
-            Triangle t = new Triangle();
-            t.v0 = new Vector3f(mesh.positions.get(i * 3 * 3 + 0), mesh.positions.get(i * 3 * 3 + 1),
-                    mesh.positions.get(i * 3 * 3 + 2));
-            t.v1 = new Vector3f(mesh.positions.get(i * 3 * 3 + 3), mesh.positions.get(i * 3 * 3 + 4),
-                    mesh.positions.get(i * 3 * 3 + 5));
-            t.v2 = new Vector3f(mesh.positions.get(i * 3 * 3 + 6), mesh.positions.get(i * 3 * 3 + 7),
-                    mesh.positions.get(i * 3 * 3 + 8));
-            triangles.add(t);
-            min.min(t.v0).min(t.v1).min(t.v2);
-            max.max(t.v0).max(t.v1).max(t.v2);
+        sceneBounds.min = new Vector3f(Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE);
+        sceneBounds.max = new Vector3f(-Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE);
+        for (int i = mesh.positions.position(); i < mesh.positions.limit(); i += 3) {
+            Vector3f v = tmpVector.set(mesh.positions.get(i), mesh.positions.get(i + 1), mesh.positions.get(i + 2));
+            sceneBounds.min.min(v);
+            sceneBounds.max.max(v);
         }
-        kdtree.buildTree(triangles, sceneBounds);
-        DynamicByteBuffer nodesBuffer = new DynamicByteBuffer();
-        DynamicByteBuffer trianglesBuffer = new DynamicByteBuffer();
-        kdTreeToBuffers(kdtree, nodesBuffer, trianglesBuffer);
 
         this.nodesSsbo = glGenBuffers();
         glBindBuffer(GL_ARRAY_BUFFER, nodesSsbo);
-        nglBufferData(GL_ARRAY_BUFFER, nodesBuffer.pos, nodesBuffer.addr, GL_STATIC_DRAW);
+        glBufferData(GL_ARRAY_BUFFER, buffers[0], GL_STATIC_DRAW);
         glBindBuffer(GL_ARRAY_BUFFER, 0);
         this.trianglesSsbo = glGenBuffers();
         glBindBuffer(GL_ARRAY_BUFFER, trianglesSsbo);
-        nglBufferData(GL_ARRAY_BUFFER, trianglesBuffer.pos, trianglesBuffer.addr, GL_STATIC_DRAW);
+        glBufferData(GL_ARRAY_BUFFER, buffers[1], GL_STATIC_DRAW);
         glBindBuffer(GL_ARRAY_BUFFER, 0);
     }
 
+    /**
+     * Look at the point of the mesh under the mouse cursor, which is found on the CPU by tracing the same kd-tree as
+     * the compute shader with {@link KDTreeRayCaster}.
+     */
+    void pick() {
+        if (rayCaster == null) {
+            /* The SSBOs may have come from the cache, so build the tree again if needed */
+            if (kdtree.triangles == null)
+                kdtree.build(mesh.positions);
+            rayCaster = new KDTreeRayCaster(kdtree);
+        }
+        float x, y;
+        try (MemoryStack frame = MemoryStack.stackPush()) {
+            IntBuffer windowSize = frame.mallocInt(2);
+            nglfwGetWindowSize(window, memAddress(windowSize), memAddress(windowSize) + 4);
+            x = mouseX / windowSize.get(0) * 2.0f - 1.0f;
+            y = 1.0f - mouseY / windowSize.get(1) * 2.0f;
+        }
+        Vector3f dir = invViewProjMatrix.transformProject(tmpVector.set(x, y, 0)).sub(cameraPosition).normalize();
+        if (rayCaster.closestHit(cameraPosition.x, cameraPosition.y, cameraPosition.z, dir.x, dir.y, dir.z, 0.0f,
+                Float.POSITIVE_INFINITY, hit))
+            cameraLookAt.set(dir).mul(hit.t).add(cameraPosition);
+    }
+
     /**
      * Create the full-scren quad shader.
      *
@@ -4,7 +4,6 @@
  */
 package org.lwjgl.demo.opengl.raytracing;
 
-import static java.lang.ClassLoader.*;
 import static org.lwjgl.demo.util.IOUtils.*;
 import static org.lwjgl.glfw.Callbacks.*;
 import static org.lwjgl.glfw.GLFW.*;
@@ -23,6 +22,7 @@ import org.joml.Math;
 import org.lwjgl.demo.util.*;
 import org.lwjgl.demo.util.KDTreei.Voxel;
 import org.lwjgl.demo.util.MagicaVoxelLoader.Material;
+import org.lwjgl.demo.util.MagicaVoxelLoader.Swizzle;
 import org.lwjgl.glfw.GLFWVidMode;
 import org.lwjgl.system.*;
 
@@ -170,33 +170,44 @@ public class GL33KdTreeTrace {
   }
 
   private void createSceneTBOs(List<Voxel> voxels) {
-    KDTreei<Voxel> root = KDTreei.build(voxels, 15);
-    DynamicByteBuffer voxelsBuffer = new DynamicByteBuffer();
-    DynamicByteBuffer nodesBuffer = new DynamicByteBuffer();
-    DynamicByteBuffer nodeGeomsBuffer = new DynamicByteBuffer();
-    DynamicByteBuffer leafNodesBuffer = new DynamicByteBuffer();
-    kdTreeToBuffers(root, 0, 0, nodesBuffer, nodeGeomsBuffer, leafNodesBuffer, voxelsBuffer);
+    // reuse the buffers of the last start if the voxels did not change
+    BufferCache.Key key = new BufferCache.Key().put("GL33KdTreeTrace").put(15);
+    for (Voxel v : voxels)
+      key.put((v.x & 0xFFL) | (v.y & 0xFFL) << 8 | (v.z & 0xFFL) << 16 | (v.ex & 0xFFL) << 24 | (v.ey & 0xFFL) << 32
+          | (v.ez & 0xFFL) << 40 | (v.paletteIndex & 0xFFL) << 48 | (v.sides & 0xFFL) << 56);
+    ByteBuffer[] buffers = BufferCache.load("GL33KdTreeTrace", key.get());
+    if (buffers == null) {
+      KDTreei<Voxel> root = KDTreei.build(voxels, 15);
+      DynamicByteBuffer voxelsBuffer = new DynamicByteBuffer();
+      DynamicByteBuffer nodesBuffer = new DynamicByteBuffer();
+      DynamicByteBuffer nodeGeomsBuffer = new DynamicByteBuffer();
+      DynamicByteBuffer leafNodesBuffer = new DynamicByteBuffer();
+      kdTreeToBuffers(root, 0, 0, nodesBuffer, nodeGeomsBuffer, leafNodesBuffer, voxelsBuffer);
+      buffers = new ByteBuffer[] { nodesBuffer.buffer(), voxelsBuffer.buffer(), nodeGeomsBuffer.buffer(),
+          leafNodesBuffer.buffer() };
+      BufferCache.store("GL33KdTreeTrace", key.get(), buffers);
+    }
     nodesBufferBO = glGenBuffers();
     glBindBuffer(GL_TEXTURE_BUFFER, nodesBufferBO);
-    nglBufferData(GL_TEXTURE_BUFFER, nodesBuffer.pos, nodesBuffer.addr, GL_STATIC_DRAW);
+    glBufferData(GL_TEXTURE_BUFFER, buffers[0], GL_STATIC_DRAW);
     nodesBufferTex = glGenTextures();
     glBindTexture(GL_TEXTURE_BUFFER, nodesBufferTex);
     glTexBuffer(GL_TEXTURE_BUFFER, GL_R32UI, nodesBufferBO);
     voxelsBufferBO = glGenBuffers();
     glBindBuffer(GL_TEXTURE_BUFFER, voxelsBufferBO);
-    nglBufferData(GL_TEXTURE_BUFFER, voxelsBuffer.pos, voxelsBuffer.addr, GL_STATIC_DRAW);
+    glBufferData(GL_TEXTURE_BUFFER, buffers[1], GL_STATIC_DRAW);
     voxelsBufferTex = glGenTextures();
     glBindTexture(GL_TEXTURE_BUFFER, voxelsBufferTex);
     glTexBuffer(GL_TEXTURE_BUFFER, GL_RG32UI, voxelsBufferBO);
     nodeGeomsBufferBO = glGenBuffers();
     glBindBuffer(GL_TEXTURE_BUFFER, nodeGeomsBufferBO);
-    nglBufferData(GL_TEXTURE_BUFFER, nodeGeomsBuffer.pos, nodeGeomsBuffer.addr, GL_STATIC_DRAW);
+    glBufferData(GL_TEXTURE_BUFFER, buffers[2], GL_STATIC_DRAW);
     nodeGeomsBufferTex = glGenTextures();
     glBindTexture(GL_TEXTURE_BUFFER, nodeGeomsBufferTex);
     glTexBuffer(GL_TEXTURE_BUFFER, GL_RG32UI, nodeGeomsBufferBO);
     leafNodesBufferBO = glGenBuffers();
     glBindBuffer(GL_TEXTURE_BUFFER, leafNodesBufferBO);
-    nglBufferData(GL_TEXTURE_BUFFER, leafNodesBuffer.pos, leafNodesBuffer.addr, GL_STATIC_DRAW);
+    glBufferData(GL_TEXTURE_BUFFER, buffers[3], GL_STATIC_DRAW);
     leafNodesBufferTex = glGenTextures();
     glBindTexture(GL_TEXTURE_BUFFER, leafNodesBufferTex);
     glTexBuffer(GL_TEXTURE_BUFFER, GL_RGBA32UI, leafNodesBufferBO);
@@ -273,37 +284,16 @@ public class GL33KdTreeTrace {
     glUseProgram(0);
   }
 
-  private static int idx(int x, int y, int z, int width, int depth) {
-      return (x+1) + (width+2) * ((z+1) + (y+1) * (depth+2));
-  }
-
   private List<KDTreei.Voxel> buildTerrainVoxels() throws IOException {
-    Vector3i dims = new Vector3i();
-    InputStream is = getSystemResourceAsStream("org/lwjgl/demo/models/mikelovesrobots_mmmm/scene_house6.vox");
-    BufferedInputStream bis = new BufferedInputStream(is);
-    byte[] field = new byte[256 * 256 * 256];
-    new MagicaVoxelLoader().read(bis, new MagicaVoxelLoader.Callback() {
-      public void voxel(int x, int y, int z, byte c) {
-        y = dims.z - y - 1;
-        field[idx(x, z, y, dims.x, dims.z)] = c;
-      }
-
-      public void size(int x, int y, int z) {
-        dims.x = x;
-        dims.y = z;
-        dims.z = y;
-      }
-
-      public void paletteMaterial(int i, Material mat) {
-          materials[i] = mat;
-      }
-    });
+    ByteBuffer vox = ioResourceToByteBuffer("org/lwjgl/demo/models/mikelovesrobots_mmmm/scene_house6.vox", 8192);
+    BrickVolume volume = new BrickVolume();
+    new MagicaVoxelLoader().read(vox, Swizzle.Y_UP, volume, materials);
     /* Merge voxels */
     List<Voxel> voxels = new ArrayList<>();
-    GreedyVoxels gv = new GreedyVoxels(0, dims.y - 1, dims.x, dims.z, (x, y, z, w, h, d, v) -> {
+    GreedyVoxels gv = new GreedyVoxels(0, volume.height - 1, volume.width, volume.depth, (x, y, z, w, h, d, v) -> {
       voxels.add(new Voxel(x, y, z, w-1, h-1, d-1, v));
     });
-    gv.merge(field);
+    gv.merge(volume);
     System.out.println("Num voxels after merge: " + voxels.size());
     return voxels;
   }
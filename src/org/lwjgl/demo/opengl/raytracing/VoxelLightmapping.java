@@ -4,10 +4,8 @@
  */
 package org.lwjgl.demo.opengl.raytracing;
 
-import static java.lang.ClassLoader.getSystemResourceAsStream;
 import static org.lwjgl.demo.util.FacePacker.pack;
 import static org.lwjgl.demo.util.IOUtils.*;
-import static org.lwjgl.demo.util.KDTreei.build;
 import static org.lwjgl.glfw.Callbacks.*;
 import static org.lwjgl.glfw.GLFW.*;
 import static org.lwjgl.opengl.GL.createCapabilities;
@@ -27,6 +25,7 @@ import org.lwjgl.demo.util.FacePacker.PackResult;
 import org.lwjgl.demo.util.GreedyMeshing.Face;
 import org.lwjgl.demo.util.KDTreei.Voxel;
 import org.lwjgl.demo.util.MagicaVoxelLoader.Material;
+import org.lwjgl.demo.util.MagicaVoxelLoader.Swizzle;
 import org.lwjgl.glfw.GLFWVidMode;
 import org.lwjgl.system.*;
 
@@ -515,12 +514,13 @@ public class VoxelLightmapping {
 
     private void createSceneTBOs(ArrayList<Voxel> voxels) {
         System.out.println("Building kd-tree...");
-        KDTreei<Voxel> root = build(voxels, 14);
+        int[] bounds = PackedKDTreei.bounds(voxels);
+        PackedKDTreei tree = PackedKDTreei.build(bounds, voxels.size(), 14, true);
         System.out.println("Serializing kd-tree to buffers...");
         DynamicByteBuffer voxelsBuffer = new DynamicByteBuffer();
         DynamicByteBuffer nodesBuffer = new DynamicByteBuffer();
         DynamicByteBuffer leafNodesBuffer = new DynamicByteBuffer();
-        kdTreeToBuffers(root, nodesBuffer, leafNodesBuffer, voxelsBuffer);
+        kdTreeToBuffers(tree, bounds, voxels, nodesBuffer, leafNodesBuffer, voxelsBuffer);
         createVoxelsTexture(voxelsBuffer);
         createNodesTexture(nodesBuffer);
         createLeafNodesTexture(leafNodesBuffer);
@@ -573,56 +573,37 @@ public class VoxelLightmapping {
         glTexBuffer(GL_TEXTURE_BUFFER, GL_RG32UI, voxelsBufferObject);
     }
 
-    private static ArrayList<KDTreei.Node<Voxel>> allocate(KDTreei.Node<Voxel> node) {
-        ArrayList<KDTreei.Node<Voxel>> linearNodes = new ArrayList<>();
-        LinkedList<KDTreei.Node<Voxel>> nodes = new LinkedList<>();
-        int index = 0, leafIndex = 0;
-        nodes.add(node);
-        while (!nodes.isEmpty()) {
-            KDTreei.Node<Voxel> n = nodes.removeFirst();
-            linearNodes.add(n);
-            n.index = index++;
-            if (n.left != null) {
-                nodes.addFirst(n.right);
-                nodes.addFirst(n.left);
-            } else {
-                n.leafIndex = leafIndex++;
-                n.boundables.forEach(v -> v.nindex = n.index);
-            }
-        }
-        return linearNodes;
-    }
-
-    private void kdTreeToBuffers(KDTreei<Voxel> root,
+    private void kdTreeToBuffers(PackedKDTreei tree, int[] bounds, ArrayList<Voxel> voxels,
                                  DynamicByteBuffer nodesBuffer, DynamicByteBuffer leafNodesBuffer,
                                  DynamicByteBuffer voxelsBuffer) {
-        int first = 0;
-        ArrayList<KDTreei.Node<Voxel>> nodes = allocate(root.root);
-        System.out.println("Num nodes in kd-tree: " + nodes.size());
-        for (KDTreei.Node<Voxel> n : nodes) {
-            int numVoxels = 0;
-            if (n.left == null) {
-                numVoxels = n.boundables.size();
-                for (int i = 0; i < numVoxels; i++) {
-                    Voxel v = n.boundables.get(i);
+        int[] nodes = tree.nodes, leaves = tree.leaves, refs = tree.refs;
+        System.out.println("Num nodes in kd-tree: " + tree.nodeCount);
+        for (int n = 0; n < tree.nodeCount; n++) {
+            int o = n * PackedKDTreei.NODE_SIZE, splitAxis = nodes[o + 6];
+            if (splitAxis == -1) {
+                int l = nodes[o + 8] * PackedKDTreei.LEAF_SIZE, first = leaves[l], numVoxels = leaves[l + 1];
+                for (int i = first; i < first + numVoxels; i++) {
+                    int p = refs[i];
+                    int x = tree.refMin(n, p, 0, bounds), y = tree.refMin(n, p, 1, bounds), z = tree.refMin(n, p, 2, bounds);
                     // RG32UI
-                    voxelsBuffer.putByte(v.x).putByte(v.y).putByte(v.z).putByte(v.paletteIndex);
-                    voxelsBuffer.putByte(v.ex).putByte(v.ey).putByte(v.ez).putByte(NOT_USED);
+                    voxelsBuffer.putByte(x).putByte(y).putByte(z).putByte(voxels.get(p).paletteIndex);
+                    voxelsBuffer.putByte(tree.refMax(n, p, 0, bounds) - x - 1)
+                                .putByte(tree.refMax(n, p, 1, bounds) - y - 1)
+                                .putByte(tree.refMax(n, p, 2, bounds) - z - 1).putByte(NOT_USED);
                 }
                 // RGBA32UI
                 leafNodesBuffer.putShort(first).putShort(numVoxels);
                 for (int i = 0; i < 6; i++)
-                    leafNodesBuffer.putShort(n.ropes[i] != null ? n.ropes[i].index : -1);
-                first += numVoxels;
+                    leafNodesBuffer.putShort(leaves[l + 2 + i]);
             }
             // RGBA32UI
-            nodesBuffer.putByte(n.bb.minX).putByte(n.bb.minY).putByte(n.bb.minZ).putByte(NOT_USED);
-            nodesBuffer.putByte(n.bb.maxX - 1).putByte(n.bb.maxY - 1).putByte(n.bb.maxZ - 1).putByte(NOT_USED);
-            nodesBuffer.putShort(n.right != null ? n.right.index : n.leafIndex);
-            nodesBuffer.putShort(n.splitAxis == -1 ? -1 : n.splitAxis << (Short.SIZE - 2) | n.splitPos);
+            nodesBuffer.putByte(nodes[o]).putByte(nodes[o + 1]).putByte(nodes[o + 2]).putByte(NOT_USED);
+            nodesBuffer.putByte(nodes[o + 3] - 1).putByte(nodes[o + 4] - 1).putByte(nodes[o + 5] - 1).putByte(NOT_USED);
+            nodesBuffer.putShort(nodes[o + 8]);
+            nodesBuffer.putShort(splitAxis == -1 ? -1 : splitAxis << (Short.SIZE - 2) | nodes[o + 7]);
             nodesBuffer.putInt(NOT_USED);
         }
-        System.out.println("Num voxels in kd-tree: " + first);
+        System.out.println("Num voxels in kd-tree: " + tree.refCount);
     }
 
     private void handleKeyboardInput(float dt) {
@@ -715,52 +696,26 @@ public class VoxelLightmapping {
         glBindFramebuffer(GL_FRAMEBUFFER, 0);
     }
 
-    private static int idx(int x, int y, int z, int width, int depth) {
-        return (x + 1) + (width + 2) * ((z + 1) + (y + 1) * (depth + 2));
-    }
-
     private static class VoxelField {
         int w, d;
         Vector3i min;
         Vector3i max;
-        byte[] field;
+        BrickVolume field;
     }
 
     private VoxelField buildVoxelField() throws IOException {
         System.out.println("Building voxel field...");
-        Vector3i dims = new Vector3i();
-        Vector3i min = new Vector3i(Integer.MAX_VALUE);
-        Vector3i max = new Vector3i(Integer.MIN_VALUE);
-        byte[] field = new byte[(256 + 2) * (256 + 2) * (256 + 2)];
-        try (InputStream is = getSystemResourceAsStream("org/lwjgl/demo/models/mikelovesrobots_mmmm/scene_house5.vox");
-             BufferedInputStream bis = new BufferedInputStream(is)) {
-            new MagicaVoxelLoader().read(bis, new MagicaVoxelLoader.Callback() {
-                public void voxel(int x, int y, int z, byte c) {
-                    y = dims.z - y - 1;
-                    field[idx(x, z, y, dims.x, dims.z)] = c;
-                    min.set(Math.min(min.x, x), Math.min(min.y, z), Math.min(min.z, y));
-                    max.set(Math.max(max.x, x), Math.max(max.y, z), Math.max(max.z, y));
-                }
-
-                public void size(int x, int y, int z) {
-                    dims.x = x;
-                    dims.y = z;
-                    dims.z = y;
-                }
-
-                public void paletteMaterial(int i, Material mat) {
-                    materials[i] = mat;
-                }
-            });
-        }
-        System.out.println("Voxel field dimensions: " + dims);
-        System.out.println("Actual voxel data: " + min + " - " + max);
+        ByteBuffer vox = ioResourceToByteBuffer("org/lwjgl/demo/models/mikelovesrobots_mmmm/scene_house5.vox", 8192);
+        BrickVolume volume = new BrickVolume();
+        new MagicaVoxelLoader().read(vox, Swizzle.Y_UP, volume, materials);
+        System.out.println("Voxel field dimensions: " + volume.width + " x " + volume.height + " x " + volume.depth);
+        System.out.println("Actual voxel data: " + volume.min + " - " + volume.max);
         VoxelField res = new VoxelField();
-        res.w = dims.x;
-        res.d = dims.z;
-        res.min = min;
-        res.max = max;
-        res.field = field;
+        res.w = volume.width;
+        res.d = volume.depth;
+        res.min = volume.min;
+        res.max = volume.max;
+        res.field = volume;
         return res;
     }
 
@@ -4,7 +4,6 @@
  */
 package org.lwjgl.demo.opengl.raytracing;
 
-import static java.lang.ClassLoader.getSystemResourceAsStream;
 import static org.lwjgl.demo.util.FacePacker.pack;
 import static org.lwjgl.demo.util.IOUtils.*;
 import static org.lwjgl.demo.util.KDTreei.build;
@@ -26,6 +25,7 @@ import org.lwjgl.demo.util.*;
 import org.lwjgl.demo.util.FacePacker.PackResult;
 import org.lwjgl.demo.util.GreedyMeshing.Face;
 import org.lwjgl.demo.util.MagicaVoxelLoader.Material;
+import org.lwjgl.demo.util.MagicaVoxelLoader.Swizzle;
 import org.lwjgl.glfw.GLFWVidMode;
 import org.lwjgl.system.*;
 
@@ -469,6 +469,17 @@ public class VoxelLightmapping2 {
     }
 
     private void createSceneTBOs(ArrayList<Face> faces) {
+        /* Reuse the buffers of the last start if the faces did not change */
+        BufferCache.Key key = new BufferCache.Key().put("VoxelLightmapping2").put(14);
+        for (Face f : faces)
+            key.put(f.s).put(f.u0 | f.v0 << 16).put(f.u1 | f.v1 << 16).put(f.p | f.tx << 16).put(f.ty).put(f.v);
+        ByteBuffer[] buffers = BufferCache.load("VoxelLightmapping2", key.get());
+        if (buffers != null) {
+            createFacesTexture(buffers[0]);
+            createNodesTexture(buffers[1]);
+            createLeafNodesTexture(buffers[2]);
+            return;
+        }
         System.out.println("Building kd-tree...");
         KDTreei<Face> root = build(faces, 14);
         System.out.println("Serializing kd-tree to buffers...");
@@ -476,9 +487,14 @@ public class VoxelLightmapping2 {
         DynamicByteBuffer nodesBuffer = new DynamicByteBuffer();
         DynamicByteBuffer leafNodesBuffer = new DynamicByteBuffer();
         kdTreeToBuffers(root, nodesBuffer, leafNodesBuffer, facesBuffer);
-        createFacesTexture(facesBuffer);
-        createNodesTexture(nodesBuffer);
-        createLeafNodesTexture(leafNodesBuffer);
+        BufferCache.store("VoxelLightmapping2", key.get(), facesBuffer.buffer(), nodesBuffer.buffer(),
+                leafNodesBuffer.buffer());
+        createFacesTexture(facesBuffer.buffer());
+        createNodesTexture(nodesBuffer.buffer());
+        createLeafNodesTexture(leafNodesBuffer.buffer());
+        facesBuffer.free();
+        nodesBuffer.free();
+        leafNodesBuffer.free();
     }
 
     private void createMaterialsTexture() {
@@ -495,91 +511,66 @@ public class VoxelLightmapping2 {
         glTexBuffer(GL_TEXTURE_BUFFER, GL_RGBA8, materialsBufferObject);
     }
 
-    private void createLeafNodesTexture(DynamicByteBuffer leafNodesBuffer) {
-        System.out.println("Leaf nodes buffer: " + leafNodesBuffer.pos / 1024 + " KB");
+    private void createLeafNodesTexture(ByteBuffer leafNodesBuffer) {
+        System.out.println("Leaf nodes buffer: " + leafNodesBuffer.remaining() / 1024 + " KB");
         leafNodesBufferObject = glGenBuffers();
         glBindBuffer(GL_TEXTURE_BUFFER, leafNodesBufferObject);
-        nglBufferData(GL_TEXTURE_BUFFER, leafNodesBuffer.pos, leafNodesBuffer.addr, GL_STATIC_DRAW);
-        leafNodesBuffer.free();
+        glBufferData(GL_TEXTURE_BUFFER, leafNodesBuffer, GL_STATIC_DRAW);
         leafNodesTexture = glGenTextures();
         glBindTexture(GL_TEXTURE_BUFFER, leafNodesTexture);
         glTexBuffer(GL_TEXTURE_BUFFER, GL_RGBA32UI, leafNodesBufferObject);
     }
 
-    private void createNodesTexture(DynamicByteBuffer nodesBuffer) {
-        System.out.println("Nodes buffer: " + nodesBuffer.pos / 1024 + " KB");
+    private void createNodesTexture(ByteBuffer nodesBuffer) {
+        System.out.println("Nodes buffer: " + nodesBuffer.remaining() / 1024 + " KB");
         nodesBufferObject = glGenBuffers();
         glBindBuffer(GL_TEXTURE_BUFFER, nodesBufferObject);
-        nglBufferData(GL_TEXTURE_BUFFER, nodesBuffer.pos, nodesBuffer.addr, GL_STATIC_DRAW);
-        nodesBuffer.free();
+        glBufferData(GL_TEXTURE_BUFFER, nodesBuffer, GL_STATIC_DRAW);
         nodesTexture = glGenTextures();
         glBindTexture(GL_TEXTURE_BUFFER, nodesTexture);
         glTexBuffer(GL_TEXTURE_BUFFER, GL_RGBA32UI, nodesBufferObject);
     }
 
-    private void createFacesTexture(DynamicByteBuffer facesBuffer) {
-        System.out.println("Faces buffer: " + facesBuffer.pos / 1024 + " KB");
+    private void createFacesTexture(ByteBuffer facesBuffer) {
+        System.out.println("Faces buffer: " + facesBuffer.remaining() / 1024 + " KB");
         facesBufferObject = glGenBuffers();
         glBindBuffer(GL_TEXTURE_BUFFER, facesBufferObject);
-        nglBufferData(GL_TEXTURE_BUFFER, facesBuffer.pos, facesBuffer.addr, GL_STATIC_DRAW);
-        facesBuffer.free();
+        glBufferData(GL_TEXTURE_BUFFER, facesBuffer, GL_STATIC_DRAW);
         facesTexture = glGenTextures();
         glBindTexture(GL_TEXTURE_BUFFER, facesTexture);
         glTexBuffer(GL_TEXTURE_BUFFER, GL_RGBA32UI, facesBufferObject);
     }
 
-    private static ArrayList<KDTreei.Node<Face>> allocate(KDTreei.Node<Face> node) {
-        ArrayList<KDTreei.Node<Face>> linearNodes = new ArrayList<>();
-        LinkedList<KDTreei.Node<Face>> nodes = new LinkedList<>();
-        int index = 0, leafIndex = 0;
-        nodes.add(node);
-        while (!nodes.isEmpty()) {
-            KDTreei.Node<Face> n = nodes.removeFirst();
-            linearNodes.add(n);
-            n.index = index++;
-            if (n.left != null) {
-                nodes.addFirst(n.right);
-                nodes.addFirst(n.left);
-            } else {
-                n.leafIndex = leafIndex++;
-            }
-        }
-        return linearNodes;
-    }
-
     private void kdTreeToBuffers(KDTreei<Face> root,
                                  DynamicByteBuffer nodesBuffer, DynamicByteBuffer leafNodesBuffer,
                                  DynamicByteBuffer facesBuffer) {
-        int first = 0;
-        ArrayList<KDTreei.Node<Face>> nodes = allocate(root.root);
-        System.out.println("Num nodes in kd-tree: " + nodes.size());
-        for (KDTreei.Node<Face> n : nodes) {
-            int numFaces = 0;
-            if (n.left == null) {
-                numFaces = n.boundables.size();
-                for (int i = 0; i < numFaces; i++) {
-                    Face f = n.boundables.get(i);
+        int numNodes = KDTreeLinearizer.linearize(root.root, KDTreeLinearizer.Layout.DEPTH_FIRST,
+                KDTreeLinearizer.<Face>kdTreei(), (n, index, leafIndex, first) -> {
+                    if (n.left == null) {
+                        int numFaces = n.boundables.size();
+                        for (int i = 0; i < numFaces; i++) {
+                            Face f = n.boundables.get(i);
+                            // RGBA32UI
+                            int s = f.s >>> 1;
+                            facesBuffer.putInt(f.p << (s << 3) | f.u0 << ((s + 1 << 3) % 24) | f.v0 << ((s + 2 << 3) % 24) | f.v << 24);
+                            facesBuffer.putInt(f.u1 - f.u0 << (s + 1 << 3) % 24 | f.u1 - f.u0 << 24);
+                            facesBuffer.putInt(f.v1 - f.v0 << (s + 2 << 3) % 24 | f.v1 - f.v0 << 24);
+                            facesBuffer.putShort(f.tx).putShort(f.ty);
+                        }
+                        // RGBA32UI
+                        leafNodesBuffer.putShort(first).putShort(numFaces);
+                        for (int i = 0; i < 6; i++)
+                            leafNodesBuffer.putShort(n.ropes[i] != null ? n.ropes[i].index : -1);
+                    }
                     // RGBA32UI
-                    int s = f.s >>> 1;
-                    facesBuffer.putInt(f.p << (s << 3) | f.u0 << ((s + 1 << 3) % 24) | f.v0 << ((s + 2 << 3) % 24) | f.v << 24);
-                    facesBuffer.putInt(f.u1 - f.u0 << (s + 1 << 3) % 24 | f.u1 - f.u0 << 24);
-                    facesBuffer.putInt(f.v1 - f.v0 << (s + 2 << 3) % 24 | f.v1 - f.v0 << 24);
-                    facesBuffer.putShort(f.tx).putShort(f.ty);
-                }
-                // RGBA32UI
-                leafNodesBuffer.putShort(first).putShort(numFaces);
-                for (int i = 0; i < 6; i++)
-                    leafNodesBuffer.putShort(n.ropes[i] != null ? n.ropes[i].index : -1);
-                first += numFaces;
-            }
-            // RGBA32UI
-            nodesBuffer.putByte(n.bb.minX).putByte(n.bb.minY).putByte(n.bb.minZ).putByte(NOT_USED);
-            nodesBuffer.putByte(n.bb.maxX - 1).putByte(n.bb.maxY - 1).putByte(n.bb.maxZ - 1).putByte(NOT_USED);
-            nodesBuffer.putShort(n.right != null ? n.right.index : n.leafIndex);
-            nodesBuffer.putShort(n.splitAxis == -1 ? -1 : n.splitAxis << (Short.SIZE - 2) | n.splitPos);
-            nodesBuffer.putInt(NOT_USED);
-        }
-        System.out.println("Num faces in kd-tree: " + first);
+                    nodesBuffer.putByte(n.bb.minX).putByte(n.bb.minY).putByte(n.bb.minZ).putByte(NOT_USED);
+                    nodesBuffer.putByte(n.bb.maxX - 1).putByte(n.bb.maxY - 1).putByte(n.bb.maxZ - 1).putByte(NOT_USED);
+                    nodesBuffer.putShort(n.right != null ? n.right.index : leafIndex);
+                    nodesBuffer.putShort(n.splitAxis == -1 ? -1 : n.splitAxis << (Short.SIZE - 2) | n.splitPos);
+                    nodesBuffer.putInt(NOT_USED);
+                });
+        System.out.println("Num nodes in kd-tree: " + numNodes);
+        System.out.println("Num faces in kd-tree: " + facesBuffer.pos / 16);
     }
 
     private void handleKeyboardInput(float dt) {
@@ -664,52 +655,29 @@ public class VoxelLightmapping2 {
         glBindFramebuffer(GL_FRAMEBUFFER, 0);
     }
 
-    private static int idx(int x, int y, int z, int width, int depth) {
-        return (x + 1) + (width + 2) * ((z + 1) + (y + 1) * (depth + 2));
-    }
-
     private static class VoxelField {
         int w, d;
         Vector3i min;
         Vector3i max;
-        byte[] field;
+        BrickVolume field;
     }
 
     private VoxelField buildVoxelField() throws IOException {
         System.out.println("Building voxel field...");
-        Vector3i dims = new Vector3i();
-        Vector3i min = new Vector3i(Integer.MAX_VALUE);
-        Vector3i max = new Vector3i(Integer.MIN_VALUE);
-        byte[] field = new byte[(256 + 2) * (256 + 2) * (256 + 2)];
-        try (InputStream is = getSystemResourceAsStream("org/lwjgl/demo/models/mikelovesrobots_mmmm/scene_house5.vox");
-             BufferedInputStream bis = new BufferedInputStream(is)) {
-            new MagicaVoxelLoader().read(bis, new MagicaVoxelLoader.Callback() {
-                public void voxel(int x, int y, int z, byte c) {
-                    y = dims.z - y - 1;
-                    field[idx(x, z, y, dims.x, dims.z)] = c;
-                    min.set(Math.min(min.x, x), Math.min(min.y, z), Math.min(min.z, y));
-                    max.set(Math.max(max.x, x), Math.max(max.y, z), Math.max(max.z, y));
-                }
-
-                public void size(int x, int y, int z) {
-                    dims.x = x;
-                    dims.y = z;
-                    dims.z = y;
-                }
-
-                public void paletteMaterial(int i, Material mat) {
-                    materials[i] = mat;
-                }
-            });
-        }
-        System.out.println("Voxel field dimensions: " + dims);
-        System.out.println("Actual voxel data: " + min + " - " + max);
+        ByteBuffer vox = ioResourceToByteBuffer("org/lwjgl/demo/models/mikelovesrobots_mmmm/scene_house5.vox", 8192);
+        /* Place all models of the file as laid out by its scene graph into a single volume */
+        MagicaVoxelLoader.Scene scene = new MagicaVoxelLoader().readScene(vox, true);
+        BrickVolume volume = new BrickVolume();
+        scene.flatten(volume, Swizzle.Y_UP);
+        System.arraycopy(scene.materials, 0, materials, 0, Math.min(scene.numMaterials, materials.length));
+        System.out.println("Voxel field dimensions: " + volume.width + " x " + volume.height + " x " + volume.depth);
+        System.out.println("Actual voxel data: " + volume.min + " - " + volume.max);
         VoxelField res = new VoxelField();
-        res.w = dims.x;
-        res.d = dims.z;
-        res.min = min;
-        res.max = max;
-        res.field = field;
+        res.w = volume.width;
+        res.d = volume.depth;
+        res.min = volume.min;
+        res.max = volume.max;
+        res.field = volume;
         return res;
     }
 
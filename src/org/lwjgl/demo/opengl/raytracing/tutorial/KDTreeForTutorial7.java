@@ -30,9 +30,9 @@ public class KDTreeForTutorial7 {
 
     public Node mRootNode;
     private Box mBoundingBox;
-    private int mMinPrim = 32;
-    private float mSahIntCosts = 1.0f;
-    private float mSahTrvCosts = 0.1f;
+    public int mMinPrim = 32;
+    public float mSahIntCosts = 1.0f;
+    public float mSahTrvCosts = 0.1f;
     private int mTriCount = 0;
 
     private class IntervalBoundary {
@@ -119,6 +119,7 @@ public class KDTreeForTutorial7 {
         public Node right;
         public List<Boundable> triangles;
         public Node[] ropes;
+        public int index;
 
         Node() {
             left = right = null;
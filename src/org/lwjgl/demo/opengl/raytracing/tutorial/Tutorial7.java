@@ -5,14 +5,11 @@
 package org.lwjgl.demo.opengl.raytracing.tutorial;
 
 import org.lwjgl.BufferUtils;
-import org.lwjgl.PointerBuffer;
-import org.lwjgl.assimp.AIFace;
-import org.lwjgl.assimp.AIMesh;
-import org.lwjgl.assimp.AIScene;
-import org.lwjgl.assimp.AIVector3D;
-import org.lwjgl.assimp.Assimp;
 import org.lwjgl.demo.opengl.util.DemoUtils;
+import org.lwjgl.demo.util.BufferCache;
 import org.lwjgl.demo.util.DynamicByteBuffer;
+import org.lwjgl.demo.util.KDTreeLinearizer;
+import org.lwjgl.demo.util.MeshCache;
 import org.lwjgl.glfw.*;
 import org.lwjgl.opengl.*;
 import org.lwjgl.system.*;
@@ -20,23 +17,16 @@ import org.joml.Matrix4f;
 import org.joml.Matrix4x3f;
 import org.joml.Vector3f;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.FloatBuffer;
 import java.nio.IntBuffer;
 import java.util.ArrayList;
-import java.util.LinkedHashMap;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.Map;
-import java.util.Queue;
-import java.util.zip.ZipInputStream;
 
 import static org.lwjgl.glfw.GLFW.*;
 import static org.lwjgl.opengl.GL43C.*;
 import static org.lwjgl.system.MemoryUtil.*;
-import static org.lwjgl.demo.util.Std430Writer.*;
 
 /**
  * This demo shows stackless kd-tree traversal, as presented in the 2007
@@ -82,20 +72,25 @@ public class Tutorial7 {
     }
 
     /**
-     * Reflects the "Node" structure of a kd-tree node as used in the
-     * raytracing.glsl shader.
-     * <p>
-     * We use the {@link Std430Writer} to layout our nodes in memory as the shader
-     * expects it.
+     * Gives the {@link KDTreeLinearizer} access to the nodes of our kd-tree.
      */
-    public static class GPUNode {
-        public Vector3f min, max;
-        public int dim;
-        public float plane;
-        public @Member(length = 6) int[] ropes;
-        public int left, right;
-        public int firstTri, numTris;
-    }
+    private static final KDTreeLinearizer.Tree<KDTreeForTutorial7.Node> KDTREE = new KDTreeLinearizer.Tree<KDTreeForTutorial7.Node>() {
+        public KDTreeForTutorial7.Node left(KDTreeForTutorial7.Node node) {
+            return node.left;
+        }
+        public KDTreeForTutorial7.Node right(KDTreeForTutorial7.Node node) {
+            return node.right;
+        }
+        public int primitiveCount(KDTreeForTutorial7.Node leaf) {
+            return leaf.triangles.size();
+        }
+        public int index(KDTreeForTutorial7.Node node) {
+            return node.index;
+        }
+        public void index(KDTreeForTutorial7.Node node, int index) {
+            node.index = index;
+        }
+    };
 
     /**
      * Describes the imported Assimp scene and builds OpenGL buffer objects for
@@ -104,12 +99,10 @@ public class Tutorial7 {
     private static class Model {
         private List<Mesh> meshes;
 
-        private Model(AIScene scene) {
-            int meshCount = scene.mNumMeshes();
-            PointerBuffer meshesBuffer = scene.mMeshes();
+        private Model(List<MeshCache.Mesh> scene) {
             meshes = new ArrayList<>();
-            for (int i = 0; i < meshCount; ++i)
-                meshes.add(new Mesh(AIMesh.create(meshesBuffer.get(i))));
+            for (MeshCache.Mesh mesh : scene)
+                meshes.add(new Mesh(mesh));
         }
 
         private static class Mesh {
@@ -123,43 +116,28 @@ public class Tutorial7 {
             private int elementCount;
 
             /**
-             * Build everything from the given {@link AIMesh}.
+             * Build everything from the given {@link MeshCache.Mesh}, uploading its buffers directly.
              *
              * @param mesh
-             *            the Assimp {@link AIMesh} object
+             *            the imported mesh
              */
-            private Mesh(AIMesh mesh) {
+            private Mesh(MeshCache.Mesh mesh) {
                 vao = glGenVertexArrays();
                 glBindVertexArray(vao);
                 vertexArrayBuffer = glGenBuffers();
                 glBindBuffer(GL_ARRAY_BUFFER, vertexArrayBuffer);
-                AIVector3D.Buffer vertices = mesh.mVertices();
-                int verticesBytes = 4 * 3 * vertices.remaining();
-                verticesFB = BufferUtils.createByteBuffer(verticesBytes).asFloatBuffer();
-                memCopy(vertices.address(), memAddress(verticesFB), verticesBytes);
-                nglBufferData(GL_ARRAY_BUFFER, verticesBytes, vertices.address(), GL_STATIC_DRAW);
+                verticesFB = mesh.positions;
+                glBufferData(GL_ARRAY_BUFFER, verticesFB, GL_STATIC_DRAW);
                 glEnableVertexAttribArray(0);
                 glVertexAttribPointer(0, 3, GL_FLOAT, false, 0, 0L);
                 normalArrayBuffer = glGenBuffers();
                 glBindBuffer(GL_ARRAY_BUFFER, normalArrayBuffer);
-                AIVector3D.Buffer normals = mesh.mNormals();
-                int normalsBytes = 4 * 3 * normals.remaining();
-                normalsFB = BufferUtils.createByteBuffer(normalsBytes).asFloatBuffer();
-                memCopy(normals.address(), memAddress(normalsFB), normalsBytes);
-                nglBufferData(GL_ARRAY_BUFFER, normalsBytes, normals.address(), GL_STATIC_DRAW);
+                normalsFB = mesh.normals;
+                glBufferData(GL_ARRAY_BUFFER, normalsFB, GL_STATIC_DRAW);
                 glEnableVertexAttribArray(1);
                 glVertexAttribPointer(1, 3, GL_FLOAT, true, 0, 0L);
-                int faceCount = mesh.mNumFaces();
-                elementCount = faceCount * 3;
-                indicesIB = BufferUtils.createIntBuffer(elementCount);
-                AIFace.Buffer facesBuffer = mesh.mFaces();
-                for (int i = 0; i < faceCount; ++i) {
-                    AIFace face = facesBuffer.get(i);
-                    if (face.mNumIndices() != 3)
-                        throw new IllegalStateException("AIFace.mNumIndices() != 3");
-                    indicesIB.put(face.mIndices());
-                }
-                indicesIB.flip();
+                elementCount = mesh.numIndices;
+                indicesIB = mesh.indices;
                 elementArrayBuffer = glGenBuffers();
                 glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, elementArrayBuffer);
                 glBufferData(GL_ELEMENT_ARRAY_BUFFER, indicesIB, GL_STATIC_DRAW);
@@ -395,11 +373,7 @@ public class Tutorial7 {
         viewMatrix.setLookAt(cameraPosition, cameraLookAt, cameraUp);
 
         /* Load OBJ model */
-        byte[] bytes = readSingleFileZip("org/lwjgl/demo/opengl/raytracing/tutorial7/sponza.obj.zip");
-        ByteBuffer bb = BufferUtils.createByteBuffer(bytes.length);
-        bb.put(bytes).flip();
-        AIScene scene = Assimp.aiImportFileFromMemory(bb, 0, "obj");
-        model = new Model(scene);
+        model = new Model(MeshCache.loadScene("org/lwjgl/demo/opengl/raytracing/tutorial7/sponza.obj.zip", 0));
         /* And create KD-tree and triangles SSBOs */
         createSceneSSBOs();
 
@@ -418,34 +392,6 @@ public class Tutorial7 {
         glfwShowWindow(window);
     }
 
-    private static byte[] readSingleFileZip(String zipResource) throws IOException {
-        ZipInputStream zipStream = new ZipInputStream(
-                Tutorial7.class.getClassLoader().getResourceAsStream(zipResource));
-        zipStream.getNextEntry();
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        byte[] buffer = new byte[1024];
-        int read = 0;
-        while ((read = zipStream.read(buffer)) > 0) {
-            baos.write(buffer, 0, read);
-        }
-        zipStream.close();
-        return baos.toByteArray();
-    }
-
-    private static void allocate(KDTreeForTutorial7.Node node, Map<KDTreeForTutorial7.Node, Integer> indexes) {
-        Queue<KDTreeForTutorial7.Node> nodes = new LinkedList<KDTreeForTutorial7.Node>();
-        nodes.add(node);
-        while (!nodes.isEmpty()) {
-            KDTreeForTutorial7.Node n = nodes.poll();
-            if (n == null)
-                continue;
-            int index = indexes.size();
-            indexes.put(n, Integer.valueOf(index));
-            nodes.add(n.left);
-            nodes.add(n.right);
-        }
-    }
-
     /**
      * Convert the Assimp-imported scene into the Shader Storage Buffer Objects
      * needed for stackless kd-tree traversable in the compute shader.
@@ -491,18 +437,33 @@ public class Tutorial7 {
                 max.max(t.v0).max(t.v1).max(t.v2);
             }
         }
-        kdtree.buildTree(triangles, new KDTreeForTutorial7.Box(min, max));
-        DynamicByteBuffer nodesBuffer = new DynamicByteBuffer();
-        DynamicByteBuffer trianglesBuffer = new DynamicByteBuffer();
-        kdTreeToBuffers(kdtree, nodesBuffer, trianglesBuffer);
+        /*
+         * Building the kd-tree is the slowest part of the startup, so reuse the
+         * buffers of the last start if neither the scene nor the build
+         * parameters of the kd-tree changed.
+         */
+        BufferCache.Key key = new BufferCache.Key().put("Tutorial7")
+                .put(KDTreeLinearizer.Layout.VAN_EMDE_BOAS.name()).put(kdtree.mMinPrim)
+                .put(kdtree.mSahIntCosts).put(kdtree.mSahTrvCosts);
+        for (Model.Mesh mesh : model.meshes)
+            key.put(mesh.verticesFB).put(mesh.normalsFB).put(mesh.indicesIB);
+        ByteBuffer[] buffers = BufferCache.load("Tutorial7", key.get());
+        if (buffers == null) {
+            kdtree.buildTree(triangles, new KDTreeForTutorial7.Box(min, max));
+            DynamicByteBuffer nodesBuffer = new DynamicByteBuffer();
+            DynamicByteBuffer trianglesBuffer = new DynamicByteBuffer();
+            kdTreeToBuffers(kdtree, nodesBuffer, trianglesBuffer);
+            buffers = new ByteBuffer[] { nodesBuffer.buffer(), trianglesBuffer.buffer() };
+            BufferCache.store("Tutorial7", key.get(), buffers);
+        }
 
         this.nodesSsbo = glGenBuffers();
         glBindBuffer(GL_ARRAY_BUFFER, nodesSsbo);
-        nglBufferData(GL_ARRAY_BUFFER, nodesBuffer.pos, nodesBuffer.addr, GL_STATIC_DRAW);
+        glBufferData(GL_ARRAY_BUFFER, buffers[0], GL_STATIC_DRAW);
         glBindBuffer(GL_ARRAY_BUFFER, 0);
         this.trianglesSsbo = glGenBuffers();
         glBindBuffer(GL_ARRAY_BUFFER, trianglesSsbo);
-        nglBufferData(GL_ARRAY_BUFFER, trianglesBuffer.pos, trianglesBuffer.addr, GL_STATIC_DRAW);
+        glBufferData(GL_ARRAY_BUFFER, buffers[1], GL_STATIC_DRAW);
         glBindBuffer(GL_ARRAY_BUFFER, 0);
     }
 
@@ -522,55 +483,42 @@ public class Tutorial7 {
      */
     private static void kdTreeToBuffers(KDTreeForTutorial7 tree, DynamicByteBuffer nodesBuffer,
             DynamicByteBuffer trianglesBuffer) {
-        Map<KDTreeForTutorial7.Node, Integer> indexes = new LinkedHashMap<KDTreeForTutorial7.Node, Integer>();
-        // Allocate indexes for each of the nodes
-        allocate(tree.mRootNode, indexes);
-        int triangleIndex = 0;
-        List<GPUNode> gpuNodes = new ArrayList<GPUNode>();
-        // Iterate over each node in insertion order and write to the buffers
-        for (Map.Entry<KDTreeForTutorial7.Node, Integer> e : indexes.entrySet()) {
-            KDTreeForTutorial7.Node n = e.getKey();
-            GPUNode gn = new GPUNode();
-            gn.min = n.boundingBox.min;
-            gn.max = n.boundingBox.max;
-            gn.dim = n.splitAxis;
-            gn.plane = n.splitPlane;
-            gn.ropes = new int[6];
-            /* Write ropes */
-            for (int i = 0; i < 6; i++) {
-                KDTreeForTutorial7.Node r = n.ropes[i];
-                if (r != null) {
-                    gn.ropes[i] = indexes.get(r).intValue();
-                } else {
-                    gn.ropes[i] = -1; // no neighbor
-                }
-            }
-            if (n.isLeafNode()) {
-                gn.left = -1; // no left child
-                gn.right = -1; // no right child
-                gn.firstTri = triangleIndex;
-                gn.numTris = n.triangles.size();
-                triangleIndex += n.triangles.size();
-                /* Write triangles to buffer */
-                for (int i = 0; i < n.triangles.size(); i++) {
-                    Triangle t = (Triangle) n.triangles.get(i);
-                    trianglesBuffer.putFloat(t.v0.x).putFloat(t.v0.y).putFloat(t.v0.z).putFloat(1.0f);
-                    trianglesBuffer.putFloat(t.v1.x).putFloat(t.v1.y).putFloat(t.v1.z).putFloat(1.0f);
-                    trianglesBuffer.putFloat(t.v2.x).putFloat(t.v2.y).putFloat(t.v2.z).putFloat(1.0f);
-                    trianglesBuffer.putFloat(t.n0.x).putFloat(t.n0.y).putFloat(t.n0.z).putFloat(0.0f);
-                    trianglesBuffer.putFloat(t.n1.x).putFloat(t.n1.y).putFloat(t.n1.z).putFloat(0.0f);
-                    trianglesBuffer.putFloat(t.n2.x).putFloat(t.n2.y).putFloat(t.n2.z).putFloat(0.0f);
-                }
-            } else {
-                gn.left = indexes.get(n.left).intValue();
-                gn.right = indexes.get(n.right).intValue();
-                gn.firstTri = 0; // no triangles
-                gn.numTris = 0; // no triangles
-            }
-            gpuNodes.add(gn);
-        }
-        // Write GPUNode list to ByteBuffer in std430 layout
-        write(gpuNodes, GPUNode.class, nodesBuffer);
+        /*
+         * The compute shader follows explicit child indices, so we can use the
+         * van Emde Boas layout, which keeps the nodes along any path close to
+         * each other in memory.
+         */
+        KDTreeLinearizer.linearize(tree.mRootNode, KDTreeLinearizer.Layout.VAN_EMDE_BOAS, KDTREE,
+                (n, index, leafIndex, firstTri) -> {
+                    /* Write the "node" struct of raytracing.glsl in std430 layout */
+                    Vector3f min = n.boundingBox.min, max = n.boundingBox.max;
+                    nodesBuffer.putFloat(min.x).putFloat(min.y).putFloat(min.z).putInt(0);
+                    nodesBuffer.putFloat(max.x).putFloat(max.y).putFloat(max.z);
+                    nodesBuffer.putInt(n.splitAxis).putFloat(n.splitPlane);
+                    /* Write ropes */
+                    for (int i = 0; i < 6; i++) {
+                        KDTreeForTutorial7.Node r = n.ropes[i];
+                        nodesBuffer.putInt(r != null ? r.index : -1); // -1 = no neighbor
+                    }
+                    if (n.isLeafNode()) {
+                        nodesBuffer.putInt(-1).putInt(-1); // no children
+                        nodesBuffer.putInt(firstTri).putInt(n.triangles.size());
+                        /* Write triangles to buffer */
+                        for (int i = 0; i < n.triangles.size(); i++) {
+                            Triangle t = (Triangle) n.triangles.get(i);
+                            trianglesBuffer.putFloat(t.v0.x).putFloat(t.v0.y).putFloat(t.v0.z).putFloat(1.0f);
+                            trianglesBuffer.putFloat(t.v1.x).putFloat(t.v1.y).putFloat(t.v1.z).putFloat(1.0f);
+                            trianglesBuffer.putFloat(t.v2.x).putFloat(t.v2.y).putFloat(t.v2.z).putFloat(1.0f);
+                            trianglesBuffer.putFloat(t.n0.x).putFloat(t.n0.y).putFloat(t.n0.z).putFloat(0.0f);
+                            trianglesBuffer.putFloat(t.n1.x).putFloat(t.n1.y).putFloat(t.n1.z).putFloat(0.0f);
+                            trianglesBuffer.putFloat(t.n2.x).putFloat(t.n2.y).putFloat(t.n2.z).putFloat(0.0f);
+                        }
+                    } else {
+                        nodesBuffer.putInt(n.left.index).putInt(n.right.index);
+                        nodesBuffer.putInt(0).putInt(0); // no triangles
+                    }
+                    nodesBuffer.putInt(0); // pad the struct to a multiple of 16 bytes
+                });
     }
 
     /**
@@ -5,7 +5,7 @@
 package org.lwjgl.demo.opengl.raytracing.tutorial;
 
 import org.lwjgl.*;
-import org.lwjgl.assimp.*;
+import org.lwjgl.demo.util.MeshCache;
 import org.lwjgl.glfw.*;
 import org.lwjgl.opengl.*;
 import org.lwjgl.system.*;
@@ -20,7 +20,6 @@ import java.nio.IntBuffer;
 import java.util.*;
 
 import static org.lwjgl.demo.opengl.util.DemoUtils.*;
-import static org.lwjgl.demo.util.IOUtils.*;
 import static org.lwjgl.glfw.GLFW.*;
 import static org.lwjgl.opengl.GL33C.*;
 import static org.lwjgl.system.MemoryUtil.*;
@@ -406,11 +405,9 @@ public class Tutorial8 {
      * the model will be considered an AABB.
      */
     private void importSceneAsBoxes() throws IOException {
-        ByteBuffer bb = ioResourceToByteBuffer(
-                "org/lwjgl/demo/opengl/raytracing/tutorial8/cubes.obj", 8192);
-        AIScene scene = Assimp.aiImportFileFromMemory(bb, 0, "obj");
-        int meshCount = scene.mNumMeshes();
-        PointerBuffer meshesBuffer = scene.mMeshes();
+        List<MeshCache.Mesh> meshes = MeshCache.loadScene(
+                "org/lwjgl/demo/opengl/raytracing/tutorial8/cubes.obj", 0);
+        int meshCount = meshes.size();
         boxes = new ArrayList<>();
         System.out.println("Loaded level with " + meshCount + " boxes");
         /*
@@ -418,16 +415,15 @@ public class Tutorial8 {
          * it.
          */
         for (int i = 0; i < meshCount; i++) {
-            AIMesh mesh = AIMesh.create(meshesBuffer.get(i));
-            int verticesCount = mesh.mNumVertices();
-            AIVector3D.Buffer vertices = mesh.mVertices();
+            MeshCache.Mesh mesh = meshes.get(i);
+            int verticesCount = mesh.numVertices;
+            FloatBuffer vertices = mesh.positions;
             Vector3f min = new Vector3f(Float.MAX_VALUE, Float.MAX_VALUE,
                     Float.MAX_VALUE);
             Vector3f max = new Vector3f(-Float.MAX_VALUE, -Float.MAX_VALUE,
                     -Float.MAX_VALUE);
             for (int v = 0; v < verticesCount; v++) {
-                AIVector3D vec = vertices.get(v);
-                Vector3f v3 = new Vector3f(vec.x(), vec.y(), vec.z());
+                Vector3f v3 = new Vector3f(v * 3, vertices);
                 min.min(v3);
                 max.max(v3);
             }
@@ -436,7 +432,6 @@ public class Tutorial8 {
             box.max = max;
             boxes.add(box);
         }
-        Assimp.aiReleaseImport(scene);
     }
 
     /**
@@ -1,20 +1,19 @@
 package org.lwjgl.demo.opengl.sampling;
 
-import org.lwjgl.BufferUtils;
 import org.lwjgl.demo.opengl.util.DemoUtils;
+import org.lwjgl.demo.util.ImageLoader;
+import org.lwjgl.demo.util.ImageLoader.MipFilter;
 import org.lwjgl.glfw.GLFWKeyCallback;
 import org.lwjgl.opengl.GL;
 import org.lwjgl.system.MemoryStack;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.FloatBuffer;
 import java.nio.IntBuffer;
+import java.util.concurrent.CompletableFuture;
 
-import static org.lwjgl.demo.util.IOUtils.ioResourceToByteBuffer;
 import static org.lwjgl.glfw.GLFW.*;
 import static org.lwjgl.opengl.GL33C.*;
-import static org.lwjgl.stb.STBImage.*;
 import static org.lwjgl.system.MemoryStack.stackPush;
 import static org.lwjgl.system.MemoryUtil.NULL;
 import static org.lwjgl.system.MemoryUtil.memAddress;
@@ -38,6 +37,15 @@ import static org.lwjgl.system.MemoryUtil.memAddress;
 public class HierarchicalSampleWarping {
   private static int width = 800, height = 800;
   public static void main(String[] args) throws IOException {
+    // Decode the image and build its mipmaps on a worker thread while the window is created.
+    // The box filter keeps each texel of a level the exact average of the four texels below it,
+    // which the warping relies on.
+    ImageLoader imageLoader = new ImageLoader();
+    imageLoader.setComponents(3);
+    imageLoader.setHdr(true);
+    imageLoader.setFlipY(true);
+    imageLoader.setMipFilter(MipFilter.BOX);
+    CompletableFuture<ImageLoader.Image> image = imageLoader.load("org/lwjgl/demo/opengl/sampling/env-square2.hdr");
     if (!glfwInit())
       throw new IllegalStateException("Unable to initialize GLFW");
     glfwWindowHint(GLFW_CONTEXT_VERSION_MAJOR, 3);
@@ -108,8 +116,7 @@ public class HierarchicalSampleWarping {
         throw new AssertionError("Incomplete framebuffer");
     }
 
-    // Load an image, that we want to sample via hierarchical sample warping, into a texture
-    // and generate mipmaps for it
+    // Upload the image, that we want to sample via hierarchical sample warping, with its mipmaps into a texture
     int tex = glGenTextures();
     {
       glBindTexture(GL_TEXTURE_2D, tex);
@@ -117,20 +124,7 @@ public class HierarchicalSampleWarping {
       glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_LINEAR_MIPMAP_LINEAR);
       glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_S, GL_CLAMP_TO_EDGE);
       glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_T, GL_CLAMP_TO_EDGE);
-      IntBuffer w = BufferUtils.createIntBuffer(1);
-      IntBuffer h = BufferUtils.createIntBuffer(1);
-      IntBuffer comp = BufferUtils.createIntBuffer(1);
-      ByteBuffer imageBuffer = ioResourceToByteBuffer("org/lwjgl/demo/opengl/sampling/env-square2.hdr", 64 * 1024);
-      stbi_set_flip_vertically_on_load(true);
-      if (!stbi_info_from_memory(imageBuffer, w, h, comp))
-        throw new IOException("Failed to read image information: " + stbi_failure_reason());
-      FloatBuffer image = stbi_loadf_from_memory(imageBuffer, w, h, comp, 3);
-      if (image == null)
-        throw new IOException("Failed to load image: " + stbi_failure_reason());
-      glTexImage2D(GL_TEXTURE_2D, 0, GL_RGB32F, w.get(0), h.get(0), 0, GL_RGB, GL_FLOAT, (ByteBuffer) null);
-      glTexSubImage2D(GL_TEXTURE_2D, 0, 0, 0, w.get(0), h.get(0), GL_RGB, GL_FLOAT, image);
-      stbi_image_free(image);
-      glGenerateMipmap(GL_TEXTURE_2D);
+      DemoUtils.texImage2D(GL_TEXTURE_2D, ImageLoader.join(image), GL_RGB32F);
     }
 
     glfwShowWindow(window);
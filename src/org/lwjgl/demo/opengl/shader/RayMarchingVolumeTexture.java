@@ -4,24 +4,22 @@
  */
 package org.lwjgl.demo.opengl.shader;
 
-import static java.lang.ClassLoader.getSystemResourceAsStream;
 import static org.lwjgl.demo.opengl.util.DemoUtils.createShader;
+import static org.lwjgl.demo.util.IOUtils.ioResourceToByteBuffer;
 import static org.lwjgl.glfw.GLFW.*;
 import static org.lwjgl.opengl.GL33C.*;
 import static org.lwjgl.system.MemoryUtil.*;
 
-import java.io.BufferedInputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.nio.*;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Objects;
 
 import org.joml.Matrix4f;
 import org.joml.Vector3f;
 import org.lwjgl.BufferUtils;
 import org.lwjgl.demo.util.MagicaVoxelLoader;
+import org.lwjgl.demo.util.MagicaVoxelLoader.Swizzle;
 import org.lwjgl.glfw.*;
 import org.lwjgl.opengl.GL;
 import org.lwjgl.opengl.GLUtil;
@@ -203,25 +201,24 @@ public class RayMarchingVolumeTexture {
         v.x = x;
         v.y = y;
         v.z = z;
-        try (InputStream is = Objects.requireNonNull(getSystemResourceAsStream(resource))) {
-            BufferedInputStream bis = new BufferedInputStream(is);
-            new MagicaVoxelLoader().read(bis, new MagicaVoxelLoader.Callback() {
-                public void voxel(int x, int y, int z, byte c) {
-                    v.field[idx(x, z, v.td - 1 - y, v.tw, v.th)] = c;
-                }
-                public void size(int x, int y, int z) {
-                    v.tw = nextPowerOfTwo(x);
-                    v.th = nextPowerOfTwo(z);
-                    v.td = nextPowerOfTwo(y);
-                    v.field = new byte[v.tw * v.th * v.td];
-                    v.w = x;
-                    v.h = z;
-                    v.d = y;
-                }
-                public void paletteMaterial(int i, MagicaVoxelLoader.Material mat) {
+        ByteBuffer vox = ioResourceToByteBuffer(resource, 8192);
+        new MagicaVoxelLoader().read(vox, Swizzle.NONE, new MagicaVoxelLoader.Volume() {
+            public void size(int x, int y, int z) {
+                v.tw = nextPowerOfTwo(x);
+                v.th = nextPowerOfTwo(z);
+                v.td = nextPowerOfTwo(y);
+                v.field = new byte[v.tw * v.th * v.td];
+                v.w = x;
+                v.h = z;
+                v.d = y;
+            }
+            public void voxels(int[] packed, int offset, int count) {
+                for (int i = offset; i < offset + count; i++) {
+                    int p = packed[i], x = p & 0xFF, y = p >>> 8 & 0xFF, z = p >>> 16 & 0xFF;
+                    v.field[idx(x, z, v.td - 1 - y, v.tw, v.th)] = (byte) (p >>> 24);
                 }
-            });
-        }
+            }
+        }, null);
         ByteBuffer bb = BufferUtils.createByteBuffer(v.field.length);
         bb.put(v.field);
         bb.flip();
@@ -13,11 +13,10 @@ import java.io.*;
 import java.lang.Math;
 import java.nio.*;
 import java.util.*;
-import java.util.zip.*;
 
 import org.joml.*;
 import org.lwjgl.*;
-import org.lwjgl.assimp.*;
+import org.lwjgl.demo.util.MeshCache;
 import org.lwjgl.glfw.*;
 import org.lwjgl.opengl.*;
 import org.lwjgl.system.*;
@@ -32,12 +31,10 @@ public class Omni2dShadow {
     private static class Model {
         private List<Mesh> meshes;
 
-        private Model(AIScene scene) {
-            int meshCount = scene.mNumMeshes();
-            PointerBuffer meshesBuffer = scene.mMeshes();
+        private Model(List<MeshCache.Mesh> scene) {
             meshes = new ArrayList<>();
-            for (int i = 0; i < meshCount; ++i)
-                meshes.add(new Mesh(AIMesh.create(meshesBuffer.get(i))));
+            for (MeshCache.Mesh mesh : scene)
+                meshes.add(new Mesh(mesh));
         }
 
         private static class Mesh {
@@ -51,43 +48,28 @@ public class Omni2dShadow {
             private int elementCount;
 
             /**
-             * Build everything from the given {@link AIMesh}.
+             * Build everything from the given {@link MeshCache.Mesh}, uploading its buffers directly.
              * 
              * @param mesh
-             *                 the Assimp {@link AIMesh} object
+             *                 the imported mesh
              */
-            private Mesh(AIMesh mesh) {
+            private Mesh(MeshCache.Mesh mesh) {
                 vao = glGenVertexArrays();
                 glBindVertexArray(vao);
                 vertexArrayBuffer = glGenBuffers();
                 glBindBuffer(GL_ARRAY_BUFFER, vertexArrayBuffer);
-                AIVector3D.Buffer vertices = mesh.mVertices();
-                int verticesBytes = 4 * 3 * vertices.remaining();
-                verticesFB = BufferUtils.createByteBuffer(verticesBytes).asFloatBuffer();
-                memCopy(vertices.address(), memAddress(verticesFB), verticesBytes);
-                nglBufferData(GL_ARRAY_BUFFER, verticesBytes, vertices.address(), GL_STATIC_DRAW);
+                verticesFB = mesh.positions;
+                glBufferData(GL_ARRAY_BUFFER, verticesFB, GL_STATIC_DRAW);
                 glEnableVertexAttribArray(0);
                 glVertexAttribPointer(0, 3, GL_FLOAT, false, 0, 0L);
                 normalArrayBuffer = glGenBuffers();
                 glBindBuffer(GL_ARRAY_BUFFER, normalArrayBuffer);
-                AIVector3D.Buffer normals = mesh.mNormals();
-                int normalsBytes = 4 * 3 * normals.remaining();
-                normalsFB = BufferUtils.createByteBuffer(normalsBytes).asFloatBuffer();
-                memCopy(normals.address(), memAddress(normalsFB), normalsBytes);
-                nglBufferData(GL_ARRAY_BUFFER, normalsBytes, normals.address(), GL_STATIC_DRAW);
+                normalsFB = mesh.normals;
+                glBufferData(GL_ARRAY_BUFFER, normalsFB, GL_STATIC_DRAW);
                 glEnableVertexAttribArray(1);
                 glVertexAttribPointer(1, 3, GL_FLOAT, true, 0, 0L);
-                int faceCount = mesh.mNumFaces();
-                elementCount = faceCount * 3;
-                indicesIB = BufferUtils.createIntBuffer(elementCount);
-                AIFace.Buffer facesBuffer = mesh.mFaces();
-                for (int i = 0; i < faceCount; ++i) {
-                    AIFace face = facesBuffer.get(i);
-                    if (face.mNumIndices() != 3)
-                        throw new IllegalStateException("AIFace.mNumIndices() != 3");
-                    indicesIB.put(face.mIndices());
-                }
-                indicesIB.flip();
+                elementCount = mesh.numIndices;
+                indicesIB = mesh.indices;
                 elementArrayBuffer = glGenBuffers();
                 glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, elementArrayBuffer);
                 glBufferData(GL_ELEMENT_ARRAY_BUFFER, indicesIB, GL_STATIC_DRAW);
@@ -263,24 +245,7 @@ public class Omni2dShadow {
     }
 
     private void loadModel() throws IOException {
-        byte[] bytes = readSingleFileZip("scene.obj.zip");
-        ByteBuffer bb = BufferUtils.createByteBuffer(bytes.length);
-        bb.put(bytes).flip();
-        AIScene scene = Assimp.aiImportFileFromMemory(bb, 0, "obj");
-        model = new Model(scene);
-    }
-
-    private static byte[] readSingleFileZip(String zipResource) throws IOException {
-        ZipInputStream zipStream = new ZipInputStream(Omni2dShadow.class.getResourceAsStream(zipResource));
-        zipStream.getNextEntry();
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        byte[] buffer = new byte[1024];
-        int read = 0;
-        while ((read = zipStream.read(buffer)) > 0) {
-            baos.write(buffer, 0, read);
-        }
-        zipStream.close();
-        return baos.toByteArray();
+        model = new Model(MeshCache.loadScene("org/lwjgl/demo/opengl/shadow/scene.obj.zip", 0));
     }
 
     void createShadowProgram() throws IOException {
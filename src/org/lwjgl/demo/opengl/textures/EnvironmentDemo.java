@@ -13,19 +13,22 @@ import org.lwjgl.opengl.GLUtil;
 import org.lwjgl.system.*;
 import org.joml.Matrix4f;
 import org.joml.Matrix4x3f;
+import org.lwjgl.demo.util.ImageLoader;
+import org.lwjgl.demo.util.ImageLoader.Image;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.FloatBuffer;
 import java.nio.IntBuffer;
+import java.util.concurrent.CompletableFuture;
 
 import static org.lwjgl.opengl.ARBShaderObjects.*;
 import static org.lwjgl.opengl.ARBVertexShader.*;
 import static org.lwjgl.opengl.ARBFragmentShader.*;
+import static org.lwjgl.demo.opengl.util.DemoUtils.texImage2D;
 import static org.lwjgl.demo.util.IOUtils.*;
 import static org.lwjgl.glfw.GLFW.*;
 import static org.lwjgl.opengl.GL11.*;
-import static org.lwjgl.stb.STBImage.*;
 import static org.lwjgl.system.MemoryUtil.*;
 
 /**
@@ -54,6 +57,7 @@ public class EnvironmentDemo {
     Matrix4x3f viewMatrix = new Matrix4x3f();
     Matrix4f invViewProjMatrix = new Matrix4f();
     FloatBuffer matrixBuffer = BufferUtils.createFloatBuffer(16);
+    CompletableFuture<Image> environment;
 
     GLCapabilities caps;
     GLFWKeyCallback keyCallback;
@@ -63,6 +67,11 @@ public class EnvironmentDemo {
     Callback debugProc;
 
     void init() throws IOException {
+        /* Decode the environment map while the window and context are created */
+        ImageLoader imageLoader = new ImageLoader();
+        imageLoader.setComponents(3);
+        environment = imageLoader.load("org/lwjgl/demo/opengl/textures/environment.jpg");
+
         if (!glfwInit())
             throw new IllegalStateException("Unable to initialize GLFW");
 
@@ -200,24 +209,12 @@ public class EnvironmentDemo {
         invViewProjUniform = glGetUniformLocationARB(program, "invViewProj");
     }
 
-    static void createTexture() throws IOException {
+    void createTexture() throws IOException {
         int tex = glGenTextures();
         glBindTexture(GL_TEXTURE_2D, tex);
         glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_LINEAR);
         glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_LINEAR);
-        ByteBuffer imageBuffer;
-        IntBuffer w = BufferUtils.createIntBuffer(1);
-        IntBuffer h = BufferUtils.createIntBuffer(1);
-        IntBuffer comp = BufferUtils.createIntBuffer(1);
-        ByteBuffer image;
-        imageBuffer = ioResourceToByteBuffer("org/lwjgl/demo/opengl/textures/environment.jpg", 8 * 1024);
-        if (!stbi_info_from_memory(imageBuffer, w, h, comp))
-            throw new IOException("Failed to read image information: " + stbi_failure_reason());
-        image = stbi_load_from_memory(imageBuffer, w, h, comp, 3);
-        if (image == null)
-            throw new IOException("Failed to load image: " + stbi_failure_reason());
-        glTexImage2D(GL_TEXTURE_2D, 0, GL_RGB8, w.get(0), h.get(0), 0, GL_RGB, GL_UNSIGNED_BYTE, image);
-        stbi_image_free(image);
+        texImage2D(GL_TEXTURE_2D, ImageLoader.join(environment), GL_RGB8);
     }
 
     void update() {
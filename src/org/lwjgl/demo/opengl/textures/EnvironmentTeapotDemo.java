@@ -6,6 +6,7 @@ package org.lwjgl.demo.opengl.textures;
 
 import org.lwjgl.BufferUtils;
 import org.lwjgl.PointerBuffer;
+import org.lwjgl.demo.util.MeshQuantizer;
 import org.lwjgl.demo.util.WavefrontMeshLoader;
 import org.lwjgl.demo.util.WavefrontMeshLoader.Mesh;
 import org.lwjgl.glfw.*;
@@ -34,6 +35,9 @@ import static org.lwjgl.system.MemoryUtil.*;
 
 /**
  * Just like {@link EnvironmentDemo}, but also adds a reflective teapot.
+ * <p>
+ * The teapot is drawn from 16-bit quantized positions and 8-bit octahedral normals (see {@link MeshQuantizer}), which
+ * are decoded in the vertex shader.
  * 
  * @author Kai Burjack
  */
@@ -52,6 +56,8 @@ public class EnvironmentTeapotDemo {
     int invViewProjUniform;
     int viewProjUniform;
     int cameraPositionUniform;
+    int positionScaleUniform;
+    int positionOffsetUniform;
 
     Matrix4f projectionMatrix = new Matrix4f();
     Matrix4x3f viewMatrix = new Matrix4x3f();
@@ -60,9 +66,11 @@ public class EnvironmentTeapotDemo {
     Vector3f cameraPosition = new Vector3f();
     FloatBuffer matrixBuffer = BufferUtils.createFloatBuffer(16);
     Mesh mesh;
-    int numVertices;
+    int numIndices;
+    int indexType;
     long normalsOffset;
     int teapotVbo;
+    int teapotIbo;
     int fullscreenVbo;
 
     GLCapabilities caps;
@@ -159,16 +167,29 @@ public class EnvironmentTeapotDemo {
     }
 
     void loadMesh() throws IOException {
-        mesh = new WavefrontMeshLoader().loadMesh("org/lwjgl/demo/opengl/models/teapot.obj.zip");
-        this.numVertices = mesh.numVertices;
-        long bufferSize = 4 * (3 + 3) * mesh.numVertices;
-        this.normalsOffset = 4L * 3 * mesh.numVertices;
+        WavefrontMeshLoader loader = new WavefrontMeshLoader();
+        loader.setIndexed(true);
+        mesh = loader.loadMesh("org/lwjgl/demo/opengl/models/teapot.obj.zip");
+        MeshQuantizer.quantize(mesh, MeshQuantizer.NormalFormat.OCT8);
+        this.numIndices = mesh.numIndices;
+        long bufferSize = (2 * 3 + 2) * mesh.numVertices;
+        this.normalsOffset = 2L * 3 * mesh.numVertices;
         this.teapotVbo = glGenBuffersARB();
         glBindBufferARB(GL_ARRAY_BUFFER_ARB, this.teapotVbo);
         glBufferDataARB(GL_ARRAY_BUFFER_ARB, bufferSize, GL_STATIC_DRAW_ARB);
-        glBufferSubDataARB(GL_ARRAY_BUFFER_ARB, 0L, mesh.positions);
-        glBufferSubDataARB(GL_ARRAY_BUFFER_ARB, normalsOffset, mesh.normals);
+        glBufferSubDataARB(GL_ARRAY_BUFFER_ARB, 0L, mesh.quantizedPositions);
+        glBufferSubDataARB(GL_ARRAY_BUFFER_ARB, normalsOffset, mesh.quantizedNormals);
         glBindBufferARB(GL_ARRAY_BUFFER_ARB, 0);
+        this.teapotIbo = glGenBuffersARB();
+        glBindBufferARB(GL_ELEMENT_ARRAY_BUFFER_ARB, this.teapotIbo);
+        if (mesh.shortIndices != null) {
+            glBufferDataARB(GL_ELEMENT_ARRAY_BUFFER_ARB, mesh.shortIndices, GL_STATIC_DRAW_ARB);
+            this.indexType = GL_UNSIGNED_SHORT;
+        } else {
+            glBufferDataARB(GL_ELEMENT_ARRAY_BUFFER_ARB, mesh.indices, GL_STATIC_DRAW_ARB);
+            this.indexType = GL_UNSIGNED_INT;
+        }
+        glBindBufferARB(GL_ELEMENT_ARRAY_BUFFER_ARB, 0);
     }
 
     void createFullScreenQuad() {
@@ -234,6 +255,8 @@ public class EnvironmentTeapotDemo {
         int fshader = createShader("org/lwjgl/demo/opengl/textures/teapot.fs", GL_FRAGMENT_SHADER_ARB);
         glAttachObjectARB(program, vshader);
         glAttachObjectARB(program, fshader);
+        glBindAttribLocationARB(program, 0, "position");
+        glBindAttribLocationARB(program, 1, "octNormal");
         glLinkProgramARB(program);
         int linked = glGetObjectParameteriARB(program, GL_OBJECT_LINK_STATUS_ARB);
         String programLog = glGetInfoLogARB(program);
@@ -246,6 +269,10 @@ public class EnvironmentTeapotDemo {
         glUseProgramObjectARB(program);
         viewProjUniform = glGetUniformLocationARB(program, "viewProj");
         cameraPositionUniform = glGetUniformLocationARB(program, "cameraPosition");
+        positionScaleUniform = glGetUniformLocationARB(program, "positionScale");
+        positionOffsetUniform = glGetUniformLocationARB(program, "positionOffset");
+        glUniform3fARB(positionScaleUniform, mesh.positionScale.x, mesh.positionScale.y, mesh.positionScale.z);
+        glUniform3fARB(positionOffsetUniform, mesh.positionOffset.x, mesh.positionOffset.y, mesh.positionOffset.z);
         this.teapotProgram = program;
     }
 
@@ -298,14 +325,16 @@ public class EnvironmentTeapotDemo {
         /* Render teapot */
         glEnable(GL_DEPTH_TEST);
         glUseProgramObjectARB(teapotProgram);
-        glBindBufferARB(GL_ARRAY_BUFFER_ARB, this.teapotProgram);
-        glEnableClientState(GL_NORMAL_ARRAY);
-        glEnableClientState(GL_VERTEX_ARRAY);
-        glVertexPointer(3, GL_FLOAT, 3 * 4, 0L);
-        glNormalPointer(GL_FLOAT, 3 * 4, normalsOffset);
-        glDrawArrays(GL_TRIANGLES, 0, numVertices);
-        glDisableClientState(GL_VERTEX_ARRAY);
-        glDisableClientState(GL_NORMAL_ARRAY);
+        glBindBufferARB(GL_ARRAY_BUFFER_ARB, this.teapotVbo);
+        glBindBufferARB(GL_ELEMENT_ARRAY_BUFFER_ARB, this.teapotIbo);
+        glEnableVertexAttribArrayARB(0);
+        glEnableVertexAttribArrayARB(1);
+        glVertexAttribPointerARB(0, 3, GL_SHORT, true, 0, 0L);
+        glVertexAttribPointerARB(1, 2, GL_BYTE, true, 0, normalsOffset);
+        glDrawElements(GL_TRIANGLES, numIndices, indexType, 0L);
+        glDisableVertexAttribArrayARB(0);
+        glDisableVertexAttribArrayARB(1);
+        glBindBufferARB(GL_ELEMENT_ARRAY_BUFFER_ARB, 0);
     }
 
     void loop() {
@@ -8,18 +8,23 @@ import org.lwjgl.BufferUtils;
 import org.lwjgl.PointerBuffer;
 import org.lwjgl.glfw.*;
 import org.lwjgl.opengl.GL;
-import org.lwjgl.opengl.GL14;
 import org.lwjgl.opengl.GLCapabilities;
 import org.lwjgl.opengl.GLUtil;
 import org.lwjgl.system.*;
 import org.joml.Matrix4f;
 import org.joml.Matrix4x3f;
 import org.joml.Vector3f;
+import org.lwjgl.demo.util.ImageLoader;
+import org.lwjgl.demo.util.ImageLoader.Image;
+import org.lwjgl.demo.util.ImageLoader.MipFilter;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.FloatBuffer;
 import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 import static org.lwjgl.opengl.ARBShaderObjects.*;
 import static org.lwjgl.opengl.ARBVertexShader.*;
@@ -27,10 +32,10 @@ import static org.lwjgl.opengl.ARBFragmentShader.*;
 import static org.lwjgl.opengl.ARBSeamlessCubeMap.*;
 import static org.lwjgl.opengl.ARBTextureCubeMap.*;
 import static org.lwjgl.opengl.EXTTextureFilterAnisotropic.*;
+import static org.lwjgl.demo.opengl.util.DemoUtils.texImage2D;
 import static org.lwjgl.demo.util.IOUtils.*;
 import static org.lwjgl.glfw.GLFW.*;
 import static org.lwjgl.opengl.GL11.*;
-import static org.lwjgl.stb.STBImage.*;
 import static org.lwjgl.system.MemoryUtil.*;
 
 /**
@@ -62,6 +67,7 @@ public class FullscreenCubemapDemo {
     GLFWFramebufferSizeCallback fbCallback;
     Callback debugProc;
     boolean isCrappyIntel;
+    List<CompletableFuture<Image>> faces = new ArrayList<>();
 
     void init() throws IOException {
         glfwSetErrorCallback(errCallback = new GLFWErrorCallback() {
@@ -80,6 +86,16 @@ public class FullscreenCubemapDemo {
             }
         });
 
+        /* Read the shaders and decode the cubemap faces with their mip levels while the window and context are created */
+        prefetch("org/lwjgl/demo/opengl/textures/cubemap.vs", "org/lwjgl/demo/opengl/textures/cubemap.fs");
+        ImageLoader imageLoader = new ImageLoader();
+        imageLoader.setComponents(3);
+        imageLoader.setSrgb(true);
+        imageLoader.setMipFilter(MipFilter.KAISER);
+        String[] names = { "right", "left", "top", "bottom", "front", "back" };
+        for (int i = 0; i < 6; i++)
+            faces.add(imageLoader.load("org/lwjgl/demo/space_" + names[i] + (i+1) + ".jpg"));
+
         if (!glfwInit())
             throw new IllegalStateException("Unable to initialize GLFW");
 
@@ -213,12 +229,6 @@ public class FullscreenCubemapDemo {
         int tex = glGenTextures();
         glBindTexture(GL_TEXTURE_CUBE_MAP_ARB, tex);
         glTexParameteri(GL_TEXTURE_CUBE_MAP_ARB, GL_TEXTURE_MAG_FILTER, GL_LINEAR);
-        ByteBuffer imageBuffer;
-        IntBuffer w = BufferUtils.createIntBuffer(1);
-        IntBuffer h = BufferUtils.createIntBuffer(1);
-        IntBuffer comp = BufferUtils.createIntBuffer(1);
-        String[] names = { "right", "left", "top", "bottom", "front", "back" };
-        ByteBuffer image;
         if (caps.GL_EXT_texture_filter_anisotropic) {
             float maxAnisotropy = glGetFloat(GL_MAX_TEXTURE_MAX_ANISOTROPY_EXT);
             System.out.println("EXT_texture_filter_anisotropic available: Will use " + (int)maxAnisotropy + "x anisotropic filtering.");
@@ -226,24 +236,10 @@ public class FullscreenCubemapDemo {
         } else {
             System.err.println("EXT_texture_filter_anisotropic unavailable: Distorted light might look too blurry.");
         }
-        if (caps.OpenGL14) {
-            System.out.println("OpenGL 1.4 available: Will use automatic mipmap generation via GL_GENERATE_MIPMAP.");
-            glTexParameteri(GL_TEXTURE_CUBE_MAP_ARB, GL_TEXTURE_MIN_FILTER, GL_LINEAR_MIPMAP_LINEAR);
-            glTexParameteri(GL_TEXTURE_CUBE_MAP_ARB, GL14.GL_GENERATE_MIPMAP, GL_TRUE);
-        } else {
-            System.err.println("OpenGL 1.4 unavailable: Aliasing effects might be visible (texture looks too crisp).");
-            glTexParameteri(GL_TEXTURE_CUBE_MAP_ARB, GL_TEXTURE_MIN_FILTER, GL_LINEAR);
-        }
-        for (int i = 0; i < 6; i++) {
-            imageBuffer = ioResourceToByteBuffer("org/lwjgl/demo/space_" + names[i] + (i+1) + ".jpg", 8 * 1024);
-            if (!stbi_info_from_memory(imageBuffer, w, h, comp))
-                throw new IOException("Failed to read image information: " + stbi_failure_reason());
-            image = stbi_load_from_memory(imageBuffer, w, h, comp, 0);
-            if (image == null)
-                throw new IOException("Failed to load image: " + stbi_failure_reason());
-            glTexImage2D(GL_TEXTURE_CUBE_MAP_POSITIVE_X_ARB + i, 0, GL_RGB8, w.get(0), h.get(0), 0, GL_RGB, GL_UNSIGNED_BYTE, image);
-            stbi_image_free(image);
-        }
+        /* The mip levels were generated on the CPU with an sRGB-correct Kaiser filter */
+        glTexParameteri(GL_TEXTURE_CUBE_MAP_ARB, GL_TEXTURE_MIN_FILTER, GL_LINEAR_MIPMAP_LINEAR);
+        for (int i = 0; i < 6; i++)
+            texImage2D(GL_TEXTURE_CUBE_MAP_POSITIVE_X_ARB + i, ImageLoader.join(faces.get(i)), GL_RGB8);
         if (caps.OpenGL32 || caps.GL_ARB_seamless_cube_map) {
             System.out.println("ARB_seamless_cube_map available: Will use seamless cubemap sampling.");
             glEnable(GL_TEXTURE_CUBE_MAP_SEAMLESS);
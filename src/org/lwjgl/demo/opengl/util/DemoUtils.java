@@ -7,6 +7,9 @@ package org.lwjgl.demo.opengl.util;
 import org.joml.Vector3f;
 import org.lwjgl.BufferUtils;
 import org.lwjgl.PointerBuffer;
+import org.lwjgl.demo.util.ImageLoader;
+import org.lwjgl.opengl.GL;
+import org.lwjgl.opengl.GLCapabilities;
 
 import java.io.*;
 import java.nio.ByteBuffer;
@@ -15,6 +18,8 @@ import java.nio.IntBuffer;
 
 import static org.lwjgl.demo.util.IOUtils.*;
 import static org.lwjgl.opengl.GL20.*;
+import static org.lwjgl.opengl.GL30.GL_RG;
+import static org.lwjgl.opengl.GL33.GL_TEXTURE_SWIZZLE_RGBA;
 import static org.lwjgl.system.MemoryUtil.*;
 
 /**
@@ -166,4 +171,43 @@ public class DemoUtils {
         return shader;
     }
 
+    /**
+     * Upload all levels of the given decoded image to the texture bound to the given target.
+     * <p>
+     * Images with one or two components are uploaded as <code>GL_RED</code> or <code>GL_RG</code> with a texture
+     * swizzle, which turns them into luminance or luminance-alpha when sampling, since core profiles do not have
+     * <code>GL_LUMINANCE</code> and <code>GL_LUMINANCE_ALPHA</code>. Only contexts without texture swizzles fall
+     * back to the legacy formats.
+     *
+     * @param target
+     *            the texture target, such as <code>GL_TEXTURE_2D</code> or a cubemap face
+     * @param image
+     *            the decoded image, see {@link ImageLoader}
+     * @param internalFormat
+     *            the internal format of the texture
+     */
+    public static void texImage2D(int target, ImageLoader.Image image, int internalFormat) {
+        int format = image.components == 3 ? GL_RGB : GL_RGBA;
+        if (image.components <= 2) {
+            GLCapabilities caps = GL.getCapabilities();
+            if (caps.OpenGL33 || caps.GL_ARB_texture_swizzle) {
+                boolean cubeMapFace = target >= GL_TEXTURE_CUBE_MAP_POSITIVE_X
+                        && target <= GL_TEXTURE_CUBE_MAP_NEGATIVE_Z;
+                format = image.components == 1 ? GL_RED : GL_RG;
+                glTexParameteriv(cubeMapFace ? GL_TEXTURE_CUBE_MAP : target, GL_TEXTURE_SWIZZLE_RGBA,
+                        image.components == 1 ? new int[] { GL_RED, GL_RED, GL_RED, GL_ONE }
+                                : new int[] { GL_RED, GL_RED, GL_RED, GL_GREEN });
+            } else {
+                format = image.components == 1 ? GL_LUMINANCE : GL_LUMINANCE_ALPHA;
+            }
+        }
+        int type = image.hdr ? GL_FLOAT : GL_UNSIGNED_BYTE;
+        glPixelStorei(GL_UNPACK_ALIGNMENT, 1);
+        for (int i = 0; i < image.levels.length; i++) {
+            ImageLoader.Level level = image.levels[i];
+            glTexImage2D(target, i, internalFormat, level.width, level.height, 0, format, type, level.data);
+        }
+        glPixelStorei(GL_UNPACK_ALIGNMENT, 4);
+    }
+
 }
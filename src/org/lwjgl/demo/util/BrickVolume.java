@@ -0,0 +1,208 @@
+/*
+ * Copyright LWJGL. All rights reserved.
+ * License terms: https://www.lwjgl.org/license
+ */
+package org.lwjgl.demo.util;
+
+import java.util.Arrays;
+
+import org.joml.Vector3i;
+
+/**
+ * A sparse volume of one byte per voxel, in which zero means empty.
+ * <p>
+ * The volume is divided into bricks of 8x8x8 voxels. A dense top-level map holds for each brick either zero, if all
+ * of its voxels are empty, or one plus the index of the brick in a single slab array, which grows on demand and is
+ * reused after {@link #clear()}. Within a brick, x varies fastest, followed by z and then y.
+ * <p>
+ * Voxels outside of the volume read as empty, so the volume does not need a border for {@link GreedyMeshing},
+ * {@link GreedyMeshingNoAo} or {@link GreedyVoxels}. As a {@link MagicaVoxelLoader.Volume} it can be filled directly
+ * by {@link MagicaVoxelLoader}, tracking the bounds of all non-empty voxels in {@link #min} and {@link #max}.
+ *
+ * @author Kai Burjack
+ */
+public class BrickVolume implements MagicaVoxelLoader.Volume {
+
+    public static final int BRICK_SHIFT = 3;
+    public static final int BRICK_SIZE = 1 << BRICK_SHIFT;
+    /** The number of voxels of a brick */
+    public static final int BRICK_VOXELS = BRICK_SIZE * BRICK_SIZE * BRICK_SIZE;
+
+    private static final int MASK = BRICK_SIZE - 1;
+
+    /**
+     * Receives the non-empty bricks of a volume.
+     */
+    @FunctionalInterface
+    public interface BrickConsumer {
+        /**
+         * Called for a brick whose minimum corner is at the given voxel coordinates.
+         *
+         * @param voxels
+         *            the slab array holding the {@link BrickVolume#BRICK_VOXELS} voxels of the brick, which may be
+         *            modified
+         * @param offset
+         *            the index of the first voxel of the brick in <code>voxels</code>
+         */
+        void brick(int x, int y, int z, byte[] voxels, int offset);
+    }
+
+    public int width, height, depth;
+    public final Vector3i min = new Vector3i(Integer.MAX_VALUE);
+    public final Vector3i max = new Vector3i(Integer.MIN_VALUE);
+    private int bricksX, bricksY, bricksZ;
+    private int[] map = new int[0];
+    private byte[] slab = new byte[0];
+    private int numBricks;
+
+    /**
+     * Create an empty volume, which is sized by {@link #size(int, int, int)}.
+     */
+    public BrickVolume() {
+    }
+
+    public BrickVolume(int width, int height, int depth) {
+        size(width, height, depth);
+    }
+
+    /**
+     * Set the size of the volume, keeping all voxels inside of the new size at their coordinates.
+     * <p>
+     * Like {@link MagicaVoxelLoader.DenseVolume}, this does not remove any voxels, so that
+     * {@link MagicaVoxelLoader#read(java.nio.ByteBuffer, MagicaVoxelLoader.Swizzle, MagicaVoxelLoader.Volume,
+     * MagicaVoxelLoader.Material[]) read} accumulates all models of a file. Use {@link #clear()} to start over.
+     */
+    public void size(int x, int y, int z) {
+        if (x < 0 || y < 0 || z < 0)
+            throw new IllegalArgumentException("size");
+        int bx = x + MASK >>> BRICK_SHIFT, by = y + MASK >>> BRICK_SHIFT, bz = z + MASK >>> BRICK_SHIFT;
+        if (bx != bricksX || by != bricksY || bz != bricksZ) {
+            int[] newMap = new int[bx * by * bz];
+            for (int j = 0; j < Math.min(by, bricksY); j++)
+                for (int k = 0; k < Math.min(bz, bricksZ); k++)
+                    for (int i = 0; i < Math.min(bx, bricksX); i++)
+                        newMap[i + bx * (k + bz * j)] = map[i + bricksX * (k + bricksZ * j)];
+            map = newMap;
+            bricksX = bx;
+            bricksY = by;
+            bricksZ = bz;
+        }
+        if (x < width || y < height || z < depth)
+            trim(x, y, z);
+        width = x;
+        height = y;
+        depth = z;
+    }
+
+    /**
+     * Empty the voxels outside of the given size in the bricks at the border of the volume, so that
+     * {@link #forEachBrick(BrickConsumer)} does not see voxels outside of the volume.
+     */
+    private void trim(int x, int y, int z) {
+        for (int j = 0, i = 0; j < bricksY; j++)
+            for (int k = 0; k < bricksZ; k++)
+                for (int l = 0; l < bricksX; l++, i++) {
+                    int b = map[i];
+                    if (b == 0)
+                        continue;
+                    int ox = l << BRICK_SHIFT, oy = j << BRICK_SHIFT, oz = k << BRICK_SHIFT;
+                    if (ox + BRICK_SIZE <= x && oy + BRICK_SIZE <= y && oz + BRICK_SIZE <= z)
+                        continue;
+                    int base = (b - 1) * BRICK_VOXELS;
+                    for (int v = 0; v < BRICK_VOXELS; v++)
+                        if (ox + (v & MASK) >= x || oy + (v >>> 2 * BRICK_SHIFT) >= y
+                                || oz + (v >>> BRICK_SHIFT & MASK) >= z)
+                            slab[base + v] = 0;
+                }
+    }
+
+    /**
+     * Remove all voxels, keeping the slab for reuse.
+     */
+    public void clear() {
+        Arrays.fill(map, 0);
+        Arrays.fill(slab, 0, numBricks * BRICK_VOXELS, (byte) 0);
+        numBricks = 0;
+        min.set(Integer.MAX_VALUE);
+        max.set(Integer.MIN_VALUE);
+    }
+
+    /**
+     * Return the number of allocated bricks.
+     */
+    public int numBricks() {
+        return numBricks;
+    }
+
+    private int brick(int x, int y, int z) {
+        return (x >>> BRICK_SHIFT) + bricksX * ((z >>> BRICK_SHIFT) + bricksZ * (y >>> BRICK_SHIFT));
+    }
+
+    private static int offset(int x, int y, int z) {
+        return (y & MASK) << 2 * BRICK_SHIFT | (z & MASK) << BRICK_SHIFT | x & MASK;
+    }
+
+    /**
+     * Return the voxel at the given coordinates, or zero if it is empty or outside of the volume.
+     */
+    public byte get(int x, int y, int z) {
+        if ((x | y | z) < 0 || x >= width || y >= height || z >= depth)
+            return 0;
+        int b = map[brick(x, y, z)];
+        return b == 0 ? 0 : slab[(b - 1) * BRICK_VOXELS + offset(x, y, z)];
+    }
+
+    /**
+     * Set the voxel at the given coordinates, allocating its brick if necessary.
+     * <p>
+     * This does not update {@link #min} and {@link #max}.
+     */
+    public void set(int x, int y, int z, byte v) {
+        if ((x | y | z) < 0 || x >= width || y >= height || z >= depth)
+            throw new IllegalArgumentException("position");
+        int i = brick(x, y, z), b = map[i];
+        if (b == 0) {
+            if (v == 0)
+                return;
+            b = map[i] = allocateBrick();
+        }
+        slab[(b - 1) * BRICK_VOXELS + offset(x, y, z)] = v;
+    }
+
+    private int allocateBrick() {
+        if ((numBricks + 1) * BRICK_VOXELS > slab.length)
+            slab = Arrays.copyOf(slab, Math.max(2 * slab.length, 64 * BRICK_VOXELS));
+        return ++numBricks;
+    }
+
+    public void voxels(int[] packed, int offset, int count) {
+        int minX = min.x, minY = min.y, minZ = min.z, maxX = max.x, maxY = max.y, maxZ = max.z;
+        for (int i = offset; i < offset + count; i++) {
+            int v = packed[i], x = v & 0xFF, y = v >>> 8 & 0xFF, z = v >>> 16 & 0xFF;
+            set(x, y, z, (byte) (v >>> 24));
+            minX = minX < x ? minX : x;
+            minY = minY < y ? minY : y;
+            minZ = minZ < z ? minZ : z;
+            maxX = maxX > x ? maxX : x;
+            maxY = maxY > y ? maxY : y;
+            maxZ = maxZ > z ? maxZ : z;
+        }
+        min.set(minX, minY, minZ);
+        max.set(maxX, maxY, maxZ);
+    }
+
+    /**
+     * Hand all allocated bricks to the given consumer in the order of the top-level map, with x varying fastest,
+     * followed by z and then y.
+     */
+    public void forEachBrick(BrickConsumer consumer) {
+        for (int by = 0, i = 0; by < bricksY; by++)
+            for (int bz = 0; bz < bricksZ; bz++)
+                for (int bx = 0; bx < bricksX; bx++, i++) {
+                    int b = map[i];
+                    if (b != 0)
+                        consumer.brick(bx << BRICK_SHIFT, by << BRICK_SHIFT, bz << BRICK_SHIFT, slab,
+                                (b - 1) * BRICK_VOXELS);
+                }
+    }
+}
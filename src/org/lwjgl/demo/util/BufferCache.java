@@ -0,0 +1,238 @@
+/*
+ * Copyright LWJGL. All rights reserved.
+ * License terms: https://www.lwjgl.org/license
+ */
+package org.lwjgl.demo.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Caches buffers which are expensive to compute from some input, such as the
+ * serialized nodes of an acceleration structure, in a versioned binary file.
+ * <p>
+ * Each file holds a key which is a hash of the inputs and build parameters
+ * (see {@link Key}). When the key matches, {@link #load(String, long)} simply
+ * memory-maps the file and returns its buffers, which can be uploaded to
+ * OpenGL buffer objects directly.
+ * <p>
+ * Files are written to the directory given by the system property
+ * <code>lwjgl.demo.cacheDir</code>, which defaults to
+ * <code>lwjgl3-demos</code> in the temporary directory. Caching can be
+ * disabled with <code>-Dlwjgl.demo.noCache=true</code>.
+ *
+ * @author Kai Burjack
+ */
+public class BufferCache {
+
+    /**
+     * The version of the file format. Files with another version are ignored.
+     */
+    public static final int VERSION = 1;
+
+    private static final int MAGIC = 0x4C574243; // "LWBC"
+    private static final int HEADER_SIZE = 24;
+    private static final int ALIGNMENT = 16;
+
+    private static final boolean ENABLED = !Boolean.getBoolean("lwjgl.demo.noCache");
+    private static final Path DIRECTORY = Paths.get(System.getProperty("lwjgl.demo.cacheDir",
+            Paths.get(System.getProperty("java.io.tmpdir"), "lwjgl3-demos").toString()));
+
+    /**
+     * Builds a 64-bit hash of the inputs and parameters of a cached computation.
+     * <p>
+     * Include everything the cached buffers depend on, including a version of
+     * the code producing them, so that changes to it invalidate old files.
+     */
+    public static class Key {
+        private long h = 0x27D4EB2F165667C5L;
+
+        public Key put(long v) {
+            h = Long.rotateLeft(h ^ v * 0x9E3779B97F4A7C15L, 29) * 0xC2B2AE3D27D4EB4FL + 0x165667B19E3779F9L;
+            return this;
+        }
+
+        public Key put(int v) {
+            return put((long) v);
+        }
+
+        public Key put(float v) {
+            return put((long) Float.floatToRawIntBits(v));
+        }
+
+        public Key put(String s) {
+            put(s.length());
+            for (int i = 0; i < s.length(); i++)
+                put((long) s.charAt(i));
+            return this;
+        }
+
+        /**
+         * Hash the remaining elements of the given buffer without changing its
+         * position.
+         */
+        public Key put(FloatBuffer buffer) {
+            int p = buffer.position(), n = buffer.limit();
+            put(n - p);
+            for (int i = p; i < n; i++)
+                put((long) Float.floatToRawIntBits(buffer.get(i)));
+            return this;
+        }
+
+        /**
+         * Hash the remaining elements of the given buffer without changing its
+         * position.
+         */
+        public Key put(IntBuffer buffer) {
+            int p = buffer.position(), n = buffer.limit();
+            put(n - p);
+            for (int i = p; i < n; i++)
+                put((long) buffer.get(i));
+            return this;
+        }
+
+        /**
+         * Hash the remaining bytes of the given buffer without changing its
+         * position, eight bytes at a time.
+         */
+        public Key put(ByteBuffer buffer) {
+            ByteBuffer b = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+            int p = b.position(), n = b.limit();
+            put(n - p);
+            for (; p + 8 <= n; p += 8)
+                put(b.getLong(p));
+            long tail = 0L;
+            for (int shift = 0; p < n; p++, shift += 8)
+                tail |= (b.get(p) & 0xFFL) << shift;
+            return put(tail);
+        }
+
+        public long get() {
+            long k = h;
+            k ^= k >>> 33;
+            k *= 0xFF51AFD7ED558CCDL;
+            k ^= k >>> 33;
+            k *= 0xC4CEB9FE1A85EC53L;
+            k ^= k >>> 33;
+            return k;
+        }
+    }
+
+    private BufferCache() {
+    }
+
+    private static Path file(String name) {
+        return DIRECTORY.resolve(name + ".bin");
+    }
+
+    /**
+     * Load the buffers stored under the given name if they were computed from
+     * inputs with the given key.
+     *
+     * @param name
+     *            the name of the cache file
+     * @param key
+     *            the hash of the inputs, see {@link Key}
+     * @return the memory-mapped buffers in native byte order, or
+     *         <code>null</code> if there is no valid cache file for the key
+     */
+    public static ByteBuffer[] load(String name, long key) {
+        if (!ENABLED)
+            return null;
+        Path path = file(name);
+        if (!Files.isRegularFile(path))
+            return null;
+        try (FileChannel fc = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer file = fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size()).order(ByteOrder.nativeOrder());
+            if (file.remaining() < HEADER_SIZE || file.getInt(0) != MAGIC || file.getInt(4) != VERSION
+                    || file.getLong(8) != key)
+                return null;
+            int count = file.getInt(16);
+            if (count < 0 || HEADER_SIZE + 8L * count > file.remaining())
+                return null;
+            ByteBuffer[] buffers = new ByteBuffer[count];
+            long offset = align(HEADER_SIZE + 8L * count);
+            for (int i = 0; i < count; i++) {
+                long size = file.getLong(HEADER_SIZE + 8 * i);
+                if (size < 0 || offset + size > file.capacity())
+                    return null;
+                ByteBuffer b = file.duplicate();
+                b.limit((int) (offset + size)).position((int) offset);
+                buffers[i] = b.slice().order(ByteOrder.nativeOrder());
+                offset = align(offset + size);
+            }
+            return buffers;
+        } catch (IOException e) {
+            System.err.println("Could not read cache file " + path + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Store the remaining bytes of the given buffers under the given name,
+     * replacing any previous file with that name.
+     * <p>
+     * Failures are reported but not thrown, since the cache is only an
+     * optimization.
+     *
+     * @param name
+     *            the name of the cache file
+     * @param key
+     *            the hash of the inputs, see {@link Key}
+     * @param buffers
+     *            the buffers to store
+     */
+    public static void store(String name, long key, ByteBuffer... buffers) {
+        if (!ENABLED)
+            return;
+        Path path = file(name);
+        Path tmp = DIRECTORY.resolve(name + ".tmp");
+        try {
+            Files.createDirectories(DIRECTORY);
+            try (FileChannel fc = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                int headerSize = (int) align(HEADER_SIZE + 8L * buffers.length);
+                ByteBuffer header = ByteBuffer.allocate(headerSize).order(ByteOrder.nativeOrder());
+                header.putInt(MAGIC).putInt(VERSION).putLong(key).putInt(buffers.length).putInt(0);
+                for (ByteBuffer b : buffers)
+                    header.putLong(b.remaining());
+                header.clear();
+                write(fc, header);
+                ByteBuffer padding = ByteBuffer.allocate(ALIGNMENT);
+                for (ByteBuffer b : buffers) {
+                    int size = b.remaining();
+                    write(fc, b.duplicate());
+                    padding.clear().limit((int) (align(size) - size));
+                    write(fc, padding);
+                }
+            }
+            try {
+                Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            System.err.println("Could not write cache file " + path + ": " + e.getMessage());
+        }
+    }
+
+    private static void write(FileChannel fc, ByteBuffer b) throws IOException {
+        while (b.hasRemaining())
+            fc.write(b);
+    }
+
+    private static long align(long v) {
+        return v + ALIGNMENT - 1 & -ALIGNMENT;
+    }
+
+}
@@ -0,0 +1,18 @@
+/*  
+ * Copyright LWJGL. All rights reserved.    
+ * License terms: https://www.lwjgl.org/license 
+ */
+package org.lwjgl.demo.util;
+
+/**
+ * Provides the face connectivity of chunks for {@link ChunkIterator}.
+ * 
+ * @author Kai Burjack
+ */
+public interface ChunkConnectivity {
+    /**
+     * @return the connectivity of the chunk <code>(x, y, z)</code> as computed by
+     *         {@link FaceConnectivity#computeFaceToFaceConnectivity(byte[])}
+     */
+    int connectivity(int x, int y, int z);
+}
@@ -6,47 +6,35 @@ package org.lwjgl.demo.util;
 
 import static java.lang.Math.*;
 import static org.lwjgl.demo.util.ChunkIteratorVisitor.*;
+import static org.lwjgl.demo.util.FaceConnectivity.*;
 
-import java.util.BitSet;
-import java.util.PriorityQueue;
+import java.util.Arrays;
 
 import org.joml.*;
 
 /**
  * Iterates over chunk indices in front-to-back ordering.
+ * <p>
+ * The priority queue is a binary min-heap over chunks packed into an <code>int</code> (8 bits each
+ * for x, y and z and the entry face in the top 8 bits) with their squared distances as
+ * <code>float</code> keys in a parallel array. Visited chunks are marked with the current
+ * generation number, so nothing needs to be cleared between iterations. After the heap has grown to
+ * its working size, an iteration does not allocate anything.
  * 
  * @author Kai Burjack
  */
 public class ChunkIterator {
     private final int w, h, d;
     private final FrustumIntersection fi = new FrustumIntersection();
-    private final BitSet visited;
-    private final PriorityQueue<Chunk> queue = new PriorityQueue<>(1024);
+    private final int[] visited;
+    private int generation;
+    private int[] heapChunks = new int[1024];
+    private float[] heapKeys = new float[1024];
+    private int heapSize;
     private final Matrix4f vp = new Matrix4f();
+    private final Vector3f forward = new Vector3f();
     private float ox, oy, oz;
 
-    private class Chunk implements Comparable<Chunk> {
-        float d;
-        byte x, y, z;
-
-        Chunk(byte x, byte y, byte z) {
-            this.d = distance2(x, y, z);
-            this.x = x;
-            this.y = y;
-            this.z = z;
-        }
-
-        @Override
-        public int compareTo(Chunk o) {
-            return Float.compare(d, o.d);
-        }
-
-        @Override
-        public String toString() {
-            return "Chunk [x=" + x + ", y=" + y + ", z=" + z + "]";
-        }
-    }
-
     public ChunkIterator(int w, int h, int d) {
         if (w < 1 || w > 256)
             throw new IllegalArgumentException("w");
@@ -57,7 +45,7 @@ public class ChunkIterator {
         this.w = w;
         this.h = h;
         this.d = d;
-        this.visited = new BitSet(w * h * d);
+        this.visited = new int[w * h * d];
     }
 
     private float distance2(int x1, int y1, int z1) {
@@ -66,11 +54,11 @@ public class ChunkIterator {
     }
 
     private void remember(int x, int y, int z) {
-        visited.set(x + w * (y + h * z));
+        visited[x + w * (y + h * z)] = generation;
     }
 
     private boolean has(int x, int y, int z) {
-        return visited.get(x + w * (y + h * z));
+        return visited[x + w * (y + h * z)] == generation;
     }
 
     public boolean visible(int x, int y, int z) {
@@ -85,41 +73,133 @@ public class ChunkIterator {
      *                 returns <code>true</code>
      */
     public void iterateFrontToBack(Vector3f rp, Quaternionf view, Matrix4f proj, ChunkIteratorVisitor consumer) {
+        iterateFrontToBack(rp, view, proj, null, consumer);
+    }
+
+    /**
+     * Like {@link #iterateFrontToBack(Vector3f, Quaternionf, Matrix4f, ChunkIteratorVisitor)} but
+     * additionally performs "cave culling" when <code>connectivity</code> is not <code>null</code>.
+     * <p>
+     * A chunk is then only left through a face that is connected to the face through which the chunk
+     * was entered, and the traversal only ever moves away from the start chunk. So, chunks which are
+     * not reachable from the start chunk through empty space are never visited.
+     * <p>
+     * Idea from: https://tomcc.github.io/2014/08/31/visibility-1.html
+     * 
+     * @param rp           position relative to the chunk's origin
+     * @param view         view orientation
+     * @param proj         projection matrix
+     * @param connectivity the face connectivity of each chunk (may be <code>null</code>)
+     * @param consumer     consumes chunk indices; iteration continues as long as it returns
+     *                     <code>true</code>
+     */
+    public void iterateFrontToBack(Vector3f rp, Quaternionf view, Matrix4f proj, ChunkConnectivity connectivity, ChunkIteratorVisitor consumer) {
         ox = min(max(rp.x, 0.0f), w) - 0.5f;
         oy = min(max(rp.y, 0.0f), h) - 0.5f;
         oz = min(max(rp.z, 0.0f), d) - 0.5f;
-        Vector3f forward = view.positiveZ(new Vector3f()).negate();
+        int sx = max((int) ox, 0), sy = max((int) oy, 0), sz = max((int) oz, 0);
+        view.positiveZ(forward).negate();
         fi.set(vp.set(proj).rotate(view).translate(-rp.x, -rp.y, -rp.z));
-        add((int) ox, (int) oy, (int) oz);
+        nextGeneration();
+        add(sx, sy, sz, -1);
         double minD = Double.NaN;
-        loop: while (!queue.isEmpty()) {
-            Chunk c = queue.remove();
-            if (c.d < minD)
+        loop: while (heapSize > 0) {
+            float cd = heapKeys[0];
+            int c = poll();
+            int cx = c & 0xFF, cy = c >>> 8 & 0xFF, cz = c >>> 16 & 0xFF, face = c >> 24;
+            if (cd < minD)
                 continue;
-            minD = c.d;
-            int r = consumer.visit(c.x, c.y, c.z, c.d);
+            minD = cd;
+            int r = consumer.visit(cx, cy, cz, cd);
             switch (r) {
             case ABORT: break loop;
             case CANCEL: continue;
             }
-            if (c.x < w - 1 && forward.x >= 0 && !has(c.x + 1, c.y, c.z) && visible(c.x + 1, c.y, c.z))
-                add(c.x + 1, c.y, c.z);
-            if (c.x > 0 && forward.x <= 0 && !has(c.x - 1, c.y, c.z) && visible(c.x - 1, c.y, c.z))
-                add(c.x - 1, c.y, c.z);
-            if (c.y < h - 1 && forward.y >= 0 && !has(c.x, c.y + 1, c.z) && visible(c.x, c.y + 1, c.z))
-                add(c.x, c.y + 1, c.z);
-            if (c.y > 0 && forward.y <= 0 && !has(c.x, c.y - 1, c.z) && visible(c.x, c.y - 1, c.z))
-                add(c.x, c.y - 1, c.z);
-            if (c.z < d - 1 && forward.z >= 0 && !has(c.x, c.y, c.z + 1) && visible(c.x, c.y, c.z + 1))
-                add(c.x, c.y, c.z + 1);
-            if (c.z > 0 && forward.z <= 0 && !has(c.x, c.y, c.z - 1) && visible(c.x, c.y, c.z - 1))
-                add(c.x, c.y, c.z - 1);
+            boolean px, nx, py, ny, pz, nz;
+            int conn = ALL_CONNECTED;
+            if (connectivity != null) {
+                /* never move back towards the start chunk */
+                px = cx >= sx; nx = cx <= sx;
+                py = cy >= sy; ny = cy <= sy;
+                pz = cz >= sz; nz = cz <= sz;
+                if (face >= 0)
+                    conn = connectivity.connectivity(cx, cy, cz);
+            } else {
+                px = forward.x >= 0; nx = forward.x <= 0;
+                py = forward.y >= 0; ny = forward.y <= 0;
+                pz = forward.z >= 0; nz = forward.z <= 0;
+            }
+            if (cx < w - 1 && px && exits(face, conn, POS_X) && !has(cx + 1, cy, cz) && visible(cx + 1, cy, cz))
+                add(cx + 1, cy, cz, NEG_X);
+            if (cx > 0 && nx && exits(face, conn, NEG_X) && !has(cx - 1, cy, cz) && visible(cx - 1, cy, cz))
+                add(cx - 1, cy, cz, POS_X);
+            if (cy < h - 1 && py && exits(face, conn, POS_Y) && !has(cx, cy + 1, cz) && visible(cx, cy + 1, cz))
+                add(cx, cy + 1, cz, NEG_Y);
+            if (cy > 0 && ny && exits(face, conn, NEG_Y) && !has(cx, cy - 1, cz) && visible(cx, cy - 1, cz))
+                add(cx, cy - 1, cz, POS_Y);
+            if (cz < d - 1 && pz && exits(face, conn, POS_Z) && !has(cx, cy, cz + 1) && visible(cx, cy, cz + 1))
+                add(cx, cy, cz + 1, NEG_Z);
+            if (cz > 0 && nz && exits(face, conn, NEG_Z) && !has(cx, cy, cz - 1) && visible(cx, cy, cz - 1))
+                add(cx, cy, cz - 1, POS_Z);
         }
-        queue.clear();
+        heapSize = 0;
     }
 
-    private void add(int x, int y, int z) {
+    private void nextGeneration() {
+        if (++generation == 0) {
+            /* wrapped around, so old stamps could collide with new generations */
+            Arrays.fill(visited, 0);
+            generation = 1;
+        }
+    }
+
+    private static boolean exits(int entryFace, int connectivity, int face) {
+        return entryFace < 0 || connected(connectivity, entryFace, face);
+    }
+
+    private void add(int x, int y, int z, int face) {
         remember(x, y, z);
-        queue.add(new Chunk((byte) x, (byte) y, (byte) z));
+        offer(x | y << 8 | z << 16 | face << 24, distance2(x, y, z));
+    }
+
+    private void offer(int chunk, float key) {
+        if (heapSize == heapChunks.length) {
+            heapChunks = Arrays.copyOf(heapChunks, heapSize << 1);
+            heapKeys = Arrays.copyOf(heapKeys, heapSize << 1);
+        }
+        /* sift up */
+        int i = heapSize++;
+        while (i > 0) {
+            int parent = i - 1 >>> 1;
+            if (heapKeys[parent] <= key)
+                break;
+            heapChunks[i] = heapChunks[parent];
+            heapKeys[i] = heapKeys[parent];
+            i = parent;
+        }
+        heapChunks[i] = chunk;
+        heapKeys[i] = key;
+    }
+
+    private int poll() {
+        int result = heapChunks[0];
+        int n = --heapSize;
+        int chunk = heapChunks[n];
+        float key = heapKeys[n];
+        /* sift down */
+        int i = 0, half = n >>> 1;
+        while (i < half) {
+            int child = (i << 1) + 1, right = child + 1;
+            if (right < n && heapKeys[right] < heapKeys[child])
+                child = right;
+            if (key <= heapKeys[child])
+                break;
+            heapChunks[i] = heapChunks[child];
+            heapKeys[i] = heapKeys[child];
+            i = child;
+        }
+        heapChunks[i] = chunk;
+        heapKeys[i] = key;
+        return result;
     }
 }
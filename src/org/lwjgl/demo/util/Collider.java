@@ -8,6 +8,8 @@ import org.joml.Vector3f;
 import org.lwjgl.demo.util.KDTreei.Voxel;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.stream.IntStream;
 
 import static java.lang.Float.*;
 import static java.lang.Math.max;
@@ -32,12 +34,67 @@ public class Collider {
     private static final int Y = 1;
     private static final int Z = 2;
 
+    /**
+     * How much the box of a kd-tree query is enlarged, so that the candidates of
+     * a {@link Body} can be reused over the next frames while it moves.
+     */
+    private static final float CANDIDATE_MARGIN = 1.0f;
+
+    /**
+     * Number of bodies resolved by a single task when resolving in parallel.
+     */
+    private static final int BATCH_SIZE = 32;
+
+    /**
+     * Per-thread instances used when resolving batches of bodies in parallel.
+     */
+    private static final ThreadLocal<Collider> WORKERS = ThreadLocal.withInitial(Collider::new);
+
     /* Scratch/temporary memory */
     private final ArrayList<Voxel> candidates = new ArrayList<>(32);
     private final ArrayList<Contact> contacts = new ArrayList<>(32);
+    private final ArrayList<Contact> contactPool = new ArrayList<>(32);
+    private int pooledContacts;
+    private long[] layers = new long[32];
     private final Vector3f _tmp0 = new Vector3f();
     private final Vector3f _tmp1 = new Vector3f();
 
+    /* Sweep-and-prune state kept between calls to exploit temporal coherence */
+    private int[] order = new int[0];
+    private int orderCount;
+    private int[] pairs = new int[64];
+    private int pairCount;
+
+    /**
+     * A moving box to be resolved against a voxel kd-tree with
+     * {@link Collider#handleCollisionsAabbAabbs(Body[], int, KDTreei, boolean)}.
+     * <p>
+     * A body remembers the voxels found by its last kd-tree query and reuses them
+     * as long as its swept box stays within the (slightly enlarged) box of that
+     * query and the tree is the same.
+     */
+    public static class Body {
+        /** The bounds of the body at the start of the step */
+        public final AABBf box = new AABBf();
+        /** The desired displacement of the body during the step */
+        public final Vector3f v = new Vector3f();
+        /** The displacement of the body after resolving collisions with voxels */
+        public final Vector3f delta = new Vector3f();
+
+        private final ArrayList<Voxel> candidates = new ArrayList<>(32);
+        private KDTreei<Voxel> candidatesTree;
+        private float qMinX, qMinY, qMinZ, qMaxX, qMaxY, qMaxZ;
+
+        /**
+         * Forget the cached kd-tree candidates, e.g. after the voxels of the
+         * tree have been modified in place.
+         */
+        public void invalidate() {
+            candidatesTree = null;
+            candidates.clear();
+        }
+    }
+
     private static class Contact implements Comparable<Contact> {
         public Vector3f n = new Vector3f();
         public float t;
@@ -56,7 +113,7 @@ public class Collider {
 
     public void handleCollisionAabbAabbs(AABBf box, Vector3f v, KDTreei<Voxel> tree, Vector3f delta) {
         float minX = box.minX + min(0.0f, v.x), minY = box.minY + min(0.0f, v.y), minZ = box.minZ + min(0.0f, v.z);
-        float maxX = box.maxX + max(0.0f, v.x), maxY = box.maxY + max(0.0f, v.x), maxZ = box.maxZ + max(0.0f, v.z);
+        float maxX = box.maxX + max(0.0f, v.x), maxY = box.maxY + max(0.0f, v.y), maxZ = box.maxZ + max(0.0f, v.z);
         candidates.clear();
         tree.intersects(minX, minY, minZ, maxX, maxY, maxZ, candidates);
         if (candidates.isEmpty()) {
@@ -66,26 +123,214 @@ public class Collider {
         handleCollisionAabbAabbsCntd(box, v, delta);
     }
 
-    private void removeImplausibleContacts() {
-        for (int i = 0; i < contacts.size(); i++) {
-            Contact c0 = contacts.get(i);
-            int k = c0.n.maxComponent();
-            for (int j = 0; j < contacts.size(); j++) {
-                Contact c1 = contacts.get(j);
-                if (c1.n.get(k) != 0.0f || ((c0.n.get(k) > 0.0f || c1.vx.min(k) != c0.vx.min(k))
-                        && (c0.n.get(k) < 0.0f || c1.vx.max(k) != c0.vx.max(k))))
+    /**
+     * Resolve the first <code>count</code> bodies against the given voxel tree,
+     * storing the resolved displacement of each body in {@link Body#delta}, and
+     * then find all pairs of bodies whose boxes may touch while moving by their
+     * resolved displacements.
+     * <p>
+     * Bodies are resolved independently of each other. Use {@link #getPairs()} to
+     * respond to contacts between bodies.
+     * 
+     * @param bodies
+     *            the bodies
+     * @param count
+     *            the number of bodies to resolve
+     * @param tree
+     *            the voxels to collide with
+     * @param parallel
+     *            whether to resolve batches of bodies in parallel using the common
+     *            fork-join pool
+     * @return the number of potentially colliding pairs of bodies
+     */
+    public int handleCollisionsAabbAabbs(Body[] bodies, int count, KDTreei<Voxel> tree, boolean parallel) {
+        if (count < 0 || count > bodies.length)
+            throw new IllegalArgumentException("count");
+        if (parallel && count > BATCH_SIZE) {
+            IntStream.range(0, (count + BATCH_SIZE - 1) / BATCH_SIZE).parallel().forEach(batch -> {
+                Collider worker = WORKERS.get();
+                for (int i = batch * BATCH_SIZE, end = min(count, i + BATCH_SIZE); i < end; i++)
+                    worker.handleCollisionAabbAabbs(bodies[i], tree);
+            });
+        } else {
+            for (int i = 0; i < count; i++)
+                handleCollisionAabbAabbs(bodies[i], tree);
+        }
+        return broadphase(bodies, count);
+    }
+
+    /**
+     * Resolve a single body against the given voxel tree, reusing the kd-tree
+     * candidates of the body from previous calls when possible.
+     * 
+     * @param body
+     *            the body to resolve
+     * @param tree
+     *            the voxels to collide with
+     */
+    public void handleCollisionAabbAabbs(Body body, KDTreei<Voxel> tree) {
+        AABBf box = body.box;
+        Vector3f v = body.v;
+        float minX = box.minX + min(0.0f, v.x), minY = box.minY + min(0.0f, v.y), minZ = box.minZ + min(0.0f, v.z);
+        float maxX = box.maxX + max(0.0f, v.x), maxY = box.maxY + max(0.0f, v.y), maxZ = box.maxZ + max(0.0f, v.z);
+        if (body.candidatesTree != tree || minX < body.qMinX || minY < body.qMinY || minZ < body.qMinZ
+                || maxX > body.qMaxX || maxY > body.qMaxY || maxZ > body.qMaxZ) {
+            body.candidates.clear();
+            body.qMinX = minX - CANDIDATE_MARGIN;
+            body.qMinY = minY - CANDIDATE_MARGIN;
+            body.qMinZ = minZ - CANDIDATE_MARGIN;
+            body.qMaxX = maxX + CANDIDATE_MARGIN;
+            body.qMaxY = maxY + CANDIDATE_MARGIN;
+            body.qMaxZ = maxZ + CANDIDATE_MARGIN;
+            tree.intersects(body.qMinX, body.qMinY, body.qMinZ, body.qMaxX, body.qMaxY, body.qMaxZ, body.candidates);
+            body.candidatesTree = tree;
+        }
+        /* Narrow the cached candidates down to the ones actually touched by the swept box */
+        candidates.clear();
+        for (int i = 0, n = body.candidates.size(); i < n; i++) {
+            Voxel c = body.candidates.get(i);
+            if (c.intersects(minX, minY, minZ, maxX, maxY, maxZ))
+                candidates.add(c);
+        }
+        if (candidates.isEmpty()) {
+            body.delta.set(v);
+            return;
+        }
+        handleCollisionAabbAabbsCntd(box, v, body.delta);
+    }
+
+    /**
+     * Sweep-and-prune over the x axis of the boxes of all bodies swept by their
+     * resolved displacements.
+     * <p>
+     * The order of the bodies along x is kept between calls and updated with an
+     * insertion sort, which is linear when bodies only move a little each step.
+     */
+    private int broadphase(Body[] bodies, int count) {
+        if (orderCount != count) {
+            if (order.length < count)
+                order = new int[count];
+            for (int i = 0; i < count; i++)
+                order[i] = i;
+            orderCount = count;
+        }
+        for (int i = 1; i < count; i++) {
+            int o = order[i];
+            float key = sweptMin(bodies[o], X);
+            int j = i - 1;
+            for (; j >= 0 && sweptMin(bodies[order[j]], X) > key; j--)
+                order[j + 1] = order[j];
+            order[j + 1] = o;
+        }
+        pairCount = 0;
+        for (int i = 0; i < count; i++) {
+            Body a = bodies[order[i]];
+            float maxX = sweptMax(a, X);
+            for (int j = i + 1; j < count; j++) {
+                Body b = bodies[order[j]];
+                if (sweptMin(b, X) > maxX)
+                    break;
+                if (sweptMin(b, Y) > sweptMax(a, Y) || sweptMin(a, Y) > sweptMax(b, Y)
+                        || sweptMin(b, Z) > sweptMax(a, Z) || sweptMin(a, Z) > sweptMax(b, Z))
                     continue;
-                contacts.remove(j--);
-                if (j < i)
-                    i--;
+                addPair(min(order[i], order[j]), max(order[i], order[j]));
             }
         }
+        return pairCount;
+    }
+
+    private static float sweptMin(Body b, int k) {
+        return b.box.getMin(k) + min(0.0f, b.delta.get(k));
+    }
+
+    private static float sweptMax(Body b, int k) {
+        return b.box.getMax(k) + max(0.0f, b.delta.get(k));
+    }
+
+    private void addPair(int a, int b) {
+        if (pairCount * 2 == pairs.length) {
+            int[] newPairs = new int[pairs.length * 2];
+            System.arraycopy(pairs, 0, newPairs, 0, pairs.length);
+            pairs = newPairs;
+        }
+        pairs[pairCount * 2] = a;
+        pairs[pairCount * 2 + 1] = b;
+        pairCount++;
+    }
+
+    /**
+     * Return the pairs of bodies found by the last call to
+     * {@link #handleCollisionsAabbAabbs(Body[], int, KDTreei, boolean)}.
+     * <p>
+     * Pair <code>i</code> consists of the body indices at <code>2*i</code> and
+     * <code>2*i+1</code> with the smaller index first. Only the first
+     * <code>2*pairCount</code> elements of the returned array are valid.
+     * 
+     * @return the pairs of body indices
+     */
+    public int[] getPairs() {
+        return pairs;
+    }
+
+    /**
+     * Remove the contacts with voxels lying in the same layer as the voxel of a
+     * contact along another axis. These are contacts with the inner edges between
+     * neighboring voxels, which would otherwise stop a box sliding over a flat
+     * surface.
+     * <p>
+     * The layers of all contacts are sorted once and looked up with binary
+     * searches, instead of testing all pairs of contacts.
+     */
+    private void removeImplausibleContacts() {
+        int n = contacts.size();
+        if (n < 2)
+            return;
+        if (layers.length < n)
+            layers = new long[max(n, layers.length * 2)];
+        for (int i = 0; i < n; i++) {
+            Contact c = contacts.get(i);
+            int k = c.n.maxComponent();
+            layers[i] = c.n.get(k) < 0.0f ? layer(k, 0, c.vx.min(k)) : layer(k, 1, c.vx.max(k));
+        }
+        Arrays.sort(layers, 0, n);
+        int kept = 0;
+        for (int i = 0; i < n; i++) {
+            Contact c = contacts.get(i);
+            int k = c.n.maxComponent();
+            if (inLayer(c, (k + 1) % 3, n) || inLayer(c, (k + 2) % 3, n))
+                continue;
+            contacts.set(kept++, c);
+        }
+        contacts.subList(kept, n).clear();
+    }
+
+    private static long layer(int k, int side, int pos) {
+        return (long) (k << 1 | side) << 32 | pos & 0xFFFFFFFFL;
+    }
+
+    private boolean inLayer(Contact c, int k, int n) {
+        return Arrays.binarySearch(layers, 0, n, layer(k, 0, c.vx.min(k))) >= 0
+                || Arrays.binarySearch(layers, 0, n, layer(k, 1, c.vx.max(k))) >= 0;
+    }
+
+    private Contact newContact() {
+        Contact c;
+        if (pooledContacts < contactPool.size()) {
+            c = contactPool.get(pooledContacts);
+            c.n.zero();
+        } else {
+            c = new Contact();
+            contactPool.add(c);
+        }
+        pooledContacts++;
+        return c;
     }
 
     private void handleCollisionAabbAabbsCntd(AABBf box, Vector3f v, Vector3f delta) {
         contacts.clear();
-        for (Voxel c : candidates)
-            intersectAabbAabb(box, v, c);
+        pooledContacts = 0;
+        for (int i = 0, n = candidates.size(); i < n; i++)
+            intersectAabbAabb(box, v, candidates.get(i));
         removeImplausibleContacts();
         sort(contacts);
         delta.zero();
@@ -128,7 +373,7 @@ public class Collider {
             float entry = invEntry / v.get(k);
             float exit = invExit / v.get(k);
             if (entry >= -1.0f && entry < exit) {
-                Contact c = new Contact();
+                Contact c = newContact();
                 contacts.add(c);
                 c.n.setComponent(k, invEntry > 0 ? -1 : 1);
                 c.t = entry;
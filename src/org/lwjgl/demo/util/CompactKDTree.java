@@ -0,0 +1,396 @@
+/*
+ * Copyright LWJGL. All rights reserved.
+ * License terms: https://www.lwjgl.org/license
+ */
+package org.lwjgl.demo.util;
+
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import org.joml.Vector3f;
+
+/**
+ * A kd-tree with ropes over a triangle soup, like {@link KDTree}, but stored in flat primitive arrays instead of
+ * {@link KDTree.Node} and {@link KDTree.Triangle} objects.
+ * <p>
+ * The tree is built with the binned surface area heuristic and consists of:
+ * <ul>
+ * <li>{@link #nodes}: two ints (8 bytes) per node in depth-first order. An inner node stores <code>axis | right &lt;&lt; 2</code>
+ * and the bits of its split plane. Its left child always directly follows it. A leaf node stores
+ * <code>LEAF | leaf &lt;&lt; 2</code> and <code>0</code>.
+ * <li>{@link #leaves}: {@link #LEAF_SIZE} ints per leaf. The first primitive in {@link #primitives}, the number of
+ * primitives and the six ropes as node indices (or <code>-1</code>). The sides of the ropes are ordered like in
+ * {@link KDTree}: +X, -X, +Y, -Y, +Z, -Z.
+ * <li>{@link #leafBounds}: the min and max corner of each leaf.
+ * <li>{@link #primitives}: the triangle indices referenced by the leaves.
+ * <li>{@link #triangles}: nine floats per triangle.
+ * </ul>
+ * The tree can directly be written into the shader storage buffers of the stackless kd-tree traversal in
+ * <code>ssboTriangleStacklessKdTree.glsl</code> with {@link #writeStacklessNodes(DynamicByteBuffer)} and
+ * {@link #writeTriangles(DynamicByteBuffer)}, as done by
+ * {@link org.lwjgl.demo.opengl.raytracing.DemoSsboTrianglesStacklessKdTree}.
+ *
+ * @author Kai Burjack
+ */
+public class CompactKDTree {
+
+    public static final int LEAF = 3;
+    public static final int LEAF_SIZE = 8;
+
+    private static final float EPSILON = 1E-7f;
+
+    // Build parameters
+    public int maxDepth = 20;
+    public int minPrimitives = 2;
+    public int bins = 32;
+    public float traversalCost = 2.0f;
+    public float intersectionCost = 4.0f;
+
+    public int[] nodes = new int[256];
+    public int nodeCount;
+    public int[] leaves = new int[128 * LEAF_SIZE];
+    public float[] leafBounds = new float[128 * 6];
+    public int leafCount;
+    public int[] primitives = new int[256];
+    public int primitiveCount;
+    public float[] triangles;
+    public int triangleCount;
+    public final float[] bounds = new float[6];
+
+    /* Build scratch */
+    private float[] triangleBounds;
+    private int[] minBins, maxBins;
+    private float splitPlane;
+
+    /**
+     * Build the tree over the triangles in the remaining elements of the given buffer, which contains nine floats per
+     * triangle. The position of the buffer is not changed.
+     *
+     * @param soup
+     *            the triangle positions
+     * @return this
+     */
+    public CompactKDTree build(FloatBuffer soup) {
+        if (soup.remaining() % 9 != 0)
+            throw new IllegalArgumentException("soup");
+        triangleCount = soup.remaining() / 9;
+        triangles = new float[triangleCount * 9];
+        soup.duplicate().get(triangles);
+        nodeCount = leafCount = primitiveCount = 0;
+        triangleBounds = new float[triangleCount * 6];
+        minBins = new int[3 * bins];
+        maxBins = new int[3 * bins];
+        bounds[0] = bounds[1] = bounds[2] = Float.POSITIVE_INFINITY;
+        bounds[3] = bounds[4] = bounds[5] = Float.NEGATIVE_INFINITY;
+        int[] all = new int[triangleCount];
+        for (int i = 0; i < triangleCount; i++) {
+            for (int k = 0; k < 3; k++) {
+                float v0 = triangles[i * 9 + k], v1 = triangles[i * 9 + 3 + k], v2 = triangles[i * 9 + 6 + k];
+                float min = Math.min(v0, Math.min(v1, v2)), max = Math.max(v0, Math.max(v1, v2));
+                triangleBounds[i * 6 + k] = min;
+                triangleBounds[i * 6 + 3 + k] = max;
+                bounds[k] = Math.min(bounds[k], min);
+                bounds[3 + k] = Math.max(bounds[3 + k], max);
+            }
+            all[i] = i;
+        }
+        if (triangleCount == 0)
+            for (int k = 0; k < 6; k++)
+                bounds[k] = 0.0f;
+        buildNode(all, triangleCount, bounds.clone(), 0);
+        int[] ropes = { -1, -1, -1, -1, -1, -1 };
+        buildRopes(0, ropes, bounds.clone());
+        triangleBounds = null;
+        minBins = maxBins = null;
+        return this;
+    }
+
+    /**
+     * Convert a tree built by {@link KDTree} into the compact representation, keeping its nodes, leaves and ropes.
+     * <p>
+     * This allows to use the same tree on the CPU, e.g. with {@link KDTreeRayCaster}, as the one uploaded to the GPU.
+     *
+     * @param tree
+     *            the built tree
+     * @return the compact tree
+     */
+    public static CompactKDTree from(KDTree tree) {
+        CompactKDTree t = new CompactKDTree();
+        Map<KDTree.Node, Integer> indexes = new IdentityHashMap<>();
+        Map<KDTree.Triangle, Integer> triangleIndexes = new IdentityHashMap<>();
+        t.convert(tree.mRootNode, indexes, triangleIndexes);
+        t.triangleCount = triangleIndexes.size();
+        t.triangles = new float[t.triangleCount * 9];
+        for (Map.Entry<KDTree.Triangle, Integer> e : triangleIndexes.entrySet()) {
+            KDTree.Triangle tri = e.getKey();
+            int i = e.getValue().intValue() * 9;
+            put(tri.v0, t.triangles, i);
+            put(tri.v1, t.triangles, i + 3);
+            put(tri.v2, t.triangles, i + 6);
+        }
+        KDTree.Box bb = tree.mRootNode.boundingBox;
+        put(bb.min, t.bounds, 0);
+        put(bb.max, t.bounds, 3);
+        t.convertRopes(tree.mRootNode, indexes);
+        return t;
+    }
+
+    private void convert(KDTree.Node node, Map<KDTree.Node, Integer> indexes,
+            Map<KDTree.Triangle, Integer> triangleIndexes) {
+        int index = newNode();
+        indexes.put(node, Integer.valueOf(index));
+        if (node.isLeafNode()) {
+            int[] prims = new int[node.triangles.size()];
+            for (int i = 0; i < prims.length; i++) {
+                KDTree.Triangle tri = node.triangles.get(i);
+                Integer ti = triangleIndexes.get(tri);
+                if (ti == null) {
+                    ti = Integer.valueOf(triangleIndexes.size());
+                    triangleIndexes.put(tri, ti);
+                }
+                prims[i] = ti.intValue();
+            }
+            makeLeaf(index, prims, prims.length);
+            return;
+        }
+        nodes[index * 2 + 1] = Float.floatToRawIntBits(node.splitPlane);
+        convert(node.left, indexes, triangleIndexes);
+        nodes[index * 2] = node.splitAxis.dim | nodeCount << 2;
+        convert(node.right, indexes, triangleIndexes);
+    }
+
+    private void convertRopes(KDTree.Node node, Map<KDTree.Node, Integer> indexes) {
+        if (!node.isLeafNode()) {
+            convertRopes(node.left, indexes);
+            convertRopes(node.right, indexes);
+            return;
+        }
+        int leaf = nodes[indexes.get(node).intValue() * 2] >>> 2;
+        for (int side = 0; side < 6; side++) {
+            KDTree.Node r = node.ropes[side];
+            leaves[leaf * LEAF_SIZE + 2 + side] = r != null ? indexes.get(r).intValue() : -1;
+        }
+        put(node.boundingBox.min, leafBounds, leaf * 6);
+        put(node.boundingBox.max, leafBounds, leaf * 6 + 3);
+    }
+
+    private static void put(Vector3f v, float[] dest, int offset) {
+        dest[offset] = v.x;
+        dest[offset + 1] = v.y;
+        dest[offset + 2] = v.z;
+    }
+
+    private int newNode() {
+        if (nodeCount * 2 == nodes.length)
+            nodes = Arrays.copyOf(nodes, nodes.length * 2);
+        return nodeCount++;
+    }
+
+    private void buildNode(int[] prims, int count, float[] box, int depth) {
+        int node = newNode();
+        int axis = count <= minPrimitives || depth >= maxDepth ? -1 : findSplitPlane(prims, count, box);
+        if (axis == -1) {
+            makeLeaf(node, prims, count);
+            return;
+        }
+        float split = splitPlane;
+        int[] left = new int[count], right = new int[count];
+        int nLeft = 0, nRight = 0;
+        for (int i = 0; i < count; i++) {
+            int p = prims[i];
+            if (triangleBounds[p * 6 + axis] >= split) {
+                right[nRight++] = p;
+            } else if (triangleBounds[p * 6 + 3 + axis] <= split) {
+                left[nLeft++] = p;
+            } else {
+                left[nLeft++] = p;
+                right[nRight++] = p;
+            }
+        }
+        float[] rightBox = box.clone();
+        box[3 + axis] = split;
+        rightBox[axis] = split;
+        nodes[node * 2 + 1] = Float.floatToRawIntBits(split);
+        buildNode(left, nLeft, box, depth + 1);
+        nodes[node * 2] = axis | nodeCount << 2;
+        buildNode(right, nRight, rightBox, depth + 1);
+    }
+
+    private void makeLeaf(int node, int[] prims, int count) {
+        if (leafCount * LEAF_SIZE == leaves.length) {
+            leaves = Arrays.copyOf(leaves, leaves.length * 2);
+            leafBounds = Arrays.copyOf(leafBounds, leafBounds.length * 2);
+        }
+        if (primitiveCount + count > primitives.length)
+            primitives = Arrays.copyOf(primitives, Math.max(primitiveCount + count, primitives.length * 2));
+        int leaf = leafCount++;
+        nodes[node * 2] = LEAF | leaf << 2;
+        nodes[node * 2 + 1] = 0;
+        leaves[leaf * LEAF_SIZE] = primitiveCount;
+        leaves[leaf * LEAF_SIZE + 1] = count;
+        System.arraycopy(prims, 0, primitives, primitiveCount, count);
+        primitiveCount += count;
+    }
+
+    /**
+     * Find the cheapest split plane over all three axes with the binned surface area heuristic.
+     *
+     * @return the split axis, or <code>-1</code> if the node should become a leaf. The plane is stored in
+     *         {@link #splitPlane}.
+     */
+    private int findSplitPlane(int[] prims, int count, float[] box) {
+        float ex = box[3] - box[0], ey = box[4] - box[1], ez = box[5] - box[2];
+        float area = ex * ey + ey * ez + ez * ex;
+        if (area <= EPSILON)
+            return -1;
+        Arrays.fill(minBins, 0);
+        Arrays.fill(maxBins, 0);
+        for (int i = 0; i < count; i++) {
+            int p = prims[i];
+            for (int ax = 0; ax < 3; ax++) {
+                float bmin = box[ax], width = box[3 + ax] - bmin;
+                if (width <= EPSILON)
+                    continue;
+                float scale = bins / width;
+                int lo = (int) ((triangleBounds[p * 6 + ax] - bmin) * scale);
+                int hi = (int) ((triangleBounds[p * 6 + 3 + ax] - bmin) * scale);
+                minBins[ax * bins + Math.max(0, Math.min(bins - 1, lo))]++;
+                maxBins[ax * bins + Math.max(0, Math.min(bins - 1, hi))]++;
+            }
+        }
+        float mincost = intersectionCost * count;
+        int bestAxis = -1;
+        for (int ax = 0; ax < 3; ax++) {
+            float bmin = box[ax], width = box[3 + ax] - bmin;
+            if (width <= EPSILON)
+                continue;
+            float e1 = box[3 + (ax + 1) % 3] - box[(ax + 1) % 3], e2 = box[3 + (ax + 2) % 3] - box[(ax + 2) % 3];
+            int nLeft = 0, nRight = count;
+            for (int i = 1; i < bins; i++) {
+                nLeft += minBins[ax * bins + i - 1];
+                nRight -= maxBins[ax * bins + i - 1];
+                float wl = width * i / bins, wr = width - wl;
+                float areaLeft = wl * (e1 + e2) + e1 * e2, areaRight = wr * (e1 + e2) + e1 * e2;
+                float cost = traversalCost + intersectionCost * (areaLeft * nLeft + areaRight * nRight) / area;
+                if (cost < mincost) {
+                    mincost = cost;
+                    splitPlane = bmin + wl;
+                    bestAxis = ax;
+                }
+            }
+        }
+        return bestAxis;
+    }
+
+    private void buildRopes(int node, int[] ropes, float[] box) {
+        int n = nodes[node * 2];
+        int axis = n & 3;
+        if (axis == LEAF) {
+            int leaf = n >>> 2;
+            for (int side = 0; side < 6; side++)
+                leaves[leaf * LEAF_SIZE + 2 + side] = optimizeRope(ropes[side], side, box);
+            System.arraycopy(box, 0, leafBounds, leaf * 6, 6);
+            return;
+        }
+        float split = Float.intBitsToFloat(nodes[node * 2 + 1]);
+        int left = node + 1, right = n >>> 2;
+        int[] leftRopes = ropes.clone(), rightRopes = ropes.clone();
+        leftRopes[axis * 2] = right;
+        rightRopes[axis * 2 + 1] = left;
+        float[] leftBox = box.clone();
+        leftBox[3 + axis] = split;
+        box[axis] = split;
+        buildRopes(left, leftRopes, leftBox);
+        buildRopes(right, rightRopes, box);
+    }
+
+    private int optimizeRope(int rope, int side, float[] box) {
+        int r = rope;
+        while (r != -1) {
+            int n = nodes[r * 2];
+            int axis = n & 3;
+            if (axis == LEAF)
+                break;
+            float split = Float.intBitsToFloat(nodes[r * 2 + 1]);
+            if (axis == side >>> 1) {
+                /* The split plane is parallel to the side, so connect to the child adjacent to it */
+                r = (side & 1) == 0 ? r + 1 : n >>> 2;
+            } else if (split < box[axis]) {
+                r = n >>> 2;
+            } else if (split > box[3 + axis]) {
+                r = r + 1;
+            } else {
+                break;
+            }
+        }
+        return r;
+    }
+
+    /**
+     * Return whether the given node is a leaf.
+     */
+    public boolean isLeaf(int node) {
+        return (nodes[node * 2] & 3) == LEAF;
+    }
+
+    /**
+     * Write all nodes in the order of their indices as
+     * <code>struct node { vec3 min; vec3 max; int splitAxis; float split; int ropes[6]; int left; int right;
+     * int firstTri; int numTris; }</code> in std430 layout, like the ray tracing demos do with {@link Std430Writer}.
+     * <p>
+     * Leaves have no children (<code>-1</code>), and <code>firstTri</code> and <code>numTris</code> index into the
+     * buffer written by {@link #writeTriangles(DynamicByteBuffer)}. Inner nodes have no ropes and no triangles.
+     */
+    public void writeStacklessNodes(DynamicByteBuffer buffer) {
+        float[] nodeBounds = new float[nodeCount * 6];
+        System.arraycopy(bounds, 0, nodeBounds, 0, 6);
+        /* Nodes are in depth-first order, so the bounds of a node are known before its children are visited */
+        for (int i = 0; i < nodeCount; i++) {
+            int n = nodes[i * 2], axis = n & 3;
+            if (axis == LEAF)
+                continue;
+            float split = Float.intBitsToFloat(nodes[i * 2 + 1]);
+            int left = i + 1, right = n >>> 2;
+            System.arraycopy(nodeBounds, i * 6, nodeBounds, left * 6, 6);
+            System.arraycopy(nodeBounds, i * 6, nodeBounds, right * 6, 6);
+            nodeBounds[left * 6 + 3 + axis] = split;
+            nodeBounds[right * 6 + axis] = split;
+        }
+        for (int i = 0; i < nodeCount; i++) {
+            int n = nodes[i * 2], axis = n & 3;
+            buffer.putFloat(nodeBounds[i * 6]).putFloat(nodeBounds[i * 6 + 1]).putFloat(nodeBounds[i * 6 + 2]);
+            buffer.putInt(0);
+            buffer.putFloat(nodeBounds[i * 6 + 3]).putFloat(nodeBounds[i * 6 + 4]).putFloat(nodeBounds[i * 6 + 5]);
+            if (axis == LEAF) {
+                int leaf = n >>> 2;
+                buffer.putInt(-1).putFloat(0.0f);
+                for (int k = 0; k < 6; k++)
+                    buffer.putInt(leaves[leaf * LEAF_SIZE + 2 + k]);
+                buffer.putInt(-1).putInt(-1);
+                buffer.putInt(leaves[leaf * LEAF_SIZE]).putInt(leaves[leaf * LEAF_SIZE + 1]);
+            } else {
+                buffer.putInt(axis).putInt(nodes[i * 2 + 1]);
+                for (int k = 0; k < 6; k++)
+                    buffer.putInt(-1);
+                buffer.putInt(i + 1).putInt(n >>> 2);
+                buffer.putInt(0).putInt(0);
+            }
+            buffer.putInt(0);
+        }
+    }
+
+    /**
+     * Write the triangles referenced by all leaves in leaf order, with each vertex as a <code>vec4</code>, like the
+     * ray tracing demos do.
+     */
+    public void writeTriangles(DynamicByteBuffer buffer) {
+        for (int i = 0; i < primitiveCount; i++) {
+            int t = primitives[i] * 9;
+            for (int v = 0; v < 3; v++)
+                buffer.putFloat(triangles[t + v * 3]).putFloat(triangles[t + v * 3 + 1])
+                        .putFloat(triangles[t + v * 3 + 2]).putFloat(1.0f);
+        }
+    }
+}
@@ -87,4 +87,11 @@ public class DynamicByteBuffer {
         return (int) (cap - pos);
     }
 
+    /**
+     * Return a {@link ByteBuffer} view of the bytes written so far.
+     */
+    public ByteBuffer buffer() {
+        return memByteBuffer(addr, pos);
+    }
+
 }
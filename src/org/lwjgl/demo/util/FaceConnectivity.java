@@ -10,12 +10,40 @@ import static java.util.Arrays.*;
  * Flood fill algorithm to compute face connectivity graph.
  * <p>
  * Idea from: https://tomcc.github.io/2014/08/31/visibility-1.html
+ * <p>
+ * The volume is stored as one bit per voxel in rows of 64-bit words along the X axis. Filling
+ * along X is done for a whole row at once with an add-and-mask carry trick, and only whole rows are
+ * pushed to the Y/Z neighbor rows. This needs 3 bits per voxel plus one stack entry per row.
  * 
  * @author Kai Burjack
  */
 public class FaceConnectivity {
-    private final byte[] vs;
+    /* Face indices in the order of the bits returned by the flood fill */
+    public static final int NEG_X = 0;
+    public static final int POS_X = 1;
+    public static final int NEG_Y = 2;
+    public static final int POS_Y = 3;
+    public static final int NEG_Z = 4;
+    public static final int POS_Z = 5;
+    /**
+     * All 15 face pairs connected, e.g. for a completely empty volume.
+     */
+    public static final int ALL_CONNECTED = (1 << 15) - 1;
+    /**
+     * Maps a 6-bit mask of faces touched by a single empty region to the 15-bit mask of face pairs
+     * connected through that region.
+     */
+    private static final int[] PAIRS = computePairs();
+
     private final int w, h, d;
+    /* Number of 64-bit words per row along X */
+    private final int wpr;
+    /* Mask of the valid bits in the last word of a row */
+    private final long lastWordMask;
+    /* Per row of X voxels: empty voxels, filled voxels and seeds still to be filled */
+    private final long[] empty, filled, pending;
+    private final long[] row;
+    /* Stack of row indices with pending seeds */
     private final int[] stack;
     private int stackPos;
 
@@ -29,82 +57,276 @@ public class FaceConnectivity {
         this.w = w;
         this.h = h;
         this.d = d;
-        this.vs = new byte[w * h * d];
-        this.stack = new int[w * h * d * 5];
+        this.wpr = w + 63 >>> 6;
+        this.lastWordMask = -1L >>> (wpr << 6) - w;
+        this.empty = new long[h * d * wpr];
+        this.filled = new long[h * d * wpr];
+        this.pending = new long[h * d * wpr];
+        this.row = new long[wpr];
+        this.stack = new int[h * d];
+    }
+
+    private static int pairBit(int a, int b) {
+        int lo = Math.min(a, b), hi = Math.max(a, b);
+        /* bit index of (lo, hi) when enumerating all pairs lo < hi in lexicographic order */
+        return lo * (11 - lo) / 2 + hi - lo - 1;
+    }
+
+    private static int[] computePairs() {
+        int[] pairs = new int[64];
+        for (int m = 0; m < 64; m++)
+            for (int a = 0; a < 6; a++)
+                for (int b = a + 1; b < 6; b++)
+                    if ((m & 1 << a) != 0 && (m & 1 << b) != 0)
+                        pairs[m] |= 1 << pairBit(a, b);
+        return pairs;
     }
 
-    private int idx(int x, int y, int z) {
-        return x + w * (y + z * h);
+    /**
+     * Determine whether the faces <code>a</code> and <code>b</code> are connected according to the
+     * given result of {@link #computeFaceToFaceConnectivity(byte[])}.
+     */
+    public static boolean connected(int connectivity, int a, int b) {
+        return a == b || (connectivity & 1 << pairBit(a, b)) != 0;
+    }
+
+    private int rowIdx(int y, int z) {
+        return y + z * h;
+    }
+
+    /**
+     * Build the {@link #empty} bit rows from the voxels <code>ds[off + x + y * strideY + z * strideZ]</code>.
+     */
+    private void load(byte[] ds, int off, int strideY, int strideZ) {
+        for (int z = 0; z < d; z++)
+            for (int y = 0; y < h; y++) {
+                int o = off + y * strideY + z * strideZ, r = rowIdx(y, z) * wpr;
+                for (int i = 0; i < wpr; i++) {
+                    long bits = 0L;
+                    for (int x = i << 6, n = Math.min(w, x + 64); x < n; x++)
+                        if (ds[o + x] == 0)
+                            bits |= 1L << (x & 63);
+                    empty[r + i] = bits;
+                }
+            }
+        fill(filled, 0L);
     }
 
     public int computeConnectivity(byte[] ds) {
-        fill(vs, (byte) 0);
-        return computeX(ds) | (computeY(ds) << 6) | (computeZ(ds) << 12);
+        load(ds, 0, w, w * h);
+        return computeX() | (computeY() << 6) | (computeZ() << 12);
     }
 
-    private int computeZ(byte[] ds) {
-        int ret = 0;
-        for (int y = 0; y < h; y++)
-            for (int x = 0; x < w; x++)
-                ret |= floodFill(ds, x, y, 0, (byte) 3);
-        return ret;
+    /**
+     * Compute for all 15 pairs of faces whether they are connected through empty space.
+     * 
+     * @param ds the voxels (zero means empty) with <code>x + w * (y + z * h)</code> layout
+     * @return a 15-bit mask to be queried with {@link #connected(int, int, int)}
+     */
+    public int computeFaceToFaceConnectivity(byte[] ds) {
+        return computeFaceToFaceConnectivity(ds, 0, w, w * h);
     }
 
-    private int computeY(byte[] ds) {
+    /**
+     * Compute for all 15 pairs of faces whether they are connected through empty space.
+     * <p>
+     * Every empty region touching the boundary is flood-filled once in all six directions, and all
+     * faces touched by the same region are then connected with each other.
+     * 
+     * @param ds      the voxels (zero means empty)
+     * @param off     the index of the voxel <code>(0, 0, 0)</code> in <code>ds</code>
+     * @param strideY the distance between two voxels along Y in <code>ds</code>
+     * @param strideZ the distance between two voxels along Z in <code>ds</code>
+     * @return a 15-bit mask to be queried with {@link #connected(int, int, int)}
+     */
+    public int computeFaceToFaceConnectivity(byte[] ds, int off, int strideY, int strideZ) {
+        load(ds, off, strideY, strideZ);
         int ret = 0;
         for (int z = 0; z < d; z++)
-            for (int x = 0; x < w; x++)
-                ret |= floodFill(ds, x, 0, z, (byte) 2);
+            for (int y = 0; y < h; y++) {
+                boolean boundaryRow = y == 0 || y == h - 1 || z == 0 || z == d - 1;
+                int r = rowIdx(y, z);
+                for (int i = 0; i < wpr; i++) {
+                    long seeds;
+                    /* On boundary rows every voxel is a seed, otherwise only the first and the last */
+                    while ((seeds = empty[r * wpr + i] & ~filled[r * wpr + i] & (boundaryRow ? -1L : xBoundary(i))) != 0L) {
+                        pending[r * wpr + i] = Long.lowestOneBit(seeds);
+                        stack[stackPos = 0] = r;
+                        stackPos = 1;
+                        ret |= PAIRS[floodFill(-1)];
+                    }
+                }
+            }
         return ret;
     }
 
-    private int computeX(byte[] ds) {
-        int ret = 0;
+    /**
+     * @return the bits of the given word of a row that lie on the -X or +X face
+     */
+    private long xBoundary(int word) {
+        long bits = word == 0 ? 1L : 0L;
+        if (word == wpr - 1)
+            bits |= 1L << (w - 1 & 63);
+        return bits;
+    }
+
+    /**
+     * Compute the face-to-face connectivity of all sections of size <code>(w, h, d)</code> in a volume
+     * of <code>(sx * w, sy * h, sz * d)</code> voxels.
+     * 
+     * @param connectivity receives the connectivity of section <code>(x, y, z)</code> at index
+     *                     <code>x + sx * (y + sy * z)</code>
+     * @see #computeFaceToFaceConnectivity(byte[], int, int, int)
+     */
+    public void computeSections(byte[] ds, int off, int strideY, int strideZ, int sx, int sy, int sz, int[] connectivity) {
+        updateSections(ds, off, strideY, strideZ, sx, sy, sz, 0, 0, 0, sx * w - 1, sy * h - 1, sz * d - 1, connectivity);
+    }
+
+    /**
+     * Incrementally update the face-to-face connectivity after the voxels in the box
+     * <code>(minX, minY, minZ)</code> - <code>(maxX, maxY, maxZ)</code> (inclusive) were modified.
+     * <p>
+     * Only the sections overlapping that box are recomputed.
+     * 
+     * @see #computeSections(byte[], int, int, int, int, int, int, int[])
+     */
+    public void updateSections(byte[] ds, int off, int strideY, int strideZ, int sx, int sy, int sz, int minX, int minY, int minZ, int maxX, int maxY,
+            int maxZ, int[] connectivity) {
+        int x0 = Math.max(minX / w, 0), x1 = Math.min(maxX / w, sx - 1);
+        int y0 = Math.max(minY / h, 0), y1 = Math.min(maxY / h, sy - 1);
+        int z0 = Math.max(minZ / d, 0), z1 = Math.min(maxZ / d, sz - 1);
+        for (int z = z0; z <= z1; z++)
+            for (int y = y0; y <= y1; y++)
+                for (int x = x0; x <= x1; x++)
+                    connectivity[x + sx * (y + sy * z)] = computeFaceToFaceConnectivity(ds, off + x * w + y * h * strideY + z * d * strideZ, strideY,
+                            strideZ);
+    }
+
+    private int computeZ() {
+        fill(filled, 0L);
         for (int y = 0; y < h; y++)
-            for (int z = 0; z < d; z++)
-                ret |= floodFill(ds, 0, y, z, (byte) 1);
-        return ret;
+            seedRow(rowIdx(y, 0), -1L);
+        return floodFill(NEG_Z);
+    }
+
+    private int computeY() {
+        fill(filled, 0L);
+        for (int z = 0; z < d; z++)
+            seedRow(rowIdx(0, z), -1L);
+        return floodFill(NEG_Y);
+    }
+
+    private int computeX() {
+        fill(filled, 0L);
+        for (int z = 0; z < d; z++)
+            for (int y = 0; y < h; y++)
+                seedRow(rowIdx(y, z), 1L);
+        return floodFill(NEG_X);
+    }
+
+    /**
+     * Seed the empty voxels of the given mask in the first word of the given row, or of the whole row
+     * if the mask is all ones.
+     */
+    private void seedRow(int r, long mask) {
+        boolean any = false;
+        for (int i = 0; i < wpr; i++) {
+            long s = empty[r * wpr + i] & (i == 0 || mask == -1L ? mask : 0L);
+            pending[r * wpr + i] = s;
+            any |= s != 0L;
+        }
+        if (any)
+            stack[stackPos++] = r;
     }
 
-    private int floodFill(byte[] ds, int x, int y, int z, byte p) {
-        if (ds[idx(x, y, z)] != 0)
-            return 0;
-        stack[stackPos = 0] = x | y << 8 | z << 16;
+    /**
+     * Fill from all pending seeds and return the bitmask of touched faces.
+     * 
+     * @param blocked the face towards which the fill must not propagate, or -1
+     */
+    private int floodFill(int blocked) {
         int ret = 0;
-        while (stackPos >= 0) {
-            int sv = stack[stackPos--], px = sv & 0xFF, py = sv >>> 8 & 0xFF, pz = sv >>> 16 & 0xFF;
-            if (ds[idx(px, py, pz)] != 0 || vs[idx(px, py, pz)] == p)
+        while (stackPos > 0) {
+            int r = stack[--stackPos], y = r % h, z = r / h;
+            if (!fillRow(r, blocked != NEG_X))
                 continue;
-            vs[idx(px, py, pz)] = p;
-            if (px < w - 1)
-                stack[++stackPos] = px + 1 | py << 8 | pz << 16;
+            if ((row[0] & 1L) != 0L)
+                ret |= 1 << NEG_X;
+            if ((row[wpr - 1] & 1L << (w - 1 & 63)) != 0L)
+                ret |= 1 << POS_X;
+            if (y < h - 1)
+                propagate(r + 1);
             else
-                ret |= 2;
-            if (px > 0) {
-                if (p != 1)
-                    stack[++stackPos] = px - 1 | py << 8 | pz << 16;
+                ret |= 1 << POS_Y;
+            if (y > 0) {
+                if (blocked != NEG_Y)
+                    propagate(r - 1);
             } else
-                ret |= 1;
-            if (py < h - 1)
-                stack[++stackPos] = px | py + 1 << 8 | pz << 16;
+                ret |= 1 << NEG_Y;
+            if (z < d - 1)
+                propagate(r + h);
             else
-                ret |= 8;
-            if (py > 0) {
-                if (p != 2)
-                    stack[++stackPos] = px | py - 1 << 8 | pz << 16;
+                ret |= 1 << POS_Z;
+            if (z > 0) {
+                if (blocked != NEG_Z)
+                    propagate(r - h);
             } else
-                ret |= 4;
-            if (pz < d - 1)
-                stack[++stackPos] = px | py << 8 | pz + 1 << 16;
-            else
-                ret |= 32;
-            if (pz > 0) {
-                if (p != 3)
-                    stack[++stackPos] = px | py << 8 | pz - 1 << 16;
-            } else
-                ret |= 16;
+                ret |= 1 << NEG_Z;
         }
         return ret;
     }
 
+    /**
+     * Fill the pending seeds of row <code>r</code> along X through empty voxels and store the newly
+     * filled voxels in {@link #row}.
+     * 
+     * @return whether any voxel was newly filled
+     */
+    private boolean fillRow(int r, boolean both) {
+        int o = r * wpr;
+        /* Towards +X: m + s carries through each run of empty voxels starting at a seed */
+        long carry = 0L;
+        for (int i = 0; i < wpr; i++) {
+            long m = empty[o + i], s = (pending[o + i] | carry) & m;
+            long f = (m + s ^ m) & m | s;
+            carry = f >>> 63;
+            row[i] = f;
+            pending[o + i] = 0L;
+        }
+        if (both) {
+            /* Towards -X: the same on the bit-reversed words */
+            carry = 0L;
+            for (int i = wpr - 1; i >= 0; i--) {
+                long m = Long.reverse(empty[o + i]), s = Long.reverse(row[i]) | carry & m;
+                long f = (m + s ^ m) & m | s;
+                carry = f >>> 63;
+                row[i] = Long.reverse(f);
+            }
+        }
+        row[wpr - 1] &= lastWordMask;
+        long any = 0L;
+        for (int i = 0; i < wpr; i++) {
+            row[i] &= ~filled[o + i];
+            filled[o + i] |= row[i];
+            any |= row[i];
+        }
+        return any != 0L;
+    }
+
+    /**
+     * Seed all empty voxels in row <code>n</code> that are adjacent to the voxels in {@link #row}.
+     */
+    private void propagate(int n) {
+        int o = n * wpr;
+        long was = 0L, add = 0L;
+        for (int i = 0; i < wpr; i++) {
+            long a = row[i] & empty[o + i] & ~filled[o + i];
+            was |= pending[o + i];
+            pending[o + i] |= a;
+            add |= a;
+        }
+        if (add != 0L && was == 0L)
+            stack[stackPos++] = n;
+    }
+
 }
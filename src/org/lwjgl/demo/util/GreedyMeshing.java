@@ -14,6 +14,9 @@ import static java.lang.Math.*;
  * Instances of this class are <i>not</i> thread-safe, so calls to
  * {@link #mesh(byte[], FaceConsumer)} on the same instance must be externally
  * synchronized.
+ * <p>
+ * The voxels are read either from a dense array with a border of one empty
+ * voxel or from a {@link BrickVolume}.
  * 
  * @author Kai Burjack
  */
@@ -245,6 +248,7 @@ public class GreedyMeshing {
 
     private final int[] m;
     private byte[] vs;
+    private BrickVolume volume;
     private final int dx, dy, dz, nx, ny, nz, px, py, pz, vdx, vdz;
     public boolean singleOpaque;
 
@@ -278,7 +282,7 @@ public class GreedyMeshing {
     }
 
     private byte at(int x, int y, int z) {
-        return vs[idx(x, y, z)];
+        return volume != null ? volume.get(x, y, z) : vs[idx(x, y, z)];
     }
 
     private int idx(int x, int y, int z) {
@@ -287,6 +291,19 @@ public class GreedyMeshing {
 
     public void mesh(byte[] vs, FaceConsumer consumer) {
         this.vs = vs;
+        this.volume = null;
+        meshX(consumer);
+        meshY(consumer);
+        meshZ(consumer);
+    }
+
+    /**
+     * Like {@link #mesh(byte[], FaceConsumer)} but reading the voxels from the given sparse volume, whose size should
+     * match the one given to the constructor.
+     */
+    public void mesh(BrickVolume volume, FaceConsumer consumer) {
+        this.vs = null;
+        this.volume = volume;
         meshX(consumer);
         meshY(consumer);
         meshZ(consumer);
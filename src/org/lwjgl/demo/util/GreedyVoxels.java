@@ -4,6 +4,10 @@
  */
 package org.lwjgl.demo.util;
 
+import static java.lang.Math.*;
+
+import java.util.Arrays;
+
 /**
  * Greedy voxel merging.
  * 
@@ -48,6 +52,24 @@ public class GreedyVoxels {
                     int i = idx(x, y, z);
                     m[i] = (short) (vs[i] & 0xFF);
                 }
+        generate();
+    }
+
+    /**
+     * Like {@link #merge(byte[])} but reading the voxels from the non-empty bricks of the given sparse volume.
+     */
+    public void merge(BrickVolume volume) {
+        Arrays.fill(m, (short) 0);
+        volume.forEachBrick((bx, by, bz, voxels, offset) -> {
+            for (int y = max(by, ny); y < min(by + BrickVolume.BRICK_SIZE, dy); y++)
+                for (int z = bz; z < min(bz + BrickVolume.BRICK_SIZE, dz); z++)
+                    for (int x = bx; x < min(bx + BrickVolume.BRICK_SIZE, dx); x++)
+                        m[idx(x, y, z)] = (short) (voxels[offset + (y - by << 6 | z - bz << 3 | x - bx)] & 0xFF);
+        });
+        generate();
+    }
+
+    private void generate() {
         for (int y = ny; y < dy; y++)
             for (int z = 0; z < dz; z++)
                 for (int x = 0; x < dx; x++)
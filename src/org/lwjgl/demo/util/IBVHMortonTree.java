@@ -9,6 +9,9 @@ import java.util.*;
 /**
  * Bounding Volume Hierarchy for integer lattices using morton code
  * partitioning.
+ * <p>
+ * For large inputs, {@link LinearBVHi} builds an equivalent tree in flat arrays
+ * and in parallel.
  * 
  * @author Kai Burjack
  */
@@ -70,7 +73,7 @@ public class IBVHMortonTree<T extends MortonBoundable<T>> {
         return v;
     }
 
-    private static long morton3d(int x, int y, int z) {
+    static long morton3d(int x, int y, int z) {
         return (expandBits(y) << 2L) + (expandBits(z) << 1L) + expandBits(x);
     }
 
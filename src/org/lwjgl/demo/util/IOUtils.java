@@ -5,16 +5,54 @@
 package org.lwjgl.demo.util;
 
 import java.io.*;
+import java.net.JarURLConnection;
+import java.net.URISyntaxException;
 import java.net.URL;
+import java.net.URLConnection;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
 import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
 
 import org.lwjgl.BufferUtils;
 
 /**
+ * Reads classpath resources into direct buffers.
+ * <p>
+ * Resources in plain files are memory-mapped. Resources in jar files are read into a direct buffer sized from their
+ * jar entry. Recently read resources are kept in a cache, which is bounded by the total number of bytes given by the
+ * system property <code>lwjgl.demo.resourceCacheSize</code> (64 MiB by default, 0 disables it) and evicts the least
+ * recently used resources first, so that shaders and textures read by several parts of a demo are only read once.
+ * With {@link #prefetch(String...)} a demo can start reading the resources it needs on background threads while it
+ * creates its window and context.
+ *
  * @author Kai Burjack
  */
 public class IOUtils {
+    private static final long CACHE_SIZE = Long.getLong("lwjgl.demo.resourceCacheSize", 64L << 20);
+
+    private static final Map<String, ByteBuffer> cache = new LinkedHashMap<>(16, 0.75f, true);
+    private static long cachedBytes;
+    private static final ConcurrentHashMap<String, CompletableFuture<ByteBuffer>> loading = new ConcurrentHashMap<>();
+
+    private static class Prefetcher {
+        static final ExecutorService EXECUTOR = Executors.newFixedThreadPool(
+                Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors())), r -> {
+                    Thread t = new Thread(r, "IOUtils prefetch");
+                    t.setDaemon(true);
+                    return t;
+                });
+    }
+
     private static ByteBuffer resizeBuffer(ByteBuffer buffer, int newCapacity) {
         ByteBuffer newBuffer = BufferUtils.createByteBuffer(newCapacity);
         buffer.flip();
@@ -22,38 +60,197 @@ public class IOUtils {
         return newBuffer;
     }
 
+    /**
+     * Return the contents of the given classpath resource, reading it only if it is not in the cache or currently
+     * being read by another thread.
+     * <p>
+     * The returned buffer is a new view of the shared contents, so its position and limit may be changed freely, but
+     * its contents must not be modified.
+     *
+     * @param resource
+     *            the classpath resource
+     * @param bufferSize
+     *            the initial size of the buffer if the size of the resource is not known in advance
+     * @return the contents in a direct buffer
+     */
     public static ByteBuffer ioResourceToByteBuffer(String resource, int bufferSize) throws IOException {
-        ByteBuffer buffer;
+        ByteBuffer cached = cached(resource);
+        if (cached != null)
+            return cached;
+        CompletableFuture<ByteBuffer> future = new CompletableFuture<>();
+        CompletableFuture<ByteBuffer> other = loading.putIfAbsent(resource, future);
+        if (other != null)
+            return await(other).duplicate();
+        try {
+            ByteBuffer buffer = readResource(resource, bufferSize);
+            cache(resource, buffer);
+            future.complete(buffer);
+            return buffer.duplicate();
+        } catch (IOException | RuntimeException e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            loading.remove(resource, future);
+        }
+    }
+
+    /**
+     * Start reading the given classpath resources into the cache on background threads.
+     * <p>
+     * A later {@link #ioResourceToByteBuffer(String, int)} of one of the resources waits for it to be read instead of
+     * reading it again. Failures are only reported by the returned future, so they are thrown again by that call.
+     *
+     * @param resources
+     *            the classpath resources
+     * @return a future completing when all resources were read
+     */
+    public static CompletableFuture<Void> prefetch(String... resources) {
+        CompletableFuture<?>[] futures = new CompletableFuture<?>[resources.length];
+        for (int i = 0; i < resources.length; i++) {
+            String resource = resources[i];
+            futures[i] = CompletableFuture.runAsync(() -> {
+                try {
+                    ioResourceToByteBuffer(resource, 8192);
+                } catch (IOException e) {
+                    throw new CompletionException(e);
+                }
+            }, Prefetcher.EXECUTOR);
+        }
+        return CompletableFuture.allOf(futures);
+    }
+
+    private static ByteBuffer await(CompletableFuture<ByteBuffer> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+                throw new IOException(cause.getMessage(), cause);
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            throw new IOException(cause);
+        }
+    }
+
+    private static synchronized ByteBuffer cached(String resource) {
+        ByteBuffer buffer = cache.get(resource);
+        return buffer != null ? buffer.duplicate() : null;
+    }
+
+    private static synchronized void cache(String resource, ByteBuffer buffer) {
+        long size = buffer.capacity();
+        if (size > CACHE_SIZE)
+            return;
+        ByteBuffer old = cache.put(resource, buffer);
+        if (old != null)
+            cachedBytes -= old.capacity();
+        cachedBytes += size;
+        for (Iterator<ByteBuffer> it = cache.values().iterator(); cachedBytes > CACHE_SIZE && it.hasNext();) {
+            cachedBytes -= it.next().capacity();
+            it.remove();
+        }
+    }
+
+    private static ByteBuffer readResource(String resource, int bufferSize) throws IOException {
         URL url = Thread.currentThread().getContextClassLoader().getResource(resource);
         if (url == null)
             throw new IOException("Classpath resource not found: " + resource);
-        File file = new File(url.getFile());
-        if (file.isFile()) {
-            FileInputStream fis = new FileInputStream(file);
-            FileChannel fc = fis.getChannel();
-            buffer = fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size());
-            fc.close();
-            fis.close();
-        } else {
-            buffer = BufferUtils.createByteBuffer(bufferSize);
-            InputStream source = url.openStream();
-            if (source == null)
-                throw new FileNotFoundException(resource);
-            try {
-                byte[] buf = new byte[8192];
-                while (true) {
-                    int bytes = source.read(buf, 0, buf.length);
-                    if (bytes == -1)
+        if ("file".equals(url.getProtocol())) {
+            try (FileChannel fc = FileChannel.open(Paths.get(url.toURI()), StandardOpenOption.READ)) {
+                return fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size());
+            } catch (URISyntaxException e) {
+                throw new IOException(e);
+            }
+        }
+        URLConnection connection = url.openConnection();
+        long size = -1;
+        if (connection instanceof JarURLConnection)
+            size = ((JarURLConnection) connection).getJarEntry().getSize();
+        try (InputStream source = connection.getInputStream()) {
+            return read(source, size, bufferSize);
+        }
+    }
+
+    /**
+     * Read the given stream into a direct buffer, which is allocated with the given size if it is known.
+     */
+    private static ByteBuffer read(InputStream source, long size, int bufferSize) throws IOException {
+        boolean sized = size >= 0 && size < Integer.MAX_VALUE;
+        ByteBuffer buffer = BufferUtils.createByteBuffer(sized ? (int) size : Math.max(bufferSize, 1));
+        ReadableByteChannel channel = Channels.newChannel(source);
+        while (channel.read(buffer) != -1) {
+            if (!buffer.hasRemaining()) {
+                if (sized) {
+                    if (source.read() == -1)
                         break;
-                    if (buffer.remaining() < bytes)
-                        buffer = resizeBuffer(buffer, Math.max(buffer.capacity() * 2, buffer.capacity() - buffer.remaining() + bytes));
-                    buffer.put(buf, 0, bytes);
+                    throw new IOException("Resource is larger than its entry");
                 }
-                buffer.flip();
-            } finally {
-                source.close();
+                buffer = resizeBuffer(buffer, buffer.capacity() * 2);
             }
         }
+        buffer.flip();
         return buffer;
     }
+
+    /**
+     * Decompress the first entry of the zip file in the remaining bytes of the given buffer, without changing its
+     * position.
+     * <p>
+     * The decompressed bytes are written into a buffer sized from the central directory of the zip file.
+     *
+     * @return the decompressed bytes in a direct buffer
+     */
+    public static ByteBuffer readSingleFileZip(ByteBuffer zip) throws IOException {
+        try (ZipInputStream zipStream = new ZipInputStream(new ByteBufferInputStream(zip.duplicate()))) {
+            ZipEntry entry = zipStream.getNextEntry();
+            if (entry == null)
+                throw new IOException("Empty zip file");
+            long size = entry.getSize();
+            if (size < 0)
+                size = firstEntrySize(zip);
+            return read(zipStream, size, 8192);
+        }
+    }
+
+    /**
+     * Return the uncompressed size of the first entry in the central directory of the given zip file, or
+     * <code>-1</code> if it cannot be found.
+     */
+    private static long firstEntrySize(ByteBuffer zip) {
+        ByteBuffer b = zip.slice().order(ByteOrder.LITTLE_ENDIAN);
+        /* Search the end of central directory record backwards, skipping a comment of up to 64 KiB */
+        for (int pos = b.limit() - 22; pos >= 0 && pos >= b.limit() - 22 - 0xFFFF; pos--) {
+            if (b.getInt(pos) != 0x06054b50)
+                continue;
+            long cd = b.getInt(pos + 16) & 0xFFFFFFFFL;
+            if (cd + 46 > b.limit() || b.getInt((int) cd) != 0x02014b50)
+                return -1;
+            long size = b.getInt((int) cd + 24) & 0xFFFFFFFFL;
+            return size != 0xFFFFFFFFL ? size : -1;
+        }
+        return -1;
+    }
+
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        public int read(byte[] b, int off, int len) {
+            if (!buffer.hasRemaining())
+                return len == 0 ? 0 : -1;
+            len = Math.min(len, buffer.remaining());
+            buffer.get(b, off, len);
+            return len;
+        }
+    }
 }
@@ -0,0 +1,456 @@
+/*
+ * Copyright LWJGL. All rights reserved.
+ * License terms: https://www.lwjgl.org/license
+ */
+package org.lwjgl.demo.util;
+
+import static org.lwjgl.stb.STBImage.*;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.stream.IntStream;
+
+import org.lwjgl.BufferUtils;
+
+/**
+ * Decodes images with stb_image on worker threads and optionally builds their mip chains on the CPU.
+ * <p>
+ * {@link #load(String)} reads and decodes an image asynchronously in the common fork-join pool, so that all images of
+ * a demo, such as the six faces of a cubemap, are decoded concurrently while the demo creates its window and context.
+ * The GL thread then only waits for the finished {@link Image}s and uploads their {@link Level}s.
+ * <p>
+ * Nothing in this class needs an OpenGL context, so decoding and mip generation can be used and tested without a
+ * GPU.
+ *
+ * @author Kai Burjack
+ */
+public class ImageLoader {
+
+    /**
+     * The filter used to compute each mip level from the previous one.
+     */
+    public enum MipFilter {
+        /** Do not generate mip levels */
+        NONE(0.0f),
+        /** Average 2x2 texels */
+        BOX(0.5f),
+        /**
+         * A sinc filter with a Kaiser window of three texels of the smaller level on each side, which keeps smaller
+         * levels sharper than {@link #BOX}
+         */
+        KAISER(3.0f);
+
+        /** The radius of the filter in texels of the smaller level */
+        final float support;
+
+        MipFilter(float support) {
+            this.support = support;
+        }
+
+        float weight(float t) {
+            if (this == BOX)
+                return Math.abs(t) <= 0.5f ? 1.0f : 0.0f;
+            if (Math.abs(t) >= support)
+                return 0.0f;
+            double sinc = t == 0.0f ? 1.0 : Math.sin(Math.PI * t) / (Math.PI * t);
+            double r = t / support;
+            return (float) (sinc * bessel0(KAISER_ALPHA * Math.sqrt(1.0 - r * r)) / bessel0(KAISER_ALPHA));
+        }
+    }
+
+    private static final double KAISER_ALPHA = 4.0;
+
+    /**
+     * The minimum number of texels of a level to filter its lines in parallel.
+     */
+    private static final int PARALLEL_THRESHOLD = 1 << 16;
+
+    /**
+     * A single level of an image with its texels in rows from top to bottom.
+     */
+    public static class Level {
+        public final int width, height;
+        /** One byte per component, or one native-order float per component for HDR images */
+        public final ByteBuffer data;
+
+        public Level(int width, int height, ByteBuffer data) {
+            this.width = width;
+            this.height = height;
+            this.data = data;
+        }
+    }
+
+    /**
+     * A decoded image with its mip levels, starting with the full-size image.
+     */
+    public static class Image {
+        public int components;
+        /** Whether the components are floats instead of unsigned normalized bytes */
+        public boolean hdr;
+        public Level[] levels;
+    }
+
+    private int components;
+    private boolean hdr;
+    private boolean flipY;
+    private boolean srgb;
+    private MipFilter mipFilter = MipFilter.NONE;
+
+    /**
+     * Set the number of components of the decoded images, or 0 to use the number of components of each file.
+     */
+    public void setComponents(int components) {
+        if (components < 0 || components > 4)
+            throw new IllegalArgumentException("components");
+        this.components = components;
+    }
+
+    /**
+     * Set whether to decode images to floats with <code>stbi_loadf_from_memory</code>.
+     */
+    public void setHdr(boolean hdr) {
+        this.hdr = hdr;
+    }
+
+    /**
+     * Set whether to flip the images vertically, so that the first row is the bottom one, as expected by OpenGL.
+     * <p>
+     * Unlike <code>stbi_set_flip_vertically_on_load</code>, this does not change global state shared by all threads.
+     */
+    public void setFlipY(boolean flipY) {
+        this.flipY = flipY;
+    }
+
+    /**
+     * Set whether the color components of 8-bit images are sRGB-encoded, so that mip levels are filtered in linear
+     * space. Alpha is always filtered as is.
+     */
+    public void setSrgb(boolean srgb) {
+        this.srgb = srgb;
+    }
+
+    /**
+     * Set the filter for generating mip levels down to 1x1 texels.
+     */
+    public void setMipFilter(MipFilter mipFilter) {
+        if (mipFilter == null)
+            throw new IllegalArgumentException("mipFilter");
+        this.mipFilter = mipFilter;
+    }
+
+    /**
+     * Read and decode the given classpath resource asynchronously.
+     *
+     * @param resource
+     *            the classpath resource
+     * @return a future completing with the image, or with an {@link UncheckedIOException} if the resource could not
+     *         be read or decoded
+     */
+    public CompletableFuture<Image> load(String resource) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return decode(IOUtils.ioResourceToByteBuffer(resource, 8192));
+            } catch (IOException e) {
+                throw new UncheckedIOException(resource + ": " + e.getMessage(), e);
+            }
+        });
+    }
+
+    /**
+     * Wait for an image returned by {@link #load(String)}.
+     *
+     * @throws IOException
+     *             if the image could not be read or decoded
+     */
+    public static Image join(CompletableFuture<Image> image) throws IOException {
+        try {
+            return image.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof UncheckedIOException)
+                throw ((UncheckedIOException) e.getCause()).getCause();
+            throw e;
+        }
+    }
+
+    /**
+     * Decode the image in the remaining bytes of the given buffer and generate its mip levels on the calling thread.
+     */
+    public Image decode(ByteBuffer encoded) throws IOException {
+        IntBuffer w = BufferUtils.createIntBuffer(1);
+        IntBuffer h = BufferUtils.createIntBuffer(1);
+        IntBuffer comp = BufferUtils.createIntBuffer(1);
+        Image image = new Image();
+        image.hdr = hdr;
+        ByteBuffer data;
+        if (hdr) {
+            FloatBuffer pixels = stbi_loadf_from_memory(encoded, w, h, comp, components);
+            if (pixels == null)
+                throw new IOException("Failed to load image: " + stbi_failure_reason());
+            data = BufferUtils.createByteBuffer(4 * pixels.remaining());
+            data.asFloatBuffer().put(pixels);
+            stbi_image_free(pixels);
+        } else {
+            ByteBuffer pixels = stbi_load_from_memory(encoded, w, h, comp, components);
+            if (pixels == null)
+                throw new IOException("Failed to load image: " + stbi_failure_reason());
+            data = BufferUtils.createByteBuffer(pixels.remaining());
+            data.put(pixels).flip();
+            stbi_image_free(pixels);
+        }
+        image.components = components != 0 ? components : comp.get(0);
+        Level base = new Level(w.get(0), h.get(0), data);
+        if (flipY)
+            flipY(base, image.components * (hdr ? 4 : 1));
+        image.levels = mipChain(base, image.components, hdr, srgb, mipFilter);
+        return image;
+    }
+
+    private static void flipY(Level level, int pixelSize) {
+        int rowSize = level.width * pixelSize;
+        byte[] a = new byte[rowSize], b = new byte[rowSize];
+        ByteBuffer data = level.data.duplicate();
+        for (int top = 0, bottom = level.height - 1; top < bottom; top++, bottom--) {
+            data.position(top * rowSize);
+            data.get(a);
+            data.position(bottom * rowSize);
+            data.get(b);
+            data.position(bottom * rowSize);
+            data.put(a);
+            data.position(top * rowSize);
+            data.put(b);
+        }
+    }
+
+    /**
+     * Compute the mip levels of the given level down to 1x1 texels.
+     * <p>
+     * The levels are computed from each other in floating point, so 8-bit images are only rounded once per level.
+     * Texels outside of a level are clamped to its edge.
+     *
+     * @param base
+     *            the full-size level
+     * @param components
+     *            the number of components per texel
+     * @param hdr
+     *            whether the components are floats
+     * @param srgb
+     *            whether the color components of an 8-bit image are sRGB-encoded
+     * @param filter
+     *            the filter
+     * @return the given level followed by the computed ones, or only the given level for {@link MipFilter#NONE}
+     */
+    public static Level[] mipChain(Level base, int components, boolean hdr, boolean srgb, MipFilter filter) {
+        if (components < 1 || components > 4)
+            throw new IllegalArgumentException("components");
+        if (filter == MipFilter.NONE)
+            return new Level[] { base };
+        int numLevels = 32 - Integer.numberOfLeadingZeros(Math.max(base.width, base.height));
+        Level[] levels = new Level[numLevels];
+        levels[0] = base;
+        int alpha = components == 4 ? 3 : components == 2 ? 1 : -1;
+        boolean linearize = srgb && !hdr;
+        float[] src = toFloats(base, components, hdr, linearize, alpha);
+        int sw = base.width, sh = base.height;
+        for (int l = 1; l < numLevels; l++) {
+            int dw = Math.max(1, sw >> 1), dh = Math.max(1, sh >> 1);
+            float[] dst = downsample(src, sw, sh, dw, dh, components, filter);
+            levels[l] = new Level(dw, dh, fromFloats(dst, dw, dh, components, hdr, linearize, alpha));
+            src = dst;
+            sw = dw;
+            sh = dh;
+        }
+        return levels;
+    }
+
+    private static float[] toFloats(Level level, int components, boolean hdr, boolean linearize, int alpha) {
+        int n = level.width * level.height * components;
+        float[] f = new float[n];
+        if (hdr) {
+            level.data.asFloatBuffer().get(f);
+            return f;
+        }
+        float[] lut = new float[256];
+        for (int i = 0; i < 256; i++)
+            lut[i] = i / 255.0f;
+        float[] srgbLut = lut;
+        if (linearize) {
+            srgbLut = new float[256];
+            for (int i = 0; i < 256; i++)
+                srgbLut[i] = srgbToLinear(i / 255.0f);
+        }
+        ByteBuffer data = level.data;
+        int p = data.position();
+        for (int i = 0; i < n; i += components)
+            for (int c = 0; c < components; c++)
+                f[i + c] = (c == alpha ? lut : srgbLut)[data.get(p + i + c) & 0xFF];
+        return f;
+    }
+
+    private static ByteBuffer fromFloats(float[] f, int width, int height, int components, boolean hdr,
+            boolean linearize, int alpha) {
+        int n = width * height * components;
+        if (hdr) {
+            ByteBuffer data = BufferUtils.createByteBuffer(4 * n);
+            FloatBuffer fb = data.asFloatBuffer();
+            for (int i = 0; i < n; i++)
+                fb.put(i, Math.max(0.0f, f[i]));
+            return data;
+        }
+        ByteBuffer data = BufferUtils.createByteBuffer(n);
+        for (int i = 0; i < n; i += components) {
+            for (int c = 0; c < components; c++) {
+                float v = Math.max(0.0f, Math.min(1.0f, f[i + c]));
+                if (linearize && c != alpha)
+                    v = linearToSrgb(v);
+                data.put(i + c, (byte) (int) (v * 255.0f + 0.5f));
+            }
+        }
+        return data;
+    }
+
+    static float srgbToLinear(float c) {
+        return c <= 0.04045f ? c / 12.92f : (float) Math.pow((c + 0.055f) / 1.055f, 2.4);
+    }
+
+    static float linearToSrgb(float l) {
+        return l <= 0.0031308f ? l * 12.92f : (float) (1.055 * Math.pow(l, 1.0 / 2.4) - 0.055);
+    }
+
+    /**
+     * Resample the given texels with the separable filter, first horizontally and then vertically.
+     */
+    private static float[] downsample(float[] src, int sw, int sh, int dw, int dh, int components,
+            MipFilter filter) {
+        float[] tmp = new float[dw * sh * components];
+        Kernel kx = new Kernel(sw, dw, filter);
+        rows(sh, sw).forEach(y -> {
+            for (int c = 0; c < components; c++)
+                kx.apply(src, y * sw * components + c, components, tmp, y * dw * components + c, components, sw);
+        });
+        float[] dst = new float[dw * dh * components];
+        Kernel ky = new Kernel(sh, dh, filter);
+        int rowSize = dw * components;
+        rows(rowSize, sh).forEach(x -> ky.apply(tmp, x, rowSize, dst, x, rowSize, sh));
+        return dst;
+    }
+
+    /**
+     * Return the given number of lines, in parallel if there is enough work.
+     */
+    private static IntStream rows(int count, int length) {
+        IntStream range = IntStream.range(0, count);
+        return (long) count * length >= PARALLEL_THRESHOLD ? range.parallel() : range;
+    }
+
+    /**
+     * The normalized weights of the source texels contributing to each destination texel along one axis.
+     */
+    private static class Kernel {
+        final int dstSize, taps;
+        final int[] first;
+        final float[] weights;
+
+        Kernel(int srcSize, int dstSize, MipFilter filter) {
+            this.dstSize = dstSize;
+            float scale = (float) srcSize / dstSize;
+            float radius = filter.support * scale;
+            taps = (int) Math.ceil(2.0f * radius) + 1;
+            first = new int[dstSize];
+            weights = new float[dstSize * taps];
+            for (int d = 0; d < dstSize; d++) {
+                float center = (d + 0.5f) * scale;
+                first[d] = (int) Math.floor(center - radius);
+                float sum = 0.0f;
+                for (int t = 0; t < taps; t++) {
+                    float w = filter.weight((first[d] + t + 0.5f - center) / scale);
+                    weights[d * taps + t] = w;
+                    sum += w;
+                }
+                for (int t = 0; t < taps; t++)
+                    weights[d * taps + t] /= sum;
+            }
+        }
+
+        /**
+         * Filter a line of <code>srcSize</code> elements with the given offset and stride, clamping indices to the
+         * line.
+         */
+        void apply(float[] src, int srcOffset, int srcStride, float[] dst, int dstOffset, int dstStride,
+                int srcSize) {
+            for (int d = 0; d < dstSize; d++) {
+                float v = 0.0f;
+                for (int t = 0; t < taps; t++) {
+                    int s = Math.max(0, Math.min(srcSize - 1, first[d] + t));
+                    v += weights[d * taps + t] * src[srcOffset + s * srcStride];
+                }
+                dst[dstOffset + d * dstStride] = v;
+            }
+        }
+    }
+
+    /**
+     * Check the mip generation without decoding any image, so that it can be run without a GPU or stb_image.
+     */
+    public static void main(String[] args) {
+        /* A box filter averages exactly the 2x2 blocks of a 4x4 level */
+        byte[] texels = { 10, 20, 0, 100, 30, 40, 50, 50, 1, 1, 64, 64, 3, 3, 0, (byte) 128 };
+        ByteBuffer data = BufferUtils.createByteBuffer(16);
+        data.put(texels).flip();
+        Level[] box = mipChain(new Level(4, 4, data), 1, false, false, MipFilter.BOX);
+        check(box.length == 3 && box[1].width == 2 && box[1].height == 2 && box[2].width == 1, "box levels");
+        int[] expected = { 25, 50, 2, 64 };
+        for (int i = 0; i < 4; i++)
+            check((box[1].data.get(i) & 0xFF) == expected[i], "box average " + i);
+        check((box[2].data.get(0) & 0xFF) == 35, "box 1x1 average");
+
+        /* sRGB encoding and decoding round-trip all 8-bit values */
+        for (int i = 0; i < 256; i++)
+            check((int) (linearToSrgb(srgbToLinear(i / 255.0f)) * 255.0f + 0.5f) == i, "sRGB round trip " + i);
+        /* and averaging black and white in linear space gives the sRGB encoding of half the intensity */
+        ByteBuffer bw = BufferUtils.createByteBuffer(8);
+        for (int i = 0; i < 8; i++)
+            bw.put(i, (byte) ((i & 1) == 0 ? 0 : 255));
+        Level[] srgb = mipChain(new Level(4, 2, bw), 1, false, true, MipFilter.BOX);
+        check((srgb[1].data.get(0) & 0xFF) == 188, "sRGB average");
+
+        /* Kaiser weights are normalized for any ratio of sizes, so a constant level stays constant */
+        for (int size = 1; size <= 33; size++) {
+            Kernel kernel = new Kernel(size, Math.max(1, size >> 1), MipFilter.KAISER);
+            for (int d = 0; d < kernel.dstSize; d++) {
+                float sum = 0.0f;
+                for (int t = 0; t < kernel.taps; t++)
+                    sum += kernel.weights[d * kernel.taps + t];
+                check(Math.abs(sum - 1.0f) < 1E-5f, "Kaiser weights of " + size + " at " + d);
+            }
+        }
+        ByteBuffer gray = BufferUtils.createByteBuffer(3 * 7 * 5);
+        for (int i = 0; i < gray.capacity(); i++)
+            gray.put(i, (byte) 77);
+        for (Level level : mipChain(new Level(7, 5, gray), 3, false, true, MipFilter.KAISER))
+            for (int i = 0; i < 3 * level.width * level.height; i++)
+                check((level.data.get(i) & 0xFF) == 77, "Kaiser constant level " + level.width + "x" + level.height);
+        System.out.println("ImageLoader mip chain checks passed");
+    }
+
+    private static void check(boolean condition, String what) {
+        if (!condition)
+            throw new AssertionError(what);
+    }
+
+    /**
+     * The modified Bessel function of the first kind of order zero.
+     */
+    private static double bessel0(double x) {
+        double sum = 1.0, term = 1.0, q = x * x / 4.0;
+        for (int k = 1; k < 32 && term > sum * 1E-12; k++) {
+            term *= q / (k * k);
+            sum += term;
+        }
+        return sum;
+    }
+}
@@ -8,6 +8,9 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
 
 import org.joml.Vector3f;
 
@@ -51,6 +54,14 @@ public class KDTree {
     // threshold
     public int mSahThreshold = 6400;
 
+    // Binned SAH parameters:
+    // number of bins per axis
+    public int mSahBins = 32;
+    // build subtrees in parallel on the common ForkJoinPool
+    public boolean mParallelBuild = true;
+    // min triangles in node to build its subtrees in parallel
+    public int mParallelThreshold = 2048;
+
     // for statistics
     private int mTriCount = 0;
 
@@ -64,7 +75,7 @@ public class KDTree {
     }
 
     public enum Split {
-        MEAN, MEDIAN, SAH
+        MEAN, MEDIAN, SAH, BINNED_SAH
     }
 
     private enum BoundaryType {
@@ -349,8 +360,18 @@ public class KDTree {
         mRootNode.boundingBox = bbox;
         mTriCount = list.size();
 
-        // create the tree recursively, the children start as y-axis
-        buildTree(mRootNode, Axis.X_AXIS, 0);
+        if (mSplitStrategy == Split.BINNED_SAH) {
+            // compute all bounds up front, since they are lazily created and the build may run in parallel
+            for (int i = 0; i < list.size(); i++)
+                list.get(i).getBounds();
+            if (mParallelBuild)
+                ForkJoinPool.commonPool().invoke(new BinnedBuild(mRootNode, 0));
+            else
+                buildTreeBinned(mRootNode, 0);
+        } else {
+            // create the tree recursively, the children start as y-axis
+            buildTree(mRootNode, Axis.X_AXIS, 0);
+        }
         // Build ropes
         mRootNode.processNode(mRootNode.ropes = new Node[6]);
         // Optimize ropes
@@ -380,6 +401,9 @@ public class KDTree {
                 + "]";
         statistics += "\n  split strategy : " + mSplitStrategy.name();
         statistics += "\n  triangles (in tree) : " + mTriCount + " (" + TriangleCount(mRootNode) + ")";
+        statistics += "\n  nodes (leaves) : " + NodeCount(mRootNode) + " (" + LeafCount(mRootNode) + ")";
+        statistics += "\n  max depth : " + MaxDepth(mRootNode);
+        statistics += "\n  SAH cost : " + SahCost();
         statistics += "\n  build time (ms) : " + lTime;
         statistics += "\n\n";
 
@@ -392,6 +416,46 @@ public class KDTree {
         return node.triangles.size();
     }
 
+    private int NodeCount(Node node) {
+        if (!node.isLeafNode())
+            return 1 + NodeCount(node.left) + NodeCount(node.right);
+        return 1;
+    }
+
+    private int LeafCount(Node node) {
+        if (!node.isLeafNode())
+            return LeafCount(node.left) + LeafCount(node.right);
+        return 1;
+    }
+
+    private int MaxDepth(Node node) {
+        if (!node.isLeafNode())
+            return 1 + Math.max(MaxDepth(node.left), MaxDepth(node.right));
+        return 0;
+    }
+
+    private static float halfArea(Box b) {
+        float ex = b.max.x - b.min.x, ey = b.max.y - b.min.y, ez = b.max.z - b.min.z;
+        return ex * ey + ey * ez + ez * ex;
+    }
+
+    /**
+     * Compute the expected cost of a random ray through the tree using the surface area heuristic with the current
+     * traversal and intersection costs. Lower is better. This allows to compare trees built with different split
+     * strategies.
+     */
+    public float SahCost() {
+        if (mRootNode == null)
+            return 0.0f;
+        return SahCost(mRootNode) / halfArea(mRootNode.boundingBox);
+    }
+
+    private float SahCost(Node node) {
+        if (!node.isLeafNode())
+            return mSahTrvCosts * halfArea(node.boundingBox) + SahCost(node.left) + SahCost(node.right);
+        return mSahIntCosts * halfArea(node.boundingBox) * node.triangles.size();
+    }
+
     // recursive tree building method
     private void buildTree(Node node, Axis axis, int depth) {
         // just for debug
@@ -415,52 +479,222 @@ public class KDTree {
 
         // do only subdivide current node if Triangle number is still over the maximum
         if (node.triangles.size() > mMinPrim && depth < mMaxDepth) {
-            // create both childrens
-            node.left = new Node();
-            node.right = new Node();
+            splitNode(node, null);
 
-            // initiate their bounding box
-            node.left.boundingBox = new Box(node.boundingBox);
-            node.left.boundingBox.setMax(node.splitAxis, node.splitPlane);
-            node.right.boundingBox = new Box(node.boundingBox);
-            node.right.boundingBox.setMin(node.splitAxis, node.splitPlane);
+            Axis nextAxis = Axis.values()[(axis.ordinal() + 1) % 3];
 
-            // check based on the split plane where to put the Triangles
-            for (int i = 0; i < node.triangles.size(); i++) {
-                Box box = node.triangles.get(i).getBounds();
+            // setup the subtrees
+            buildTree(node.left, nextAxis, depth + 1);
+            buildTree(node.right, nextAxis, depth + 1);
 
-                // if Triangle lies completly on the right side
-                if (Vector3f_get(box.min, node.splitAxis.dim) >= node.splitPlane) {
-                    node.right.triangles.add(node.triangles.get(i));
+            // do return
+            return;
+        }
 
-                    // if Triangle lies completly on the left side
-                } else {
-                    if (Vector3f_get(box.max, node.splitAxis.dim) <= node.splitPlane) {
-                        node.left.triangles.add(node.triangles.get(i));
+        // we can only be here, if we have reached a leaf node
+        node.splitAxis = Axis.NO_AXIS;
+    }
 
-                        // for the rest of cases we just put the Triangle in both subtrees
-                    } else {
-                        node.left.triangles.add(node.triangles.get(i));
-                        node.right.triangles.add(node.triangles.get(i));
-                    }
+    // create both children of the node and distribute its Triangles among them, using the given per-Triangle bounds
+    // or, if null, the Triangles' own bounds
+    private void splitNode(Node node, Box[] bounds) {
+        // create both childrens
+        node.left = new Node();
+        node.right = new Node();
+
+        // initiate their bounding box
+        node.left.boundingBox = new Box(node.boundingBox);
+        node.left.boundingBox.setMax(node.splitAxis, node.splitPlane);
+        node.right.boundingBox = new Box(node.boundingBox);
+        node.right.boundingBox.setMin(node.splitAxis, node.splitPlane);
+
+        // check based on the split plane where to put the Triangles
+        for (int i = 0; i < node.triangles.size(); i++) {
+            Box box = bounds != null ? bounds[i] : node.triangles.get(i).getBounds();
+
+            // if Triangle lies completly on the right side
+            if (Vector3f_get(box.min, node.splitAxis.dim) >= node.splitPlane) {
+                node.right.triangles.add(node.triangles.get(i));
+
+                // if Triangle lies completly on the left side
+            } else {
+                if (Vector3f_get(box.max, node.splitAxis.dim) <= node.splitPlane) {
+                    node.left.triangles.add(node.triangles.get(i));
+
+                    // for the rest of cases we just put the Triangle in both subtrees
+                } else {
+                    node.left.triangles.add(node.triangles.get(i));
+                    node.right.triangles.add(node.triangles.get(i));
                 }
             }
+        }
 
-            // clear the node's Triangle list, since now the childrens do contain them
-            node.triangles.clear();
+        // clear the node's Triangle list, since now the childrens do contain them
+        node.triangles.clear();
+    }
 
-            Axis nextAxis = Axis.values()[(axis.ordinal() + 1) % 3];
+    private final class BinnedBuild extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final Node node;
+        private final int depth;
 
-            // setup the subtrees
-            buildTree(node.left, nextAxis, depth + 1);
-            buildTree(node.right, nextAxis, depth + 1);
+        BinnedBuild(Node node, int depth) {
+            this.node = node;
+            this.depth = depth;
+        }
 
-            // do return
+        @Override
+        protected void compute() {
+            buildTreeBinned(node, depth);
+        }
+    }
+
+    // recursive tree building method for the binned SAH, forking large subtrees
+    private void buildTreeBinned(Node node, int depth) {
+        if (node.triangles.size() <= mMinPrim || depth >= mMaxDepth) {
+            node.splitAxis = Axis.NO_AXIS;
+            return;
+        }
+        Box[] bounds = new Box[node.triangles.size()];
+        node.splitPlane = findSplitPlaneBinned(node, bounds);
+        if (node.splitAxis.equals(Axis.NO_AXIS)) {
             return;
         }
+        splitNode(node, bounds);
+        if (mParallelBuild && node.left.triangles.size() + node.right.triangles.size() > mParallelThreshold) {
+            ForkJoinTask.invokeAll(new BinnedBuild(node.left, depth + 1), new BinnedBuild(node.right, depth + 1));
+        } else {
+            buildTreeBinned(node.left, depth + 1);
+            buildTreeBinned(node.right, depth + 1);
+        }
+    }
 
-        // we can only be here, if we have reached a leaf node
+    /**
+     * Find the split plane with the lowest SAH cost over all three axes by binning the clipped triangle bounds into
+     * {@link #mSahBins} bins per axis. This is O(n) per node, so the whole build is O(n log n).
+     * <p>
+     * The bounds of each triangle are those of the part of the triangle inside of the node's box (see
+     * {@link #clipBounds(Triangle, Box, float[])}) and are stored in <code>bounds</code>, so that
+     * {@link #splitNode(Node, Box[])} only puts a triangle into both children if its clipped part straddles the plane.
+     * <p>
+     * Sets the split axis of the node to {@link Axis#NO_AXIS} if no split is cheaper than making the node a leaf.
+     */
+    private float findSplitPlaneBinned(Node node, Box[] bounds) {
+        Box bb = node.boundingBox;
+        int nPrims = node.triangles.size();
+        int bins = mSahBins;
+        float area = halfArea(bb);
         node.splitAxis = Axis.NO_AXIS;
+        if (area <= EPSILON) {
+            return Float.POSITIVE_INFINITY;
+        }
+        // per axis counts of triangles starting and ending in each bin
+        int[] minBins = new int[3 * bins];
+        int[] maxBins = new int[3 * bins];
+        float[] polygon = new float[2 * 9 * 3];
+        for (int i = 0; i < nPrims; i++) {
+            Box b = bounds[i] = clipBounds(node.triangles.get(i), bb, polygon);
+            for (int ax = 0; ax < 3; ax++) {
+                float bmin = Vector3f_get(bb.min, ax), width = Vector3f_get(bb.max, ax) - bmin;
+                if (width <= EPSILON)
+                    continue;
+                float scale = bins / width;
+                int lo = (int) ((Vector3f_get(b.min, ax) - bmin) * scale);
+                int hi = (int) ((Vector3f_get(b.max, ax) - bmin) * scale);
+                minBins[ax * bins + Math.max(0, Math.min(bins - 1, lo))]++;
+                maxBins[ax * bins + Math.max(0, Math.min(bins - 1, hi))]++;
+            }
+        }
+        // find minimum cost, starting with the cost of not splitting at all
+        float mincost = mSahIntCosts * nPrims;
+        float splitPlane = Float.POSITIVE_INFINITY;
+        for (int ax = 0; ax < 3; ax++) {
+            float bmin = Vector3f_get(bb.min, ax), width = Vector3f_get(bb.max, ax) - bmin;
+            if (width <= EPSILON)
+                continue;
+            float e1 = Vector3f_get(bb.max, (ax + 1) % 3) - Vector3f_get(bb.min, (ax + 1) % 3);
+            float e2 = Vector3f_get(bb.max, (ax + 2) % 3) - Vector3f_get(bb.min, (ax + 2) % 3);
+            int nLeft = 0, nRight = nPrims;
+            for (int i = 1; i < bins; i++) {
+                nLeft += minBins[ax * bins + i - 1];
+                nRight -= maxBins[ax * bins + i - 1];
+                float wl = width * i / bins, wr = width - wl;
+                float areaLeft = (wl * (e1 + e2) + e1 * e2), areaRight = (wr * (e1 + e2) + e1 * e2);
+                float cost = mSahTrvCosts + mSahIntCosts * (areaLeft * nLeft + areaRight * nRight) / area;
+                if (cost < mincost) {
+                    mincost = cost;
+                    splitPlane = bmin + wl;
+                    node.splitAxis = Axis.values()[ax];
+                }
+            }
+        }
+        return splitPlane;
+    }
+
+    /**
+     * Return the bounds of the part of the given triangle inside of <code>box</code>, by clipping the triangle against
+     * the six planes of the box.
+     * <p>
+     * If the triangle's bounds already lie within the box, these are returned. If clipping leaves nothing, because of
+     * round-off for a triangle only touching the box, the triangle's bounds intersected with the box are returned.
+     *
+     * @param polygon
+     *            scratch space for the two vertex lists of the clipper, holding at least 54 floats
+     */
+    private static Box clipBounds(Triangle t, Box box, float[] polygon) {
+        Box tb = t.getBounds();
+        if (tb.min.x >= box.min.x && tb.min.y >= box.min.y && tb.min.z >= box.min.z && tb.max.x <= box.max.x
+                && tb.max.y <= box.max.y && tb.max.z <= box.max.z)
+            return tb;
+        Box cb = new Box();
+        cb.min = new Vector3f(tb.min).max(box.min);
+        cb.max = new Vector3f(tb.max).min(box.max);
+        for (int k = 0; k < 3; k++) {
+            polygon[k] = Vector3f_get(t.v0, k);
+            polygon[3 + k] = Vector3f_get(t.v1, k);
+            polygon[6 + k] = Vector3f_get(t.v2, k);
+        }
+        int n = 3, in = 0, out = 27;
+        // Sutherland-Hodgman against the min and max plane of each axis
+        for (int plane = 0; plane < 6 && n > 0; plane++) {
+            int ax = plane >>> 1;
+            float sign = (plane & 1) == 0 ? 1.0f : -1.0f;
+            float p = Vector3f_get((plane & 1) == 0 ? box.min : box.max, ax);
+            int m = 0;
+            for (int i = 0; i < n; i++) {
+                int a = in + 3 * i, b = in + 3 * ((i + 1) % n);
+                float da = sign * (polygon[a + ax] - p), db = sign * (polygon[b + ax] - p);
+                if (da >= 0.0f) {
+                    System.arraycopy(polygon, a, polygon, out + 3 * m++, 3);
+                }
+                if (da >= 0.0f != db >= 0.0f) {
+                    float s = da / (da - db);
+                    for (int k = 0; k < 3; k++)
+                        polygon[out + 3 * m + k] = polygon[a + k] + s * (polygon[b + k] - polygon[a + k]);
+                    polygon[out + 3 * m++ + ax] = p;
+                }
+            }
+            n = m;
+            int tmp = in;
+            in = out;
+            out = tmp;
+        }
+        if (n == 0)
+            return cb;
+        float minX = Float.POSITIVE_INFINITY, minY = Float.POSITIVE_INFINITY, minZ = Float.POSITIVE_INFINITY;
+        float maxX = Float.NEGATIVE_INFINITY, maxY = Float.NEGATIVE_INFINITY, maxZ = Float.NEGATIVE_INFINITY;
+        for (int i = in; i < in + 3 * n; i += 3) {
+            minX = Math.min(minX, polygon[i]);
+            minY = Math.min(minY, polygon[i + 1]);
+            minZ = Math.min(minZ, polygon[i + 2]);
+            maxX = Math.max(maxX, polygon[i]);
+            maxY = Math.max(maxY, polygon[i + 1]);
+            maxZ = Math.max(maxZ, polygon[i + 2]);
+        }
+        // stay within the triangle's bounds and the box against round-off in the interpolated coordinates
+        cb.min.max(new Vector3f(minX, minY, minZ));
+        cb.max.min(new Vector3f(maxX, maxY, maxZ));
+        return cb;
     }
 
     // find optimal split
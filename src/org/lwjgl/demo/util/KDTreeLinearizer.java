@@ -0,0 +1,199 @@
+/*
+ * Copyright LWJGL. All rights reserved.
+ * License terms: https://www.lwjgl.org/license
+ */
+package org.lwjgl.demo.util;
+
+import java.util.Arrays;
+
+/**
+ * Linearizes a kd-tree of linked node objects into GPU buffers.
+ * <p>
+ * A single traversal assigns each node its index in the chosen {@link Layout}, storing it in the node itself. Then
+ * the nodes are handed to a {@link Writer} once each in index order, so that the writer can put the node, its leaf
+ * data and its primitives directly into off-heap buffers, such as {@link DynamicByteBuffer}s, and refer to children
+ * and ropes by their indices. No maps, queues or intermediate node objects are created.
+ *
+ * @author Kai Burjack
+ */
+public class KDTreeLinearizer {
+
+    /**
+     * The order of the nodes in the buffers.
+     */
+    public enum Layout {
+        /**
+         * Depth-first pre-order, so the left child of an inner node always directly follows it and a descending ray
+         * mostly reads consecutive nodes.
+         */
+        DEPTH_FIRST,
+        /**
+         * Van Emde Boas layout: the top half of the levels of the tree is laid out recursively first, followed by each
+         * of the subtrees below it. This keeps the nodes of any path close together at every level of granularity,
+         * independently of the cache line size.
+         */
+        VAN_EMDE_BOAS
+    }
+
+    /**
+     * Gives access to the structure of a tree of node objects of type <code>N</code>.
+     */
+    public interface Tree<N> {
+        /** Return the left child of the node or <code>null</code> if it is a leaf */
+        N left(N node);
+
+        /** Return the right child of the node or <code>null</code> if it is a leaf */
+        N right(N node);
+
+        /** Return the number of primitives of a leaf */
+        int primitiveCount(N leaf);
+
+        /** Return the index previously stored with {@link #index(Object, int)} */
+        int index(N node);
+
+        /** Store the index of the node in the linearized tree */
+        void index(N node, int index);
+    }
+
+    /**
+     * Writes a single node once the indices of all nodes are known.
+     */
+    public interface Writer<N> {
+        /**
+         * Write the given node.
+         *
+         * @param node
+         *            the node
+         * @param index
+         *            the index of the node
+         * @param leafIndex
+         *            the index of the node among all leaves in index order, or <code>-1</code> for inner nodes
+         * @param firstPrimitive
+         *            the number of primitives of all leaves with a smaller index
+         */
+        void write(N node, int index, int leafIndex, int firstPrimitive);
+    }
+
+    private Object[] order = new Object[64];
+    private int count;
+
+    private KDTreeLinearizer() {
+    }
+
+    /**
+     * Linearize the tree with the given root.
+     *
+     * @param root
+     *            the root node
+     * @param layout
+     *            the order of the nodes
+     * @param tree
+     *            gives access to the nodes
+     * @param writer
+     *            writes each node
+     * @return the number of nodes
+     */
+    @SuppressWarnings("unchecked")
+    public static <N> int linearize(N root, Layout layout, Tree<N> tree, Writer<N> writer) {
+        KDTreeLinearizer l = new KDTreeLinearizer();
+        if (root != null) {
+            switch (layout) {
+            case DEPTH_FIRST:
+                l.depthFirst(root, tree);
+                break;
+            case VAN_EMDE_BOAS:
+                l.vanEmdeBoas(root, height(root, tree), tree);
+                break;
+            default:
+                throw new IllegalArgumentException("layout");
+            }
+        }
+        int leafIndex = 0, firstPrimitive = 0;
+        for (int i = 0; i < l.count; i++) {
+            N node = (N) l.order[i];
+            if (tree.left(node) == null) {
+                writer.write(node, i, leafIndex++, firstPrimitive);
+                firstPrimitive += tree.primitiveCount(node);
+            } else {
+                writer.write(node, i, -1, firstPrimitive);
+            }
+        }
+        return l.count;
+    }
+
+    /**
+     * Return a {@link Tree} for {@link KDTreei} nodes, which stores the indices in {@link KDTreei.Node#index}.
+     */
+    public static <B extends Boundable<B>> Tree<KDTreei.Node<B>> kdTreei() {
+        return new Tree<KDTreei.Node<B>>() {
+            public KDTreei.Node<B> left(KDTreei.Node<B> node) {
+                return node.left;
+            }
+            public KDTreei.Node<B> right(KDTreei.Node<B> node) {
+                return node.right;
+            }
+            public int primitiveCount(KDTreei.Node<B> leaf) {
+                return leaf.boundables.size();
+            }
+            public int index(KDTreei.Node<B> node) {
+                return node.index;
+            }
+            public void index(KDTreei.Node<B> node, int index) {
+                node.index = index;
+            }
+        };
+    }
+
+    private <N> void add(N node, Tree<N> tree) {
+        if (count == order.length)
+            order = Arrays.copyOf(order, count * 2);
+        tree.index(node, count);
+        order[count++] = node;
+    }
+
+    private <N> void depthFirst(N node, Tree<N> tree) {
+        while (true) {
+            add(node, tree);
+            N left = tree.left(node);
+            if (left == null)
+                return;
+            depthFirst(left, tree);
+            node = tree.right(node);
+        }
+    }
+
+    private static <N> int height(N node, Tree<N> tree) {
+        N left = tree.left(node);
+        if (left == null)
+            return 1;
+        return 1 + Math.max(height(left, tree), height(tree.right(node), tree));
+    }
+
+    /**
+     * Lay out all nodes less than <code>height</code> levels below the given node.
+     */
+    private <N> void vanEmdeBoas(N node, int height, Tree<N> tree) {
+        if (height == 1) {
+            add(node, tree);
+            return;
+        }
+        int top = height >>> 1;
+        vanEmdeBoas(node, top, tree);
+        bottom(node, top, height - top, tree);
+    }
+
+    /**
+     * Lay out the subtrees rooted <code>depth</code> levels below the given node from left to right.
+     */
+    private <N> void bottom(N node, int depth, int height, Tree<N> tree) {
+        if (depth == 0) {
+            vanEmdeBoas(node, height, tree);
+            return;
+        }
+        N left = tree.left(node);
+        if (left == null)
+            return;
+        bottom(left, depth - 1, height, tree);
+        bottom(tree.right(node), depth - 1, height, tree);
+    }
+}
@@ -0,0 +1,253 @@
+/*
+ * Copyright LWJGL. All rights reserved.
+ * License terms: https://www.lwjgl.org/license
+ */
+package org.lwjgl.demo.util;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.stream.IntStream;
+
+/**
+ * Closest-hit and any-hit ray queries against a {@link CompactKDTree} on the CPU, using the same <a href=
+ * "https://graphics.cg.uni-saarland.de/fileadmin/cguds/papers/2007/popov_07_GPURT/Popov_et_al._-_Stackless_KD-Tree_Traversal_for_High_Performance_GPU_Ray_Tracing.pdf"
+ * >Stackless KD-Tree Traversal</a> with ropes as the ray tracing compute shaders.
+ * <p>
+ * Single rays are queried with {@link #closestHit(float, float, float, float, float, float, float, float, Hit)} and
+ * {@link #anyHit(float, float, float, float, float, float, float, float, Hit)}. Batches of rays are given in
+ * struct-of-arrays layout and can be processed in parallel. No memory is allocated per ray.
+ * <p>
+ * Instances of this class only read the tree and can be used by multiple threads at once.
+ *
+ * @author Kai Burjack
+ */
+public class KDTreeRayCaster {
+
+    /**
+     * Number of rays processed by a single task when processing a batch in parallel.
+     */
+    private static final int BATCH_SIZE = 256;
+
+    private static final ThreadLocal<Hit> HITS = ThreadLocal.withInitial(Hit::new);
+
+    /**
+     * The result of a ray query.
+     */
+    public static class Hit {
+        /** The distance along the ray in units of the ray direction */
+        public float t;
+        /** The barycentric coordinates of the hit point */
+        public float u, v;
+        /** The index of the hit triangle in {@link CompactKDTree#triangles} or <code>-1</code> */
+        public int triangle = -1;
+    }
+
+    private final CompactKDTree tree;
+
+    public KDTreeRayCaster(CompactKDTree tree) {
+        this.tree = tree;
+    }
+
+    /**
+     * Find the closest triangle hit by the ray <code>o + t * d</code> with <code>tmin &lt;= t &lt;= tmax</code>.
+     *
+     * @return whether any triangle was hit
+     */
+    public boolean closestHit(float ox, float oy, float oz, float dx, float dy, float dz, float tmin, float tmax,
+            Hit hit) {
+        return traverse(ox, oy, oz, dx, dy, dz, tmin, tmax, false, hit);
+    }
+
+    /**
+     * Find any triangle hit by the ray <code>o + t * d</code> with <code>tmin &lt;= t &lt;= tmax</code>, which is
+     * cheaper than finding the closest one, e.g. for shadow rays.
+     *
+     * @return whether any triangle was hit
+     */
+    public boolean anyHit(float ox, float oy, float oz, float dx, float dy, float dz, float tmin, float tmax, Hit hit) {
+        return traverse(ox, oy, oz, dx, dy, dz, tmin, tmax, true, hit);
+    }
+
+    /**
+     * Find the closest hit of each ray in the given batch.
+     * <p>
+     * Starting at its position, <code>rays</code> contains eight consecutive arrays of <code>count</code> floats:
+     * <code>ox, oy, oz, dx, dy, dz, tmin, tmax</code>. Starting at its position, <code>hits</code> receives three
+     * arrays of <code>count</code> floats: <code>t, u, v</code>, and <code>triangles</code> receives the index of the
+     * hit triangle or <code>-1</code> for each ray. The positions of the buffers are not changed.
+     *
+     * @param parallel
+     *            whether to process the batch in parallel using the common fork-join pool
+     */
+    public void closestHits(FloatBuffer rays, int count, FloatBuffer hits, IntBuffer triangles, boolean parallel) {
+        checkBatch(rays, count, triangles);
+        if (hits.remaining() < 3 * count)
+            throw new IllegalArgumentException("hits");
+        forEachBatch(count, parallel, (first, end) -> {
+            Hit hit = HITS.get();
+            int r = rays.position(), h = hits.position(), tr = triangles.position();
+            for (int i = first; i < end; i++) {
+                boolean found = traverse(rays.get(r + i), rays.get(r + count + i), rays.get(r + 2 * count + i),
+                        rays.get(r + 3 * count + i), rays.get(r + 4 * count + i), rays.get(r + 5 * count + i),
+                        rays.get(r + 6 * count + i), rays.get(r + 7 * count + i), false, hit);
+                hits.put(h + i, found ? hit.t : Float.POSITIVE_INFINITY);
+                hits.put(h + count + i, found ? hit.u : 0.0f);
+                hits.put(h + 2 * count + i, found ? hit.v : 0.0f);
+                triangles.put(tr + i, found ? hit.triangle : -1);
+            }
+        });
+    }
+
+    /**
+     * Determine for each ray in the given batch whether it hits any triangle.
+     * <p>
+     * <code>rays</code> has the same layout as in {@link #closestHits(FloatBuffer, int, FloatBuffer, IntBuffer, boolean)}.
+     * <code>triangles</code> receives the index of some hit triangle or <code>-1</code> for each ray.
+     *
+     * @param parallel
+     *            whether to process the batch in parallel using the common fork-join pool
+     */
+    public void anyHits(FloatBuffer rays, int count, IntBuffer triangles, boolean parallel) {
+        checkBatch(rays, count, triangles);
+        forEachBatch(count, parallel, (first, end) -> {
+            Hit hit = HITS.get();
+            int r = rays.position(), tr = triangles.position();
+            for (int i = first; i < end; i++) {
+                boolean found = traverse(rays.get(r + i), rays.get(r + count + i), rays.get(r + 2 * count + i),
+                        rays.get(r + 3 * count + i), rays.get(r + 4 * count + i), rays.get(r + 5 * count + i),
+                        rays.get(r + 6 * count + i), rays.get(r + 7 * count + i), true, hit);
+                triangles.put(tr + i, found ? hit.triangle : -1);
+            }
+        });
+    }
+
+    private static void checkBatch(FloatBuffer rays, int count, IntBuffer triangles) {
+        if (count < 0)
+            throw new IllegalArgumentException("count");
+        if (rays.remaining() < 8 * count)
+            throw new IllegalArgumentException("rays");
+        if (triangles.remaining() < count)
+            throw new IllegalArgumentException("triangles");
+    }
+
+    private interface RayRange {
+        void process(int first, int end);
+    }
+
+    private static void forEachBatch(int count, boolean parallel, RayRange range) {
+        if (!parallel || count <= BATCH_SIZE) {
+            range.process(0, count);
+            return;
+        }
+        IntStream.range(0, (count + BATCH_SIZE - 1) / BATCH_SIZE).parallel()
+                .forEach(batch -> range.process(batch * BATCH_SIZE, Math.min(count, (batch + 1) * BATCH_SIZE)));
+    }
+
+    private boolean traverse(float ox, float oy, float oz, float dx, float dy, float dz, float tmin, float tmax,
+            boolean any, Hit hit) {
+        CompactKDTree t = tree;
+        if (t.nodeCount == 0)
+            return false;
+        float idx = 1.0f / dx, idy = 1.0f / dy, idz = 1.0f / dz;
+        float[] b = t.bounds;
+        /* Clip the ray against the bounds of the whole tree */
+        float tx0 = (b[0] - ox) * idx, tx1 = (b[3] - ox) * idx;
+        float ty0 = (b[1] - oy) * idy, ty1 = (b[4] - oy) * idy;
+        float tz0 = (b[2] - oz) * idz, tz1 = (b[5] - oz) * idz;
+        float tEntry = max(tmin, max(min(tx0, tx1), max(min(ty0, ty1), min(tz0, tz1))));
+        float tExit = min(tmax, min(max(tx0, tx1), min(max(ty0, ty1), max(tz0, tz1))));
+        if (!(tEntry <= tExit))
+            return false;
+        hit.triangle = -1;
+        hit.t = tmax;
+        int[] nodes = t.nodes, leaves = t.leaves;
+        float[] leafBounds = t.leafBounds;
+        int node = 0;
+        while (node != -1) {
+            /* Descend to the leaf containing the entry point */
+            float px = ox + dx * tEntry, py = oy + dy * tEntry, pz = oz + dz * tEntry;
+            int n;
+            while (((n = nodes[node * 2]) & 3) != CompactKDTree.LEAF) {
+                int axis = n & 3;
+                float split = Float.intBitsToFloat(nodes[node * 2 + 1]);
+                float p = axis == 0 ? px : axis == 1 ? py : pz;
+                float d = axis == 0 ? dx : axis == 1 ? dy : dz;
+                node = p < split || p == split && d < 0.0f ? node + 1 : n >>> 2;
+            }
+            int leaf = n >>> 2;
+            int first = leaves[leaf * CompactKDTree.LEAF_SIZE], count = leaves[leaf * CompactKDTree.LEAF_SIZE + 1];
+            for (int i = first; i < first + count; i++) {
+                if (intersectTriangle(t.triangles, t.primitives[i], ox, oy, oz, dx, dy, dz, tEntry, hit) && any)
+                    return true;
+            }
+            /* Find the side through which the ray leaves the leaf */
+            int lb = leaf * 6;
+            float ex = (dx >= 0.0f ? leafBounds[lb + 3] : leafBounds[lb]) - ox;
+            float ey = (dy >= 0.0f ? leafBounds[lb + 4] : leafBounds[lb + 1]) - oy;
+            float ez = (dz >= 0.0f ? leafBounds[lb + 5] : leafBounds[lb + 2]) - oz;
+            float tx = dx != 0.0f ? ex * idx : Float.POSITIVE_INFINITY;
+            float ty = dy != 0.0f ? ey * idy : Float.POSITIVE_INFINITY;
+            float tz = dz != 0.0f ? ez * idz : Float.POSITIVE_INFINITY;
+            float tLeafExit;
+            int side;
+            if (tx <= ty && tx <= tz) {
+                tLeafExit = tx;
+                side = dx >= 0.0f ? 0 : 1;
+            } else if (ty <= tz) {
+                tLeafExit = ty;
+                side = dy >= 0.0f ? 2 : 3;
+            } else {
+                tLeafExit = tz;
+                side = dz >= 0.0f ? 4 : 5;
+            }
+            /* The closest hit found so far lies within this leaf, so no other leaf can have a closer one */
+            if (hit.triangle != -1 && hit.t <= tLeafExit)
+                return true;
+            tEntry = max(tEntry, tLeafExit);
+            if (tEntry > hit.t)
+                break;
+            node = leaves[leaf * CompactKDTree.LEAF_SIZE + 2 + side];
+        }
+        return hit.triangle != -1;
+    }
+
+    /**
+     * Möller-Trumbore ray-triangle intersection, updating the hit if the triangle is closer than the current one.
+     */
+    private static boolean intersectTriangle(float[] triangles, int triangle, float ox, float oy, float oz, float dx,
+            float dy, float dz, float tmin, Hit hit) {
+        int i = triangle * 9;
+        float v0x = triangles[i], v0y = triangles[i + 1], v0z = triangles[i + 2];
+        float e1x = triangles[i + 3] - v0x, e1y = triangles[i + 4] - v0y, e1z = triangles[i + 5] - v0z;
+        float e2x = triangles[i + 6] - v0x, e2y = triangles[i + 7] - v0y, e2z = triangles[i + 8] - v0z;
+        float px = dy * e2z - dz * e2y, py = dz * e2x - dx * e2z, pz = dx * e2y - dy * e2x;
+        float det = e1x * px + e1y * py + e1z * pz;
+        if (det == 0.0f)
+            return false;
+        float invDet = 1.0f / det;
+        float sx = ox - v0x, sy = oy - v0y, sz = oz - v0z;
+        float u = (sx * px + sy * py + sz * pz) * invDet;
+        if (u < 0.0f || u > 1.0f)
+            return false;
+        float qx = sy * e1z - sz * e1y, qy = sz * e1x - sx * e1z, qz = sx * e1y - sy * e1x;
+        float v = (dx * qx + dy * qy + dz * qz) * invDet;
+        if (v < 0.0f || u + v > 1.0f)
+            return false;
+        float t = (e2x * qx + e2y * qy + e2z * qz) * invDet;
+        if (t < tmin || t > hit.t)
+            return false;
+        hit.t = t;
+        hit.u = u;
+        hit.v = v;
+        hit.triangle = triangle;
+        return true;
+    }
+
+    private static float min(float a, float b) {
+        return a < b ? a : b;
+    }
+
+    private static float max(float a, float b) {
+        return a > b ? a : b;
+    }
+}
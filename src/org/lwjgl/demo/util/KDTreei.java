@@ -8,11 +8,19 @@ import static java.util.Arrays.*;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.stream.IntStream;
 
+import org.joml.FrustumIntersection;
 import org.joml.Vector3d;
 
 /**
  * KD-tree on integer lattices.
+ * <p>
+ * Besides {@link #intersects(float, float, float, float, float, float, List)}, which collects the (possibly split)
+ * boundables stored in the leaves, the tree supports box, sphere, frustum and k-nearest queries that report the
+ * indices of the primitives in the list the tree was built from, each primitive at most once. Results are either
+ * written into <code>int[]</code> arrays or handed to a {@link Visitor}, and batches of queries can be run in
+ * parallel. These queries do not allocate memory and can be run by multiple threads at once.
  * 
  * @author Kai Burjack
  */
@@ -22,10 +30,83 @@ public class KDTreei<T extends Boundable<T>> {
     private static final int Y = 1;
     private static final int Z = 2;
 
+    private static final int BOX = 0;
+    private static final int SPHERE = 1;
+    private static final int FRUSTUM = 2;
+
+    /**
+     * Number of queries processed by a single task when processing a batch in parallel.
+     */
+    private static final int BATCH_SIZE = 64;
+
+    private static final ThreadLocal<Query> QUERIES = ThreadLocal.withInitial(Query::new);
+
     public Node<T> root;
     private int maxVoxelCount = 4;
     private short[] intervals = new short[512];
 
+    /**
+     * Receives the primitives found by a query.
+     */
+    public interface Visitor<T> {
+        /**
+         * Called once for each primitive found.
+         * <p>
+         * The visitor must not run another query on the same thread.
+         * 
+         * @param index
+         *            the index of the primitive in the list the tree was built from
+         * @param boundable
+         *            the primitive
+         * @return <code>true</code> to continue the query, <code>false</code> to stop it
+         */
+        boolean visit(int index, T boundable);
+    }
+
+    /**
+     * Per-thread state of a running query.
+     */
+    private static class Query {
+        int kind;
+        float minX, minY, minZ, maxX, maxY, maxZ;
+        float radiusSquared;
+        FrustumIntersection frustum;
+        Visitor<Object> visitor;
+        boolean stopped;
+        int[] indices;
+        int offset, capacity, count;
+        float[] distances = new float[16];
+        /* Marks the primitives already reported by the current query */
+        int[] stamps = new int[0];
+        int stamp;
+
+        void begin(int primitiveCount) {
+            if (stamps.length < primitiveCount) {
+                stamps = new int[primitiveCount];
+                stamp = 0;
+            }
+            if (++stamp == 0) {
+                fill(stamps, 0);
+                stamp = 1;
+            }
+            stopped = false;
+            count = 0;
+        }
+
+        boolean mark(int primitive) {
+            if (stamps[primitive] == stamp)
+                return false;
+            stamps[primitive] = stamp;
+            return true;
+        }
+
+        void end() {
+            visitor = null;
+            indices = null;
+            frustum = null;
+        }
+    }
+
     public static class Box implements Boundable<Box> {
         public int minX, minY, minZ;
         public int maxX, maxY, maxZ;
@@ -236,6 +317,11 @@ public class KDTreei<T extends Boundable<T>> {
         public Node<B> left;
         public Node<B> right;
         public List<B> boundables = new ArrayList<>();
+        /**
+         * The indices of the primitives in the list the tree was built from, one for each element of
+         * {@link #boundables}, or <code>null</code> for inner nodes
+         */
+        public int[] primitives;
         public Node<B>[] ropes;
         public int index;
         public int leafIndex;
@@ -344,7 +430,7 @@ public class KDTreei<T extends Boundable<T>> {
             if (!b.intersects(minX, minY, minZ, maxX, maxY, maxZ))
                 return;
             if (isLeafNode()) {
-                for (B voxel : boundables) {
+                for (B voxel : this.boundables) {
                     if (!voxel.intersects(minX, minY, minZ, maxX, maxY, maxZ))
                         continue;
                     boundables.add(voxel);
@@ -388,11 +474,380 @@ public class KDTreei<T extends Boundable<T>> {
         return root.findNode(cameraPosition);
     }
 
+    /**
+     * Find all primitives whose bounds intersect the given box.
+     * 
+     * @param indices
+     *            receives the indices of the first <code>indices.length</code> primitives found
+     * @return the number of primitives found, which may be greater than <code>indices.length</code>
+     */
+    public int intersects(float minX, float minY, float minZ, float maxX, float maxY, float maxZ, int[] indices) {
+        Query q = boxQuery(minX, minY, minZ, maxX, maxY, maxZ);
+        return collect(q, indices, 0, indices.length, null);
+    }
+
+    /**
+     * Call the visitor for each primitive whose bounds intersect the given box.
+     * 
+     * @return the number of primitives visited
+     */
+    public int intersects(float minX, float minY, float minZ, float maxX, float maxY, float maxZ,
+            Visitor<? super T> visitor) {
+        Query q = boxQuery(minX, minY, minZ, maxX, maxY, maxZ);
+        return collect(q, null, 0, 0, visitor);
+    }
+
+    /**
+     * Find all primitives whose bounds intersect the sphere with the given center and radius.
+     * 
+     * @param indices
+     *            receives the indices of the first <code>indices.length</code> primitives found
+     * @return the number of primitives found, which may be greater than <code>indices.length</code>
+     */
+    public int intersectsSphere(float x, float y, float z, float radius, int[] indices) {
+        Query q = sphereQuery(x, y, z, radius);
+        return collect(q, indices, 0, indices.length, null);
+    }
+
+    /**
+     * Call the visitor for each primitive whose bounds intersect the sphere with the given center and radius.
+     * 
+     * @return the number of primitives visited
+     */
+    public int intersectsSphere(float x, float y, float z, float radius, Visitor<? super T> visitor) {
+        Query q = sphereQuery(x, y, z, radius);
+        return collect(q, null, 0, 0, visitor);
+    }
+
+    /**
+     * Find all primitives whose bounds intersect the given frustum.
+     * <p>
+     * Subtrees entirely inside of the frustum are reported without testing their primitives.
+     * 
+     * @param indices
+     *            receives the indices of the first <code>indices.length</code> primitives found
+     * @return the number of primitives found, which may be greater than <code>indices.length</code>
+     */
+    public int intersectsFrustum(FrustumIntersection frustum, int[] indices) {
+        Query q = frustumQuery(frustum);
+        return collect(q, indices, 0, indices.length, null);
+    }
+
+    /**
+     * Call the visitor for each primitive whose bounds intersect the given frustum.
+     * 
+     * @return the number of primitives visited
+     */
+    public int intersectsFrustum(FrustumIntersection frustum, Visitor<? super T> visitor) {
+        Query q = frustumQuery(frustum);
+        return collect(q, null, 0, 0, visitor);
+    }
+
+    /**
+     * Find the <code>k</code> primitives whose bounds are closest to the given point and not farther away than
+     * <code>maxDistance</code>.
+     * 
+     * @param k
+     *            the maximum number of primitives to find
+     * @param maxDistance
+     *            the maximum distance, or {@link Float#POSITIVE_INFINITY}
+     * @param indices
+     *            receives the indices of the primitives found, sorted by increasing distance
+     * @param distances
+     *            receives the distances of the primitives found, or <code>null</code>
+     * @return the number of primitives found, which is at most <code>k</code>
+     */
+    public int nearest(float x, float y, float z, int k, float maxDistance, int[] indices, float[] distances) {
+        if (k < 0 || k > indices.length)
+            throw new IllegalArgumentException("k");
+        if (distances != null && distances.length < k)
+            throw new IllegalArgumentException("distances");
+        return nearest(QUERIES.get(), x, y, z, k, maxDistance, indices, distances, 0);
+    }
+
+    /**
+     * Find the primitives intersecting each box in the given batch.
+     * <p>
+     * <code>boxes</code> contains six consecutive arrays of <code>count</code> floats:
+     * <code>minX, minY, minZ, maxX, maxY, maxZ</code>. The indices of the primitives found for the query
+     * <code>i</code> are stored in <code>indices</code> starting at <code>i * maxResults</code>, and their number in
+     * <code>counts[i]</code>, which may be greater than <code>maxResults</code> if not all of them could be stored.
+     * 
+     * @param parallel
+     *            whether to process the batch in parallel using the common fork-join pool
+     */
+    public void intersects(float[] boxes, int count, int maxResults, int[] indices, int[] counts, boolean parallel) {
+        checkBatch(boxes, 6, count, maxResults, indices, counts);
+        forEachBatch(count, parallel, (first, end) -> {
+            for (int i = first; i < end; i++) {
+                Query q = boxQuery(boxes[i], boxes[count + i], boxes[2 * count + i], boxes[3 * count + i],
+                        boxes[4 * count + i], boxes[5 * count + i]);
+                counts[i] = collect(q, indices, i * maxResults, maxResults, null);
+            }
+        });
+    }
+
+    /**
+     * Find the primitives intersecting each sphere in the given batch.
+     * <p>
+     * <code>spheres</code> contains four consecutive arrays of <code>count</code> floats: <code>x, y, z,
+     * radius</code>. The results are stored as in {@link #intersects(float[], int, int, int[], int[], boolean)}.
+     * 
+     * @param parallel
+     *            whether to process the batch in parallel using the common fork-join pool
+     */
+    public void intersectsSphere(float[] spheres, int count, int maxResults, int[] indices, int[] counts,
+            boolean parallel) {
+        checkBatch(spheres, 4, count, maxResults, indices, counts);
+        forEachBatch(count, parallel, (first, end) -> {
+            for (int i = first; i < end; i++) {
+                Query q = sphereQuery(spheres[i], spheres[count + i], spheres[2 * count + i], spheres[3 * count + i]);
+                counts[i] = collect(q, indices, i * maxResults, maxResults, null);
+            }
+        });
+    }
+
+    /**
+     * Find the <code>k</code> nearest primitives of each point in the given batch.
+     * <p>
+     * <code>points</code> contains three consecutive arrays of <code>count</code> floats: <code>x, y, z</code>. The
+     * indices and distances of the primitives found for the point <code>i</code> are stored in <code>indices</code>
+     * and <code>distances</code> starting at <code>i * k</code>, and their number in <code>counts[i]</code>.
+     * 
+     * @param distances
+     *            receives the distances of the primitives found, or <code>null</code>
+     * @param parallel
+     *            whether to process the batch in parallel using the common fork-join pool
+     */
+    public void nearest(float[] points, int count, int k, float maxDistance, int[] indices, float[] distances,
+            int[] counts, boolean parallel) {
+        checkBatch(points, 3, count, k, indices, counts);
+        if (distances != null && distances.length < (long) count * k)
+            throw new IllegalArgumentException("distances");
+        forEachBatch(count, parallel, (first, end) -> {
+            Query q = QUERIES.get();
+            for (int i = first; i < end; i++)
+                counts[i] = nearest(q, points[i], points[count + i], points[2 * count + i], k, maxDistance, indices,
+                        distances, i * k);
+        });
+    }
+
+    private static void checkBatch(float[] queries, int size, int count, int maxResults, int[] indices,
+            int[] counts) {
+        if (count < 0)
+            throw new IllegalArgumentException("count");
+        if (maxResults < 0)
+            throw new IllegalArgumentException("maxResults");
+        if (queries.length < (long) size * count)
+            throw new IllegalArgumentException("queries");
+        if (indices.length < (long) count * maxResults)
+            throw new IllegalArgumentException("indices");
+        if (counts.length < count)
+            throw new IllegalArgumentException("counts");
+    }
+
+    private interface QueryRange {
+        void process(int first, int end);
+    }
+
+    private static void forEachBatch(int count, boolean parallel, QueryRange range) {
+        if (!parallel || count <= BATCH_SIZE) {
+            range.process(0, count);
+            return;
+        }
+        IntStream.range(0, (count + BATCH_SIZE - 1) / BATCH_SIZE).parallel()
+                .forEach(batch -> range.process(batch * BATCH_SIZE, Math.min(count, (batch + 1) * BATCH_SIZE)));
+    }
+
+    private static Query boxQuery(float minX, float minY, float minZ, float maxX, float maxY, float maxZ) {
+        Query q = QUERIES.get();
+        q.kind = BOX;
+        q.minX = minX;
+        q.minY = minY;
+        q.minZ = minZ;
+        q.maxX = maxX;
+        q.maxY = maxY;
+        q.maxZ = maxZ;
+        return q;
+    }
+
+    private static Query sphereQuery(float x, float y, float z, float radius) {
+        Query q = QUERIES.get();
+        q.kind = SPHERE;
+        q.minX = x;
+        q.minY = y;
+        q.minZ = z;
+        q.radiusSquared = radius * radius;
+        return q;
+    }
+
+    private static Query frustumQuery(FrustumIntersection frustum) {
+        Query q = QUERIES.get();
+        q.kind = FRUSTUM;
+        q.frustum = frustum;
+        return q;
+    }
+
+    @SuppressWarnings("unchecked")
+    private int collect(Query q, int[] indices, int offset, int capacity, Visitor<? super T> visitor) {
+        q.begin(root.boundables.size());
+        q.indices = indices;
+        q.offset = offset;
+        q.capacity = capacity;
+        q.visitor = (Visitor<Object>) visitor;
+        try {
+            collect(root, q, false);
+            return q.count;
+        } finally {
+            q.end();
+        }
+    }
+
+    /**
+     * Report all primitives of the subtree which match the query.
+     * 
+     * @param inside
+     *            whether the node is known to be entirely inside of the queried frustum
+     */
+    private void collect(Node<T> node, Query q, boolean inside) {
+        Box b = node.bb;
+        switch (q.kind) {
+        case BOX:
+            if (!b.intersects(q.minX, q.minY, q.minZ, q.maxX, q.maxY, q.maxZ))
+                return;
+            break;
+        case SPHERE:
+            if (distanceSquared(q.minX, q.minY, q.minZ, b.minX, b.minY, b.minZ, b.maxX, b.maxY,
+                    b.maxZ) > q.radiusSquared)
+                return;
+            break;
+        default:
+            if (!inside) {
+                int r = q.frustum.intersectAab(b.minX, b.minY, b.minZ, b.maxX, b.maxY, b.maxZ);
+                if (r == FrustumIntersection.INSIDE)
+                    inside = true;
+                else if (r != FrustumIntersection.INTERSECT)
+                    return;
+            }
+        }
+        if (!node.isLeafNode()) {
+            collect(node.left, q, inside);
+            if (!q.stopped)
+                collect(node.right, q, inside);
+            return;
+        }
+        List<T> boundables = root.boundables;
+        int[] primitives = node.primitives;
+        for (int i = 0; i < primitives.length && !q.stopped; i++) {
+            int p = primitives[i];
+            if (!q.mark(p))
+                continue;
+            T v = boundables.get(p);
+            if (!inside && !matches(q, v))
+                continue;
+            if (q.visitor != null) {
+                if (!q.visitor.visit(p, v))
+                    q.stopped = true;
+            } else if (q.count < q.capacity) {
+                q.indices[q.offset + q.count] = p;
+            }
+            q.count++;
+        }
+    }
+
+    private static boolean matches(Query q, Boundable<?> v) {
+        switch (q.kind) {
+        case BOX:
+            return v.intersects(q.minX, q.minY, q.minZ, q.maxX, q.maxY, q.maxZ);
+        case SPHERE:
+            return distanceSquared(q.minX, q.minY, q.minZ, v.min(X), v.min(Y), v.min(Z), v.max(X), v.max(Y),
+                    v.max(Z)) <= q.radiusSquared;
+        default:
+            return q.frustum.testAab(v.min(X), v.min(Y), v.min(Z), v.max(X), v.max(Y), v.max(Z));
+        }
+    }
+
+    private int nearest(Query q, float x, float y, float z, int k, float maxDistance, int[] indices,
+            float[] distances, int offset) {
+        q.begin(root.boundables.size());
+        if (k == 0)
+            return 0;
+        if (q.distances.length < k)
+            q.distances = new float[k];
+        q.minX = x;
+        q.minY = y;
+        q.minZ = z;
+        q.radiusSquared = maxDistance * maxDistance;
+        q.indices = indices;
+        q.offset = offset;
+        q.capacity = k;
+        try {
+            nearest(root, q);
+            for (int i = 0; i < q.count && distances != null; i++)
+                distances[offset + i] = (float) Math.sqrt(q.distances[i]);
+            return q.count;
+        } finally {
+            q.end();
+        }
+    }
+
+    /**
+     * Visit the subtree nearest to the query point first and skip subtrees farther away than the farthest primitive
+     * found so far.
+     */
+    private void nearest(Node<T> node, Query q) {
+        Box b = node.bb;
+        if (distanceSquared(q.minX, q.minY, q.minZ, b.minX, b.minY, b.minZ, b.maxX, b.maxY, b.maxZ) > bound(q))
+            return;
+        if (!node.isLeafNode()) {
+            float p = node.splitAxis == X ? q.minX : node.splitAxis == Y ? q.minY : q.minZ;
+            Node<T> near = p < node.splitPos ? node.left : node.right;
+            nearest(near, q);
+            nearest(near == node.left ? node.right : node.left, q);
+            return;
+        }
+        List<T> boundables = root.boundables;
+        int[] primitives = node.primitives;
+        for (int i = 0; i < primitives.length; i++) {
+            int p = primitives[i];
+            if (!q.mark(p))
+                continue;
+            T v = boundables.get(p);
+            float d = distanceSquared(q.minX, q.minY, q.minZ, v.min(X), v.min(Y), v.min(Z), v.max(X), v.max(Y),
+                    v.max(Z));
+            if (d > bound(q) || q.count == q.capacity && d == bound(q))
+                continue;
+            /* Insert into the results sorted by distance, dropping the farthest one if they are full */
+            int j = q.count < q.capacity ? q.count++ : q.count - 1;
+            for (; j > 0 && q.distances[j - 1] > d; j--) {
+                q.distances[j] = q.distances[j - 1];
+                q.indices[q.offset + j] = q.indices[q.offset + j - 1];
+            }
+            q.distances[j] = d;
+            q.indices[q.offset + j] = p;
+        }
+    }
+
+    private static float bound(Query q) {
+        return q.count < q.capacity ? q.radiusSquared : q.distances[q.count - 1];
+    }
+
+    private static float distanceSquared(float x, float y, float z, float minX, float minY, float minZ, float maxX,
+            float maxY, float maxZ) {
+        float dx = x < minX ? minX - x : x > maxX ? x - maxX : 0.0f;
+        float dy = y < minY ? minY - y : y > maxY ? y - maxY : 0.0f;
+        float dz = z < minZ ? minZ - z : z > maxZ ? z - maxZ : 0.0f;
+        return dx * dx + dy * dy + dz * dz;
+    }
+
     private void buildTree(List<T> list, Box bbox, Node<T>[] neighbors, int maxDepth) {
         if (root != null)
             root = null;
         root = new Node<T>();
         root.boundables = list;
+        root.primitives = new int[list.size()];
+        for (int i = 0; i < root.primitives.length; i++)
+            root.primitives[i] = i;
         root.bb = bbox;
         if (intervals.length < list.size()) {
             intervals = new short[list.size()];
@@ -416,11 +871,17 @@ public class KDTreei<T extends Boundable<T>> {
             node.left.bb.setMax(node.splitAxis, node.splitPos);
             node.right.bb = new Box(node.bb);
             node.right.bb.setMin(node.splitAxis, node.splitPos);
-            node.boundables.forEach(vx -> {
+            int n = node.boundables.size(), leftCount = 0, rightCount = 0;
+            int[] leftPrimitives = new int[n], rightPrimitives = new int[n];
+            for (int i = 0; i < n; i++) {
+                T vx = node.boundables.get(i);
+                int primitive = node.primitives[i];
                 if (vx.min(node.splitAxis) >= node.splitPos) {
                     node.right.boundables.add(vx);
+                    rightPrimitives[rightCount++] = primitive;
                 } else if (vx.max(node.splitAxis) <= node.splitPos) {
                     node.left.boundables.add(vx);
+                    leftPrimitives[leftCount++] = primitive;
                 } else {
                     T left = vx.splitLeft(node.splitAxis, node.splitPos);
                     T right = vx.splitRight(node.splitAxis, node.splitPos);
@@ -429,9 +890,14 @@ public class KDTreei<T extends Boundable<T>> {
                     if (right.min(node.splitAxis) < node.splitPos)
                         throw new AssertionError();
                     node.left.boundables.add(left);
+                    leftPrimitives[leftCount++] = primitive;
                     node.right.boundables.add(right);
+                    rightPrimitives[rightCount++] = primitive;
                 }
-            });
+            }
+            node.left.primitives = copyOf(leftPrimitives, leftCount);
+            node.right.primitives = copyOf(rightPrimitives, rightCount);
+            node.primitives = null;
             buildTree(node.left, depth + 1, maxDepth);
             buildTree(node.right, depth + 1, maxDepth);
         }
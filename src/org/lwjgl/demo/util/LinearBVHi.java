@@ -0,0 +1,1033 @@
+/*
+ * Copyright LWJGL. All rights reserved.
+ * License terms: https://www.lwjgl.org/license
+ */
+package org.lwjgl.demo.util;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.stream.IntStream;
+
+/**
+ * Bounding Volume Hierarchy for integer lattices using morton code partitioning, like {@link IBVHMortonTree}, but
+ * stored in flat arrays and built in parallel.
+ * <p>
+ * The tree is built as a linear BVH as described in <a href=
+ * "https://research.nvidia.com/sites/default/files/pubs/2012-06_Maximizing-Parallelism-in/karras2012hpg_paper.pdf"
+ * >Maximizing Parallelism in the Construction of BVHs, Octrees, and k-d Trees</a>: the morton codes of the
+ * primitive centroids are sorted with a parallel radix sort, after which every inner node can be determined
+ * independently from the sorted codes. The bounds are then fitted bottom-up, where the second thread arriving at a
+ * node computes its bounds, and nodes with at most <code>maxPrimitivesPerLeaf</code> primitives become leaves.
+ * <p>
+ * With <code>n</code> primitives, the inner nodes of the binary tree over all primitives have the indices
+ * <code>[0, n-1)</code> and the node of the sorted primitive <code>i</code> has the index <code>n-1+i</code>. The
+ * root is initially node <code>0</code>. Nodes below a leaf are not part of the tree.
+ * <p>
+ * After primitives moved, {@link #refit(boolean)} updates all bounds and ropes without changing the structure of the
+ * tree. Small sets of primitives can be added and removed with {@link #insert(int)} and {@link #remove(int)}, after
+ * which {@link #updateRopes(boolean)} recomputes only the ropes that could have changed. Since both make the tree
+ * worse than a new build, {@link #degradation()} tells how much more expensive traversal has become since the tree was
+ * built.
+ * <p>
+ * Since morton order ignores the surface area heuristic, {@link #optimize(int, boolean)} can restructure the tree
+ * afterwards, and {@link #estimateTraversalCost(int, long, boolean)} measures the effect by tracing random rays.
+ *
+ * @author Kai Burjack
+ */
+public class LinearBVHi {
+    public static final int SIDE_X_NEG = 0;
+    public static final int SIDE_X_POS = 1;
+    public static final int SIDE_Y_NEG = 2;
+    public static final int SIDE_Y_POS = 3;
+    public static final int SIDE_Z_NEG = 4;
+    public static final int SIDE_Z_POS = 5;
+
+    /**
+     * Number of ints per node in {@link #nodes}.
+     */
+    public static final int NODE_SIZE = 13;
+    /** Offsets of the bounds <code>minX, minY, minZ, maxX, maxY, maxZ</code> of a node */
+    public static final int MIN_X = 0, MIN_Y = 1, MIN_Z = 2, MAX_X = 3, MAX_Y = 4, MAX_Z = 5;
+    /** Offsets of the children of a node, which are <code>-1</code> for leaves */
+    public static final int LEFT = 6, RIGHT = 7;
+    /** Offset of the parent of a node, which is <code>-1</code> for the root */
+    public static final int PARENT = 8;
+    /** Offsets of the range of the primitives of a node in {@link #primitives} */
+    public static final int FIRST = 9, COUNT = 10;
+    /** Offsets of the split axis, which is <code>-1</code> for leaves, and split position used for the ropes */
+    public static final int SPLIT_AXIS = 11, SPLIT_POS = 12;
+    /** Value of {@link #PARENT} for nodes which are not part of the tree */
+    public static final int FREE = -2;
+
+    /** Cost of traversing an inner node relative to intersecting a primitive, used by {@link #sahCost()} */
+    private static final float TRAVERSAL_COST = 1.0f;
+    /** Maximum number of leaves of a treelet restructured by {@link #optimize(int, boolean)} */
+    private static final int TREELET_SIZE = 7;
+
+    private static final int BATCH_SIZE = 4096;
+    private static final int RADIX_BITS = 8;
+    private static final int MORTON_BITS = 21;
+
+    /**
+     * The nodes with {@link #NODE_SIZE} ints each.
+     */
+    public int[] nodes;
+    /**
+     * The six ropes of each node in the order of the <code>SIDE_*</code> constants, or <code>-1</code>.
+     */
+    public int[] ropes;
+    /**
+     * The number of nodes in {@link #nodes}, including free ones.
+     */
+    public int nodeCount;
+    public int root;
+    /**
+     * The indices of the primitives referenced by the leaves, initially in morton order.
+     */
+    public int[] primitives;
+    /**
+     * The sorted morton codes. These are not updated by {@link #insert(int)} and {@link #remove(int)}.
+     */
+    public long[] codes;
+    public int primitiveCount;
+    public int maxPrimitivesPerLeaf;
+    /**
+     * The bounds of the primitives as given to {@link #build(int[], int, int, boolean)}. When primitives move, update
+     * this array and call {@link #refit(boolean)}. To add primitives, assign a larger array and call
+     * {@link #insert(int)}.
+     */
+    public int[] bounds;
+
+    private float buildCost;
+
+    /* State for incremental updates, created on the first edit */
+    private int[] leafOf;
+    private int[] freeNodes;
+    private int freeCount;
+    private int primitiveSlots;
+    private int[] stamps;
+    private int stamp;
+    private int[] dirty = new int[16];
+    private int dirtyCount;
+
+    private LinearBVHi() {
+    }
+
+    private interface Range {
+        void process(int first, int end);
+    }
+
+    private static void forEach(int count, boolean parallel, Range range) {
+        if (!parallel || count <= BATCH_SIZE) {
+            range.process(0, count);
+            return;
+        }
+        IntStream.range(0, (count + BATCH_SIZE - 1) / BATCH_SIZE).parallel()
+                .forEach(batch -> range.process(batch * BATCH_SIZE, Math.min(count, (batch + 1) * BATCH_SIZE)));
+    }
+
+    /**
+     * Build a BVH over <code>count</code> primitives with the given packed bounds.
+     *
+     * @param bounds
+     *            <code>minX, minY, minZ, maxX, maxY, maxZ</code> of each primitive, see
+     *            {@link PackedKDTreei#bounds(java.util.List)}
+     * @param count
+     *            the number of primitives
+     * @param maxPrimitivesPerLeaf
+     *            nodes with at most this many primitives become leaves
+     * @param parallel
+     *            whether to build in parallel using the common fork-join pool
+     * @return the tree
+     */
+    public static LinearBVHi build(int[] bounds, int count, int maxPrimitivesPerLeaf, boolean parallel) {
+        if (count < 0 || bounds.length < count * 6)
+            throw new IllegalArgumentException("count");
+        if (maxPrimitivesPerLeaf < 1)
+            throw new IllegalArgumentException("maxPrimitivesPerLeaf");
+        LinearBVHi t = new LinearBVHi();
+        t.primitiveCount = count;
+        t.maxPrimitivesPerLeaf = maxPrimitivesPerLeaf;
+        t.bounds = bounds;
+        t.nodeCount = Math.max(0, 2 * count - 1);
+        t.nodes = new int[NODE_SIZE * t.nodeCount];
+        t.ropes = new int[6 * t.nodeCount];
+        Arrays.fill(t.ropes, -1);
+        t.computeCodes(bounds, parallel);
+        t.primitiveSlots = count;
+        t.root = count == 0 ? -1 : 0;
+        if (count == 0)
+            return t;
+        int[] nodes = t.nodes;
+        nodes[PARENT] = -1;
+        forEach(count - 1, parallel, (first, end) -> {
+            for (int i = first; i < end; i++)
+                t.emitInnerNode(i);
+        });
+        forEach(count, parallel, (first, end) -> {
+            for (int i = first; i < end; i++) {
+                int n = NODE_SIZE * (count - 1 + i), p = t.primitives[i] * 6;
+                System.arraycopy(bounds, p, nodes, n, 6);
+                nodes[n + LEFT] = nodes[n + RIGHT] = nodes[n + SPLIT_AXIS] = -1;
+                nodes[n + FIRST] = i;
+                nodes[n + COUNT] = 1;
+            }
+        });
+        AtomicIntegerArray visits = new AtomicIntegerArray(count);
+        forEach(count, parallel, (first, end) -> {
+            for (int i = first; i < end; i++) {
+                int p = nodes[NODE_SIZE * (count - 1 + i) + PARENT];
+                while (p != -1 && visits.getAndIncrement(p) == 1) {
+                    t.fitInnerNode(p);
+                    t.orderChildren(p);
+                    p = nodes[NODE_SIZE * p + PARENT];
+                }
+            }
+        });
+        forEach(2 * count - 1, parallel, (first, end) -> {
+            for (int i = first; i < end; i++) {
+                int n = NODE_SIZE * i, p = nodes[n + PARENT];
+                if (i < count - 1 && nodes[n + COUNT] <= maxPrimitivesPerLeaf)
+                    nodes[n + LEFT] = nodes[n + RIGHT] = nodes[n + SPLIT_AXIS] = -1;
+                if (p != -1 && nodes[NODE_SIZE * p + COUNT] <= maxPrimitivesPerLeaf)
+                    nodes[n + PARENT] = FREE;
+            }
+        });
+        t.computeRopes(parallel);
+        t.buildCost = t.sahCost();
+        return t;
+    }
+
+    public boolean isLeaf(int node) {
+        return nodes[NODE_SIZE * node + LEFT] == -1;
+    }
+
+    /**
+     * Return whether the given node is part of the tree.
+     */
+    public boolean isReachable(int node) {
+        return nodes[NODE_SIZE * node + PARENT] != FREE;
+    }
+
+    /**
+     * Compute the morton codes of the primitive centroids relative to the lower corner of the scene and sort them.
+     */
+    private void computeCodes(int[] bounds, boolean parallel) {
+        int n = primitiveCount;
+        int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE, minZ = Integer.MAX_VALUE, extent = 0;
+        for (int i = 0; i < n; i++) {
+            minX = Math.min(minX, bounds[i * 6] + bounds[i * 6 + 3] >> 1);
+            minY = Math.min(minY, bounds[i * 6 + 1] + bounds[i * 6 + 4] >> 1);
+            minZ = Math.min(minZ, bounds[i * 6 + 2] + bounds[i * 6 + 5] >> 1);
+        }
+        for (int i = 0; i < n; i++) {
+            extent |= (bounds[i * 6] + bounds[i * 6 + 3] >> 1) - minX;
+            extent |= (bounds[i * 6 + 1] + bounds[i * 6 + 4] >> 1) - minY;
+            extent |= (bounds[i * 6 + 2] + bounds[i * 6 + 5] >> 1) - minZ;
+        }
+        int bits = 32 - Integer.numberOfLeadingZeros(extent);
+        int shift = Math.max(0, bits - MORTON_BITS);
+        int ox = minX, oy = minY, oz = minZ;
+        long[] codes = new long[n];
+        int[] primitives = new int[n];
+        forEach(n, parallel, (first, end) -> {
+            for (int i = first; i < end; i++) {
+                int x = (bounds[i * 6] + bounds[i * 6 + 3] >> 1) - ox;
+                int y = (bounds[i * 6 + 1] + bounds[i * 6 + 4] >> 1) - oy;
+                int z = (bounds[i * 6 + 2] + bounds[i * 6 + 5] >> 1) - oz;
+                codes[i] = IBVHMortonTree.morton3d(x >>> shift, y >>> shift, z >>> shift);
+                primitives[i] = i;
+            }
+        });
+        radixSort(codes, primitives, n, 3 * Math.min(bits, MORTON_BITS), parallel);
+        this.codes = codes;
+        this.primitives = primitives;
+    }
+
+    /**
+     * Stable LSD radix sort of the keys with their values. Each pass counts the digits of contiguous chunks in
+     * parallel and then scatters the chunks in parallel to the offsets given by the prefix sum over all chunks.
+     */
+    static void radixSort(long[] keys, int[] values, int n, int bits, boolean parallel) {
+        int radix = 1 << RADIX_BITS;
+        int chunks = parallel ? Math.max(1, Math.min(n / BATCH_SIZE, 4 * ForkJoinPool.getCommonPoolParallelism())) : 1;
+        int chunkSize = (n + chunks - 1) / Math.max(1, chunks);
+        int[] offsets = new int[chunks * radix];
+        long[] k = keys, k2 = new long[n];
+        int[] v = values, v2 = new int[n];
+        for (int shift = 0; shift < bits; shift += RADIX_BITS) {
+            int s = shift;
+            long[] src = k, dst = k2;
+            int[] vsrc = v, vdst = v2;
+            Arrays.fill(offsets, 0);
+            IntStream chunkStream = IntStream.range(0, chunks);
+            (parallel ? chunkStream.parallel() : chunkStream).forEach(c -> {
+                for (int i = c * chunkSize, end = Math.min(n, i + chunkSize); i < end; i++)
+                    offsets[c * radix + (int) (src[i] >>> s & radix - 1)]++;
+            });
+            int sum = 0;
+            for (int d = 0; d < radix; d++) {
+                for (int c = 0; c < chunks; c++) {
+                    int cnt = offsets[c * radix + d];
+                    offsets[c * radix + d] = sum;
+                    sum += cnt;
+                }
+            }
+            chunkStream = IntStream.range(0, chunks);
+            (parallel ? chunkStream.parallel() : chunkStream).forEach(c -> {
+                for (int i = c * chunkSize, end = Math.min(n, i + chunkSize); i < end; i++) {
+                    int o = offsets[c * radix + (int) (src[i] >>> s & radix - 1)]++;
+                    dst[o] = src[i];
+                    vdst[o] = vsrc[i];
+                }
+            });
+            k = dst;
+            k2 = src;
+            v = vdst;
+            v2 = vsrc;
+        }
+        if (k != keys) {
+            System.arraycopy(k, 0, keys, 0, n);
+            System.arraycopy(v, 0, values, 0, n);
+        }
+    }
+
+    /**
+     * Length of the common prefix of the codes at <code>i</code> and <code>j</code>, using the indices to
+     * distinguish equal codes, or <code>-1</code> if <code>j</code> is out of range.
+     */
+    private int delta(int i, int j) {
+        if (j < 0 || j >= primitiveCount)
+            return -1;
+        long a = codes[i], b = codes[j];
+        return a == b ? Long.SIZE + Integer.numberOfLeadingZeros(i ^ j) : Long.numberOfLeadingZeros(a ^ b);
+    }
+
+    /**
+     * Determine the range of primitives of the inner node <code>i</code> and its split, and link its children.
+     */
+    private void emitInnerNode(int i) {
+        int d = delta(i, i + 1) - delta(i, i - 1) >= 0 ? 1 : -1;
+        int deltaMin = delta(i, i - d);
+        int lmax = 2;
+        while (delta(i, i + lmax * d) > deltaMin)
+            lmax <<= 1;
+        int l = 0;
+        for (int t = lmax >>> 1; t >= 1; t >>>= 1)
+            if (delta(i, i + (l + t) * d) > deltaMin)
+                l += t;
+        int j = i + l * d;
+        int deltaNode = delta(i, j);
+        int s = 0;
+        for (int div = 2;; div <<= 1) {
+            int t = (l + div - 1) / div;
+            if (delta(i, i + (s + t) * d) > deltaNode)
+                s += t;
+            if (t <= 1)
+                break;
+        }
+        int gamma = i + s * d + Math.min(d, 0);
+        int first = Math.min(i, j), last = Math.max(i, j);
+        int left = first == gamma ? primitiveCount - 1 + gamma : gamma;
+        int right = last == gamma + 1 ? primitiveCount - 1 + gamma + 1 : gamma + 1;
+        int n = NODE_SIZE * i;
+        nodes[n + LEFT] = left;
+        nodes[n + RIGHT] = right;
+        nodes[n + FIRST] = first;
+        nodes[n + COUNT] = last - first + 1;
+        nodes[NODE_SIZE * left + PARENT] = i;
+        nodes[NODE_SIZE * right + PARENT] = i;
+    }
+
+    /**
+     * Compute the bounds of an inner node from its children and choose the split axis along which the centroids of
+     * the children are farthest apart, like {@link IBVHMortonTree}.
+     */
+    void fitInnerNode(int node) {
+        int[] nodes = this.nodes;
+        int n = NODE_SIZE * node, l = NODE_SIZE * nodes[n + LEFT], r = NODE_SIZE * nodes[n + RIGHT];
+        for (int a = 0; a < 3; a++) {
+            nodes[n + a] = Math.min(nodes[l + a], nodes[r + a]);
+            nodes[n + a + 3] = Math.max(nodes[l + a + 3], nodes[r + a + 3]);
+        }
+        int cxl = nodes[l] + nodes[l + 3], cyl = nodes[l + 1] + nodes[l + 4], czl = nodes[l + 2] + nodes[l + 5];
+        int cxr = nodes[r] + nodes[r + 3], cyr = nodes[r + 1] + nodes[r + 4], czr = nodes[r + 2] + nodes[r + 5];
+        int dx = (cxl - cxr) * (cxl - cxr), dy = (cyl - cyr) * (cyl - cyr), dz = (czl - czr) * (czl - czr);
+        int axis, pos;
+        if (dx > dy && dx > dz) {
+            axis = 0;
+            pos = (int) ((cxl + cxr) * 0.5f);
+        } else if (dy > dz) {
+            axis = 1;
+            pos = (int) ((cyl + cyr) * 0.5f);
+        } else {
+            axis = 2;
+            pos = (int) ((czl + czr) * 0.5f);
+        }
+        nodes[n + SPLIT_AXIS] = axis;
+        nodes[n + SPLIT_POS] = pos;
+    }
+
+    /**
+     * Compute the ropes of all reachable nodes.
+     * <p>
+     * The rope of a node on a side is the sibling of the nearest ancestor whose parent is split along the axis of that
+     * side and has the sibling on that side. It is then pushed down as far as possible, just like in
+     * {@link IBVHMortonTree}.
+     */
+    void computeRopes(boolean parallel) {
+        forEach(nodeCount, parallel, (first, end) -> {
+            for (int i = first; i < end; i++)
+                if (isReachable(i))
+                    computeRopes(i);
+        });
+    }
+
+    void computeRopes(int node) {
+        for (int side = 0; side < 6; side++) {
+            int axis = side >>> 1;
+            boolean positive = (side & 1) == 1;
+            int rope = -1;
+            for (int c = node, p = nodes[NODE_SIZE * c + PARENT]; p != -1; c = p, p = nodes[NODE_SIZE * p + PARENT]) {
+                int pn = NODE_SIZE * p;
+                if (nodes[pn + SPLIT_AXIS] != axis)
+                    continue;
+                if (positive && nodes[pn + LEFT] == c) {
+                    rope = nodes[pn + RIGHT];
+                    break;
+                } else if (!positive && nodes[pn + RIGHT] == c) {
+                    rope = nodes[pn + LEFT];
+                    break;
+                }
+            }
+            ropes[6 * node + side] = optimizeRope(node, rope, side);
+        }
+    }
+
+    private int optimizeRope(int node, int rope, int side) {
+        int n = NODE_SIZE * node, r = rope;
+        while (r != -1 && !isLeaf(r)) {
+            int rn = NODE_SIZE * r, axis = nodes[rn + SPLIT_AXIS], pos = nodes[rn + SPLIT_POS];
+            if (axis == side >>> 1)
+                r = (side & 1) == 1 ? nodes[rn + LEFT] : nodes[rn + RIGHT];
+            else if (pos < nodes[n + axis])
+                r = nodes[rn + RIGHT];
+            else if (pos > nodes[n + axis + 3])
+                r = nodes[rn + LEFT];
+            else
+                break;
+        }
+        return r;
+    }
+
+    /**
+     * Update the bounds of all nodes after the bounds of primitives changed, followed by all split planes and ropes.
+     * The structure of the tree is not changed.
+     *
+     * @param parallel
+     *            whether to refit in parallel using the common fork-join pool
+     */
+    public void refit(boolean parallel) {
+        if (root == -1)
+            return;
+        AtomicIntegerArray visits = new AtomicIntegerArray(nodeCount);
+        forEach(nodeCount, parallel, (first, end) -> {
+            for (int i = first; i < end; i++) {
+                if (!isReachable(i) || !isLeaf(i))
+                    continue;
+                fitLeaf(i);
+                int p = nodes[NODE_SIZE * i + PARENT];
+                while (p != -1 && visits.getAndIncrement(p) == 1) {
+                    fitInnerNode(p);
+                    orderChildren(p);
+                    p = nodes[NODE_SIZE * p + PARENT];
+                }
+            }
+        });
+        computeRopes(parallel);
+        dirtyCount = 0;
+    }
+
+    private void fitLeaf(int leaf) {
+        int n = NODE_SIZE * leaf;
+        nodes[n] = nodes[n + 1] = nodes[n + 2] = Integer.MAX_VALUE;
+        nodes[n + 3] = nodes[n + 4] = nodes[n + 5] = Integer.MIN_VALUE;
+        for (int i = nodes[n + FIRST], end = i + nodes[n + COUNT]; i < end; i++) {
+            int b = 6 * primitives[i];
+            for (int a = 0; a < 3; a++) {
+                nodes[n + a] = Math.min(nodes[n + a], bounds[b + a]);
+                nodes[n + a + 3] = Math.max(nodes[n + a + 3], bounds[b + a + 3]);
+            }
+        }
+    }
+
+    /**
+     * Add the primitive with the given index in {@link #bounds} as a new leaf next to the node where it increases the
+     * surface area of the tree the least, and refit its ancestors.
+     * <p>
+     * Call {@link #updateRopes(boolean)} after a set of edits.
+     */
+    public void insert(int primitive) {
+        if (primitive < 0 || 6 * primitive + 6 > bounds.length)
+            throw new IllegalArgumentException("primitive");
+        initUpdates();
+        if (primitive >= leafOf.length) {
+            int oldLength = leafOf.length;
+            leafOf = Arrays.copyOf(leafOf, Math.max(primitive + 1, oldLength * 2));
+            Arrays.fill(leafOf, oldLength, leafOf.length, -1);
+        }
+        if (leafOf[primitive] != -1)
+            throw new IllegalArgumentException("primitive");
+        if (primitiveSlots == primitives.length)
+            primitives = Arrays.copyOf(primitives, Math.max(16, primitives.length * 2));
+        int slot = primitiveSlots++;
+        primitives[slot] = primitive;
+        int leaf = newNode(), l = NODE_SIZE * leaf;
+        System.arraycopy(bounds, 6 * primitive, nodes, l, 6);
+        nodes[l + LEFT] = nodes[l + RIGHT] = nodes[l + SPLIT_AXIS] = -1;
+        nodes[l + FIRST] = slot;
+        nodes[l + COUNT] = 1;
+        leafOf[primitive] = leaf;
+        primitiveCount++;
+        if (root == -1) {
+            nodes[l + PARENT] = -1;
+            root = leaf;
+            markDirty(leaf);
+            return;
+        }
+        int sibling = findSibling(leaf), s = NODE_SIZE * sibling;
+        int grandParent = nodes[s + PARENT];
+        int parent = newNode(), p = NODE_SIZE * parent;
+        nodes[p + PARENT] = grandParent;
+        nodes[p + LEFT] = sibling;
+        nodes[p + RIGHT] = leaf;
+        nodes[p + FIRST] = -1;
+        nodes[p + COUNT] = nodes[s + COUNT] + 1;
+        fitInnerNode(parent);
+        orderChildren(parent);
+        nodes[s + PARENT] = parent;
+        nodes[l + PARENT] = parent;
+        replaceChild(grandParent, sibling, parent);
+        refitAncestors(parent);
+    }
+
+    /**
+     * Remove the primitive with the given index in {@link #bounds} from its leaf. If the leaf becomes empty, it is
+     * removed and its sibling takes the place of their parent.
+     * <p>
+     * Call {@link #updateRopes(boolean)} after a set of edits.
+     */
+    public void remove(int primitive) {
+        initUpdates();
+        if (primitive < 0 || primitive >= leafOf.length || leafOf[primitive] == -1)
+            throw new IllegalArgumentException("primitive");
+        int leaf = leafOf[primitive], l = NODE_SIZE * leaf;
+        int first = nodes[l + FIRST], last = first + nodes[l + COUNT] - 1;
+        for (int i = first; i <= last; i++) {
+            if (primitives[i] == primitive) {
+                primitives[i] = primitives[last];
+                break;
+            }
+        }
+        nodes[l + COUNT]--;
+        leafOf[primitive] = -1;
+        primitiveCount--;
+        if (nodes[l + COUNT] > 0) {
+            fitLeaf(leaf);
+            refitAncestors(leaf);
+            return;
+        }
+        int parent = nodes[l + PARENT];
+        freeNode(leaf);
+        if (parent == -1) {
+            root = -1;
+            return;
+        }
+        int p = NODE_SIZE * parent;
+        int sibling = nodes[p + LEFT] == leaf ? nodes[p + RIGHT] : nodes[p + LEFT];
+        int grandParent = nodes[p + PARENT];
+        nodes[NODE_SIZE * sibling + PARENT] = grandParent;
+        replaceChild(grandParent, parent, sibling);
+        freeNode(parent);
+        if (grandParent == -1) {
+            markDirty(sibling);
+            return;
+        }
+        int g = NODE_SIZE * grandParent;
+        nodes[g + COUNT]--;
+        fitInnerNode(grandParent);
+        orderChildren(grandParent);
+        refitAncestors(grandParent);
+    }
+
+    /**
+     * Recompute the ropes which could have changed by calls to {@link #insert(int)} and {@link #remove(int)} since the
+     * last update. These are the ropes of all nodes in the subtrees whose bounds or structure changed, and the ropes of
+     * all other nodes pointing into those subtrees.
+     *
+     * @param parallel
+     *            whether to update in parallel using the common fork-join pool
+     */
+    public void updateRopes(boolean parallel) {
+        if (dirtyCount == 0)
+            return;
+        int s = ++stamp;
+        int[] stack = new int[64];
+        for (int d = 0; d < dirtyCount; d++) {
+            int sp = 0;
+            stack[sp++] = dirty[d];
+            while (sp > 0) {
+                int node = stack[--sp];
+                stamps[node] = s;
+                if (!isReachable(node) || isLeaf(node))
+                    continue;
+                if (sp + 2 > stack.length)
+                    stack = Arrays.copyOf(stack, stack.length * 2);
+                stack[sp++] = nodes[NODE_SIZE * node + LEFT];
+                stack[sp++] = nodes[NODE_SIZE * node + RIGHT];
+            }
+        }
+        dirtyCount = 0;
+        forEach(nodeCount, parallel, (first, end) -> {
+            for (int i = first; i < end; i++) {
+                if (!isReachable(i))
+                    continue;
+                boolean affected = stamps[i] == s;
+                for (int side = 0; side < 6 && !affected; side++) {
+                    int r = ropes[6 * i + side];
+                    affected = r != -1 && stamps[r] == s;
+                }
+                if (affected)
+                    computeRopes(i);
+            }
+        });
+    }
+
+    /**
+     * Return the surface area heuristic cost of the tree: the expected number of primitive intersections and node
+     * traversals of a random ray hitting the root.
+     */
+    public float sahCost() {
+        if (root == -1)
+            return 0.0f;
+        double cost = 0.0;
+        for (int i = 0; i < nodeCount; i++)
+            if (isReachable(i))
+                cost += area(i) * (isLeaf(i) ? nodes[NODE_SIZE * i + COUNT] : TRAVERSAL_COST);
+        return (float) (cost / Math.max(1.0, area(root)));
+    }
+
+    /**
+     * Return the ratio of the current {@link #sahCost()} to the one right after the tree was built. Values above
+     * about <code>1.3</code> indicate that a new build is worth it.
+     */
+    public float degradation() {
+        return buildCost == 0.0f ? 1.0f : sahCost() / buildCost;
+    }
+
+    private double area(int node) {
+        int n = NODE_SIZE * node;
+        double dx = nodes[n + 3] - nodes[n], dy = nodes[n + 4] - nodes[n + 1], dz = nodes[n + 5] - nodes[n + 2];
+        return dx * dy + dy * dz + dz * dx;
+    }
+
+    private double unionArea(int a, int b) {
+        int na = NODE_SIZE * a, nb = NODE_SIZE * b;
+        double dx = Math.max(nodes[na + 3], nodes[nb + 3]) - Math.min(nodes[na], nodes[nb]);
+        double dy = Math.max(nodes[na + 4], nodes[nb + 4]) - Math.min(nodes[na + 1], nodes[nb + 1]);
+        double dz = Math.max(nodes[na + 5], nodes[nb + 5]) - Math.min(nodes[na + 2], nodes[nb + 2]);
+        return dx * dy + dy * dz + dz * dx;
+    }
+
+    /**
+     * Find the best sibling for a new leaf with the branch-and-bound descent of the Box2D dynamic tree: descend into
+     * the child with the lower cost as long as that is cheaper than pairing the leaf with the current node.
+     */
+    private int findSibling(int leaf) {
+        int node = root;
+        while (!isLeaf(node)) {
+            int n = NODE_SIZE * node;
+            double combined = unionArea(node, leaf);
+            double cost = 2.0 * combined, inheritance = 2.0 * (combined - area(node));
+            int left = nodes[n + LEFT], right = nodes[n + RIGHT];
+            double costLeft = unionArea(left, leaf) - (isLeaf(left) ? 0.0 : area(left)) + inheritance;
+            double costRight = unionArea(right, leaf) - (isLeaf(right) ? 0.0 : area(right)) + inheritance;
+            if (cost < costLeft && cost < costRight)
+                break;
+            node = costLeft < costRight ? left : right;
+        }
+        return node;
+    }
+
+    private void replaceChild(int parent, int oldChild, int newChild) {
+        if (parent == -1) {
+            root = newChild;
+            return;
+        }
+        int p = NODE_SIZE * parent;
+        if (nodes[p + LEFT] == oldChild)
+            nodes[p + LEFT] = newChild;
+        else
+            nodes[p + RIGHT] = newChild;
+    }
+
+    /**
+     * Refit the ancestors of a changed node until their bounds, split planes and child order do not change anymore,
+     * and remember the topmost changed node for {@link #updateRopes(boolean)}.
+     */
+    private void refitAncestors(int node) {
+        int top = node;
+        boolean changed = true;
+        for (int p = nodes[NODE_SIZE * node + PARENT]; p != -1; p = nodes[NODE_SIZE * p + PARENT]) {
+            int n = NODE_SIZE * p;
+            nodes[n + COUNT] = nodes[NODE_SIZE * nodes[n + LEFT] + COUNT] + nodes[NODE_SIZE * nodes[n + RIGHT] + COUNT];
+            if (!changed)
+                continue;
+            int minX = nodes[n], minY = nodes[n + 1], minZ = nodes[n + 2];
+            int maxX = nodes[n + 3], maxY = nodes[n + 4], maxZ = nodes[n + 5];
+            int axis = nodes[n + SPLIT_AXIS], pos = nodes[n + SPLIT_POS];
+            fitInnerNode(p);
+            boolean swapped = orderChildren(p);
+            changed = swapped || minX != nodes[n] || minY != nodes[n + 1] || minZ != nodes[n + 2]
+                    || maxX != nodes[n + 3] || maxY != nodes[n + 4] || maxZ != nodes[n + 5]
+                    || axis != nodes[n + SPLIT_AXIS] || pos != nodes[n + SPLIT_POS];
+            if (changed)
+                top = p;
+        }
+        markDirty(top);
+    }
+
+    private void markDirty(int node) {
+        if (dirtyCount == dirty.length)
+            dirty = Arrays.copyOf(dirty, dirty.length * 2);
+        dirty[dirtyCount++] = node;
+    }
+
+    /**
+     * Create the primitive to leaf mapping and the list of free nodes on the first edit.
+     */
+    private void initUpdates() {
+        if (leafOf != null)
+            return;
+        leafOf = new int[Math.max(primitiveCount, bounds.length / 6)];
+        Arrays.fill(leafOf, -1);
+        freeNodes = new int[16];
+        stamps = new int[nodeCount];
+        for (int i = 0; i < nodeCount; i++) {
+            int n = NODE_SIZE * i;
+            if (nodes[n + PARENT] == FREE) {
+                if (freeCount == freeNodes.length)
+                    freeNodes = Arrays.copyOf(freeNodes, freeNodes.length * 2);
+                freeNodes[freeCount++] = i;
+            } else if (nodes[n + LEFT] == -1) {
+                for (int j = nodes[n + FIRST], end = j + nodes[n + COUNT]; j < end; j++)
+                    leafOf[primitives[j]] = i;
+            }
+        }
+    }
+
+    private int newNode() {
+        if (freeCount > 0)
+            return freeNodes[--freeCount];
+        if (nodeCount == stamps.length) {
+            int capacity = Math.max(16, nodeCount * 2);
+            nodes = Arrays.copyOf(nodes, NODE_SIZE * capacity);
+            ropes = Arrays.copyOf(ropes, 6 * capacity);
+            Arrays.fill(ropes, 6 * nodeCount, ropes.length, -1);
+            stamps = Arrays.copyOf(stamps, capacity);
+        }
+        return nodeCount++;
+    }
+
+    /**
+     * Free a node. It is stamped for the next {@link #updateRopes(boolean)} so that ropes pointing to it are
+     * recomputed.
+     */
+    private void freeNode(int node) {
+        nodes[NODE_SIZE * node + PARENT] = FREE;
+        Arrays.fill(ropes, 6 * node, 6 * node + 6, -1);
+        stamps[node] = stamp + 1;
+        if (freeCount == freeNodes.length)
+            freeNodes = Arrays.copyOf(freeNodes, freeNodes.length * 2);
+        freeNodes[freeCount++] = node;
+    }
+
+    /**
+     * Swap the children of an inner node if necessary, so that the left child is on the negative side of the split
+     * axis, which the ropes rely on.
+     *
+     * @return whether the children were swapped
+     */
+    boolean orderChildren(int node) {
+        int n = NODE_SIZE * node, axis = nodes[n + SPLIT_AXIS];
+        int l = NODE_SIZE * nodes[n + LEFT], r = NODE_SIZE * nodes[n + RIGHT];
+        if (nodes[r + axis] + nodes[r + axis + 3] < nodes[l + axis] + nodes[l + axis + 3]) {
+            int left = nodes[n + LEFT];
+            nodes[n + LEFT] = nodes[n + RIGHT];
+            nodes[n + RIGHT] = left;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Reduce the {@link #sahCost()} of the tree by restructuring treelets of up to seven leaves into their optimal
+     * topology, as described in <a href="https://research.nvidia.com/publication/2013-07_fast-parallel-construction-high-quality-bounding-volume-hierarchies"
+     * >Fast Parallel Construction of High-Quality Bounding Volume Hierarchies</a>.
+     * <p>
+     * The tree is processed bottom-up, where the second thread arriving at an inner node restructures the treelet
+     * rooted at it. The treelet grows from its root by repeatedly expanding the leaf with the largest surface area,
+     * and its optimal topology is found by dynamic programming over all subsets of its leaves. Since treelets only
+     * contain nodes below their root, which are finished at that point, threads never touch the same nodes. The
+     * leaves of the tree and their primitives are not changed. Afterwards all ropes are recomputed and
+     * {@link #degradation()} is measured against the optimized tree.
+     *
+     * @param iterations
+     *            the number of passes over the tree, each of which can reduce the cost further
+     * @param parallel
+     *            whether to optimize in parallel using the common fork-join pool
+     */
+    public void optimize(int iterations, boolean parallel) {
+        if (root == -1)
+            return;
+        double[] costs = new double[nodeCount];
+        for (int it = 0; it < iterations; it++) {
+            AtomicIntegerArray visits = new AtomicIntegerArray(nodeCount);
+            forEach(nodeCount, parallel, (first, end) -> {
+                Treelet treelet = new Treelet(costs);
+                for (int i = first; i < end; i++) {
+                    if (!isReachable(i) || !isLeaf(i))
+                        continue;
+                    costs[i] = area(i) * nodes[NODE_SIZE * i + COUNT];
+                    int p = nodes[NODE_SIZE * i + PARENT];
+                    while (p != -1 && visits.getAndIncrement(p) == 1) {
+                        treelet.optimize(p);
+                        p = nodes[NODE_SIZE * p + PARENT];
+                    }
+                }
+            });
+        }
+        computeRopes(parallel);
+        dirtyCount = 0;
+        buildCost = sahCost();
+    }
+
+    /**
+     * Scratch space to restructure a single treelet.
+     */
+    private class Treelet {
+        private static final int SUBSETS = 1 << TREELET_SIZE;
+        final int[] leaves = new int[TREELET_SIZE];
+        final int[] inner = new int[TREELET_SIZE - 1];
+        final double[] area = new double[SUBSETS];
+        final double[] cost = new double[SUBSETS];
+        final int[] partition = new int[SUBSETS];
+        final int[] boxes = new int[6 * SUBSETS];
+        /** The SAH cost of the subtree below each node, which is final for all nodes below the treelet */
+        final double[] costs;
+        int leafCount, innerCount, nextInner;
+
+        Treelet(double[] costs) {
+            this.costs = costs;
+        }
+
+        void optimize(int root) {
+            form(root);
+            double oldCost = 0.0;
+            for (int i = 0; i < leafCount; i++)
+                oldCost += costs[leaves[i]];
+            for (int i = 0; i < innerCount; i++)
+                oldCost += TRAVERSAL_COST * area(inner[i]);
+            if (leafCount > 2)
+                oldCost = restructure(root, oldCost);
+            costs[root] = oldCost;
+        }
+
+        /**
+         * Grow the treelet from its root by expanding the leaf with the largest surface area.
+         */
+        private void form(int root) {
+            int n = NODE_SIZE * root;
+            inner[0] = root;
+            innerCount = 1;
+            leaves[0] = nodes[n + LEFT];
+            leaves[1] = nodes[n + RIGHT];
+            leafCount = 2;
+            while (leafCount < TREELET_SIZE) {
+                int best = -1;
+                double bestArea = -1.0;
+                for (int i = 0; i < leafCount; i++) {
+                    if (isLeaf(leaves[i]))
+                        continue;
+                    double a = area(leaves[i]);
+                    if (a > bestArea) {
+                        bestArea = a;
+                        best = i;
+                    }
+                }
+                if (best == -1)
+                    break;
+                int expanded = leaves[best];
+                inner[innerCount++] = expanded;
+                leaves[best] = nodes[NODE_SIZE * expanded + LEFT];
+                leaves[leafCount++] = nodes[NODE_SIZE * expanded + RIGHT];
+            }
+        }
+
+        /**
+         * Find the topology of the treelet with the lowest cost and rebuild it if that is cheaper than the current
+         * one.
+         *
+         * @return the new cost of the treelet
+         */
+        private double restructure(int root, double oldCost) {
+            int full = (1 << leafCount) - 1;
+            /* The bounds of each subset are the bounds of the subset without its lowest leaf plus that leaf */
+            for (int s = 1; s <= full; s++) {
+                int b = 6 * s, rest = 6 * (s & s - 1), l = NODE_SIZE * leaves[Integer.numberOfTrailingZeros(s)];
+                for (int a = 0; a < 3; a++) {
+                    boxes[b + a] = rest == 0 ? nodes[l + a] : Math.min(boxes[rest + a], nodes[l + a]);
+                    boxes[b + a + 3] = rest == 0 ? nodes[l + a + 3] : Math.max(boxes[rest + a + 3], nodes[l + a + 3]);
+                }
+                double dx = boxes[b + 3] - boxes[b], dy = boxes[b + 4] - boxes[b + 1], dz = boxes[b + 5] - boxes[b + 2];
+                area[s] = dx * dy + dy * dz + dz * dx;
+            }
+            for (int i = 0; i < leafCount; i++)
+                cost[1 << i] = costs[leaves[i]];
+            for (int s = 1; s <= full; s++) {
+                if ((s & s - 1) == 0)
+                    continue;
+                int lowest = s & -s, rest = s ^ lowest;
+                double best = Double.POSITIVE_INFINITY;
+                int bestPartition = 0;
+                /* Only enumerate partitions containing the lowest leaf, since the other half is symmetric */
+                for (int m = rest - 1 & rest;; m = m - 1 & rest) {
+                    int p = m | lowest;
+                    double c = cost[p] + cost[s ^ p];
+                    if (c < best) {
+                        best = c;
+                        bestPartition = p;
+                    }
+                    if (m == 0)
+                        break;
+                }
+                cost[s] = TRAVERSAL_COST * area[s] + best;
+                partition[s] = bestPartition;
+            }
+            if (cost[full] >= oldCost * (1.0 - 1E-6))
+                return oldCost;
+            nextInner = 1;
+            emit(full, root);
+            return cost[full];
+        }
+
+        /**
+         * Rebuild the subtree of the given subset of leaves at the given node, reusing the inner nodes of the treelet
+         * and storing the cost of every rebuilt node in {@link #costs} for the treelets above.
+         */
+        private int emit(int s, int node) {
+            if ((s & s - 1) == 0)
+                return leaves[Integer.numberOfTrailingZeros(s)];
+            int n = NODE_SIZE * node;
+            int p = partition[s], q = s ^ p;
+            int left = emit(p, (p & p - 1) == 0 ? -1 : inner[nextInner++]);
+            int right = emit(q, (q & q - 1) == 0 ? -1 : inner[nextInner++]);
+            nodes[n + LEFT] = left;
+            nodes[n + RIGHT] = right;
+            nodes[n + FIRST] = -1;
+            nodes[n + COUNT] = nodes[NODE_SIZE * left + COUNT] + nodes[NODE_SIZE * right + COUNT];
+            nodes[NODE_SIZE * left + PARENT] = node;
+            nodes[NODE_SIZE * right + PARENT] = node;
+            fitInnerNode(node);
+            orderChildren(node);
+            costs[node] = cost[s];
+            return node;
+        }
+    }
+
+    /**
+     * Estimate the average cost of tracing a ray through the tree, by tracing random rays between two points in the
+     * bounds of the root and counting the inner nodes visited and the primitive bounds tested, weighted like in
+     * {@link #sahCost()}.
+     *
+     * @param rayCount
+     *            the number of rays to trace
+     * @param seed
+     *            the seed of the random rays, so that different trees can be compared with the same rays
+     * @param parallel
+     *            whether to trace in parallel using the common fork-join pool
+     * @return the average cost per ray
+     */
+    public float estimateTraversalCost(int rayCount, long seed, boolean parallel) {
+        if (root == -1 || rayCount <= 0)
+            return 0.0f;
+        DoubleAdder total = new DoubleAdder();
+        forEach(rayCount, parallel, (first, end) -> {
+            int[] stack = new int[64];
+            double cost = 0.0;
+            int r = NODE_SIZE * root;
+            for (int i = first; i < end; i++) {
+                long h = seed + i * 0x9E3779B97F4A7C15L;
+                float ox = 0, oy = 0, oz = 0, dx = 0, dy = 0, dz = 0;
+                for (int a = 0; a < 3; a++) {
+                    float lo = nodes[r + a], ext = nodes[r + a + 3] - lo;
+                    h = mix(h);
+                    float o = lo + ext * ((h >>> 40) * 0x1p-24f);
+                    float e = lo + ext * ((h & 0xFFFFFF) * 0x1p-24f);
+                    if (a == 0) {
+                        ox = o;
+                        dx = e - o;
+                    } else if (a == 1) {
+                        oy = o;
+                        dy = e - o;
+                    } else {
+                        oz = o;
+                        dz = e - o;
+                    }
+                }
+                float idx = 1.0f / dx, idy = 1.0f / dy, idz = 1.0f / dz;
+                int sp = 0;
+                stack[sp++] = root;
+                while (sp > 0) {
+                    int node = stack[--sp], n = NODE_SIZE * node;
+                    if (isLeaf(node)) {
+                        cost += nodes[n + COUNT];
+                        continue;
+                    }
+                    cost += TRAVERSAL_COST;
+                    for (int c = LEFT; c <= RIGHT; c++) {
+                        int child = nodes[n + c];
+                        if (hits(child, ox, oy, oz, idx, idy, idz)) {
+                            if (sp == stack.length)
+                                stack = Arrays.copyOf(stack, sp * 2);
+                            stack[sp++] = child;
+                        }
+                    }
+                }
+            }
+            total.add(cost);
+        });
+        return (float) (total.sum() / rayCount);
+    }
+
+    private static long mix(long h) {
+        h = (h ^ h >>> 33) * 0xFF51AFD7ED558CCDL;
+        h = (h ^ h >>> 33) * 0xC4CEB9FE1A85EC53L;
+        return h ^ h >>> 33;
+    }
+
+    /**
+     * Slab test of the segment <code>o + t * d</code> with <code>0 &lt;= t &lt;= 1</code> against the bounds of a node.
+     */
+    private boolean hits(int node, float ox, float oy, float oz, float idx, float idy, float idz) {
+        int n = NODE_SIZE * node;
+        float tx0 = (nodes[n] - ox) * idx, tx1 = (nodes[n + 3] - ox) * idx;
+        float ty0 = (nodes[n + 1] - oy) * idy, ty1 = (nodes[n + 4] - oy) * idy;
+        float tz0 = (nodes[n + 2] - oz) * idz, tz1 = (nodes[n + 5] - oz) * idz;
+        float tmin = Math.max(0.0f, Math.max(Math.min(tx0, tx1), Math.max(Math.min(ty0, ty1), Math.min(tz0, tz1))));
+        float tmax = Math.min(1.0f, Math.min(Math.max(tx0, tx1), Math.min(Math.max(ty0, ty1), Math.max(tz0, tz1))));
+        return tmin <= tmax;
+    }
+}
@@ -8,9 +8,26 @@ import static java.lang.Math.*;
 import static java.nio.charset.StandardCharsets.*;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.*;
+import java.util.stream.IntStream;
+
+import org.joml.Matrix4x3f;
+import org.joml.Vector3f;
+import org.joml.Vector3i;
 
 /**
  * Loader for MagicaVoxel .vox files.
+ * <p>
+ * Files are best read from a {@link ByteBuffer}, for example one memory-mapped with
+ * {@link IOUtils#ioResourceToByteBuffer(String, int)}, with {@link #read(ByteBuffer, Swizzle, Volume, Material[])}.
+ * This copies the voxels of each model in bulk into a {@link Volume}, such as a {@link DenseVolume}, optionally
+ * converting them to a coordinate system with y up.
+ * <p>
+ * Files with several models placed by a scene graph are read with {@link #readScene(ByteBuffer, boolean)}, which
+ * decodes each model once and returns the placements as {@link Instance}s sharing the models.
  * 
  * @author Kai Burjack
  */
@@ -22,6 +39,93 @@ public class MagicaVoxelLoader {
         void paletteMaterial(int i, Material m);
     }
 
+    /**
+     * Receives the voxels of the models in bulk.
+     */
+    public interface Volume {
+        /**
+         * Called with the size of each model before its voxels.
+         */
+        void size(int x, int y, int z);
+
+        /**
+         * Called with a batch of voxels of the current model, each packed as
+         * <code>x | y &lt;&lt; 8 | z &lt;&lt; 16 | c &lt;&lt; 24</code> with the palette index <code>c</code>.
+         * <p>
+         * The array is reused for the next batch.
+         */
+        void voxels(int[] packed, int offset, int count);
+    }
+
+    /**
+     * The coordinate system of the sizes and voxels handed to a {@link Volume}.
+     */
+    public static enum Swizzle {
+        /** The coordinate system of the file, in which z is up */
+        NONE,
+        /**
+         * The file coordinates <code>(x, y, z)</code> of a model of size <code>(w, h, d)</code> become
+         * <code>(x, z, h - 1 - y)</code>, so that y is up, and the size becomes <code>(w, d, h)</code>
+         */
+        Y_UP
+    }
+
+    /**
+     * A {@link Volume} storing one byte per voxel in a dense array.
+     * <p>
+     * The array is surrounded by a border of empty voxels, with x varying fastest, followed by z and then y, as
+     * expected by {@link GreedyMeshing} and {@link GreedyVoxels} with a border of one voxel. The bounds of all
+     * non-empty voxels are tracked in {@link #min} and {@link #max}.
+     */
+    public static class DenseVolume implements Volume {
+        public final int border;
+        public int width, height, depth;
+        public byte[] field;
+        public final Vector3i min = new Vector3i(Integer.MAX_VALUE);
+        public final Vector3i max = new Vector3i(Integer.MIN_VALUE);
+
+        /**
+         * Create a volume with the given number of empty voxels on each side, which allocates its array on the first
+         * call to {@link #size(int, int, int)}.
+         */
+        public DenseVolume(int border) {
+            this.border = border;
+        }
+
+        public int index(int x, int y, int z) {
+            int w = width + 2 * border, d = depth + 2 * border;
+            return x + border + w * (z + border + d * (y + border));
+        }
+
+        public void size(int x, int y, int z) {
+            width = x;
+            height = y;
+            depth = z;
+            int length = (x + 2 * border) * (y + 2 * border) * (z + 2 * border);
+            if (field == null || field.length < length)
+                field = new byte[length];
+        }
+
+        public void voxels(int[] packed, int offset, int count) {
+            int w = width + 2 * border, wd = w * (depth + 2 * border);
+            int base = border * (1 + w + wd);
+            int minX = min.x, minY = min.y, minZ = min.z, maxX = max.x, maxY = max.y, maxZ = max.z;
+            byte[] field = this.field;
+            for (int i = offset; i < offset + count; i++) {
+                int v = packed[i], x = v & 0xFF, y = v >>> 8 & 0xFF, z = v >>> 16 & 0xFF;
+                field[base + x + w * z + wd * y] = (byte) (v >>> 24);
+                minX = minX < x ? minX : x;
+                minY = minY < y ? minY : y;
+                minZ = minZ < z ? minZ : z;
+                maxX = maxX > x ? maxX : x;
+                maxY = maxY > y ? maxY : y;
+                maxZ = maxZ > z ? maxZ : z;
+            }
+            min.set(minX, minY, minZ);
+            max.set(maxX, maxY, maxZ);
+        }
+    }
+
     public static class Chunk {
         public int id;
         public int size;
@@ -50,6 +154,98 @@ public class MagicaVoxelLoader {
         }
     }
 
+    /**
+     * A model of a file with its voxels packed as in {@link Volume#voxels(int[], int, int)} in the coordinate system
+     * of the file.
+     */
+    public static class Model {
+        public int width, height, depth;
+        public int[] voxels;
+    }
+
+    /**
+     * A placement of a {@link Model} by the scene graph.
+     */
+    public static class Instance {
+        public final Model model;
+        /** The name of the nearest named transform node or <code>null</code> */
+        public String name;
+        /**
+         * Transforms the model coordinates of a voxel, whose center is at <code>(x + 0.5, y + 0.5, z + 0.5)</code>,
+         * into world coordinates, in which z is up. This includes centering the model on its pivot.
+         */
+        public final Matrix4x3f transform = new Matrix4x3f();
+
+        public Instance(Model model) {
+            this.model = model;
+        }
+    }
+
+    /**
+     * The models, instances and palette materials of a file read with {@link MagicaVoxelLoader#readScene(ByteBuffer,
+     * boolean)}.
+     */
+    public static class Scene {
+        public final List<Model> models = new ArrayList<>();
+        public final List<Instance> instances = new ArrayList<>();
+        /** 512 materials, of which the first {@link #numMaterials} are defined by the file */
+        public Material[] materials;
+        public int numMaterials;
+
+        /**
+         * Hand the voxels of all instances to the given volume as a single model, whose origin is the minimum corner
+         * of the world bounds of all instances. Where instances overlap, later ones win.
+         *
+         * @throws IllegalStateException
+         *             if the world bounds are larger than 256 voxels along any axis
+         */
+        public void flatten(Volume volume, Swizzle swizzle) {
+            Vector3f min = new Vector3f(Float.POSITIVE_INFINITY), max = new Vector3f(Float.NEGATIVE_INFINITY);
+            Vector3f p = new Vector3f();
+            for (Instance instance : instances) {
+                Model m = instance.model;
+                for (int i = 0; i < 8; i++) {
+                    p.set((i & 1) * m.width, (i >> 1 & 1) * m.height, (i >> 2 & 1) * m.depth);
+                    instance.transform.transformPosition(p);
+                    min.min(p);
+                    max.max(p);
+                }
+            }
+            if (instances.isEmpty()) {
+                min.zero();
+                max.zero();
+            }
+            int minX = round(min.x), minY = round(min.y), minZ = round(min.z);
+            int w = round(max.x) - minX, h = round(max.y) - minY, d = round(max.z) - minZ;
+            if (w > 256 || h > 256 || d > 256)
+                throw new IllegalStateException("Scene too large: " + w + "x" + h + "x" + d);
+            if (swizzle == Swizzle.Y_UP)
+                volume.size(w, d, h);
+            else
+                volume.size(w, h, d);
+            int[] packed = new int[BATCH_SIZE];
+            for (Instance instance : instances) {
+                Matrix4x3f t = instance.transform;
+                int[] voxels = instance.model.voxels;
+                for (int i = 0; i < voxels.length; i += packed.length) {
+                    int count = min(voxels.length - i, packed.length);
+                    for (int j = 0; j < count; j++) {
+                        int v = voxels[i + j];
+                        float x = (v & 0xFF) + 0.5f, y = (v >>> 8 & 0xFF) + 0.5f, z = (v >>> 16 & 0xFF) + 0.5f;
+                        int wx = (int) floor(t.m00() * x + t.m10() * y + t.m20() * z + t.m30()) - minX;
+                        int wy = (int) floor(t.m01() * x + t.m11() * y + t.m21() * z + t.m31()) - minY;
+                        int wz = (int) floor(t.m02() * x + t.m12() * y + t.m22() * z + t.m32()) - minZ;
+                        if (swizzle == Swizzle.Y_UP)
+                            packed[j] = wx | wz << 8 | h - 1 - wy << 16 | v & 0xFF000000;
+                        else
+                            packed[j] = wx | wy << 8 | wz << 16 | v & 0xFF000000;
+                    }
+                    volume.voxels(packed, 0, count);
+                }
+            }
+        }
+    }
+
     public static final int[] DEFAULT_PALETTE = { 0x00000000, 0xffffffff, 0xffccffff, 0xff99ffff, 0xff66ffff,
             0xff33ffff, 0xff00ffff, 0xffffccff, 0xffccccff, 0xff99ccff, 0xff66ccff, 0xff33ccff, 0xff00ccff, 0xffff99ff,
             0xffcc99ff, 0xff9999ff, 0xff6699ff, 0xff3399ff, 0xff0099ff, 0xffff66ff, 0xffcc66ff, 0xff9966ff, 0xff6666ff,
@@ -80,121 +276,366 @@ public class MagicaVoxelLoader {
             0xffaa0000, 0xff880000, 0xff770000, 0xff550000, 0xff440000, 0xff220000, 0xff110000, 0xffeeeeee, 0xffdddddd,
             0xffbbbbbb, 0xffaaaaaa, 0xff888888, 0xff777777, 0xff555555, 0xff444444, 0xff222222, 0xff111111 };
 
-    private final byte[] buf = new byte[4];
+    /**
+     * The number of voxels handed to {@link Volume#voxels(int[], int, int)} at once.
+     */
+    private static final int BATCH_SIZE = 1 << 14;
 
-    private static void skip(InputStream input, int skip) throws IOException {
-        while (skip > 0) {
-            int skipped = (int) input.skip(skip);
-            if (skipped <= 0)
-                throw new IOException();
-            skip -= skipped;
-        }
+    private static final int MAIN = magicValue('M', 'A', 'I', 'N');
+    private static final int SIZE = magicValue('S', 'I', 'Z', 'E');
+    private static final int XYZI = magicValue('X', 'Y', 'Z', 'I');
+    private static final int RGBA = magicValue('R', 'G', 'B', 'A');
+    private static final int MATL = magicValue('M', 'A', 'T', 'L');
+    private static final int NTRN = magicValue('n', 'T', 'R', 'N');
+    private static final int NGRP = magicValue('n', 'G', 'R', 'P');
+    private static final int NSHP = magicValue('n', 'S', 'H', 'P');
+
+    private final int[] packed = new int[BATCH_SIZE];
+
+    /**
+     * The chunks of a file found by {@link MagicaVoxelLoader#scan(ByteBuffer)}.
+     */
+    private static class Contents {
+        ByteBuffer buffer;
+        /** The size and the position of the XYZI chunk content of each model */
+        int[] models = new int[4 * 4];
+        int numModels;
+        /** The position of the content of each scene graph node chunk by node id */
+        Map<Integer, Integer> nodes = new HashMap<>();
+        Material[] materials = new Material[512];
+        int numMaterials;
     }
 
+    /**
+     * Read a .vox file from the given stream.
+     * <p>
+     * The callback receives the sizes and voxels in the coordinate system of the file, in which z is up, followed by
+     * the palette materials.
+     */
     public void read(InputStream input, Callback callback) throws IOException {
-        Chunk chunk = new Chunk();
-        if (read32(input) != magicValue('V', 'O', 'X', ' '))
-            throw new IOException();
-        if (read32(input) < 150)
-            throw new IOException();
-        readChunk(input, chunk);
-        if (chunk.id != magicValue('M', 'A', 'I', 'N'))
-            throw new IOException();
-        skip(input, chunk.size);
-        boolean foundPalette = false;
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        byte[] buf = new byte[8192];
+        int read;
+        while ((read = input.read(buf)) != -1)
+            baos.write(buf, 0, read);
         Material[] mats = new Material[512];
+        int numMaterials = read(ByteBuffer.wrap(baos.toByteArray()), Swizzle.NONE, new Volume() {
+            public void size(int x, int y, int z) {
+                callback.size(x, y, z);
+            }
+            public void voxels(int[] packed, int offset, int count) {
+                for (int i = offset; i < offset + count; i++) {
+                    int v = packed[i];
+                    callback.voxel(v & 0xFF, v >>> 8 & 0xFF, v >>> 16 & 0xFF, (byte) (v >>> 24));
+                }
+            }
+        }, mats);
+        for (int p = 0; p < numMaterials; p++)
+            callback.paletteMaterial(p, mats[p]);
+    }
+
+    /**
+     * Read a .vox file from the remaining bytes of the given buffer, such as a memory-mapped file, without changing its
+     * position.
+     * <p>
+     * The voxels of each <code>XYZI</code> chunk are copied in bulk into arrays of packed voxels, which are swizzled
+     * and handed to the volume in batches. The models are handed to the volume one after another in file order,
+     * ignoring the scene graph (see {@link #readScene(ByteBuffer, boolean)}).
+     *
+     * @param buffer
+     *            the contents of the file
+     * @param swizzle
+     *            the coordinate system of the sizes and voxels handed to the volume
+     * @param volume
+     *            receives the sizes and voxels of the models
+     * @param materials
+     *            receives the palette materials up to its length, may be <code>null</code>
+     * @return the number of palette materials
+     */
+    public int read(ByteBuffer buffer, Swizzle swizzle, Volume volume, Material[] materials) throws IOException {
+        Contents contents = scan(buffer);
+        for (int m = 0; m < contents.numModels; m++) {
+            int x = contents.models[4 * m], y = contents.models[4 * m + 1], z = contents.models[4 * m + 2];
+            if (swizzle == Swizzle.Y_UP)
+                volume.size(x, z, y);
+            else
+                volume.size(x, y, z);
+            IntBuffer voxels = voxels(contents, m);
+            int[] packed = this.packed;
+            while (voxels.hasRemaining()) {
+                int count = min(voxels.remaining(), packed.length);
+                voxels.get(packed, 0, count);
+                if (swizzle == Swizzle.Y_UP)
+                    yUp(packed, 0, count, y);
+                volume.voxels(packed, 0, count);
+            }
+        }
+        if (materials != null)
+            System.arraycopy(contents.materials, 0, materials, 0, min(contents.numMaterials, materials.length));
+        return contents.numMaterials;
+    }
+
+    /**
+     * Read a .vox file with its scene graph from the remaining bytes of the given buffer, without changing its
+     * position.
+     * <p>
+     * Each model is decoded once into a {@link Model}, even if the scene graph places it several times, and each
+     * placement becomes an {@link Instance} referring to the shared model with its accumulated transform. Hidden nodes
+     * are skipped and only the first animation frame is used. Files without a scene graph yield one instance per model,
+     * which is only centered on its pivot.
+     *
+     * @param buffer
+     *            the contents of the file
+     * @param parallel
+     *            whether to decode the models in parallel using the common fork-join pool
+     * @return the scene
+     */
+    public Scene readScene(ByteBuffer buffer, boolean parallel) throws IOException {
+        Contents contents = scan(buffer);
+        Scene scene = new Scene();
+        Model[] models = new Model[contents.numModels];
+        IntStream range = IntStream.range(0, contents.numModels);
+        (parallel ? range.parallel() : range).forEach(m -> {
+            Model model = new Model();
+            model.width = contents.models[4 * m];
+            model.height = contents.models[4 * m + 1];
+            model.depth = contents.models[4 * m + 2];
+            IntBuffer voxels = voxels(contents, m);
+            model.voxels = new int[voxels.remaining()];
+            voxels.get(model.voxels);
+            models[m] = model;
+        });
+        scene.models.addAll(Arrays.asList(models));
+        if (contents.nodes.containsKey(0)) {
+            addInstances(contents, 0, new Matrix4x3f(), null, scene, 0);
+        } else {
+            for (Model model : models) {
+                Instance instance = new Instance(model);
+                instance.transform.translation(-(model.width / 2), -(model.height / 2), -(model.depth / 2));
+                scene.instances.add(instance);
+            }
+        }
+        scene.materials = contents.materials;
+        scene.numMaterials = contents.numMaterials;
+        return scene;
+    }
+
+    private void addInstances(Contents contents, int nodeId, Matrix4x3f parent, String name, Scene scene, int depth)
+            throws IOException {
+        Integer position = contents.nodes.get(nodeId);
+        if (position == null || depth > 64)
+            throw new IOException("Invalid scene graph node: " + nodeId);
+        ByteBuffer b = contents.buffer;
+        int pos = position;
+        int id = b.getInt(pos - 12);
+        pos += 4;
+        Map<String, String> attributes = new HashMap<>();
+        pos = readDict(b, pos, attributes);
+        if ("1".equals(attributes.get("_hidden")))
+            return;
+        if (id == NTRN) {
+            int child = b.getInt(pos);
+            int numFrames = b.getInt(pos + 12);
+            pos += 16;
+            Matrix4x3f transform = new Matrix4x3f(parent);
+            if (numFrames > 0) {
+                Map<String, String> frame = new HashMap<>();
+                readDict(b, pos, frame);
+                transform.mul(frameTransform(frame));
+            }
+            String nodeName = attributes.get("_name");
+            addInstances(contents, child, transform, nodeName != null ? nodeName : name, scene, depth + 1);
+        } else if (id == NGRP) {
+            int numChildren = b.getInt(pos);
+            for (int i = 0; i < numChildren; i++)
+                addInstances(contents, b.getInt(pos + 4 + 4 * i), parent, name, scene, depth + 1);
+        } else if (id == NSHP) {
+            int numModels = b.getInt(pos);
+            pos += 4;
+            for (int i = 0; i < numModels; i++) {
+                int modelId = b.getInt(pos);
+                pos = readDict(b, pos + 4, null);
+                if (modelId < 0 || modelId >= scene.models.size())
+                    throw new IOException("Invalid model id: " + modelId);
+                Model model = scene.models.get(modelId);
+                Instance instance = new Instance(model);
+                instance.name = name;
+                instance.transform.set(parent).translate(-(model.width / 2), -(model.height / 2), -(model.depth / 2));
+                scene.instances.add(instance);
+            }
+        }
+    }
+
+    /**
+     * Return the transform of a frame dictionary of an nTRN chunk with the rotation <code>_r</code> and the
+     * translation <code>_t</code>.
+     */
+    private static Matrix4x3f frameTransform(Map<String, String> frame) {
+        Matrix4x3f m = new Matrix4x3f();
+        String r = frame.get("_r");
+        if (r != null) {
+            int bits = Integer.parseInt(r.trim());
+            int c0 = bits & 3, c1 = bits >> 2 & 3, c2 = 3 - c0 - c1;
+            float[] rows = new float[9];
+            rows[c0] = (bits & 1 << 4) != 0 ? -1 : 1;
+            rows[3 + c1] = (bits & 1 << 5) != 0 ? -1 : 1;
+            rows[6 + c2] = (bits & 1 << 6) != 0 ? -1 : 1;
+            m.set(rows[0], rows[3], rows[6], rows[1], rows[4], rows[7], rows[2], rows[5], rows[8], 0, 0, 0);
+        }
+        String t = frame.get("_t");
+        if (t != null) {
+            String[] xyz = t.trim().split("\\s+");
+            m.setTranslation(Integer.parseInt(xyz[0]), Integer.parseInt(xyz[1]), Integer.parseInt(xyz[2]));
+        }
+        return m;
+    }
+
+    private static int readDict(ByteBuffer b, int pos, Map<String, String> dict) throws IOException {
+        int n = b.getInt(pos);
+        pos += 4;
+        for (int i = 0; i < n; i++) {
+            String k = readString(b, pos);
+            pos += 4 + k.length();
+            String v = readString(b, pos);
+            pos += 4 + v.length();
+            if (dict != null)
+                dict.put(k, v);
+        }
+        return pos;
+    }
+
+    /**
+     * Find the models, scene graph nodes and materials in the given file.
+     */
+    private static Contents scan(ByteBuffer buffer) throws IOException {
+        ByteBuffer b = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+        if (b.remaining() < 20 || b.getInt(0) != magicValue('V', 'O', 'X', ' ') || b.getInt(4) < 150)
+            throw new IOException("Not a .vox file");
+        if (b.getInt(8) != MAIN)
+            throw new IOException("Missing MAIN chunk");
+        Contents contents = new Contents();
+        contents.buffer = b;
+        int pos = 20 + b.getInt(12);
+        boolean foundPalette = false;
+        Material[] mats = contents.materials;
         for (int p = 0; p < 512; p++)
             mats[p] = new Material();
         int numMaterials = 0;
-        while (true) {
-            try {
-                readChunk(input, chunk);
-            } catch (IOException ignored) {
-                break;
-            }
-            if (chunk.id == magicValue('S', 'I', 'Z', 'E')) {
-                callback.size(read32(input), read32(input), read32(input));
-            } else if (chunk.id == magicValue('X', 'Y', 'Z', 'I')) {
-                int numVoxels = (int) read32(input);
-                for (int v = 0; v < numVoxels; v++)
-                    callback.voxel(input.read(), input.read(), input.read(), (byte) (input.read() & 0xff));
-            } else if (chunk.id == magicValue('R', 'G', 'B', 'A')) {
+        while (pos + 12 <= b.limit()) {
+            int id = b.getInt(pos), size = b.getInt(pos + 4), childrenSize = b.getInt(pos + 8);
+            pos += 12;
+            if (size < 0 || childrenSize < 0 || pos + (long) size > b.limit())
+                throw new IOException("Invalid chunk size");
+            if (id == SIZE) {
+                if (contents.numModels * 4 == contents.models.length)
+                    contents.models = Arrays.copyOf(contents.models, contents.models.length * 2);
+                contents.models[4 * contents.numModels] = b.getInt(pos);
+                contents.models[4 * contents.numModels + 1] = b.getInt(pos + 4);
+                contents.models[4 * contents.numModels + 2] = b.getInt(pos + 8);
+                contents.models[4 * contents.numModels + 3] = -1;
+                contents.numModels++;
+            } else if (id == XYZI) {
+                if (contents.numModels == 0 || contents.models[4 * contents.numModels - 1] >= 0)
+                    throw new IOException("XYZI chunk without SIZE chunk");
+                int numVoxels = b.getInt(pos);
+                if (numVoxels < 0 || pos + 4 + 4L * numVoxels > b.limit())
+                    throw new IOException("Invalid XYZI chunk");
+                contents.models[4 * contents.numModels - 1] = pos;
+            } else if (id == RGBA) {
                 mats[0].color = DEFAULT_PALETTE[0];
                 numMaterials = max(numMaterials, 256);
                 for (int p = 1; p < 256; p++)
-                    mats[p].color = read32(input);
-                skip(input, 4);
+                    mats[p].color = b.getInt(pos + 4 * (p - 1));
                 foundPalette = true;
-            } else if (chunk.id == magicValue('M', 'A', 'T', 'L')) {
-                int mid = read32(input), dc = read32(input);
-                Material mat = mats[mid];
-                numMaterials = max(numMaterials, mid + 1);
-                for (int i = 0; i < dc; i++) {
-                    String k = readString(input);
-                    String v = readString(input);
-                    switch (k) {
-                    case "_type":
-                        mat.type = Material.Type.valueOf(v);
-                        break;
-                    case "_weight":
-                        mat.weight = Float.parseFloat(v);
-                        break;
-                    case "_rough":
-                        mat.rought = Float.parseFloat(v);
-                        break;
-                    case "_spec":
-                        mat.spec = Float.parseFloat(v);
-                        break;
-                    case "_ior":
-                        mat.ior = Float.parseFloat(v);
-                        break;
-                    case "_att":
-                        mat.att = Float.parseFloat(v);
-                        break;
-                    case "_flux":
-                        mat.flux = Float.parseFloat(v);
-                        break;
-                    case "_plastic":
-                        mat.plastic = true;
-                        break;
-                    }
-                }
+            } else if (id == MATL) {
+                readMaterial(b, pos, mats);
+                numMaterials = max(numMaterials, b.getInt(pos) + 1);
+            } else if (id == NTRN || id == NGRP || id == NSHP) {
+                contents.nodes.put(b.getInt(pos), pos);
             } else {
-                // System.out.println("Unknown chunk type: " + magicaValueString(chunk.id));
-                skip(input, chunk.size + chunk.childrenCount);
+                pos += childrenSize;
             }
+            pos += size;
         }
         if (!foundPalette) {
             for (int p = 0; p < numMaterials; p++)
                 mats[p].color = DEFAULT_PALETTE[p];
         }
-        for (int p = 0; p < numMaterials; p++)
-            callback.paletteMaterial(p, mats[p]);
+        contents.numMaterials = numMaterials;
+        return contents;
     }
 
-    private void readChunk(InputStream input, Chunk chunk) throws IOException {
-        chunk.id = read32(input);
-        chunk.size = read32(input);
-        chunk.childrenCount = read32(input);
+    /**
+     * Return the packed voxels of the given model.
+     */
+    private static IntBuffer voxels(Contents contents, int model) {
+        int pos = contents.models[4 * model + 3];
+        if (pos < 0)
+            return IntBuffer.allocate(0);
+        ByteBuffer chunk = contents.buffer.duplicate();
+        chunk.position(pos + 4).limit(pos + 4 + 4 * contents.buffer.getInt(pos));
+        return chunk.slice().order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
     }
 
-    private String readString(InputStream input) throws IOException {
-        int length = read32(input);
-        int read = 0;
-        byte[] str = new byte[length];
-        while (read < length) {
-            int r = input.read(str, read, length - read);
-            if (r == -1)
-                throw new IOException();
-            read += r;
+    /**
+     * Convert packed voxels of a model with the given size in y to {@link Swizzle#Y_UP}.
+     */
+    private static void yUp(int[] packed, int offset, int count, int sizeY) {
+        for (int i = offset; i < offset + count; i++) {
+            int v = packed[i];
+            packed[i] = v & 0xFF0000FF | (v >>> 8 & 0xFF00) | sizeY - 1 - (v >>> 8 & 0xFF) << 16;
+        }
+    }
+
+    private static void readMaterial(ByteBuffer b, int pos, Material[] mats) throws IOException {
+        int mid = b.getInt(pos), dc = b.getInt(pos + 4);
+        if (mid < 0 || mid >= mats.length)
+            throw new IOException("Invalid material id: " + mid);
+        Material mat = mats[mid];
+        pos += 8;
+        for (int i = 0; i < dc; i++) {
+            String k = readString(b, pos);
+            pos += 4 + k.length();
+            String v = readString(b, pos);
+            pos += 4 + v.length();
+            switch (k) {
+            case "_type":
+                mat.type = Material.Type.valueOf(v);
+                break;
+            case "_weight":
+                mat.weight = Float.parseFloat(v);
+                break;
+            case "_rough":
+                mat.rought = Float.parseFloat(v);
+                break;
+            case "_spec":
+                mat.spec = Float.parseFloat(v);
+                break;
+            case "_ior":
+                mat.ior = Float.parseFloat(v);
+                break;
+            case "_att":
+                mat.att = Float.parseFloat(v);
+                break;
+            case "_flux":
+                mat.flux = Float.parseFloat(v);
+                break;
+            case "_plastic":
+                mat.plastic = true;
+                break;
+            }
         }
-        return new String(str, US_ASCII);
     }
 
-    private int read32(InputStream input) throws IOException {
-        if (input.read(buf) < 4)
-            throw new IOException();
-        return buf[0] & 0xff | (buf[1] & 0xff) << 8 | (buf[2] & 0xff) << 16 | (buf[3] & 0xff) << 24;
+    private static String readString(ByteBuffer b, int pos) throws IOException {
+        int length = b.getInt(pos);
+        if (length < 0 || pos + 4L + length > b.limit())
+            throw new IOException("Invalid string");
+        byte[] str = new byte[length];
+        ByteBuffer d = b.duplicate();
+        d.position(pos + 4);
+        d.get(str);
+        return new String(str, US_ASCII);
     }
 
     private static int magicValue(char c0, char c1, char c2, char c3) {
@@ -0,0 +1,157 @@
+/*
+ * Copyright LWJGL. All rights reserved.
+ * License terms: https://www.lwjgl.org/license
+ */
+package org.lwjgl.demo.util;
+
+import static org.lwjgl.system.MemoryUtil.memAddress;
+import static org.lwjgl.system.MemoryUtil.memCopy;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.lwjgl.BufferUtils;
+import org.lwjgl.PointerBuffer;
+import org.lwjgl.assimp.AIFace;
+import org.lwjgl.assimp.AIMesh;
+import org.lwjgl.assimp.AIScene;
+import org.lwjgl.assimp.AIVector3D;
+import org.lwjgl.assimp.Assimp;
+
+/**
+ * Imports the meshes of a scene classpath resource with Assimp once and keeps them in a binary file of the
+ * {@link BufferCache}.
+ * <p>
+ * The file consists of a header buffer with the number of meshes followed by the number of vertices, the number of
+ * indices and the flags of each mesh, and then the position, normal and index streams of each mesh. On later starts
+ * the file is memory-mapped and the streams are returned directly, so they can be uploaded to OpenGL buffer objects
+ * without copying and without running Assimp again.
+ * <p>
+ * The cache key contains the raw bytes of the resource, so changing the resource invalidates the file.
+ *
+ * @author Kai Burjack
+ */
+public class MeshCache {
+
+    /**
+     * The version of the layout of the cached buffers. Increment when changing it or the conversion of the meshes.
+     */
+    private static final int VERSION = 1;
+
+    private static final int HAS_NORMALS = 1;
+
+    /**
+     * A triangle mesh with vertices in native byte order.
+     */
+    public static class Mesh {
+        public int numVertices;
+        /** Three times the number of triangles */
+        public int numIndices;
+        /** Three floats per vertex */
+        public FloatBuffer positions;
+        /** Three floats per vertex or <code>null</code> if the mesh has no normals */
+        public FloatBuffer normals;
+        /** Three vertex indices per triangle */
+        public IntBuffer indices;
+    }
+
+    private MeshCache() {
+    }
+
+    /**
+     * Load the meshes of the given scene classpath resource.
+     * <p>
+     * If the resource name ends with <code>.zip</code>, the scene is the single file in that zip file. The format of
+     * the scene is given by the extension of its file name. Polygons are triangulated as fans and points and lines
+     * are dropped.
+     *
+     * @param resource
+     *            the classpath resource of the scene
+     * @param flags
+     *            the Assimp post-processing flags
+     * @return the meshes
+     */
+    public static List<Mesh> loadScene(String resource, int flags) throws IOException {
+        ByteBuffer raw = IOUtils.ioResourceToByteBuffer(resource, 8192);
+        long key = new BufferCache.Key().put("MeshCache").put(VERSION).put(resource).put(flags).put(raw).get();
+        String name = "MeshCache-" + resource.replace('/', '_') + "-" + Integer.toHexString(flags);
+        ByteBuffer[] buffers = BufferCache.load(name, key);
+        if (buffers == null) {
+            buffers = importScene(resource, raw, flags);
+            BufferCache.store(name, key, buffers);
+        }
+        IntBuffer header = buffers[0].asIntBuffer();
+        int numMeshes = header.get(0);
+        List<Mesh> meshes = new ArrayList<>(numMeshes);
+        for (int i = 0; i < numMeshes; i++) {
+            Mesh mesh = new Mesh();
+            mesh.numVertices = header.get(1 + 3 * i);
+            mesh.numIndices = header.get(2 + 3 * i);
+            mesh.positions = buffers[1 + 3 * i].asFloatBuffer();
+            if ((header.get(3 + 3 * i) & HAS_NORMALS) != 0)
+                mesh.normals = buffers[2 + 3 * i].asFloatBuffer();
+            mesh.indices = buffers[3 + 3 * i].asIntBuffer();
+            meshes.add(mesh);
+        }
+        return meshes;
+    }
+
+    private static ByteBuffer[] importScene(String resource, ByteBuffer raw, int flags) throws IOException {
+        String fileName = resource;
+        ByteBuffer data = raw;
+        if (resource.endsWith(".zip")) {
+            fileName = resource.substring(0, resource.length() - 4);
+            data = IOUtils.readSingleFileZip(raw);
+        }
+        String hint = fileName.substring(fileName.lastIndexOf('.') + 1);
+        AIScene scene = Assimp.aiImportFileFromMemory(data, flags, hint);
+        if (scene == null)
+            throw new IOException("Could not import " + resource + ": " + Assimp.aiGetErrorString());
+        try {
+            int numMeshes = scene.mNumMeshes();
+            PointerBuffer meshes = scene.mMeshes();
+            ByteBuffer[] buffers = new ByteBuffer[1 + 3 * numMeshes];
+            buffers[0] = BufferUtils.createByteBuffer(4 * (1 + 3 * numMeshes));
+            IntBuffer header = buffers[0].asIntBuffer();
+            header.put(numMeshes);
+            for (int i = 0; i < numMeshes; i++) {
+                AIMesh mesh = AIMesh.create(meshes.get(i));
+                int numVertices = mesh.mNumVertices();
+                buffers[1 + 3 * i] = copy(mesh.mVertices(), numVertices);
+                AIVector3D.Buffer normals = mesh.mNormals();
+                buffers[2 + 3 * i] = normals != null ? copy(normals, numVertices) : BufferUtils.createByteBuffer(0);
+                buffers[3 + 3 * i] = triangulate(mesh);
+                header.put(numVertices).put(buffers[3 + 3 * i].remaining() / 4).put(normals != null ? HAS_NORMALS : 0);
+            }
+            return buffers;
+        } finally {
+            Assimp.aiReleaseImport(scene);
+        }
+    }
+
+    private static ByteBuffer copy(AIVector3D.Buffer vectors, int count) {
+        ByteBuffer bytes = BufferUtils.createByteBuffer(AIVector3D.SIZEOF * count);
+        memCopy(vectors.address(), memAddress(bytes), bytes.remaining());
+        return bytes;
+    }
+
+    private static ByteBuffer triangulate(AIMesh mesh) {
+        int numFaces = mesh.mNumFaces();
+        AIFace.Buffer faces = mesh.mFaces();
+        int numIndices = 0;
+        for (int i = 0; i < numFaces; i++)
+            numIndices += 3 * Math.max(0, faces.get(i).mNumIndices() - 2);
+        ByteBuffer bytes = BufferUtils.createByteBuffer(4 * numIndices);
+        IntBuffer indices = bytes.asIntBuffer();
+        for (int i = 0; i < numFaces; i++) {
+            IntBuffer face = faces.get(i).mIndices();
+            for (int j = 2; j < face.remaining(); j++)
+                indices.put(face.get(0)).put(face.get(j - 1)).put(face.get(j));
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,240 @@
+/*
+ * Copyright LWJGL. All rights reserved.
+ * License terms: https://www.lwjgl.org/license
+ */
+package org.lwjgl.demo.util;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+
+import org.joml.Vector3f;
+import org.lwjgl.BufferUtils;
+import org.lwjgl.demo.util.WavefrontMeshLoader.Mesh;
+
+/**
+ * Encodes vertex positions and normals into compact quantized formats.
+ * <p>
+ * Positions are stored as three signed normalized 16-bit integers relative to the axis-aligned bounding box of the
+ * vertices, so that a position is decoded with <code>offset + scale * q</code> from the normalized value
+ * <code>q</code> in <code>[-1, 1]</code>, as fetched from a <code>GL_SHORT</code> attribute with normalization enabled.
+ * <p>
+ * Normals are stored as two signed normalized 8-bit or 16-bit integers using the <a href=
+ * "http://jcgt.org/published/0003/02/01/">octahedral mapping</a>, choosing the rounding of both coordinates with the
+ * smallest angular error. A normal is decoded from its normalized coordinates <code>(u, v)</code> with:
+ *
+ * <pre>
+ * vec3 n = vec3(u, v, 1.0 - abs(u) - abs(v));
+ * if (n.z &lt; 0.0)
+ *     n.xy = (1.0 - abs(n.yx)) * vec2(n.x &gt;= 0.0 ? 1.0 : -1.0, n.y &gt;= 0.0 ? 1.0 : -1.0);
+ * n = normalize(n);
+ * </pre>
+ *
+ * With 8-bit normals, a vertex takes 8 instead of 24 bytes.
+ *
+ * @author Kai Burjack
+ */
+public class MeshQuantizer {
+
+    /**
+     * The format of octahedral normals.
+     */
+    public enum NormalFormat {
+        /** Two signed normalized bytes */
+        OCT8(8),
+        /** Two signed normalized shorts */
+        OCT16(16);
+
+        /** The number of bits per coordinate */
+        public final int bits;
+
+        NormalFormat(int bits) {
+            this.bits = bits;
+        }
+
+        /** The number of bytes per normal */
+        public int size() {
+            return bits / 4;
+        }
+    }
+
+    private MeshQuantizer() {
+    }
+
+    /**
+     * Quantize the positions and normals of the given mesh into {@link Mesh#quantizedPositions} and
+     * {@link Mesh#quantizedNormals}.
+     * <p>
+     * All positions are quantized relative to the bounds of the whole mesh, so that they are decoded with the single
+     * {@link Mesh#positionScale} and {@link Mesh#positionOffset}, no matter whether the mesh is indexed and which
+     * object they belong to.
+     *
+     * @param mesh
+     *            the mesh to quantize
+     * @param normalFormat
+     *            the format of the normals
+     */
+    public static void quantize(Mesh mesh, NormalFormat normalFormat) {
+        int n = mesh.numVertices;
+        int stride = n > 0 ? mesh.positions.remaining() / n : 3;
+        ShortBuffer positions = BufferUtils.createShortBuffer(3 * n);
+        ByteBuffer normals = BufferUtils.createByteBuffer(normalFormat.size() * n);
+        quantizePositions(mesh.positions, stride, 0, n, positions, mesh.positionScale, mesh.positionOffset);
+        encodeNormals(mesh.normals, 0, n, normalFormat, normals);
+        mesh.quantizedPositions = positions;
+        mesh.quantizedNormals = normals;
+        mesh.normalFormat = normalFormat;
+    }
+
+    /**
+     * Quantize a range of positions relative to their bounds.
+     *
+     * @param positions
+     *            the positions, starting at the buffer's position
+     * @param stride
+     *            the number of floats per position, of which the first three are used
+     * @param first
+     *            the index of the first position to quantize
+     * @param count
+     *            the number of positions to quantize
+     * @param dest
+     *            receives three shorts per position at the same index, starting at the buffer's position
+     * @param scale
+     *            receives the decode scale
+     * @param offset
+     *            receives the decode offset
+     */
+    public static void quantizePositions(FloatBuffer positions, int stride, int first, int count, ShortBuffer dest,
+            Vector3f scale, Vector3f offset) {
+        if (stride < 3)
+            throw new IllegalArgumentException("stride");
+        if (first < 0 || count < 0 || positions.remaining() < (long) stride * (first + count))
+            throw new IllegalArgumentException("count");
+        if (dest.remaining() < 3L * (first + count))
+            throw new IllegalArgumentException("dest");
+        int p = positions.position(), d = dest.position();
+        float minX = Float.POSITIVE_INFINITY, minY = Float.POSITIVE_INFINITY, minZ = Float.POSITIVE_INFINITY;
+        float maxX = Float.NEGATIVE_INFINITY, maxY = Float.NEGATIVE_INFINITY, maxZ = Float.NEGATIVE_INFINITY;
+        for (int i = first; i < first + count; i++) {
+            float x = positions.get(p + stride * i), y = positions.get(p + stride * i + 1);
+            float z = positions.get(p + stride * i + 2);
+            minX = minX < x ? minX : x;
+            minY = minY < y ? minY : y;
+            minZ = minZ < z ? minZ : z;
+            maxX = maxX > x ? maxX : x;
+            maxY = maxY > y ? maxY : y;
+            maxZ = maxZ > z ? maxZ : z;
+        }
+        if (count == 0) {
+            scale.set(0.0f);
+            offset.set(0.0f);
+            return;
+        }
+        offset.set((minX + maxX) * 0.5f, (minY + maxY) * 0.5f, (minZ + maxZ) * 0.5f);
+        scale.set((maxX - minX) * 0.5f, (maxY - minY) * 0.5f, (maxZ - minZ) * 0.5f);
+        float sx = scale.x > 0.0f ? Short.MAX_VALUE / scale.x : 0.0f;
+        float sy = scale.y > 0.0f ? Short.MAX_VALUE / scale.y : 0.0f;
+        float sz = scale.z > 0.0f ? Short.MAX_VALUE / scale.z : 0.0f;
+        for (int i = first; i < first + count; i++) {
+            dest.put(d + 3 * i, snorm((positions.get(p + stride * i) - offset.x) * sx, Short.MAX_VALUE));
+            dest.put(d + 3 * i + 1, snorm((positions.get(p + stride * i + 1) - offset.y) * sy, Short.MAX_VALUE));
+            dest.put(d + 3 * i + 2, snorm((positions.get(p + stride * i + 2) - offset.z) * sz, Short.MAX_VALUE));
+        }
+    }
+
+    private static short snorm(float v, int max) {
+        return (short) Math.max(-max, Math.min(max, Math.round(v)));
+    }
+
+    /**
+     * Encode a range of normals with the octahedral mapping.
+     * <p>
+     * Zero normals are encoded as <code>(0, 0)</code>, which decodes to <code>(0, 0, 1)</code>.
+     *
+     * @param normals
+     *            three floats per normal, starting at the buffer's position
+     * @param first
+     *            the index of the first normal to encode
+     * @param count
+     *            the number of normals to encode
+     * @param format
+     *            the format of the encoded normals
+     * @param dest
+     *            receives the encoded normals in the byte order of the buffer at the same index, starting at the
+     *            buffer's position
+     */
+    public static void encodeNormals(FloatBuffer normals, int first, int count, NormalFormat format,
+            ByteBuffer dest) {
+        if (first < 0 || count < 0 || normals.remaining() < 3L * (first + count))
+            throw new IllegalArgumentException("count");
+        if (dest.remaining() < (long) format.size() * (first + count))
+            throw new IllegalArgumentException("dest");
+        int p = normals.position(), d = dest.position();
+        for (int i = first; i < first + count; i++) {
+            int e = octEncode(normals.get(p + 3 * i), normals.get(p + 3 * i + 1), normals.get(p + 3 * i + 2),
+                    format.bits);
+            if (format == NormalFormat.OCT8) {
+                dest.put(d + 2 * i, (byte) (e >> 16));
+                dest.put(d + 2 * i + 1, (byte) e);
+            } else {
+                dest.putShort(d + 4 * i, (short) (e >> 16));
+                dest.putShort(d + 4 * i + 2, (short) e);
+            }
+        }
+    }
+
+    /**
+     * Encode the given normal with the octahedral mapping into two signed integers of the given number of bits.
+     *
+     * @return the first coordinate in the upper and the second in the lower 16 bits
+     */
+    public static int octEncode(float x, float y, float z, int bits) {
+        int max = (1 << bits - 1) - 1;
+        float l1 = Math.abs(x) + Math.abs(y) + Math.abs(z);
+        if (!(l1 > 0.0f))
+            return 0;
+        float u = x / l1, v = y / l1;
+        if (z < 0.0f) {
+            float t = (1.0f - Math.abs(v)) * (u >= 0.0f ? 1.0f : -1.0f);
+            v = (1.0f - Math.abs(u)) * (v >= 0.0f ? 1.0f : -1.0f);
+            u = t;
+        }
+        float len = (float) Math.sqrt(x * x + y * y + z * z);
+        float nx = x / len, ny = y / len, nz = z / len;
+        /* Try all four roundings and keep the one decoding closest to the normal */
+        int u0 = (int) Math.floor(u * max), v0 = (int) Math.floor(v * max);
+        int bestU = 0, bestV = 0;
+        float bestDot = Float.NEGATIVE_INFINITY;
+        for (int i = 0; i < 4; i++) {
+            int qu = Math.max(-max, Math.min(max, u0 + (i & 1))), qv = Math.max(-max, Math.min(max, v0 + (i >> 1)));
+            float du = (float) qu / max, dv = (float) qv / max, dz = 1.0f - Math.abs(du) - Math.abs(dv);
+            if (dz < 0.0f) {
+                float t = (1.0f - Math.abs(dv)) * (du >= 0.0f ? 1.0f : -1.0f);
+                dv = (1.0f - Math.abs(du)) * (dv >= 0.0f ? 1.0f : -1.0f);
+                du = t;
+            }
+            float dot = (du * nx + dv * ny + dz * nz) / (float) Math.sqrt(du * du + dv * dv + dz * dz);
+            if (dot > bestDot) {
+                bestDot = dot;
+                bestU = qu;
+                bestV = qv;
+            }
+        }
+        return bestU << 16 | bestV & 0xFFFF;
+    }
+
+    /**
+     * Decode a normal encoded with {@link #octEncode(float, float, float, int)}.
+     */
+    public static Vector3f octDecode(int encoded, int bits, Vector3f dest) {
+        float max = (1 << bits - 1) - 1;
+        float u = Math.max(-1.0f, (encoded >> 16) / max), v = Math.max(-1.0f, (short) encoded / max);
+        float z = 1.0f - Math.abs(u) - Math.abs(v);
+        if (z < 0.0f) {
+            float t = (1.0f - Math.abs(v)) * (u >= 0.0f ? 1.0f : -1.0f);
+            v = (1.0f - Math.abs(u)) * (v >= 0.0f ? 1.0f : -1.0f);
+            u = t;
+        }
+        return dest.set(u, v, z).normalize();
+    }
+}
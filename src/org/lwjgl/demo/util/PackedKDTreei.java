@@ -0,0 +1,461 @@
+/*
+ * Copyright LWJGL. All rights reserved.
+ * License terms: https://www.lwjgl.org/license
+ */
+package org.lwjgl.demo.util;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * KD-tree on integer lattices, built from packed primitive bounds instead of {@link Boundable} objects.
+ * <p>
+ * This produces the same tree as {@link KDTreei#build(List, int)}, but without moving objects around in lists and
+ * without creating new objects when primitives straddle a split plane. A primitive referenced by a node always covers
+ * the intersection of its own bounds with the bounds of the node, so a reference is simply the index of the
+ * primitive, and the clipped bounds can be computed with {@link #refMin(int, int, int, int[])} and
+ * {@link #refMax(int, int, int, int[])}. Subtrees with many primitives are built in parallel.
+ * <p>
+ * The nodes are stored in depth-first order, so the left child of an inner node always directly follows it.
+ *
+ * @author Kai Burjack
+ */
+public class PackedKDTreei {
+
+    private static final int X = 0;
+    private static final int Y = 1;
+    private static final int Z = 2;
+
+    /**
+     * Number of ints per node: <code>minX, minY, minZ, maxX, maxY, maxZ, splitAxis, splitPos, right</code>, where
+     * <code>splitAxis</code> is <code>-1</code> for leaves and <code>right</code> is the index of the right child for
+     * inner nodes and the index of the leaf for leaves.
+     */
+    public static final int NODE_SIZE = 9;
+    /**
+     * Number of ints per leaf: <code>first, count</code> into {@link #refs}, followed by the six rope node indices in
+     * the order <code>+X, -X, +Y, -Y, +Z, -Z</code>, each of which is <code>-1</code> if there is no neighbor.
+     */
+    public static final int LEAF_SIZE = 8;
+
+    private static final int MAX_PRIMITIVES_PER_LEAF = 4;
+    /**
+     * Nodes with more primitives than this are split in parallel tasks.
+     */
+    private static final int PARALLEL_THRESHOLD = 4096;
+    /**
+     * Largest node extent for which the split plane is found by counting instead of sorting.
+     */
+    private static final int MAX_HISTOGRAM_SIZE = 1 << 16;
+
+    private static final ThreadLocal<int[]> SCRATCH = ThreadLocal.withInitial(() -> new int[512]);
+
+    public int[] nodes;
+    public int nodeCount;
+    public int[] leaves;
+    public int leafCount;
+    /**
+     * The indices of the primitives referenced by the leaves.
+     */
+    public int[] refs;
+    public int refCount;
+
+    private int[] bounds;
+    private int maxDepth;
+
+    /**
+     * A subtree built by a single thread into its own arrays.
+     */
+    private static class Part {
+        int[] nodes = new int[NODE_SIZE * 16];
+        int nodeCount;
+        int[] leaves = new int[LEAF_SIZE * 8];
+        int leafCount;
+        int[] refs = new int[32];
+        int refCount;
+
+        int newNode(int[] box) {
+            if (NODE_SIZE * (nodeCount + 1) > nodes.length)
+                nodes = Arrays.copyOf(nodes, nodes.length * 2);
+            System.arraycopy(box, 0, nodes, NODE_SIZE * nodeCount, 6);
+            return nodeCount++;
+        }
+
+        void newLeaf(int node, int[] prims, int count) {
+            if (LEAF_SIZE * (leafCount + 1) > leaves.length)
+                leaves = Arrays.copyOf(leaves, leaves.length * 2);
+            if (refCount + count > refs.length)
+                refs = Arrays.copyOf(refs, Math.max(refs.length * 2, refCount + count));
+            int l = LEAF_SIZE * leafCount;
+            leaves[l] = refCount;
+            leaves[l + 1] = count;
+            System.arraycopy(prims, 0, refs, refCount, count);
+            refCount += count;
+            nodes[NODE_SIZE * node + 6] = -1;
+            nodes[NODE_SIZE * node + 8] = leafCount++;
+        }
+    }
+
+    /**
+     * A node near the root whose children are built in parallel.
+     */
+    private class Top extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        final int[] box;
+        int[] prims;
+        int count;
+        final int depth;
+        int axis = -1, split;
+        Top left, right;
+        Part part;
+
+        Top(int[] box, int[] prims, int count, int depth) {
+            this.box = box;
+            this.prims = prims;
+            this.count = count;
+            this.depth = depth;
+        }
+
+        protected void compute() {
+            if (count <= PARALLEL_THRESHOLD || !trySplit()) {
+                part = new Part();
+                buildPart(part, box, prims, count, depth);
+                prims = null;
+                return;
+            }
+            invokeAll(left, right);
+        }
+
+        private boolean trySplit() {
+            if (count <= MAX_PRIMITIVES_PER_LEAF || depth >= maxDepth)
+                return false;
+            long s = findSplitPlane(box, prims, count);
+            if (s == -1L)
+                return false;
+            axis = (int) (s >>> 32);
+            split = (int) s;
+            int[][] lr = partition(box, prims, count, axis, split);
+            left = new Top(childBox(box, axis, split, true), lr[0], lr[0].length, depth + 1);
+            right = new Top(childBox(box, axis, split, false), lr[1], lr[1].length, depth + 1);
+            prims = null;
+            return true;
+        }
+    }
+
+    private PackedKDTreei() {
+    }
+
+    /**
+     * Pack the bounds of the given boundables into an array of <code>minX, minY, minZ, maxX, maxY, maxZ</code> for
+     * each of them, suitable for {@link #build(int[], int, int, boolean)}.
+     */
+    public static int[] bounds(List<? extends Boundable<?>> boundables) {
+        int[] bounds = new int[boundables.size() * 6];
+        for (int i = 0; i < boundables.size(); i++) {
+            Boundable<?> b = boundables.get(i);
+            bounds[i * 6] = b.min(X);
+            bounds[i * 6 + 1] = b.min(Y);
+            bounds[i * 6 + 2] = b.min(Z);
+            bounds[i * 6 + 3] = b.max(X);
+            bounds[i * 6 + 4] = b.max(Y);
+            bounds[i * 6 + 5] = b.max(Z);
+        }
+        return bounds;
+    }
+
+    /**
+     * Build a kd-tree over <code>count</code> primitives with the given packed bounds.
+     *
+     * @param bounds
+     *            <code>minX, minY, minZ, maxX, maxY, maxZ</code> of each primitive, see {@link #bounds(List)}
+     * @param count
+     *            the number of primitives
+     * @param maxDepth
+     *            the maximum depth of the tree
+     * @param parallel
+     *            whether to build subtrees in parallel using the common fork-join pool
+     * @return the tree
+     */
+    public static PackedKDTreei build(int[] bounds, int count, int maxDepth, boolean parallel) {
+        if (count < 0 || bounds.length < count * 6)
+            throw new IllegalArgumentException("count");
+        int[] box = { Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MIN_VALUE, Integer.MIN_VALUE,
+                Integer.MIN_VALUE };
+        int[] prims = new int[count];
+        for (int i = 0; i < count; i++) {
+            prims[i] = i;
+            for (int a = 0; a < 3; a++) {
+                box[a] = Math.min(box[a], bounds[i * 6 + a]);
+                box[a + 3] = Math.max(box[a + 3], bounds[i * 6 + a + 3]);
+            }
+        }
+        PackedKDTreei tree = new PackedKDTreei();
+        tree.bounds = bounds;
+        tree.maxDepth = maxDepth;
+        if (parallel && count > PARALLEL_THRESHOLD) {
+            Top root = tree.new Top(box, prims, count, 0);
+            ForkJoinPool.commonPool().invoke(root);
+            tree.emit(root);
+        } else {
+            Part part = new Part();
+            tree.buildPart(part, box, prims, count, 0);
+            tree.nodes = part.nodes;
+            tree.nodeCount = part.nodeCount;
+            tree.leaves = part.leaves;
+            tree.leafCount = part.leafCount;
+            tree.refs = part.refs;
+            tree.refCount = part.refCount;
+        }
+        tree.bounds = null;
+        tree.buildRopes();
+        return tree;
+    }
+
+    public boolean isLeaf(int node) {
+        return nodes[NODE_SIZE * node + 6] == -1;
+    }
+
+    /**
+     * Return the minimum of the primitive <code>prim</code> along the given axis, clipped to the bounds of the given
+     * node.
+     */
+    public int refMin(int node, int prim, int axis, int[] bounds) {
+        return Math.max(bounds[prim * 6 + axis], nodes[NODE_SIZE * node + axis]);
+    }
+
+    /**
+     * Return the maximum of the primitive <code>prim</code> along the given axis, clipped to the bounds of the given
+     * node.
+     */
+    public int refMax(int node, int prim, int axis, int[] bounds) {
+        return Math.min(bounds[prim * 6 + axis + 3], nodes[NODE_SIZE * node + axis + 3]);
+    }
+
+    private void buildPart(Part part, int[] box, int[] prims, int count, int depth) {
+        int node = part.newNode(box);
+        long s = count > MAX_PRIMITIVES_PER_LEAF && depth < maxDepth ? findSplitPlane(box, prims, count) : -1L;
+        if (s == -1L) {
+            part.newLeaf(node, prims, count);
+            return;
+        }
+        int axis = (int) (s >>> 32), split = (int) s;
+        part.nodes[NODE_SIZE * node + 6] = axis;
+        part.nodes[NODE_SIZE * node + 7] = split;
+        int[][] lr = partition(box, prims, count, axis, split);
+        buildPart(part, childBox(box, axis, split, true), lr[0], lr[0].length, depth + 1);
+        part.nodes[NODE_SIZE * node + 8] = part.nodeCount;
+        buildPart(part, childBox(box, axis, split, false), lr[1], lr[1].length, depth + 1);
+    }
+
+    private static int[] childBox(int[] box, int axis, int split, boolean left) {
+        int[] b = box.clone();
+        b[left ? axis + 3 : axis] = split;
+        return b;
+    }
+
+    /**
+     * Partition the primitives of a node into its children, keeping their order. Primitives straddling the split
+     * plane are referenced by both children.
+     */
+    private int[][] partition(int[] box, int[] prims, int count, int axis, int split) {
+        int[] bounds = this.bounds;
+        int nl = 0, nr = 0;
+        for (int i = 0; i < count; i++) {
+            int p = prims[i];
+            int min = Math.max(bounds[p * 6 + axis], box[axis]), max = Math.min(bounds[p * 6 + axis + 3], box[axis + 3]);
+            if (min >= split)
+                nr++;
+            else if (max <= split)
+                nl++;
+            else {
+                nl++;
+                nr++;
+            }
+        }
+        int[] left = new int[nl], right = new int[nr];
+        nl = nr = 0;
+        for (int i = 0; i < count; i++) {
+            int p = prims[i];
+            int min = Math.max(bounds[p * 6 + axis], box[axis]), max = Math.min(bounds[p * 6 + axis + 3], box[axis + 3]);
+            if (min >= split)
+                right[nr++] = p;
+            else if (max <= split)
+                left[nl++] = p;
+            else {
+                left[nl++] = p;
+                right[nr++] = p;
+            }
+        }
+        return new int[][] { left, right };
+    }
+
+    /**
+     * Find the split plane with the same cost function as {@link KDTreei}, but by counting the clipped minimums of the
+     * primitives along the split axis instead of sorting them.
+     *
+     * @return the split axis in the high and the split position in the low 32 bits, or <code>-1</code> if the node
+     *         should not be split
+     */
+    private long findSplitPlane(int[] box, int[] prims, int n) {
+        int xw = box[3] - box[0], yw = box[4] - box[1], zw = box[5] - box[2];
+        int ax, boxWidth;
+        if (xw > yw && xw > zw) {
+            ax = X;
+            boxWidth = xw;
+        } else if (yw > zw) {
+            ax = Y;
+            boxWidth = yw;
+        } else {
+            ax = Z;
+            boxWidth = zw;
+        }
+        int[] bounds = this.bounds;
+        int bmin = box[ax];
+        float invBoxWidth = 1.0f / boxWidth, mincost = Float.POSITIVE_INFINITY;
+        int split = bmin;
+        if (boxWidth < MAX_HISTOGRAM_SIZE) {
+            int[] counts = scratch(boxWidth + 1);
+            Arrays.fill(counts, 0, boxWidth + 1, 0);
+            for (int i = 0; i < n; i++)
+                counts[Math.max(bounds[prims[i] * 6 + ax], bmin) - bmin]++;
+            for (int v = 0, i = 0; v <= boxWidth; v++) {
+                float alpha = v * invBoxWidth;
+                for (int end = i + counts[v]; i < end; i++) {
+                    float cost = i * alpha + (n - i) * (1.0f - alpha);
+                    if (cost < mincost) {
+                        split = bmin + v;
+                        mincost = cost;
+                    }
+                }
+            }
+        } else {
+            int[] mins = scratch(n);
+            for (int i = 0; i < n; i++)
+                mins[i] = Math.max(bounds[prims[i] * 6 + ax], bmin);
+            Arrays.sort(mins, 0, n);
+            for (int i = 0; i < n; i++) {
+                float alpha = (mins[i] - bmin) * invBoxWidth;
+                float cost = i * alpha + (n - i) * (1.0f - alpha);
+                if (cost < mincost) {
+                    split = mins[i];
+                    mincost = cost;
+                }
+            }
+        }
+        if (split == box[ax] || split == box[ax + 3])
+            return -1L;
+        return (long) ax << 32 | split & 0xFFFFFFFFL;
+    }
+
+    private static int[] scratch(int size) {
+        int[] s = SCRATCH.get();
+        if (s.length < size) {
+            s = new int[Math.max(size, s.length * 2)];
+            SCRATCH.set(s);
+        }
+        return s;
+    }
+
+    /**
+     * Concatenate the parts built in parallel into the final arrays in depth-first order.
+     */
+    private void emit(Top root) {
+        int[] sizes = new int[3];
+        count(root, sizes);
+        nodes = new int[NODE_SIZE * sizes[0]];
+        leaves = new int[LEAF_SIZE * sizes[1]];
+        refs = new int[sizes[2]];
+        emitNode(root);
+    }
+
+    private static void count(Top t, int[] sizes) {
+        if (t.part != null) {
+            sizes[0] += t.part.nodeCount;
+            sizes[1] += t.part.leafCount;
+            sizes[2] += t.part.refCount;
+        } else {
+            sizes[0]++;
+            count(t.left, sizes);
+            count(t.right, sizes);
+        }
+    }
+
+    private void emitNode(Top t) {
+        if (t.part == null) {
+            int node = nodeCount++;
+            System.arraycopy(t.box, 0, nodes, NODE_SIZE * node, 6);
+            nodes[NODE_SIZE * node + 6] = t.axis;
+            nodes[NODE_SIZE * node + 7] = t.split;
+            emitNode(t.left);
+            nodes[NODE_SIZE * node + 8] = nodeCount;
+            emitNode(t.right);
+            return;
+        }
+        Part p = t.part;
+        int nodeOffset = nodeCount, leafOffset = leafCount, refOffset = refCount;
+        System.arraycopy(p.nodes, 0, nodes, NODE_SIZE * nodeOffset, NODE_SIZE * p.nodeCount);
+        for (int i = 0; i < p.nodeCount; i++)
+            nodes[NODE_SIZE * (nodeOffset + i) + 8] += nodes[NODE_SIZE * (nodeOffset + i) + 6] == -1 ? leafOffset
+                    : nodeOffset;
+        for (int i = 0; i < p.leafCount; i++) {
+            leaves[LEAF_SIZE * (leafOffset + i)] = p.leaves[LEAF_SIZE * i] + refOffset;
+            leaves[LEAF_SIZE * (leafOffset + i) + 1] = p.leaves[LEAF_SIZE * i + 1];
+        }
+        System.arraycopy(p.refs, 0, refs, refOffset, p.refCount);
+        nodeCount += p.nodeCount;
+        leafCount += p.leafCount;
+        refCount += p.refCount;
+        t.part = null;
+    }
+
+    /**
+     * Compute the ropes of all leaves like {@link KDTreei}: first link each child to its sibling and inherit the
+     * remaining ropes of its parent, then push each rope of a leaf down as far as possible.
+     */
+    private void buildRopes() {
+        if (nodeCount == 0)
+            return;
+        int[] ropes = new int[6 * (maxDepth + 2)];
+        Arrays.fill(ropes, 0, 6, -1);
+        processNode(0, ropes, 0);
+    }
+
+    private void processNode(int node, int[] ropes, int off) {
+        int n = NODE_SIZE * node, axis = nodes[n + 6];
+        if (axis == -1) {
+            int l = LEAF_SIZE * nodes[n + 8];
+            for (int side = 0; side < 6; side++)
+                leaves[l + 2 + side] = optimizeRope(node, ropes[off + side], side);
+            return;
+        }
+        int left = node + 1, right = nodes[n + 8];
+        System.arraycopy(ropes, off, ropes, off + 6, 6);
+        ropes[off + 6 + 2 * axis] = right;
+        processNode(left, ropes, off + 6);
+        System.arraycopy(ropes, off, ropes, off + 6, 6);
+        ropes[off + 6 + 2 * axis + 1] = left;
+        processNode(right, ropes, off + 6);
+    }
+
+    private int optimizeRope(int node, int rope, int side) {
+        int n = NODE_SIZE * node;
+        int r = rope;
+        while (r != -1) {
+            int rn = NODE_SIZE * r, axis = nodes[rn + 6];
+            if (axis == -1)
+                break;
+            int split = nodes[rn + 7];
+            if (axis == side >>> 1)
+                r = (side & 1) == 0 ? r + 1 : nodes[rn + 8];
+            else if (split < nodes[n + axis])
+                r = nodes[rn + 8];
+            else if (split > nodes[n + axis + 3])
+                r = r + 1;
+            else
+                break;
+        }
+        return r;
+    }
+}
@@ -4,16 +4,19 @@
  */
 package org.lwjgl.demo.util;
 
-import java.io.BufferedReader;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import static java.util.Arrays.copyOf;
+import static java.util.Arrays.fill;
+
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.nio.ByteBuffer;
 import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.zip.ZipInputStream;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
 
 import org.lwjgl.BufferUtils;
 
@@ -23,25 +26,81 @@ import org.joml.Vector3f;
  * A simple Wavefront obj file loader.
  * <p>
  * Does not load material files.
- * 
+ * <p>
+ * The file is parsed in a single pass directly from the bytes of a {@link ByteBuffer}, without creating a
+ * <code>String</code> per line or token. Positions, normals and faces are collected in arrays which grow as needed.
+ * Polygons are triangulated as fans and negative (relative) indices are supported.
+ * <p>
+ * Large files are parsed in parallel by splitting them into chunks at line boundaries, unless disabled with
+ * {@link #setParallel(boolean)}. The vertex records of each chunk are counted first, so that the chunks can then be parsed concurrently
+ * into shared arrays at their global offsets. Finally the triangles and objects of all chunks are concatenated and
+ * the vertices of blocks of triangles are written in parallel.
+ * <p>
+ * By default, three vertices are written for each triangle. In indexed mode (see {@link #setIndexed(boolean)}), each
+ * distinct pair of position and normal becomes a single vertex, and the triangles are given by an index buffer.
+ * <p>
+ * Meshes loaded from classpath resources are kept in the {@link BufferCache}, so that they are only parsed again when
+ * the resource or the settings of the loader change.
+ *
  * @author Kai Burjack
  */
 public class WavefrontMeshLoader {
 
+    /**
+     * Minimum number of bytes of a chunk parsed by a single task when parsing in parallel.
+     */
+    private static final int MIN_CHUNK_SIZE = 1 << 18;
+
+    /**
+     * Maximum number of triangles written by a single task when writing the vertices in parallel.
+     */
+    private static final int TRIANGLE_BLOCK_SIZE = 1 << 14;
+
+    /**
+     * The version of the layout of cached meshes. Increment when changing it or the meshes created from obj files.
+     */
+    private static final int CACHE_VERSION = 1;
+
+    private static final int OTHER = 0;
+    private static final int POSITION = 1;
+    private static final int NORMAL = 2;
+    private static final int FACE = 3;
+    private static final int OBJECT = 4;
+
+    /**
+     * Powers of ten which are exactly representable as a float.
+     */
+    private static final float[] FLOAT_POWERS_OF_TEN = { 1E0f, 1E1f, 1E2f, 1E3f, 1E4f, 1E5f, 1E6f, 1E7f, 1E8f, 1E9f,
+            1E10f };
+
+    /**
+     * Powers of ten which are exactly representable as a double.
+     */
+    private static final double[] DOUBLE_POWERS_OF_TEN = { 1E0, 1E1, 1E2, 1E3, 1E4, 1E5, 1E6, 1E7, 1E8, 1E9, 1E10,
+            1E11, 1E12, 1E13, 1E14, 1E15, 1E16, 1E17, 1E18, 1E19, 1E20, 1E21, 1E22 };
+
     public static class Mesh {
         public FloatBuffer positions;
         public FloatBuffer normals;
         public int numVertices;
+        /** The vertex indices of the triangles in indexed mode if there are more than 65536 vertices */
+        public IntBuffer indices;
+        /** The (unsigned) vertex indices of the triangles in indexed mode if there are at most 65536 vertices */
+        public ShortBuffer shortIndices;
+        /** The number of indices in indexed mode */
+        public int numIndices;
+        /** The positions quantized by {@link MeshQuantizer#quantize(Mesh, MeshQuantizer.NormalFormat)} */
+        public ShortBuffer quantizedPositions;
+        /** The normals encoded by {@link MeshQuantizer#quantize(Mesh, MeshQuantizer.NormalFormat)} */
+        public ByteBuffer quantizedNormals;
+        public MeshQuantizer.NormalFormat normalFormat;
+        /** Decode the quantized positions of the whole mesh with <code>positionOffset + positionScale * q</code> */
+        public Vector3f positionScale = new Vector3f();
+        public Vector3f positionOffset = new Vector3f();
         public float boundingSphereRadius;
         public List<MeshObject> objects = new ArrayList<MeshObject>();
     }
 
-    private static class WavefrontInfo {
-        int numberOfVertices;
-        int numberOfFaces;
-        int numberOfNormals;
-    }
-
     public class MeshObject {
         public String name;
         public int first;
@@ -54,7 +113,328 @@ public class WavefrontMeshLoader {
         }
     }
 
+    /**
+     * The records of an obj file in growable arrays.
+     */
+    private static class Records {
+        float[] positions;
+        int numPositions;
+        float[] normals;
+        int numNormals;
+        /* The position and normal index of the three corners of each triangle, the normal index being -1 if absent */
+        int[] corners = new int[6 * 256];
+        int numTriangles;
+        List<String> objectNames = new ArrayList<>();
+        int[] objectFirsts = new int[16];
+
+        Records() {
+            this(new float[3 * 256], 0, new float[3 * 256], 0);
+        }
+
+        /**
+         * Create records which add positions and normals to the given arrays starting at the given indices.
+         */
+        Records(float[] positions, int numPositions, float[] normals, int numNormals) {
+            this.positions = positions;
+            this.numPositions = numPositions;
+            this.normals = normals;
+            this.numNormals = numNormals;
+        }
+
+        void addPosition(float x, float y, float z) {
+            if (positions.length < 3 * numPositions + 3)
+                positions = copyOf(positions, positions.length * 2);
+            int i = 3 * numPositions++;
+            positions[i] = x;
+            positions[i + 1] = y;
+            positions[i + 2] = z;
+        }
+
+        void addNormal(float x, float y, float z) {
+            if (normals.length < 3 * numNormals + 3)
+                normals = copyOf(normals, normals.length * 2);
+            int i = 3 * numNormals++;
+            normals[i] = x;
+            normals[i + 1] = y;
+            normals[i + 2] = z;
+        }
+
+        void addTriangle(int v0, int n0, int v1, int n1, int v2, int n2) {
+            if (corners.length < 6 * numTriangles + 6)
+                corners = copyOf(corners, corners.length * 2);
+            int i = 6 * numTriangles++;
+            corners[i] = v0;
+            corners[i + 1] = n0;
+            corners[i + 2] = v1;
+            corners[i + 3] = n1;
+            corners[i + 4] = v2;
+            corners[i + 5] = n2;
+        }
+
+        void addObject(String name) {
+            int i = objectNames.size();
+            if (objectFirsts.length == i)
+                objectFirsts = copyOf(objectFirsts, i * 2);
+            objectFirsts[i] = numTriangles;
+            objectNames.add(name);
+        }
+    }
+
+    /**
+     * Tokenizes the bytes of an obj file and adds its records to a {@link Records}.
+     */
+    private static class Parser {
+        private final ByteBuffer buffer;
+        private final Records records;
+        private int pos;
+        private final int end;
+
+        Parser(ByteBuffer buffer, int start, int end, Records records) {
+            this.buffer = buffer;
+            this.pos = start;
+            this.end = end;
+            this.records = records;
+        }
+
+        void parse() {
+            int type;
+            while ((type = nextRecord()) != -1) {
+                if (type == POSITION) {
+                    float x = parseFloat(), y = parseFloat(), z = parseFloat();
+                    records.addPosition(x, y, z);
+                } else if (type == NORMAL) {
+                    float x = parseFloat(), y = parseFloat(), z = parseFloat();
+                    records.addNormal(x, y, z);
+                } else if (type == FACE) {
+                    parseFace();
+                } else if (type == OBJECT) {
+                    records.addObject(restOfLine());
+                }
+                skipLine();
+            }
+        }
+
+        /**
+         * Only count the positions and normals, storing their numbers in {@link Records#numPositions} and
+         * {@link Records#numNormals}.
+         */
+        void count() {
+            int type;
+            while ((type = nextRecord()) != -1) {
+                if (type == POSITION)
+                    records.numPositions++;
+                else if (type == NORMAL)
+                    records.numNormals++;
+                skipLine();
+            }
+        }
+
+        /**
+         * Skip to the start of the next record and past its keyword.
+         *
+         * @return the type of the record or <code>-1</code> at the end of the input
+         */
+        private int nextRecord() {
+            skipWhitespace();
+            if (pos >= end)
+                return -1;
+            byte c0 = buffer.get(pos), c1 = pos + 1 < end ? buffer.get(pos + 1) : (byte) '\n';
+            if (c0 == 'v' && isSpace(c1)) {
+                pos++;
+                return POSITION;
+            } else if (c0 == 'v' && c1 == 'n') {
+                pos += 2;
+                return NORMAL;
+            } else if (c0 == 'f' && isSpace(c1)) {
+                pos++;
+                return FACE;
+            } else if (c0 == 'o' && isSpace(c1)) {
+                pos++;
+                return OBJECT;
+            }
+            return OTHER;
+        }
+
+        /**
+         * Parse the corners <code>v</code>, <code>v/vt</code>, <code>v//vn</code> or <code>v/vt/vn</code> of a
+         * polygon and add it as a triangle fan.
+         */
+        private void parseFace() {
+            int v0 = 0, n0 = 0, v1 = 0, n1 = 0, corner = 0;
+            while (true) {
+                skipSpaces();
+                if (pos >= end || !isIndexStart(buffer.get(pos)))
+                    return;
+                int v = resolve(parseInt(), records.numPositions), n = -1;
+                if (pos < end && buffer.get(pos) == '/') {
+                    pos++;
+                    if (pos < end && isIndexStart(buffer.get(pos)))
+                        parseInt();
+                    if (pos < end && buffer.get(pos) == '/') {
+                        pos++;
+                        n = resolve(parseInt(), records.numNormals);
+                    }
+                }
+                if (corner == 0) {
+                    v0 = v;
+                    n0 = n;
+                } else if (corner >= 2) {
+                    records.addTriangle(v0, n0, v1, n1, v, n);
+                }
+                v1 = v;
+                n1 = n;
+                corner++;
+            }
+        }
+
+        private static int resolve(int index, int count) {
+            return index < 0 ? count + index : index - 1;
+        }
+
+        private static boolean isIndexStart(byte c) {
+            return c >= '0' && c <= '9' || c == '-' || c == '+';
+        }
+
+        private static boolean isSpace(byte c) {
+            return c == ' ' || c == '\t';
+        }
+
+        private void skipSpaces() {
+            while (pos < end && isSpace(buffer.get(pos)))
+                pos++;
+        }
+
+        private void skipWhitespace() {
+            byte c;
+            while (pos < end && ((c = buffer.get(pos)) == ' ' || c == '\t' || c == '\r' || c == '\n'))
+                pos++;
+        }
+
+        private void skipLine() {
+            while (pos < end) {
+                if (buffer.get(pos++) == '\n')
+                    return;
+            }
+        }
+
+        private String restOfLine() {
+            skipSpaces();
+            int start = pos, last = pos;
+            byte c;
+            while (pos < end && (c = buffer.get(pos)) != '\n' && c != '\r') {
+                if (!isSpace(c))
+                    last = pos + 1;
+                pos++;
+            }
+            byte[] bytes = new byte[last - start];
+            for (int i = 0; i < bytes.length; i++)
+                bytes[i] = buffer.get(start + i);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        private int parseInt() {
+            boolean negative = false;
+            byte c = pos < end ? buffer.get(pos) : 0;
+            if (c == '-' || c == '+') {
+                negative = c == '-';
+                pos++;
+            }
+            int value = 0;
+            while (pos < end && (c = buffer.get(pos)) >= '0' && c <= '9') {
+                value = value * 10 + (c - '0');
+                pos++;
+            }
+            return negative ? -value : value;
+        }
+
+        /**
+         * Parse a decimal float, which is correctly rounded like {@link Float#parseFloat(String)}. Up to 18 significant
+         * digits and exponents within the range of exactly representable powers of ten are computed with a single
+         * float or double operation, and all other numbers, including those whose double result is halfway between
+         * two floats, are delegated to {@link Float#parseFloat(String)}.
+         */
+        private float parseFloat() {
+            skipSpaces();
+            int start = pos;
+            boolean negative = false;
+            byte c = pos < end ? buffer.get(pos) : 0;
+            if (c == '-' || c == '+') {
+                negative = c == '-';
+                pos++;
+            }
+            long mantissa = 0;
+            int digits = 0, exponent = 0;
+            boolean exact = true, any = false;
+            while (pos < end && (c = buffer.get(pos)) >= '0' && c <= '9') {
+                if (digits < 18) {
+                    mantissa = mantissa * 10 + (c - '0');
+                    if (mantissa != 0)
+                        digits++;
+                } else {
+                    exact = false;
+                }
+                any = true;
+                pos++;
+            }
+            if (pos < end && buffer.get(pos) == '.') {
+                pos++;
+                while (pos < end && (c = buffer.get(pos)) >= '0' && c <= '9') {
+                    if (digits < 18) {
+                        mantissa = mantissa * 10 + (c - '0');
+                        exponent--;
+                        if (mantissa != 0)
+                            digits++;
+                    } else {
+                        exact = false;
+                    }
+                    any = true;
+                    pos++;
+                }
+            }
+            if (any && pos < end && ((c = buffer.get(pos)) == 'e' || c == 'E')) {
+                pos++;
+                exponent += parseInt();
+            }
+            if (!any || !exact || pos < end && !isWhitespace(buffer.get(pos)))
+                return slowParseFloat(start);
+            float value;
+            if (mantissa < 1 << 24 && exponent >= -10 && exponent <= 10) {
+                value = exponent < 0 ? mantissa / FLOAT_POWERS_OF_TEN[-exponent]
+                        : mantissa * FLOAT_POWERS_OF_TEN[exponent];
+            } else if (mantissa < 1L << 53 && exponent >= -22 && exponent <= 22) {
+                double d = exponent < 0 ? mantissa / DOUBLE_POWERS_OF_TEN[-exponent]
+                        : mantissa * DOUBLE_POWERS_OF_TEN[exponent];
+                /*
+                 * The double is correctly rounded, and rounding it again to float gives the correctly rounded float
+                 * unless it lies exactly halfway between two floats, where the exact value could be on either side
+                 */
+                if ((Double.doubleToRawLongBits(d) & (1L << 29) - 1) == 1L << 28)
+                    return slowParseFloat(start);
+                value = (float) d;
+            } else {
+                return slowParseFloat(start);
+            }
+            return negative ? -value : value;
+        }
+
+        private static boolean isWhitespace(byte c) {
+            return c == ' ' || c == '\t' || c == '\r' || c == '\n';
+        }
+
+        private float slowParseFloat(int start) {
+            pos = start;
+            while (pos < end && !isWhitespace(buffer.get(pos)))
+                pos++;
+            byte[] bytes = new byte[pos - start];
+            for (int i = 0; i < bytes.length; i++)
+                bytes[i] = buffer.get(start + i);
+            return Float.parseFloat(new String(bytes, StandardCharsets.US_ASCII));
+        }
+    }
+
     private boolean fourComponentPosition;
+    private boolean parallel = true;
+    private boolean indexed;
 
     public WavefrontMeshLoader() {
     }
@@ -67,178 +447,406 @@ public class WavefrontMeshLoader {
         this.fourComponentPosition = fourComponentPosition;
     }
 
-    private static WavefrontInfo getInfo(BufferedReader reader) throws IOException {
-        String line = "";
-        WavefrontInfo info = new WavefrontInfo();
-        while (true) {
-            line = reader.readLine();
-            if (line == null) {
-                break;
-            }
-            if (line.startsWith("v ")) {
-                info.numberOfVertices++;
-            } else if (line.startsWith("f ")) {
-                info.numberOfFaces++;
-            } else if (line.startsWith("vn ")) {
-                info.numberOfNormals++;
-            }
-        }
-        return info;
+    public boolean isParallel() {
+        return parallel;
     }
 
-    private static byte[] readSingleFileZip(String zipResource) throws IOException {
-        ZipInputStream zipStream = new ZipInputStream(WavefrontMeshLoader.class.getClassLoader().getResourceAsStream(
-                zipResource));
-        zipStream.getNextEntry();
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        byte[] buffer = new byte[1024];
-        int read = 0;
-        while ((read = zipStream.read(buffer)) > 0) {
-            baos.write(buffer, 0, read);
-        }
-        zipStream.close();
-        return baos.toByteArray();
+    /**
+     * Set whether to parse large files in parallel using the common fork-join pool. This is enabled by default and
+     * only takes effect on machines with more than one processor and for files of at least two chunks of
+     * {@link #MIN_CHUNK_SIZE} bytes, so that small files are still parsed by the calling thread.
+     */
+    public void setParallel(boolean parallel) {
+        this.parallel = parallel;
+    }
+
+    public boolean isIndexed() {
+        return indexed;
     }
 
+    /**
+     * Set whether to write each distinct pair of position and normal only once and describe the triangles by
+     * {@link Mesh#indices} or {@link Mesh#shortIndices}.
+     * <p>
+     * The {@link MeshObject#first} and {@link MeshObject#count} of the objects still count triangles, so the indices
+     * of an object start at <code>3 * first</code>.
+     */
+    public void setIndexed(boolean indexed) {
+        this.indexed = indexed;
+    }
+
+    /**
+     * Load the mesh from the single obj file contained in the given zip classpath resource.
+     * <p>
+     * The mesh is kept in the {@link BufferCache} under a key of the bytes of the resource and the settings of this
+     * loader, so that later loads of an unchanged resource only memory-map the vertices, indices and objects instead
+     * of parsing the file again.
+     */
     public Mesh loadMesh(String resource) throws IOException {
-        byte[] arr = readSingleFileZip(resource);
-        WavefrontInfo info = getInfo(new BufferedReader(new InputStreamReader(new ByteArrayInputStream(arr))));
+        ByteBuffer zip = IOUtils.ioResourceToByteBuffer(resource, 8192);
+        long key = new BufferCache.Key().put("WavefrontMeshLoader").put(CACHE_VERSION).put(resource)
+                .put(fourComponentPosition ? 1 : 0).put(indexed ? 1 : 0).put(zip).get();
+        /* Every layout gets its own file, so that loaders with different layouts do not overwrite each other */
+        String name = "WavefrontMeshLoader-" + resource.replace('/', '_') + (fourComponentPosition ? "-vec4" : "")
+                + (indexed ? "-indexed" : "");
+        ByteBuffer[] buffers = BufferCache.load(name, key);
+        if (buffers != null)
+            return readMesh(buffers);
+        Mesh mesh = loadMesh(IOUtils.readSingleFileZip(zip));
+        BufferCache.store(name, key, writeMesh(mesh));
+        return mesh;
+    }
+
+    /**
+     * Return the buffers of a mesh for the {@link BufferCache}: a header with the counts, the bounding sphere radius
+     * and the triangle ranges and bounds of the objects, the UTF-8 object names and the vertex and index streams.
+     */
+    private static ByteBuffer[] writeMesh(Mesh mesh) {
+        int numObjects = mesh.objects.size();
+        ByteBuffer header = BufferUtils.createByteBuffer(4 * (4 + 9 * numObjects));
+        header.putInt(mesh.numVertices).putInt(mesh.numIndices).putInt(numObjects).putFloat(mesh.boundingSphereRadius);
+        byte[][] names = new byte[numObjects][];
+        int namesLength = 0;
+        for (int i = 0; i < numObjects; i++) {
+            MeshObject object = mesh.objects.get(i);
+            names[i] = object.name != null ? object.name.getBytes(StandardCharsets.UTF_8) : null;
+            namesLength += names[i] != null ? names[i].length : 0;
+            header.putInt(object.first).putInt(object.count);
+            header.putFloat(object.min.x).putFloat(object.min.y).putFloat(object.min.z);
+            header.putFloat(object.max.x).putFloat(object.max.y).putFloat(object.max.z);
+            header.putInt(names[i] != null ? names[i].length : -1);
+        }
+        header.flip();
+        ByteBuffer nameBytes = BufferUtils.createByteBuffer(namesLength);
+        for (byte[] n : names)
+            if (n != null)
+                nameBytes.put(n);
+        nameBytes.flip();
+        ByteBuffer positions = BufferUtils.createByteBuffer(4 * mesh.positions.remaining());
+        positions.asFloatBuffer().put(mesh.positions.duplicate());
+        ByteBuffer normals = BufferUtils.createByteBuffer(4 * mesh.normals.remaining());
+        normals.asFloatBuffer().put(mesh.normals.duplicate());
+        ByteBuffer indices;
+        if (mesh.shortIndices != null) {
+            indices = BufferUtils.createByteBuffer(2 * mesh.shortIndices.remaining());
+            indices.asShortBuffer().put(mesh.shortIndices.duplicate());
+        } else if (mesh.indices != null) {
+            indices = BufferUtils.createByteBuffer(4 * mesh.indices.remaining());
+            indices.asIntBuffer().put(mesh.indices.duplicate());
+        } else {
+            indices = BufferUtils.createByteBuffer(0);
+        }
+        return new ByteBuffer[] { header, nameBytes, positions, normals, indices };
+    }
+
+    /**
+     * Create a mesh from the buffers written by {@link #writeMesh(Mesh)}, using the vertex and index streams directly.
+     */
+    private Mesh readMesh(ByteBuffer[] buffers) {
+        ByteBuffer header = buffers[0];
+        Mesh mesh = new Mesh();
+        mesh.numVertices = header.getInt(0);
+        mesh.numIndices = header.getInt(4);
+        int numObjects = header.getInt(8);
+        mesh.boundingSphereRadius = header.getFloat(12);
+        byte[] names = new byte[buffers[1].remaining()];
+        buffers[1].duplicate().get(names);
+        for (int i = 0, p = 16, n = 0; i < numObjects; i++, p += 36) {
+            MeshObject object = new MeshObject();
+            object.first = header.getInt(p);
+            object.count = header.getInt(p + 4);
+            object.min.set(header.getFloat(p + 8), header.getFloat(p + 12), header.getFloat(p + 16));
+            object.max.set(header.getFloat(p + 20), header.getFloat(p + 24), header.getFloat(p + 28));
+            int length = header.getInt(p + 32);
+            if (length >= 0) {
+                object.name = new String(names, n, length, StandardCharsets.UTF_8);
+                n += length;
+            }
+            mesh.objects.add(object);
+        }
+        mesh.positions = buffers[2].asFloatBuffer();
+        mesh.normals = buffers[3].asFloatBuffer();
+        if (mesh.numIndices > 0) {
+            if (mesh.numVertices <= 1 << 16)
+                mesh.shortIndices = buffers[4].asShortBuffer();
+            else
+                mesh.indices = buffers[4].asIntBuffer();
+        }
+        return mesh;
+    }
 
-        // Allocate buffers for all vertices/normal
-        ByteBuffer positionByteBuffer = BufferUtils.createByteBuffer(3 * info.numberOfVertices * 4);
-        ByteBuffer normalByteBuffer = BufferUtils.createByteBuffer(3 * info.numberOfNormals * 4);
-        FloatBuffer positions = positionByteBuffer.asFloatBuffer();
-        FloatBuffer normals = normalByteBuffer.asFloatBuffer();
+    /**
+     * Load the mesh from the remaining bytes of the given buffer containing an obj file, without changing its
+     * position.
+     */
+    public Mesh loadMesh(ByteBuffer obj) {
+        /* With a single processor the tasks would only run one after the other and add their overhead */
+        boolean parallel = this.parallel && Runtime.getRuntime().availableProcessors() > 1;
+        int chunks = parallel ? Math.min(ForkJoinPool.getCommonPoolParallelism() * 4, obj.remaining() / MIN_CHUNK_SIZE)
+                : 1;
+        if (chunks <= 1) {
+            Records records = new Records();
+            new Parser(obj, obj.position(), obj.limit(), records).parse();
+            return indexed ? createIndexedMesh(records) : createMesh(records, parallel);
+        }
+        Records records = parseParallel(obj, chunks);
+        return indexed ? createIndexedMesh(records) : createMesh(records, true);
+    }
 
-        // Allocate buffers for the actual face vertices/normals
-        ByteBuffer positionDataByteBuffer = BufferUtils.createByteBuffer((fourComponentPosition ? 4 : 3) * 3 * info.numberOfFaces * 4);
-        ByteBuffer normalDataByteBuffer = BufferUtils.createByteBuffer(3 * 3 * info.numberOfFaces * 4);
-        FloatBuffer positionData = positionDataByteBuffer.asFloatBuffer();
-        FloatBuffer normalData = normalDataByteBuffer.asFloatBuffer();
+    /**
+     * Parse the given number of chunks of the buffer in parallel.
+     */
+    private static Records parseParallel(ByteBuffer obj, int numChunks) {
+        /* Split at line boundaries */
+        int[] starts = new int[numChunks + 1];
+        int start = obj.position(), size = obj.remaining();
+        for (int i = 1; i < numChunks; i++) {
+            int p = Math.max(starts[i - 1], start + (int) ((long) size * i / numChunks));
+            while (p < obj.limit() && obj.get(p) != '\n')
+                p++;
+            starts[i] = Math.min(p + 1, obj.limit());
+        }
+        starts[0] = start;
+        starts[numChunks] = obj.limit();
+        /* Count the vertex records of each chunk to know where to store them */
+        Records[] chunks = new Records[numChunks];
+        IntStream.range(0, numChunks).parallel().forEach(i -> {
+            chunks[i] = new Records(null, 0, null, 0);
+            new Parser(obj, starts[i], starts[i + 1], chunks[i]).count();
+        });
+        int numPositions = 0, numNormals = 0;
+        for (Records chunk : chunks) {
+            int p = chunk.numPositions, n = chunk.numNormals;
+            chunk.numPositions = numPositions;
+            chunk.numNormals = numNormals;
+            numPositions += p;
+            numNormals += n;
+        }
+        /* Parse all chunks into the shared position and normal arrays */
+        float[] positions = new float[3 * numPositions], normals = new float[3 * numNormals];
+        IntStream.range(0, numChunks).parallel().forEach(i -> {
+            Records chunk = chunks[i];
+            chunk.positions = positions;
+            chunk.normals = normals;
+            new Parser(obj, starts[i], starts[i + 1], chunk).parse();
+        });
+        /* Concatenate the triangles and objects */
+        int numTriangles = 0;
+        for (Records chunk : chunks)
+            numTriangles += chunk.numTriangles;
+        Records records = new Records(positions, numPositions, normals, numNormals);
+        records.corners = new int[6 * numTriangles];
+        for (Records chunk : chunks) {
+            for (int i = 0; i < chunk.objectNames.size(); i++) {
+                records.addObject(chunk.objectNames.get(i));
+                records.objectFirsts[records.objectNames.size() - 1] += chunk.objectFirsts[i];
+            }
+            System.arraycopy(chunk.corners, 0, records.corners, 6 * records.numTriangles, 6 * chunk.numTriangles);
+            records.numTriangles += chunk.numTriangles;
+        }
+        return records;
+    }
 
+    /**
+     * Create a mesh with the objects of the given records.
+     */
+    private Mesh createObjects(Records r) {
         Mesh mesh = new Mesh();
-        MeshObject object = null;
+        int numObjects = r.objectNames.size();
+        for (int i = 0; i < numObjects; i++) {
+            MeshObject object = new MeshObject();
+            object.name = r.objectNames.get(i);
+            object.first = r.objectFirsts[i];
+            object.count = (i + 1 < numObjects ? r.objectFirsts[i + 1] : r.numTriangles) - object.first;
+            mesh.objects.add(object);
+        }
+        return mesh;
+    }
 
+    /**
+     * Write the vertices of all triangles of the given records.
+     */
+    private Mesh createMesh(Records r, boolean parallel) {
+        int stride = fourComponentPosition ? 4 : 3;
+        FloatBuffer positionData = BufferUtils.createFloatBuffer(stride * 3 * r.numTriangles);
+        FloatBuffer normalData = BufferUtils.createFloatBuffer(3 * 3 * r.numTriangles);
+        Mesh mesh = createObjects(r);
+        int numObjects = r.objectNames.size();
+        /* Split the triangles into blocks, each of which lies within a single object */
+        int[] blockStarts = new int[r.numTriangles / TRIANGLE_BLOCK_SIZE + numObjects + 2];
+        int[] blockObjects = new int[blockStarts.length];
+        int numBlocks = 0;
+        for (int t = 0, o = -1; t < r.numTriangles; numBlocks++) {
+            while (o + 1 < numObjects && r.objectFirsts[o + 1] <= t)
+                o++;
+            blockStarts[numBlocks] = t;
+            blockObjects[numBlocks] = o;
+            t = Math.min(t + TRIANGLE_BLOCK_SIZE, o + 1 < numObjects ? r.objectFirsts[o + 1] : r.numTriangles);
+        }
+        blockStarts[numBlocks] = r.numTriangles;
+        float[] blockBounds = new float[6 * numBlocks];
+        if (parallel && numBlocks > 1) {
+            IntStream.range(0, numBlocks).parallel().forEach(b -> writeTriangles(r, blockStarts[b], blockStarts[b + 1],
+                    positionData, normalData, blockBounds, 6 * b));
+        } else {
+            for (int b = 0; b < numBlocks; b++)
+                writeTriangles(r, blockStarts[b], blockStarts[b + 1], positionData, normalData, blockBounds, 6 * b);
+        }
         float minX = 1E38f, minY = 1E38f, minZ = 1E38f;
         float maxX = -1E38f, maxY = -1E38f, maxZ = -1E38f;
-
-        BufferedReader reader = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(arr)));
-        String line;
-        int faceIndex = 0;
-        Vector3f tmp = new Vector3f();
-        while ((line = reader.readLine()) != null) {
-            if (line.startsWith("o ")) {
-                String name = line.substring(2);
-                object = new MeshObject();
-                object.name = name;
-                object.first = faceIndex;
-                mesh.objects.add(object);
-            } else if (line.startsWith("vn ")) {
-                String[] ns = line.split(" +");
-                float x = Float.parseFloat(ns[1]);
-                float y = Float.parseFloat(ns[2]);
-                float z = Float.parseFloat(ns[3]);
-                normals.put(x).put(y).put(z);
-            } else if (line.startsWith("v ")) {
-                String[] vs = line.split(" +");
-                float x = Float.parseFloat(vs[1]);
-                float y = Float.parseFloat(vs[2]);
-                float z = Float.parseFloat(vs[3]);
-                positions.put(x).put(y).put(z);
-            } else if (line.startsWith("f")) {
-                String[] fs = line.split(" +");
-                String[] f1 = fs[1].split("/");
-                String[] f2 = fs[2].split("/");
-                String[] f3 = fs[3].split("/");
-                int v1 = Integer.parseInt(f1[0]);
-                int v2 = Integer.parseInt(f2[0]);
-                int v3 = Integer.parseInt(f3[0]);
-                int n1 = Integer.parseInt(f1[2]);
-                int n2 = Integer.parseInt(f2[2]);
-                int n3 = Integer.parseInt(f3[2]);
-                float ver1X = positions.get(3 * (v1 - 1) + 0);
-                float ver1Y = positions.get(3 * (v1 - 1) + 1);
-                float ver1Z = positions.get(3 * (v1 - 1) + 2);
-                minX = minX < ver1X ? minX : ver1X;
-                minY = minY < ver1Y ? minY : ver1Y;
-                minZ = minZ < ver1Z ? minZ : ver1Z;
-                maxX = maxX > ver1X ? maxX : ver1X;
-                maxY = maxY > ver1Y ? maxY : ver1Y;
-                maxZ = maxZ > ver1Z ? maxZ : ver1Z;
-                tmp.set(ver1X, ver1Y, ver1Z);
-                if (object != null) {
-                    object.min.min(tmp);
-                    object.max.max(tmp);
-                }
-                float ver2X = positions.get(3 * (v2 - 1) + 0);
-                float ver2Y = positions.get(3 * (v2 - 1) + 1);
-                float ver2Z = positions.get(3 * (v2 - 1) + 2);
-                minX = minX < ver2X ? minX : ver2X;
-                minY = minY < ver2Y ? minY : ver2Y;
-                minZ = minZ < ver2Z ? minZ : ver2Z;
-                maxX = maxX > ver2X ? maxX : ver2X;
-                maxY = maxY > ver2Y ? maxY : ver2Y;
-                maxZ = maxZ > ver2Z ? maxZ : ver2Z;
-                tmp.set(ver2X, ver2Y, ver2Z);
-                if (object != null) {
-                    object.min.min(tmp);
-                    object.max.max(tmp);
-                }
-                float ver3X = positions.get(3 * (v3 - 1) + 0);
-                float ver3Y = positions.get(3 * (v3 - 1) + 1);
-                float ver3Z = positions.get(3 * (v3 - 1) + 2);
-                minX = minX < ver3X ? minX : ver3X;
-                minY = minY < ver3Y ? minY : ver3Y;
-                minZ = minZ < ver3Z ? minZ : ver3Z;
-                maxX = maxX > ver3X ? maxX : ver3X;
-                maxY = maxY > ver3Y ? maxY : ver3Y;
-                maxZ = maxZ > ver3Z ? maxZ : ver3Z;
-                tmp.set(ver3X, ver3Y, ver3Z);
-                if (object != null) {
-                    object.min.min(tmp);
-                    object.max.max(tmp);
-                }
-                positionData.put(ver1X).put(ver1Y).put(ver1Z);
-                if (fourComponentPosition) {
-                    positionData.put(1.0f);
-                }
-                positionData.put(ver2X).put(ver2Y).put(ver2Z);
-                if (fourComponentPosition) {
-                    positionData.put(1.0f);
-                }
-                positionData.put(ver3X).put(ver3Y).put(ver3Z);
-                if (fourComponentPosition) {
-                    positionData.put(1.0f);
-                }
-                float norm1X = normals.get(3 * (n1 - 1) + 0);
-                float norm1Y = normals.get(3 * (n1 - 1) + 1);
-                float norm1Z = normals.get(3 * (n1 - 1) + 2);
-                float norm2X = normals.get(3 * (n2 - 1) + 0);
-                float norm2Y = normals.get(3 * (n2 - 1) + 1);
-                float norm2Z = normals.get(3 * (n2 - 1) + 2);
-                float norm3X = normals.get(3 * (n3 - 1) + 0);
-                float norm3Y = normals.get(3 * (n3 - 1) + 1);
-                float norm3Z = normals.get(3 * (n3 - 1) + 2);
-                normalData.put(norm1X).put(norm1Y).put(norm1Z);
-                normalData.put(norm2X).put(norm2Y).put(norm2Z);
-                normalData.put(norm3X).put(norm3Y).put(norm3Z);
-                faceIndex++;
-                if (object != null) {
-                    object.count++;
-                }
+        for (int b = 0; b < numBlocks; b++) {
+            float bminX = blockBounds[6 * b], bminY = blockBounds[6 * b + 1], bminZ = blockBounds[6 * b + 2];
+            float bmaxX = blockBounds[6 * b + 3], bmaxY = blockBounds[6 * b + 4], bmaxZ = blockBounds[6 * b + 5];
+            minX = minX < bminX ? minX : bminX;
+            minY = minY < bminY ? minY : bminY;
+            minZ = minZ < bminZ ? minZ : bminZ;
+            maxX = maxX > bmaxX ? maxX : bmaxX;
+            maxY = maxY > bmaxY ? maxY : bmaxY;
+            maxZ = maxZ > bmaxZ ? maxZ : bmaxZ;
+            if (blockObjects[b] >= 0) {
+                MeshObject object = mesh.objects.get(blockObjects[b]);
+                Vector3f omin = object.min, omax = object.max;
+                omin.set(Math.min(omin.x, bminX), Math.min(omin.y, bminY), Math.min(omin.z, bminZ));
+                omax.set(Math.max(omax.x, bmaxX), Math.max(omax.y, bmaxY), Math.max(omax.z, bmaxZ));
             }
         }
         if (mesh.objects.isEmpty()) {
-            object = new MeshObject();
-            object.count = faceIndex;
+            MeshObject object = new MeshObject();
+            object.count = r.numTriangles;
             mesh.objects.add(object);
         }
+        mesh.boundingSphereRadius = Math.max(maxX - minX, Math.max(maxY - minY, maxZ - minZ)) * 0.5f;
+        mesh.positions = positionData;
+        mesh.normals = normalData;
+        mesh.numVertices = positionData.limit() / stride;
+        return mesh;
+    }
+
+    /**
+     * Write the vertices of the given range of triangles at their absolute positions in the buffers and store the
+     * bounds of the vertices in <code>bounds</code> at <code>boundsOffset</code>.
+     */
+    private void writeTriangles(Records r, int first, int end, FloatBuffer positionData, FloatBuffer normalData,
+            float[] bounds, int boundsOffset) {
+        float minX = 1E38f, minY = 1E38f, minZ = 1E38f;
+        float maxX = -1E38f, maxY = -1E38f, maxZ = -1E38f;
+        float[] positions = r.positions, normals = r.normals;
+        int[] corners = r.corners;
+        int stride = fourComponentPosition ? 4 : 3;
+        for (int c = 6 * first, e = 6 * end, p = stride * 3 * first, q = 9 * first; c < e; c += 2) {
+            int v = 3 * corners[c], n = 3 * corners[c + 1];
+            float x = positions[v], y = positions[v + 1], z = positions[v + 2];
+            minX = minX < x ? minX : x;
+            minY = minY < y ? minY : y;
+            minZ = minZ < z ? minZ : z;
+            maxX = maxX > x ? maxX : x;
+            maxY = maxY > y ? maxY : y;
+            maxZ = maxZ > z ? maxZ : z;
+            positionData.put(p, x).put(p + 1, y).put(p + 2, z);
+            if (fourComponentPosition) {
+                positionData.put(p + 3, 1.0f);
+            }
+            p += stride;
+            if (n >= 0)
+                normalData.put(q, normals[n]).put(q + 1, normals[n + 1]).put(q + 2, normals[n + 2]);
+            else
+                normalData.put(q, 0.0f).put(q + 1, 0.0f).put(q + 2, 0.0f);
+            q += 3;
+        }
+        bounds[boundsOffset] = minX;
+        bounds[boundsOffset + 1] = minY;
+        bounds[boundsOffset + 2] = minZ;
+        bounds[boundsOffset + 3] = maxX;
+        bounds[boundsOffset + 4] = maxY;
+        bounds[boundsOffset + 5] = maxZ;
+    }
+
+    /**
+     * Write each distinct pair of position and normal index referenced by the triangles of the given records once, in
+     * the order of their first use, and the index of the vertex of each triangle corner.
+     */
+    private Mesh createIndexedMesh(Records r) {
+        Mesh mesh = createObjects(r);
+        int numObjects = r.objectNames.size();
+        int numCorners = 3 * r.numTriangles;
+        /* Open-addressing hash table mapping (position, normal) keys to vertex indices */
+        int mask = Integer.highestOneBit(Math.max(1, 2 * numCorners - 1)) * 2 - 1;
+        int[] table = new int[mask + 1];
+        fill(table, -1);
+        long[] keys = new long[numCorners];
+        int[] cornerVertices = new int[numCorners];
+        int numVertices = 0;
+        float minX = 1E38f, minY = 1E38f, minZ = 1E38f;
+        float maxX = -1E38f, maxY = -1E38f, maxZ = -1E38f;
+        float[] positions = r.positions, normals = r.normals;
+        int[] corners = r.corners;
+        int objectIndex = -1;
+        MeshObject object = null;
+        for (int i = 0; i < numCorners; i++) {
+            if (i % 3 == 0) {
+                while (objectIndex + 1 < numObjects && r.objectFirsts[objectIndex + 1] <= i / 3)
+                    object = mesh.objects.get(++objectIndex);
+            }
+            int v = corners[2 * i], n = corners[2 * i + 1];
+            long key = (long) v << 32 | n & 0xFFFFFFFFL;
+            long hash = key * 0x9E3779B97F4A7C15L;
+            int slot = (int) (hash ^ hash >>> 32) & mask, vertex;
+            while ((vertex = table[slot]) != -1 && keys[vertex] != key)
+                slot = slot + 1 & mask;
+            if (vertex == -1) {
+                vertex = numVertices++;
+                keys[vertex] = key;
+                table[slot] = vertex;
+            }
+            cornerVertices[i] = vertex;
+            float x = positions[3 * v], y = positions[3 * v + 1], z = positions[3 * v + 2];
+            minX = minX < x ? minX : x;
+            minY = minY < y ? minY : y;
+            minZ = minZ < z ? minZ : z;
+            maxX = maxX > x ? maxX : x;
+            maxY = maxY > y ? maxY : y;
+            maxZ = maxZ > z ? maxZ : z;
+            if (object != null) {
+                Vector3f omin = object.min, omax = object.max;
+                omin.set(Math.min(omin.x, x), Math.min(omin.y, y), Math.min(omin.z, z));
+                omax.set(Math.max(omax.x, x), Math.max(omax.y, y), Math.max(omax.z, z));
+            }
+        }
+        int stride = fourComponentPosition ? 4 : 3;
+        FloatBuffer positionData = BufferUtils.createFloatBuffer(stride * numVertices);
+        FloatBuffer normalData = BufferUtils.createFloatBuffer(3 * numVertices);
+        for (int i = 0; i < numVertices; i++) {
+            int v = 3 * (int) (keys[i] >>> 32), n = 3 * (int) keys[i];
+            positionData.put(positions[v]).put(positions[v + 1]).put(positions[v + 2]);
+            if (fourComponentPosition) {
+                positionData.put(1.0f);
+            }
+            if (n >= 0)
+                normalData.put(normals[n]).put(normals[n + 1]).put(normals[n + 2]);
+            else
+                normalData.put(0.0f).put(0.0f).put(0.0f);
+        }
         positionData.flip();
         normalData.flip();
+        if (numVertices <= 1 << 16) {
+            ShortBuffer shortIndices = BufferUtils.createShortBuffer(numCorners);
+            for (int i = 0; i < numCorners; i++)
+                shortIndices.put(i, (short) cornerVertices[i]);
+            mesh.shortIndices = shortIndices;
+        } else {
+            mesh.indices = BufferUtils.createIntBuffer(numCorners).put(cornerVertices);
+            mesh.indices.flip();
+        }
+        if (mesh.objects.isEmpty()) {
+            object = new MeshObject();
+            object.count = r.numTriangles;
+            mesh.objects.add(object);
+        }
         mesh.boundingSphereRadius = Math.max(maxX - minX, Math.max(maxY - minY, maxZ - minZ)) * 0.5f;
         mesh.positions = positionData;
         mesh.normals = normalData;
-        mesh.numVertices = positionData.limit() / (fourComponentPosition ? 4 : 3);
+        mesh.numVertices = numVertices;
+        mesh.numIndices = numCorners;
         return mesh;
     }
 }
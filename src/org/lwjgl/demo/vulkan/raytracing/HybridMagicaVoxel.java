@@ -4,7 +4,6 @@
  */
 package org.lwjgl.demo.vulkan.raytracing;
 
-import static java.lang.ClassLoader.getSystemResourceAsStream;
 import static java.util.Arrays.asList;
 import static java.util.Collections.emptyList;
 import static java.util.stream.Collectors.toList;
@@ -34,6 +33,7 @@ import org.lwjgl.PointerBuffer;
 import org.lwjgl.demo.util.*;
 import org.lwjgl.demo.util.GreedyMeshingNoAo.Face;
 import org.lwjgl.demo.util.MagicaVoxelLoader.Material;
+import org.lwjgl.demo.util.MagicaVoxelLoader.Swizzle;
 import org.lwjgl.glfw.GLFWVidMode;
 import org.lwjgl.system.*;
 import org.lwjgl.util.vma.*;
@@ -2260,51 +2260,23 @@ public class HybridMagicaVoxel {
         ubo.flushMapped(off, Float.BYTES * 16 * 3);
     }
 
-    private static int idx(int x, int y, int z, int width, int depth) {
-        return (x + 1) + (width + 2) * ((z + 1) + (y + 1) * (depth + 2));
-    }
-
     private static class VoxelField {
         int w, d;
         Vector3i min;
         Vector3i max;
-        byte[] field;
+        BrickVolume field;
     }
 
     private static VoxelField buildVoxelField() throws IOException {
-        Vector3i dims = new Vector3i();
-        Vector3i min = new Vector3i(Integer.MAX_VALUE);
-        Vector3i max = new Vector3i(Integer.MIN_VALUE);
-        byte[] field = new byte[(256 + 2) * (256 + 2) * (256 + 2)];
-        try (InputStream is = getSystemResourceAsStream("org/lwjgl/demo/models/mikelovesrobots_mmmm/scene_house6.vox");
-             BufferedInputStream bis = new BufferedInputStream(is)) {
-            new MagicaVoxelLoader().read(bis, new MagicaVoxelLoader.Callback() {
-                public void voxel(int x, int y, int z, byte c) {
-                    y = dims.z - y - 1;
-                    field[idx(x, z, y, dims.x, dims.z)] = c;
-                    min.set(min(min.x, x), min(min.y, z), min(min.z, y));
-                    max.set(max(max.x, x), max(max.y, z), max(max.z, y));
-                }
-                public void size(int x, int y, int z) {
-                    dims.x = x;
-                    dims.y = z;
-                    dims.z = y;
-                }
-                public void paletteMaterial(int i, Material mat) {
-                    if (i > 255) {
-                        System.out.println("Material index " + i + " is out of range, ignoring");
-                        return;
-                    }
-                    materials[i] = mat;
-                }
-            });
-        }
+        ByteBuffer vox = IOUtils.ioResourceToByteBuffer("org/lwjgl/demo/models/mikelovesrobots_mmmm/scene_house6.vox", 8192);
+        BrickVolume volume = new BrickVolume();
+        new MagicaVoxelLoader().read(vox, Swizzle.Y_UP, volume, materials);
         VoxelField res = new VoxelField();
-        res.w = dims.x;
-        res.d = dims.z;
-        res.min = min;
-        res.max = max;
-        res.field = field;
+        res.w = volume.width;
+        res.d = volume.depth;
+        res.min = volume.min;
+        res.max = volume.max;
+        res.field = volume;
         return res;
     }
 
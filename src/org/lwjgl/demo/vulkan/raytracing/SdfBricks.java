@@ -4,7 +4,6 @@
  */
 package org.lwjgl.demo.vulkan.raytracing;
 
-import static java.lang.ClassLoader.getSystemResourceAsStream;
 import static java.util.Arrays.asList;
 import static java.util.Collections.emptyList;
 import static java.util.stream.Collectors.toList;
@@ -37,7 +36,7 @@ import java.util.function.Consumer;
 import org.joml.*;
 import org.lwjgl.PointerBuffer;
 import org.lwjgl.demo.util.*;
-import org.lwjgl.demo.util.MagicaVoxelLoader.Material;
+import org.lwjgl.demo.util.MagicaVoxelLoader.Swizzle;
 import org.lwjgl.glfw.GLFWVidMode;
 import org.lwjgl.system.*;
 import org.lwjgl.util.vma.*;
@@ -1006,44 +1005,26 @@ public class SdfBricks {
         return ret;
     }
 
-    private static int idx(int x, int y, int z, int width, int depth) {
-        return (x + 1) + (width + 2) * ((z + 1) + (y + 1) * (depth + 2));
-    }
-
     private static class VoxelField {
         int ny, py, w, d;
-        byte[] field;
+        BrickVolume field;
     }
 
     private static VoxelField buildVoxelField() throws IOException {
-        Vector3i dims = new Vector3i();
-        Vector3i min = new Vector3i(Integer.MAX_VALUE);
-        Vector3i max = new Vector3i(Integer.MIN_VALUE);
-        byte[] field = new byte[(256 + 2) * (256 + 2) * (256 + 2)];
-        try (InputStream is = getSystemResourceAsStream("org/lwjgl/demo/models/mikelovesrobots_mmmm/scene_house5.vox");
-             BufferedInputStream bis = new BufferedInputStream(is)) {
-            new MagicaVoxelLoader().read(bis, new MagicaVoxelLoader.Callback() {
-                public void voxel(int x, int y, int z, byte c) {
-                    y = dims.z - y - 1;
-                    field[idx(x, z, y, dims.x, dims.z)] = 1;
-                    min.set(min(min.x, x), min(min.y, z), min(min.z, y));
-                    max.set(max(max.x, x), max(max.y, z), max(max.z, y));
-                }
-                public void size(int x, int y, int z) {
-                    dims.x = x;
-                    dims.y = z;
-                    dims.z = y;
-                }
-                public void paletteMaterial(int i, Material mat) {
-                }
-            });
-        }
+        ByteBuffer vox = IOUtils.ioResourceToByteBuffer("org/lwjgl/demo/models/mikelovesrobots_mmmm/scene_house5.vox", 8192);
+        BrickVolume volume = new BrickVolume();
+        new MagicaVoxelLoader().read(vox, Swizzle.Y_UP, volume, null);
+        /* Only solid or empty matters for the SDF */
+        volume.forEachBrick((x, y, z, voxels, offset) -> {
+            for (int i = offset; i < offset + BrickVolume.BRICK_VOXELS; i++)
+                voxels[i] = (byte) (voxels[i] != 0 ? 1 : 0);
+        });
         VoxelField res = new VoxelField();
-        res.w = dims.x;
-        res.d = dims.z;
-        res.ny = min.y;
-        res.py = max.y;
-        res.field = field;
+        res.w = volume.width;
+        res.d = volume.depth;
+        res.ny = volume.min.y;
+        res.py = volume.max.y;
+        res.field = volume;
         return res;
     }
 